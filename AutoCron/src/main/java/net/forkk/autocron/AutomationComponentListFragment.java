@@ -36,6 +36,7 @@ import android.widget.TextView;
 import net.forkk.autocron.data.Automation;
 import net.forkk.autocron.data.AutomationComponent;
 import net.forkk.autocron.data.AutomationService;
+import net.forkk.autocron.data.ChangeSet;
 import net.forkk.autocron.data.ComponentPointer;
 import net.forkk.autocron.data.ComponentType;
 import net.forkk.autocron.data.ConfigComponent;
@@ -153,19 +154,13 @@ public class AutomationComponentListFragment extends ComponentListFragment
         switch (mType)
         {
         case Rule:
-            for (Rule rule : mAutomation.getRules())
-                if (rule.getId() == id) return rule;
-            return null;
+            return mAutomation.findRuleById(id);
 
         case Action:
-            for (Action action : mAutomation.getActions())
-                if (action.getId() == id) return action;
-            return null;
+            return mAutomation.findActionById(id);
 
         case Trigger:
-            for (Trigger trigger : ((Event) mAutomation).getTriggers())
-                if (trigger.getId() == id) return trigger;
-            return null;
+            return ((Event) mAutomation).findTriggerById(id);
         }
         return null;
     }
@@ -203,22 +198,30 @@ public class AutomationComponentListFragment extends ComponentListFragment
             {
                 int id = (int) finalAdapter.getItemId(position);
 
-                ConfigComponent component = null;
+                // The component is added on the engine thread. Open it once it's there.
+                Automation.ComponentAddedListener<AutomationComponent> listener =
+                        new Automation.ComponentAddedListener<AutomationComponent>()
+                        {
+                            @Override
+                            public void onComponentAdded(AutomationComponent component)
+                            {
+                                if (isAdded()) onEditComponent(component.getId());
+                            }
+                        };
                 switch (mType)
                 {
                 case Rule:
-                    component = mAutomation.addRule(RuleType.getRuleTypes()[id]);
+                    mAutomation.addRule(RuleType.getRuleTypes()[id], listener);
                     break;
 
                 case Action:
-                    component = mAutomation.addAction(ActionType.getActionTypes()[id]);
+                    mAutomation.addAction(ActionType.getActionTypes()[id], listener);
                     break;
 
                 case Trigger:
-                    component = ((Event) mAutomation).addTrigger(TriggerType.getTriggerTypes()[id]);
+                    ((Event) mAutomation).addTrigger(TriggerType.getTriggerTypes()[id], listener);
                     break;
                 }
-                onEditComponent(component.getId());
             }
         });
 
@@ -287,7 +290,7 @@ public class AutomationComponentListFragment extends ComponentListFragment
     }
 
     @Override
-    public void onComponentListChange()
+    public void onComponentListChange(ChangeSet changes)
     {
         mAdapter.notifyDataSetChanged();
     }
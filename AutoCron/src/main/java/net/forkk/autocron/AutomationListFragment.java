@@ -29,6 +29,7 @@ import android.view.View;
 import android.widget.EditText;
 
 import net.forkk.autocron.data.AutomationService;
+import net.forkk.autocron.data.ChangeSet;
 import net.forkk.autocron.data.ComponentPointer;
 import net.forkk.autocron.data.ConfigComponent;
 import net.forkk.autocron.data.Event;
@@ -248,7 +249,7 @@ public class AutomationListFragment extends ComponentListFragment
     }
 
     @Override
-    public void onAutomationListChange()
+    public void onAutomationListChange(ChangeSet changes)
     {
         mAdapter.notifyDataSetChanged();
     }
@@ -24,10 +24,13 @@ import android.content.ServiceConnection;
 import android.os.Bundle;
 import android.os.IBinder;
 import android.preference.PreferenceFragment;
+import android.util.Log;
 
 import net.forkk.autocron.data.AutomationService;
 import net.forkk.autocron.data.ComponentPointer;
 import net.forkk.autocron.data.ConfigComponent;
+import net.forkk.autocron.data.store.ConfigStore;
+import net.forkk.autocron.data.store.PreferenceMirror;
 
 
 /**
@@ -41,6 +44,8 @@ public class ComponentPreferenceFragment extends PreferenceFragment
 
     private ComponentPointer mPointer;
 
+    private PreferenceMirror mMirror;
+
     public ComponentPreferenceFragment()
     {
         super();
@@ -75,12 +80,20 @@ public class ComponentPreferenceFragment extends PreferenceFragment
             {
                 AutomationService.LocalBinder binder = (AutomationService.LocalBinder) iBinder;
                 mComponent = mPointer.getComponent(binder);
-                assert mComponent != null;
-                initFromComponent();
 
                 Activity activity = getActivity();
                 assert activity != null;
                 activity.unbindService(this);
+
+                // Components are loaded in the background, so after a restart the one being edited
+                // may not be there yet, or it may have been deleted in the meantime.
+                if (mComponent == null)
+                {
+                    Log.w(AutomationService.LOGGER_TAG, "Component to edit isn't loaded.");
+                    activity.finish();
+                    return;
+                }
+                initFromComponent();
             }
 
             @Override
@@ -97,18 +110,40 @@ public class ComponentPreferenceFragment extends PreferenceFragment
         activity.bindService(service, connection, Context.BIND_AUTO_CREATE);
     }
 
+    @Override
+    public void onDestroy()
+    {
+        super.onDestroy();
+
+        if (mMirror != null) mMirror.close();
+        mMirror = null;
+    }
+
     @Override
     public void onSaveInstanceState(Bundle outState)
     {
         super.onSaveInstanceState(outState);
 
-        outState.putSerializable(VALUE_COMPONENT_POINTER, mComponent.getPointer());
+        outState.putSerializable(VALUE_COMPONENT_POINTER,
+                                 mComponent != null ? mComponent.getPointer() : mPointer);
     }
 
     public void initFromComponent()
     {
+        // Preference screens can only edit SharedPreferences files, so if the config store uses
+        // something else, mirror the component's config into a SharedPreferences file.
+        Activity activity = getActivity();
+        assert activity != null;
+        ConfigStore store = ConfigStore.get(activity);
+        String name = mComponent.getSharedPreferencesName();
+        if (store.needsPreferenceMirror())
+        {
+            mMirror = new PreferenceMirror(activity, store, name);
+            name = mMirror.getScratchName();
+        }
+
         //noinspection ConstantConditions
-        getPreferenceManager().setSharedPreferencesName(mComponent.getSharedPreferencesName());
+        getPreferenceManager().setSharedPreferencesName(name);
 
         // Load preferences from the component.
         mComponent.addPreferencesToFragment(this);
@@ -21,6 +21,7 @@ import android.content.Context;
 import android.content.Intent;
 
 import net.forkk.autocron.data.AutomationService;
+import net.forkk.autocron.data.EngineSnapshot;
 
 
 /**
@@ -31,6 +32,10 @@ public class ServiceStartReceiver extends BroadcastReceiver
     @Override
     public void onReceive(Context context, Intent intent)
     {
+        // Nothing the actions did before the reboot is still in place.
+        if (Intent.ACTION_BOOT_COMPLETED.equals(intent.getAction()))
+            EngineSnapshot.get(context).invalidate();
+
         context.startService(new Intent(context, AutomationService.class));
     }
 }
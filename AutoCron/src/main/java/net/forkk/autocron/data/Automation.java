@@ -41,7 +41,21 @@ public interface Automation extends ConfigComponent
 
     public static interface ComponentListChangeListener
     {
-        public void onComponentListChange();
+        /**
+         * Called on the main thread with a batch of changes to the automation's component lists.
+         */
+        public void onComponentListChange(ChangeSet changes);
+    }
+
+    /**
+     * Receives a component that was added to an automation.
+     */
+    public static interface ComponentAddedListener<T extends AutomationComponent>
+    {
+        /**
+         * Called on the main thread once the component has been created and added to its list.
+         */
+        public void onComponentAdded(T component);
     }
 
 
@@ -51,12 +65,15 @@ public interface Automation extends ConfigComponent
     public List<Rule> getRules();
 
     /**
-     * Adds a new rule of the given type with the given name.
+     * Adds a new rule of the given type. The rule is added on the engine thread, so this returns
+     * right away.
      *
      * @param type
      *         The type of rule to add.
+     * @param listener
+     *         Listener that is given the new rule once it has been added, or null.
      */
-    public Rule addRule(RuleType type);
+    public void addRule(RuleType type, ComponentAddedListener<? super Rule> listener);
 
     /**
      * Removes the rule with the given ID.
@@ -82,12 +99,15 @@ public interface Automation extends ConfigComponent
     public List<Action> getActions();
 
     /**
-     * Adds a new action with the given name.
+     * Adds a new action of the given type. The action is added on the engine thread, so this
+     * returns right away.
      *
      * @param type
      *         The type of action to add.
+     * @param listener
+     *         Listener that is given the new action once it has been added, or null.
      */
-    public Action addAction(ActionType type);
+    public void addAction(ActionType type, ComponentAddedListener<? super Action> listener);
 
     /**
      * Removes the action with the given ID.
@@ -115,8 +135,8 @@ public interface Automation extends ConfigComponent
     /**
      * Reloads all components from configuration.
      * <p/>
-     * This is generally called when some configuration options change. It re-creates all of the
-     * rules and actions.
+     * This is generally called when some configuration options change. It re-creates the
+     * components that were added, removed or changed and leaves the rest alone.
      */
     public void reloadComponents(AutomationService service);
 }
@@ -25,12 +25,17 @@ import net.forkk.autocron.R;
 import net.forkk.autocron.data.action.Action;
 import net.forkk.autocron.data.action.ActionType;
 import net.forkk.autocron.data.rule.Rule;
+import net.forkk.autocron.data.rule.RuleExpression;
 import net.forkk.autocron.data.rule.RuleType;
+import net.forkk.autocron.data.store.ConfigStore;
+import net.forkk.autocron.util.IntObjectMap;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 
 /**
@@ -46,22 +51,83 @@ public abstract class AutomationBase extends ConfigComponentBase
 
     protected static final String VALUE_ACTION_IDS = "action_ids";
 
+    /**
+     * Expression saying how the automation's rules are combined. If it's empty, all of the enabled
+     * rules have to be satisfied.
+     */
+    public static final String VALUE_RULE_EXPRESSION = "rule_expression";
+
     protected List<Rule> mRules;
 
     protected List<Action> mActions;
 
+    // ID indexes for the component lists. These must be kept in sync with the lists. An index is
+    // never changed once it's published here. The engine swaps in a new one instead, so they can be
+    // read from any thread.
+    protected volatile IntObjectMap<Rule> mRuleIndex;
+
+    protected volatile IntObjectMap<Action> mActionIndex;
+
     protected AutomationService mAutomationService;
 
     protected ArrayList<ComponentListChangeListener> mComponentListObservers;
 
+    /**
+     * Batches up changes to the component lists before they're passed to the observers.
+     */
+    private ChangeBus mComponentListBus;
+
+    /**
+     * The compiled rule expression, or null if the automation doesn't have one.
+     */
+    private RuleExpression mRuleExpression;
+
+    /**
+     * True once this automation's components have been loaded. Automations are constructed with
+     * only their own settings (name, description, enabled) loaded, and their components are loaded
+     * when they're created or when something first asks for them. Only set on the engine thread.
+     */
+    private volatile boolean mComponentsLoaded;
+
+    /**
+     * True once loading the components has been posted to the engine thread, so asking for them
+     * over and over before they're in doesn't queue up more loads.
+     */
+    private volatile boolean mComponentsLoadPosted;
+
+    /**
+     * Config version of each loaded component at the time it was loaded, by section name.
+     */
+    private HashMap<String, Integer> mLoadedConfigVersions;
+
+    /**
+     * Passes preference changes on to this automation on the engine thread. Kept here because
+     * shared preferences only hold weak references to their listeners.
+     */
+    private SharedPreferences.OnSharedPreferenceChangeListener mPreferenceListener;
+
 
     public AutomationBase(AutomationService service, int sharedPreferencesId)
     {
         super(service, sharedPreferencesId);
         mAutomationService = service;
         mComponentListObservers = new ArrayList<ComponentListChangeListener>();
-        mRules = new ArrayList<Rule>();
-        mActions = new ArrayList<Action>();
+        mComponentListBus = new ChangeBus(new ChangeBus.Receiver()
+        {
+            @Override
+            public void onChangesDelivered(ChangeSet changes)
+            {
+                for (ComponentListChangeListener listener : mComponentListObservers)
+                    listener.onComponentListChange(changes);
+            }
+        });
+        mRules = new CopyOnWriteArrayList<Rule>();
+        mActions = new CopyOnWriteArrayList<Action>();
+        mRuleIndex = new IntObjectMap<Rule>();
+        mActionIndex = new IntObjectMap<Action>();
+        mLoadedConfigVersions = new HashMap<String, Integer>();
+        mPreferenceListener = service.onEngine(this);
+        getSharedPreferences().registerOnSharedPreferenceChangeListener(mPreferenceListener);
     }
 
 
@@ -72,6 +138,7 @@ public abstract class AutomationBase extends ConfigComponentBase
     @Override
     public void onCreate()
     {
+        ensureComponentsLoaded();
         createComponents();
     }
 
@@ -103,11 +170,33 @@ public abstract class AutomationBase extends ConfigComponentBase
             action.destroy();
     }
 
+    /**
+     * Stops this automation and all of its components from listening for config changes.
+     */
+    @Override
+    public void release()
+    {
+        getSharedPreferences().unregisterOnSharedPreferenceChangeListener(mPreferenceListener);
+        releaseComponents();
+    }
+
+    protected void releaseComponents()
+    {
+        for (Rule rule : mRules)
+            rule.release();
 
+        for (Action action : mActions)
+            action.release();
+    }
+
+
+    /**
+     * Notifies the component list observers that components were added, removed or reloaded.
+     * Notifications are batched, so the observers are called shortly afterwards on the main thread.
+     */
     protected void onComponentListChange()
     {
-        for (ComponentListChangeListener listener : mComponentListObservers)
-            listener.onComponentListChange();
+        mComponentListBus.postStructuralChange();
     }
 
     @Override
@@ -125,10 +214,95 @@ public abstract class AutomationBase extends ConfigComponentBase
     @Override
     public void onSharedPreferenceChanged(SharedPreferences preferences, String key)
     {
-        if (key.equals("name") || key.equals("description")) onComponentListChange();
+        updateCachedField(key);
+        getService().onAutomationChanged(this, key);
+    }
+
+    @Override
+    protected void loadCachedFields()
+    {
+        super.loadCachedFields();
+        compileRuleExpression();
+    }
+
+    @Override
+    protected void updateCachedField(String key)
+    {
+        super.updateCachedField(key);
+        if (VALUE_RULE_EXPRESSION.equals(key)) compileRuleExpression();
+    }
+
+    private void compileRuleExpression()
+    {
+        String expression = getSharedPreferences().getString(VALUE_RULE_EXPRESSION, "").trim();
+        if (expression.isEmpty())
+        {
+            mRuleExpression = null;
+            return;
+        }
+
+        try
+        {
+            mRuleExpression = RuleExpression.parse(expression);
+        }
+        catch (IllegalArgumentException e)
+        {
+            Log.w(LOGGER_TAG, "Invalid rule expression for \"" + getName() + "\": " +
+                              e.getMessage());
+            // Don't let a typo activate the automation. An empty any() is never satisfied.
+            mRuleExpression = RuleExpression.parse("any()");
+        }
+    }
+
+    /**
+     * @return The compiled rule expression, or null if all enabled rules have to be satisfied.
+     */
+    protected RuleExpression getRuleExpression()
+    {
+        return mRuleExpression;
     }
 
 
+    /**
+     * Loads this automation's components if they haven't been loaded yet. The UI may ask for the
+     * components of a disabled automation, so this can be called from any thread. Loading writes
+     * the ID indexes, so it's always done on the engine thread. Other threads don't wait for it:
+     * they see the lists as they are for now, and the component list observers are notified once
+     * the components are in.
+     */
+    protected void ensureComponentsLoaded()
+    {
+        if (mComponentsLoaded) return;
+        if (getService().isEngineThread())
+        {
+            preloadComponents();
+            return;
+        }
+
+        if (mComponentsLoadPosted) return;
+        mComponentsLoadPosted = true;
+        getService().runOnEngine(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                preloadComponents();
+            }
+        });
+    }
+
+    /**
+     * Loads this automation's components on the calling thread. This may only be called on the
+     * engine thread, or by the loader before the automation is in the service's lists, when
+     * nothing else can see it yet.
+     */
+    void preloadComponents()
+    {
+        if (mComponentsLoaded) return;
+        mComponentsLoaded = true;
+        loadConfig(getService());
+    }
+
     protected void loadConfig(Context context)
     {
         Log.i(LOGGER_TAG, "Loading automation configuration for \"" + getName() + "\".");
@@ -178,37 +352,161 @@ public abstract class AutomationBase extends ConfigComponentBase
             }
         }
 
+        // Publish the index first, so anything found in the list can be found by its ID.
+        typeInterface.setIndex(AutomationService.buildIndex(tempComponentList));
+        AutomationService.replaceSnapshot(typeInterface.getList(), tempComponentList);
+        for (T component : tempComponentList)
+        {
+            mLoadedConfigVersions.put(component.getSharedPreferencesName(),
+                                      component.getConfigVersion());
+        }
+    }
+
+    /**
+     * Reloads all of this automation's component lists. Subclasses with other component lists
+     * should override this and reload them as well.
+     *
+     * @param created
+     *         List that components which need to be created are added to.
+     *
+     * @return True if any of the lists changed.
+     */
+    protected boolean reloadComponentLists(Context context, List<AutomationComponent> created)
+    {
+        SharedPreferences prefs = getSharedPreferences();
+        boolean changed = reloadComponentList(context, prefs, mRuleTypeInterface, created);
+        changed |= reloadComponentList(context, prefs, mActionTypeInterface, created);
+        return changed;
+    }
+
+    /**
+     * Brings the given component list in line with the configuration. Components that were added,
+     * removed or whose configuration changed since they were loaded are destroyed and loaded
+     * again. All other components are left alone, so they keep their runtime state.
+     *
+     * @param created
+     *         List that new components are added to. They need to be created once all of the
+     *         lists have been reloaded.
+     *
+     * @return True if the list changed.
+     */
+    protected <T extends AutomationComponent> boolean reloadComponentList(
+            Context context, SharedPreferences prefs, ComponentTypeInterface<T> typeInterface,
+            List<AutomationComponent> created)
+    {
+        String typeName = typeInterface.getTypeName(false);
+        ConfigStore store = getService().getConfigStore();
         List<T> list = typeInterface.getList();
+        IntObjectMap<T> index = typeInterface.getIndex();
+
+        Set<String> idSet = prefs.getStringSet(typeInterface.getIdListKey(), new HashSet<String>());
+        IntObjectMap<T> keep = new IntObjectMap<T>(idSet.size());
+        ArrayList<T> added = new ArrayList<T>();
+        for (String stringVal : idSet)
+        {
+            int id;
+            try
+            {
+                id = Integer.parseInt(stringVal);
+            }
+            catch (NumberFormatException e)
+            {
+                Log.e(LOGGER_TAG, "Found non-integer in automation " + typeName + " ID set.", e);
+                continue;
+            }
+
+            T existing = index.get(id);
+            if (existing != null && !isComponentModified(existing, store))
+            {
+                keep.put(id, existing);
+                continue;
+            }
+
+            T component = typeInterface.loadFromPrefs(this, context, id);
+            if (component != null) added.add(component);
+            else Log.e(LOGGER_TAG, "Skipped " + typeName + " with missing or invalid type ID.");
+        }
+
+        if (added.isEmpty() && keep.size() == list.size()) return false;
+
+        // Destroy everything that was removed or is being replaced.
+        ArrayList<T> newList = new ArrayList<T>(keep.size() + added.size());
         for (T component : list)
-            context.getSharedPreferences(component.getSharedPreferencesName(), Context.MODE_PRIVATE)
-                   .unregisterOnSharedPreferenceChangeListener(this);
-        list.clear();
-        list.addAll(tempComponentList);
-        for (T component : list)
-            context.getSharedPreferences(component.getSharedPreferencesName(), Context.MODE_PRIVATE)
-                   .registerOnSharedPreferenceChangeListener(this);
+        {
+            if (keep.get(component.getId()) == component)
+            {
+                newList.add(component);
+                continue;
+            }
+
+            Log.i(LOGGER_TAG, "Unloading " + typeName + " \"" + component.getName() + "\".");
+            component.destroy();
+            onComponentUnloaded(component);
+            component.removeChangeListener(this);
+            component.release();
+            mLoadedConfigVersions.remove(component.getSharedPreferencesName());
+        }
+
+        for (T component : added)
+        {
+            Log.i(LOGGER_TAG, "Reloaded " + typeName + " \"" + component.getName() + "\".");
+            newList.add(component);
+            mLoadedConfigVersions.put(component.getSharedPreferencesName(),
+                                      component.getConfigVersion());
+            component.addChangeListener(this);
+            created.add(component);
+        }
+
+        typeInterface.setIndex(AutomationService.buildIndex(newList));
+        AutomationService.replaceSnapshot(list, newList);
+        return true;
+    }
+
+    /**
+     * @return True if the given component's configuration changed since it was loaded.
+     */
+    private boolean isComponentModified(AutomationComponent component, ConfigStore store)
+    {
+        Integer loadedVersion = mLoadedConfigVersions.get(component.getSharedPreferencesName());
+        if (loadedVersion == null || loadedVersion != component.getConfigVersion()) return true;
+
+        // A different type ID means the section now holds a different component altogether.
+        String typeId = store.getPreferences(component.getSharedPreferencesName())
+                             .getString(ComponentType.VALUE_COMPONENT_TYPE, null);
+        return !component.getType().getTypeId().equals(typeId);
     }
 
 
     /**
-     * @return An array of this automation's rules.
+     * @return The rules that have been loaded so far, without loading them if they haven't been.
+     */
+    List<Rule> getLoadedRules()
+    {
+        return mRules;
+    }
+
+    /**
+     * @return An array of this automation's rules. If they haven't been loaded yet, this starts
+     * loading them and returns the list as it is, and the component list observers are notified
+     * once they're in.
      */
     @Override
     public List<Rule> getRules()
     {
+        ensureComponentsLoaded();
         return mRules;
     }
 
     /**
-     * Adds a new rule of the given type with the given name.
+     * Adds a new rule of the given type.
      *
      * @param type
      *         The type of rule to add.
      */
     @Override
-    public Rule addRule(RuleType type)
+    public void addRule(RuleType type, ComponentAddedListener<? super Rule> listener)
     {
-        return addComponent(type, mRuleTypeInterface);
+        addComponent(type, mRuleTypeInterface, listener);
     }
 
     /**
@@ -226,30 +524,31 @@ public abstract class AutomationBase extends ConfigComponentBase
     @Override
     public Rule findRuleById(int id)
     {
-        for (Rule rule : mRules)
-            if (rule.getId() == id) return rule;
-        return null;
+        ensureComponentsLoaded();
+        return mRuleIndex.get(id);
     }
 
     /**
-     * @return An array of this automation's actions.
+     * @return An array of this automation's actions. Like getRules(), this doesn't wait for them
+     * to be loaded.
      */
     @Override
     public List<Action> getActions()
     {
+        ensureComponentsLoaded();
         return mActions;
     }
 
     /**
-     * Adds a new action with the given name.
+     * Adds a new action of the given type.
      *
      * @param type
      *         The type of action to add.
      */
     @Override
-    public Action addAction(ActionType type)
+    public void addAction(ActionType type, ComponentAddedListener<? super Action> listener)
     {
-        return addComponent(type, mActionTypeInterface);
+        addComponent(type, mActionTypeInterface, listener);
     }
 
     /**
@@ -267,42 +566,97 @@ public abstract class AutomationBase extends ConfigComponentBase
     @Override
     public Action findActionById(int id)
     {
-        for (Action action : mActions)
-            if (action.getId() == id) return action;
-        return null;
+        ensureComponentsLoaded();
+        return mActionIndex.get(id);
     }
 
 
-    public <T extends AutomationComponent> T addComponent(ComponentType<T> type,
-                                                          ComponentTypeInterface<T> typeInterface)
+    /**
+     * Adds a new component of the given type. The component is registered and created on the
+     * engine thread, and only goes into the list once that's done, so anything that finds it in
+     * the list can also find it in the index. This doesn't wait for the engine. The component list
+     * observers are notified when the list changes, and the given listener, if there is one, is
+     * called with the new component on the main thread.
+     */
+    public <T extends AutomationComponent> void addComponent(
+            final ComponentType<T> type, final ComponentTypeInterface<T> typeInterface,
+            final ComponentAddedListener<? super T> listener)
+    {
+        getService().runOnEngine(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                // The new component's ID is added to the saved list, so the rest of the list has
+                // to be loaded first.
+                ensureComponentsLoaded();
+                final T component = type.createNew(AutomationBase.this, getService());
+                attachComponent(component, typeInterface);
+                if (listener == null) return;
+
+                getService().runOnMainThread(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        listener.onComponentAdded(component);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Adds the given new component to the ID list and index, and creates it.
+     */
+    private <T extends AutomationComponent> void attachComponent(
+            T component, ComponentTypeInterface<T> typeInterface)
     {
         SharedPreferences prefs = getSharedPreferences();
         SharedPreferences.Editor edit = prefs.edit();
 
-        T component = type.createNew(this, getService());
-
         Set<String> componentIDs = new HashSet<String>();
         componentIDs.add(((Integer) component.getId()).toString());
         componentIDs
                 .addAll(prefs.getStringSet(typeInterface.getIdListKey(), new HashSet<String>()));
 
         edit.putStringSet(typeInterface.getIdListKey(), componentIDs);
+        IntObjectMap<T> index = new IntObjectMap<T>(typeInterface.getIndex());
+        index.put(component.getId(), component);
+        typeInterface.setIndex(index);
+        mLoadedConfigVersions.put(component.getSharedPreferencesName(),
+                                  component.getConfigVersion());
         typeInterface.getList().add(component);
         component.addChangeListener(this);
         component.create();
-        boolean success = edit.commit();
-        if (!success) Log.e(LOGGER_TAG, "Failed to commit changes to preferences.");
-        else onComponentListChange();
+        edit.apply();
+        onComponentListChange();
 
         assert prefs.getStringSet(typeInterface.getIdListKey(), new HashSet<String>())
                     .equals(componentIDs);
+    }
 
-        return component;
+    /**
+     * Deletes the component with the given ID on the engine thread.
+     */
+    public <T extends AutomationComponent> void deleteComponent(
+            final int id, final ComponentTypeInterface<T> typeInterface)
+    {
+        ensureComponentsLoaded();
+        getService().runOnEngine(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                removeComponent(id, typeInterface);
+            }
+        });
     }
 
-    public void deleteComponent(int id, ComponentTypeInterface typeInterface)
+    private <T extends AutomationComponent> void removeComponent(
+            int id, ComponentTypeInterface<T> typeInterface)
     {
-        AutomationComponent component = typeInterface.findById(id);
+        T component = typeInterface.findById(id);
         if (component == null)
         {
             Log.e(LOGGER_TAG, "Attempted to delete " + typeInterface.getTypeName(false) +
@@ -320,16 +674,21 @@ public abstract class AutomationBase extends ConfigComponentBase
 
         edit.putStringSet(typeInterface.getIdListKey(), componentIDs);
 
-        // Clear the component's preferences
-        getService()
-                .getSharedPreferences(component.getSharedPreferencesName(), Context.MODE_PRIVATE)
-                .edit().clear().commit();
-
         component.destroy();
+        component.release();
         typeInterface.getList().remove(component);
-        boolean success = edit.commit();
-        if (!success) Log.e(LOGGER_TAG, "Failed to commit changes to preferences.");
-        else onComponentListChange();
+        IntObjectMap<T> index = new IntObjectMap<T>(typeInterface.getIndex());
+        index.remove(id);
+        typeInterface.setIndex(index);
+        mLoadedConfigVersions.remove(component.getSharedPreferencesName());
+        EngineSnapshot.get(getService()).forget(component);
+
+        // Remove the ID from the list before clearing the component's preferences, so the list
+        // never refers to a component whose preferences are already gone.
+        edit.apply();
+        getService().getConfigStore().getPreferences(component.getSharedPreferencesName()).edit()
+                    .clear().apply();
+        onComponentListChange();
     }
 
 
@@ -354,6 +713,18 @@ public abstract class AutomationBase extends ConfigComponentBase
                     return mRules;
                 }
 
+                @Override
+                public IntObjectMap<Rule> getIndex()
+                {
+                    return mRuleIndex;
+                }
+
+                @Override
+                public void setIndex(IntObjectMap<Rule> index)
+                {
+                    mRuleIndex = index;
+                }
+
                 @Override
                 public Rule loadFromPrefs(Automation automation, Context context, int id)
                 {
@@ -388,6 +759,18 @@ public abstract class AutomationBase extends ConfigComponentBase
                     return mActions;
                 }
 
+                @Override
+                public IntObjectMap<Action> getIndex()
+                {
+                    return mActionIndex;
+                }
+
+                @Override
+                public void setIndex(IntObjectMap<Action> index)
+                {
+                    mActionIndex = index;
+                }
+
                 @Override
                 public Action loadFromPrefs(Automation automation, Context context, int id)
                 {
@@ -402,9 +785,10 @@ public abstract class AutomationBase extends ConfigComponentBase
             };
 
     @Override
-    public void onComponentChange()
+    public void onComponentChange(AutomationComponent component, String key)
     {
-        onComponentListChange();
+        if (key.equals("name") || key.equals("description") || key.equals("enabled"))
+            mComponentListBus.postFieldChange(component.getSharedPreferencesName(), key);
     }
 
     protected interface ComponentTypeInterface<T extends AutomationComponent>
@@ -415,17 +799,21 @@ public abstract class AutomationBase extends ConfigComponentBase
 
         public abstract List<T> getList();
 
+        /**
+         * @return The ID index for the list returned by getList().
+         */
+        public abstract IntObjectMap<T> getIndex();
+
+        /**
+         * Publishes a new ID index for the list. The index mustn't be changed afterwards.
+         */
+        public abstract void setIndex(IntObjectMap<T> index);
+
         public abstract T loadFromPrefs(Automation automation, Context context, int id);
 
         public abstract T findById(int id);
     }
 
-    @Override
-    protected SharedPreferences getSharedPreferences()
-    {
-        return getService().getSharedPreferences(getSharedPreferencesName(), Context.MODE_PRIVATE);
-    }
-
     @Override
     public void addPreferencesToFragment(PreferenceFragment fragment)
     {
@@ -437,15 +825,57 @@ public abstract class AutomationBase extends ConfigComponentBase
     /**
      * Reloads all components from configuration.
      * <p/>
-     * This is generally called when some configuration options change. It re-creates all of the
-     * rules and actions.
+     * This is generally called when some configuration options change. Only components that were
+     * added, removed or changed are re-created. Everything else keeps running untouched. If the
+     * components haven't been loaded yet, this does nothing, since they will be loaded from the
+     * current configuration when they're needed.
+     * <p/>
+     * The reload changes the component lists and indexes, so it's done on the engine thread.
      */
     @Override
-    public void reloadComponents(AutomationService service)
+    public void reloadComponents(final AutomationService service)
     {
-        destroyComponents();
-        loadConfig(service);
-        createComponents();
+        getService().runOnEngine(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                reloadChangedComponents(service);
+            }
+        });
+    }
+
+    private void reloadChangedComponents(AutomationService service)
+    {
+        if (!mComponentsLoaded) return;
+
+        Log.i(LOGGER_TAG, "Reloading automation configuration for \"" + getName() + "\".");
+        List<AutomationComponent> created = new ArrayList<AutomationComponent>();
+        if (!reloadComponentLists(service, created)) return;
+
+        for (AutomationComponent component : created)
+            component.create();
+        onComponentsReloaded(created);
+        onComponentListChange();
+    }
+
+    /**
+     * Called after reloadComponents() changes the component lists.
+     *
+     * @param created
+     *         The components that were loaded and created by the reload.
+     */
+    protected void onComponentsReloaded(List<AutomationComponent> created)
+    {
+
+    }
+
+    /**
+     * Called when reloadComponents() destroys a component that was removed or is being replaced.
+     */
+    protected void onComponentUnloaded(AutomationComponent component)
+    {
+
     }
 
     /**
@@ -38,11 +38,25 @@ public interface AutomationComponent extends ConfigComponent
      */
     public abstract Automation getParent();
 
+    /**
+     * @return A number that changes every time a setting that the component can't apply while
+     * it's running changes. Used to tell which components need to be recreated when reloading.
+     */
+    public abstract int getConfigVersion();
+
     /**
      * Class for listening to changes to the component's configuration.
      */
     public interface ComponentChangeListener
     {
-        public abstract void onComponentChange();
+        /**
+         * Called when one of the component's settings changes.
+         *
+         * @param component
+         *         The component that changed.
+         * @param key
+         *         The key of the setting that changed.
+         */
+        public abstract void onComponentChange(AutomationComponent component, String key);
     }
 }
@@ -31,13 +31,22 @@ public abstract class AutomationComponentBase extends ConfigComponentBase
 
     protected ArrayList<AutomationComponent.ComponentChangeListener> mListeners;
 
+    private int mConfigVersion;
+
+    /**
+     * Passes preference changes on to this component on the engine thread. Kept here because
+     * shared preferences only hold weak references to their listeners.
+     */
+    private SharedPreferences.OnSharedPreferenceChangeListener mPreferenceListener;
+
     public AutomationComponentBase(Automation parent, AutomationService service, int id)
     {
         super(service, id);
         mAutomation = parent;
 
         mListeners = new ArrayList<AutomationComponent.ComponentChangeListener>();
-        getSharedPreferences().registerOnSharedPreferenceChangeListener(this);
+        mPreferenceListener = service.onEngine(this);
+        getSharedPreferences().registerOnSharedPreferenceChangeListener(mPreferenceListener);
     }
 
     @Override
@@ -52,6 +61,12 @@ public abstract class AutomationComponentBase extends ConfigComponentBase
         if (getParent().isEnabled()) super.destroy();
     }
 
+    @Override
+    public void release()
+    {
+        getSharedPreferences().unregisterOnSharedPreferenceChangeListener(mPreferenceListener);
+    }
+
     @Override
     public String getName()
     {
@@ -66,11 +81,34 @@ public abstract class AutomationComponentBase extends ConfigComponentBase
         return mAutomation;
     }
 
+    /**
+     * Checks whether changes to the given key are applied to the running component as soon as
+     * they're made. Changes to any other key bump the config version, so reloading the automation
+     * replaces the component. Subclasses that apply more of their settings live should override
+     * this and call the super method.
+     *
+     * @param key
+     *         The key that changed, or null if the whole section was cleared.
+     */
+    protected boolean isAppliedLive(String key)
+    {
+        return VALUE_NAME.equals(key) || VALUE_DESCRIPTION.equals(key) ||
+               VALUE_ENABLED.equals(key);
+    }
+
     @Override
     public void onSharedPreferenceChanged(SharedPreferences preferences, String s)
     {
+        if (!isAppliedLive(s)) mConfigVersion++;
+        updateCachedField(s);
         for (AutomationComponent.ComponentChangeListener listener : mListeners)
-            listener.onComponentChange();
+            listener.onComponentChange(this, s);
+    }
+
+    @Override
+    public int getConfigVersion()
+    {
+        return mConfigVersion;
     }
 
     @Override
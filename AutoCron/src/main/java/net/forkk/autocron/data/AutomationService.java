@@ -17,29 +17,57 @@
 package net.forkk.autocron.data;
 
 import android.app.Service;
+import android.content.BroadcastReceiver;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.os.Binder;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Looper;
 import android.util.Log;
 
 import net.forkk.autocron.R;
+import net.forkk.autocron.data.rule.Rule;
+import net.forkk.autocron.data.rule.RuleBase;
+import net.forkk.autocron.data.sensor.PowerHub;
+import net.forkk.autocron.data.sensor.SensorHub;
+import net.forkk.autocron.data.sensor.WifiHub;
+import net.forkk.autocron.data.store.ConfigStore;
+import net.forkk.autocron.data.time.AlarmScheduler;
+import net.forkk.autocron.data.time.DeadlineScheduler;
+import net.forkk.autocron.data.time.EventRecorder;
+import net.forkk.autocron.util.IntObjectMap;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 
 /**
  * Service class that handles all of the automation stuff.
  * <p/>
  * Responsible for getting the automation list as well.
+ * <p/>
+ * All automation state is owned by the engine thread. Start commands, broadcasts, preference
+ * changes and binder calls that change automations are all handled there, so a slow action or
+ * config write never holds up the UI. The automation and component lists are copy on write, so the
+ * UI can read and iterate them from the main thread.
  */
 public class AutomationService extends Service
-        implements SharedPreferences.OnSharedPreferenceChangeListener
 {
     public static final String LOGGER_TAG = "net.forkk.autocron.AutomationService";
 
@@ -56,22 +84,83 @@ public class AutomationService extends Service
 
     private static final String VALUE_EVENT_IDS = "event_ids";
 
+    private static final String VALUE_NEXT_STATE_ID = "next_state_id";
+
+    private static final String VALUE_NEXT_EVENT_ID = "next_event_id";
+
     private static final String VALUE_CONFIG_VERSION = "config_version";
 
-    private ArrayList<State> mStates;
+    /**
+     * Maximum number of threads used to load automations.
+     */
+    private static final int MAX_LOADER_THREADS = 4;
+
+    /**
+     * How long onDestroy() waits for the engine thread to finish shutting down.
+     */
+    private static final long ENGINE_SHUTDOWN_TIMEOUT_MS = 5000;
+
+    private List<State> mStates;
 
-    private ArrayList<Event> mEvents;
+    private List<Event> mEvents;
+
+    // ID indexes for the automation lists. These must be kept in sync with the lists. An index is
+    // never changed once it's published here. The engine swaps in a new one instead, so they can be
+    // read from any thread.
+    private volatile IntObjectMap<State> mStateIndex;
+
+    private volatile IntObjectMap<Event> mEventIndex;
 
     private Map<Integer, IntentListener> mIntentListenerMap;
 
     private ArrayList<AutomationListChangeListener> mAutomationListChangeListeners;
 
+    /**
+     * Batches up changes to the automation list before they're passed to the listeners.
+     */
+    private ChangeBus mAutomationListBus;
+
     private int mCurrentListenerId;
 
+    private DeadlineScheduler mScheduler;
+
+    private EventRecorder mEventRecorder;
+
+    private HandlerThread mEngineThread;
+
+    private Handler mEngineHandler;
+
+    private Handler mMainHandler;
+
+    private EventQueue mEventQueue;
+
+    private StateEvaluator mStateEvaluator;
+
+    private WifiHub mWifiHub;
+
+    private PowerHub mPowerHub;
+
+    /**
+     * True while the automations are being created with their activation restored from the
+     * engine snapshot.
+     */
+    private volatile boolean mRestoringSnapshot;
+
     public AutomationService()
     {
         mIntentListenerMap = new HashMap<Integer, IntentListener>();
         mAutomationListChangeListeners = new ArrayList<AutomationListChangeListener>();
+        mAutomationListBus = new ChangeBus(new ChangeBus.Receiver()
+        {
+            @Override
+            public void onChangesDelivered(ChangeSet changes)
+            {
+                for (AutomationListChangeListener listener : mAutomationListChangeListeners)
+                {
+                    if (listener != null) listener.onAutomationListChange(changes);
+                }
+            }
+        });
         mCurrentListenerId = 0;
     }
 
@@ -89,10 +178,22 @@ public class AutomationService extends Service
         return START_STICKY;
     }
 
-    private void handleCommand(Intent intent)
+    private void handleCommand(final Intent intent)
     {
         if (intent == null) return;
 
+        runOnEngine(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                dispatchCommand(intent);
+            }
+        });
+    }
+
+    private void dispatchCommand(Intent intent)
+    {
         int listenerId = intent.getIntExtra(LISTENER_ID_EXTRA, -1);
         if (mIntentListenerMap.containsKey(listenerId))
         {
@@ -135,22 +236,59 @@ public class AutomationService extends Service
 
         super.onCreate();
 
-        mStates = new ArrayList<State>();
+        mEngineThread = new HandlerThread("AutoCron engine");
+        mEngineThread.start();
+        mEngineHandler = new Handler(mEngineThread.getLooper());
+        mMainHandler = new Handler(Looper.getMainLooper());
+        mEventQueue = new EventQueue(mEngineHandler);
+        mStateEvaluator = new StateEvaluator(this);
+        mWifiHub = new WifiHub(this);
+        mPowerHub = new PowerHub(this);
 
-        mEvents = new ArrayList<Event>();
+        mStates = new CopyOnWriteArrayList<State>();
 
-        // Load automations from the config file.
-        loadConfig();
+        mEvents = new CopyOnWriteArrayList<Event>();
 
-        for (State state : mStates)
-        {
-            if (state.isEnabled()) state.create();
-        }
+        mStateIndex = new IntObjectMap<State>();
 
-        for (Event event : mEvents)
+        mEventIndex = new IntObjectMap<Event>();
+
+        mScheduler = createScheduler();
+        mEventRecorder = createEventRecorder();
+
+        mEngineHandler.post(new Runnable()
         {
-            if (event.isEnabled()) event.create();
-        }
+            @Override
+            public void run()
+            {
+                // If Android restarted the service, pick up from where it left off rather than
+                // running every action again.
+                EngineSnapshot snapshot = EngineSnapshot.get(AutomationService.this);
+                mRestoringSnapshot = snapshot.isComplete();
+                if (mRestoringSnapshot) Log.d(LOGGER_TAG, "Restoring from engine snapshot.");
+
+                // Load automations from the config file. This only loads each automation's own
+                // settings. Their components are loaded when they're created, so disabled
+                // automations stay cheap.
+                loadConfig();
+
+                for (State state : mStates)
+                {
+                    if (state.isEnabled()) state.create();
+                }
+
+                for (Event event : mEvents)
+                {
+                    if (event.isEnabled()) event.create();
+                }
+
+                mRestoringSnapshot = false;
+                snapshot.markComplete();
+
+                // Build the custom rule dependency graph now, so cycles are reported straight away.
+                mStateEvaluator.getGraph();
+            }
+        });
     }
 
     @Override
@@ -160,15 +298,83 @@ public class AutomationService extends Service
 
         super.onDestroy();
 
-        for (State state : mStates)
+        // This is a clean stop, so the actions are about to be destroyed. The next start needs to
+        // set them up again rather than assume they're still in place.
+        EngineSnapshot.get(this).invalidate();
+
+        // Tear everything down on the engine thread after anything that's already queued, then
+        // stop the thread.
+        mEngineHandler.post(new Runnable()
         {
-            state.destroy();
+            @Override
+            public void run()
+            {
+                // Events that haven't run yet would only reach components that are going away.
+                Log.d(LOGGER_TAG, "Event queue stats: " + mEventQueue.getStats());
+                mEventQueue.clear();
+
+                for (State state : mStates)
+                {
+                    state.destroy();
+                    state.release();
+                }
+
+                for (Event event : mEvents)
+                {
+                    event.destroy();
+                    event.release();
+                }
+
+                Log.d(LOGGER_TAG, "Scheduler wakeup stats: " + mScheduler.getStats());
+                Log.d(LOGGER_TAG, "State evaluation stats: " + mStateEvaluator.getStats());
+                Log.d(LOGGER_TAG, "Rule debounce stats: " + getRuleDebounceStats());
+                for (SensorHub hub : new SensorHub[] { mWifiHub, mPowerHub })
+                {
+                    Log.d(LOGGER_TAG, "Sensor hub stats: " + hub.getStats());
+                    hub.release();
+                }
+                mScheduler.destroy();
+
+                Looper looper = Looper.myLooper();
+                if (looper != null) looper.quit();
+            }
+        });
+        try
+        {
+            mEngineThread.join(ENGINE_SHUTDOWN_TIMEOUT_MS);
         }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        if (mEngineThread.isAlive()) Log.w(LOGGER_TAG, "Engine thread didn't stop in time.");
 
-        for (Event event : mEvents)
+        // Make sure any queued config changes hit the disk before the process goes away.
+        if (!getConfigStore().flush()) Log.e(LOGGER_TAG, "Failed to write pending config changes.");
+        Log.d(LOGGER_TAG, "Config store write stats: " + getConfigStore().getWriteStats());
+    }
+
+    /**
+     * Adds up how many sensor changes the loaded rules held back through debouncing or flap
+     * holding. Must be called on the engine thread.
+     */
+    private String getRuleDebounceStats()
+    {
+        long suppressed = 0;
+        long flapHolds = 0;
+        List<Automation> automations = new ArrayList<Automation>(mStates);
+        automations.addAll(mEvents);
+        for (Automation automation : automations)
         {
-            event.destroy();
+            if (!(automation instanceof AutomationBase)) continue;
+            for (Rule rule : ((AutomationBase) automation).getLoadedRules())
+            {
+                if (!(rule instanceof RuleBase)) continue;
+                suppressed += ((RuleBase) rule).getSuppressedTransitions();
+                flapHolds += ((RuleBase) rule).getFlapHolds();
+            }
         }
+        return suppressed + " sensor changes suppressed, " + flapHolds + " flap holds";
     }
 
     @Override
@@ -177,11 +383,242 @@ public class AutomationService extends Service
         return new LocalBinder();
     }
 
+    /**
+     * @return True if called on the engine thread.
+     */
+    public boolean isEngineThread()
+    {
+        return Thread.currentThread() == mEngineThread;
+    }
+
+    /**
+     * Runs the given task on the engine thread. If this is called on the engine thread, the task
+     * runs right away. Otherwise, it runs after everything already queued on the engine thread.
+     */
+    public void runOnEngine(Runnable task)
+    {
+        if (isEngineThread()) task.run();
+        else mEngineHandler.post(task);
+    }
+
+    /**
+     * Runs the given task on the main thread, after everything already queued there. This is how
+     * the engine thread hands results back to the UI.
+     */
+    public void runOnMainThread(Runnable task)
+    {
+        mMainHandler.post(task);
+    }
+
+    /**
+     * @return A handler for the engine thread.
+     */
+    public Handler getEngineHandler()
+    {
+        return mEngineHandler;
+    }
+
+    /**
+     * @return True while the automations are being created at startup with their rules' and
+     * states' activation restored from the engine snapshot. Actions don't need to be brought up to
+     * date then, since they already were before the service stopped.
+     */
+    public boolean isRestoringSnapshot()
+    {
+        return mRestoringSnapshot;
+    }
+
+    /**
+     * @return The evaluator that re-evaluates states when their rules change.
+     */
+    public StateEvaluator getStateEvaluator()
+    {
+        return mStateEvaluator;
+    }
+
+    /**
+     * @return The list of states. It's safe to read from any thread.
+     */
+    public List<State> getStates()
+    {
+        return mStates;
+    }
+
+    /**
+     * @return The queue that sensor events are passed to the engine thread through.
+     */
+    public EventQueue getEventQueue()
+    {
+        return mEventQueue;
+    }
+
+    /**
+     * @return The hub for the WiFi connection. It may only be used on the engine thread.
+     */
+    public WifiHub getWifiHub()
+    {
+        return mWifiHub;
+    }
+
+    /**
+     * @return The hub for the power connection. It may only be used on the engine thread.
+     */
+    public PowerHub getPowerHub()
+    {
+        return mPowerHub;
+    }
+
+    /**
+     * Wraps the given listener so it's called on the engine thread. Shared preferences only keep
+     * weak references to their listeners, so the wrapper has to be kept for as long as it's
+     * registered.
+     */
+    public SharedPreferences.OnSharedPreferenceChangeListener onEngine(
+            final SharedPreferences.OnSharedPreferenceChangeListener listener)
+    {
+        return new SharedPreferences.OnSharedPreferenceChangeListener()
+        {
+            @Override
+            public void onSharedPreferenceChanged(final SharedPreferences preferences,
+                                                  final String key)
+            {
+                runOnEngine(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        listener.onSharedPreferenceChanged(preferences, key);
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * Registers the given receiver so its broadcasts are delivered on the engine thread. All of
+     * the automation components' receivers go through here.
+     */
+    @Override
+    public Intent registerReceiver(BroadcastReceiver receiver, IntentFilter filter)
+    {
+        return registerReceiver(receiver, filter, null, mEngineHandler);
+    }
+
+    /**
+     * Builds an ID index of the given items, to be published next to the copy on write list that
+     * holds them. The index mustn't be changed once it's published.
+     */
+    public static <T extends ConfigComponent> IntObjectMap<T> buildIndex(List<T> items)
+    {
+        IntObjectMap<T> index = new IntObjectMap<T>(items.size());
+        for (T item : items)
+            index.put(item.getId(), item);
+        return index;
+    }
+
+    /**
+     * Replaces the contents of the given copy on write list with the given items, without other
+     * threads ever seeing it empty or missing an item that's in both. The new items are added
+     * before the old ones are removed, so a reader may briefly see both. Items that are in both
+     * keep their place, and new items go at the end in the given order.
+     */
+    public static <T> void replaceSnapshot(List<T> list, List<T> contents)
+    {
+        if (list instanceof CopyOnWriteArrayList)
+            ((CopyOnWriteArrayList<T>) list).addAllAbsent(contents);
+        else
+        {
+            for (T item : contents)
+                if (!list.contains(item)) list.add(item);
+        }
+
+        Set<T> keep = Collections.newSetFromMap(new IdentityHashMap<T, Boolean>());
+        keep.addAll(contents);
+        list.retainAll(keep);
+    }
+
+    /**
+     * Creates the scheduler that time based components use. This uses the OS alarm and the system
+     * clock, but can be overridden to run components against a virtual clock. The scheduler must
+     * only be used on the engine thread.
+     */
+    protected DeadlineScheduler createScheduler()
+    {
+        return new AlarmScheduler(this);
+    }
+
+    /**
+     * @return The scheduler that time based components should use to schedule their alarms and get
+     * the current time.
+     */
+    public DeadlineScheduler getScheduler()
+    {
+        return mScheduler;
+    }
+
+    /**
+     * Creates the recorder that states and events report what they did to. This throws everything
+     * away, but can be overridden to keep a log when simulating components.
+     */
+    protected EventRecorder createEventRecorder()
+    {
+        return EventRecorder.NONE;
+    }
+
+    /**
+     * @return The recorder that states and events report what they did to. It may only be used on
+     * the engine thread.
+     */
+    public EventRecorder getEventRecorder()
+    {
+        return mEventRecorder;
+    }
+
+    /**
+     * @return The config store that automations and components are stored in.
+     */
+    public ConfigStore getConfigStore()
+    {
+        return ConfigStore.get(this);
+    }
+
+    /**
+     * Switches the config store to the given backend and reloads all automations from it.
+     *
+     * @param backend
+     *         The backend to switch to.
+     */
+    public void setConfigStoreBackend(ConfigStore.Backend backend)
+    {
+        if (getConfigStore().getBackend() == backend) return;
+
+        // The old automations are replaced by ones loaded from the new store, so they have to stop
+        // listening to the old one.
+        for (State state : mStates)
+        {
+            state.destroy();
+            state.release();
+        }
+        for (Event event : mEvents)
+        {
+            event.destroy();
+            event.release();
+        }
+
+        ConfigStore.select(this, backend);
+        loadConfig();
+
+        for (State state : mStates)
+            state.create();
+        for (Event event : mEvents)
+            event.create();
+    }
+
     public void loadConfig()
     {
         Log.i(LOGGER_TAG, "Loading configuration.");
 
-        SharedPreferences prefs = getSharedPreferences(PREF_AUTOMATIONS, MODE_PRIVATE);
+        SharedPreferences prefs = getConfigStore().getPreferences(PREF_AUTOMATIONS);
 
         Log.d(LOGGER_TAG, "Checking configuration version.");
         int currentVersion = prefs.getInt(VALUE_CONFIG_VERSION, 0);
@@ -202,49 +639,126 @@ public class AutomationService extends Service
         else Log.i(LOGGER_TAG, "Configuration format is up to date (" + CONFIG_FORMAT_VERSION +
                                ").");
 
-        Log.i(LOGGER_TAG, "Loading states.");
-        loadAutomationList(prefs, mStateTypeInterface);
+        // Automations are read on a pool of worker threads. Only the finished lists are swapped in
+        // on this thread.
+        int[] stateIds = readIdList(prefs, mStateTypeInterface);
+        int[] eventIds = readIdList(prefs, mEventTypeInterface);
+        int threads = Math.min(stateIds.length + eventIds.length,
+                               Math.min(Runtime.getRuntime().availableProcessors(),
+                                        MAX_LOADER_THREADS));
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(threads, 1));
+        try
+        {
+            Log.i(LOGGER_TAG, "Loading states and events on " + threads + " threads.");
+            List<Future<State>> states = startLoading(executor, stateIds, mStateTypeInterface);
+            List<Future<Event>> events = startLoading(executor, eventIds, mEventTypeInterface);
 
-        Log.i(LOGGER_TAG, "Loading events.");
-        loadAutomationList(prefs, mEventTypeInterface);
+            finishLoading(stateIds, states, mStateTypeInterface);
+            finishLoading(eventIds, events, mEventTypeInterface);
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
 
         Log.i(LOGGER_TAG, "Done loading configuration.");
 
         onAutomationListChange();
     }
 
-    public <T extends Automation> void loadAutomationList(SharedPreferences prefs,
-                                                          AutomationTypeInterface<T> type)
+    /**
+     * Reads the given automation type's ID list, sorted so automations always load in the same
+     * order.
+     */
+    private int[] readIdList(SharedPreferences prefs, AutomationTypeInterface type)
     {
         Set<String> ids = prefs.getStringSet(type.getIdListKey(), new HashSet<String>());
 
-        ArrayList<T> tempList = new ArrayList<T>();
+        int[] result = new int[ids.size()];
+        int count = 0;
         for (String stringVal : ids)
         {
             try
             {
-                int id = Integer.parseInt(stringVal);
-                T automation = type.loadFromPrefs(id);
-                tempList.add(automation);
-                Log.d(LOGGER_TAG,
-                      "Loaded " + type.getTypeName(false) + " \"" + automation.getName() + "\".");
+                result[count++] = Integer.parseInt(stringVal);
             }
             catch (NumberFormatException e)
             {
+                count--;
                 Log.e(LOGGER_TAG,
                       "Found non-integer value in " + type.getTypeName(false) + " ID set.", e);
             }
         }
 
-        List<T> list = type.getList();
-        for (T automation : list)
-            getSharedPreferences(automation.getSharedPreferencesName(), MODE_PRIVATE)
-                    .unregisterOnSharedPreferenceChangeListener(this);
-        list.clear();
-        list.addAll(tempList);
-        for (T automation : list)
-            getSharedPreferences(automation.getSharedPreferencesName(), MODE_PRIVATE)
-                    .registerOnSharedPreferenceChangeListener(this);
+        result = Arrays.copyOf(result, count);
+        Arrays.sort(result);
+        return result;
+    }
+
+    /**
+     * Submits a task for each of the given automation IDs that loads the automation and, if it's
+     * enabled, its components.
+     *
+     * @return A list of futures in the same order as the given IDs.
+     */
+    private <T extends Automation> List<Future<T>> startLoading(
+            ExecutorService executor, int[] ids, final AutomationTypeInterface<T> type)
+    {
+        List<Future<T>> futures = new ArrayList<Future<T>>(ids.length);
+        for (final int id : ids)
+        {
+            futures.add(executor.submit(new Callable<T>()
+            {
+                @Override
+                public T call()
+                {
+                    T automation = type.loadFromPrefs(id);
+
+                    // Enabled automations are about to be created anyway, so their components might
+                    // as well be loaded here instead of on the engine thread. Nothing else can see
+                    // the automation until it's in the list, so this doesn't need the engine.
+                    if (automation.isEnabled() && automation instanceof AutomationBase)
+                        ((AutomationBase) automation).preloadComponents();
+                    return automation;
+                }
+            }));
+        }
+        return futures;
+    }
+
+    /**
+     * Waits for the given load tasks to finish and replaces the automation type's list with the
+     * results. An automation that fails to load is logged and skipped without affecting the rest.
+     */
+    private <T extends Automation> void finishLoading(int[] ids, List<Future<T>> futures,
+                                                      AutomationTypeInterface<T> type)
+    {
+        ArrayList<T> tempList = new ArrayList<T>(futures.size());
+        for (int i = 0; i < futures.size(); i++)
+        {
+            try
+            {
+                T automation = futures.get(i).get();
+                tempList.add(automation);
+                Log.d(LOGGER_TAG,
+                      "Loaded " + type.getTypeName(false) + " \"" + automation.getName() + "\".");
+            }
+            catch (ExecutionException e)
+            {
+                Log.e(LOGGER_TAG, "Failed to load " + type.getTypeName(false) + " " + ids[i] + ".",
+                      e.getCause());
+            }
+            catch (InterruptedException e)
+            {
+                Log.e(LOGGER_TAG, "Interrupted while loading " + type.getTypeName(false) + " " +
+                                  ids[i] + ".", e);
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        // Publish the index first, so anything found in the list can be found by its ID.
+        type.setIndex(buildIndex(tempList));
+        replaceSnapshot(type.getList(), tempList);
     }
 
     /**
@@ -298,49 +812,12 @@ public class AutomationService extends Service
             for (String id : stateIDs)
             {
                 Log.d(LOGGER_TAG, "Renaming shared preferences file for state " + id + ".");
-                SharedPreferences oldPrefs = getSharedPreferences("automation_" + id, MODE_PRIVATE);
-                SharedPreferences newPrefs = getSharedPreferences("state_" + id, MODE_PRIVATE);
-
-                SharedPreferences.Editor stateEdit = newPrefs.edit();
+                SharedPreferences oldPrefs = getConfigStore().getPreferences("automation_" + id);
+                SharedPreferences newPrefs = getConfigStore().getPreferences("state_" + id);
 
                 // Copy everything from the old preferences file to the new preferences file.
-
-                // First, get all of the values.
-                Map<String, ?> values = oldPrefs.getAll();
-                assert values != null;
-
-                // Then copy over each of them to the new preferences file. 
-                for (Map.Entry<String, ?> entry : values.entrySet())
-                {
-                    String key = entry.getKey();
-                    Object value = entry.getValue();
-                    if (value instanceof String) stateEdit.putString(key, (String) value);
-                    else if (value instanceof Boolean) stateEdit.putBoolean(key, (Boolean) value);
-                    else if (value instanceof Float) stateEdit.putFloat(key, (Float) value);
-                    else if (value instanceof Integer) stateEdit.putInt(key, (Integer) value);
-                    else if (value instanceof Long) stateEdit.putLong(key, (Long) value);
-                    else if (value instanceof Set<?>)
-                    {
-                        try
-                        {
-                            //noinspection unchecked
-                            stateEdit.putStringSet(key, (Set<String>) value);
-                        }
-                        catch (ClassCastException e)
-                        {
-                            Log.wtf(LOGGER_TAG,
-                                    "Set value isn't a string set even though shared preferences " +
-                                    "only support string sets!", e);
-                        }
-                    }
-                    else
-                    {
-                        Log.w(LOGGER_TAG, "Unknown value type in shared preferences file.");
-                    }
-
-                    Log.d(LOGGER_TAG, "Copied value " + key +
-                                      " to new shared preferences file.");
-                }
+                SharedPreferences.Editor stateEdit = newPrefs.edit();
+                ConfigStore.copyValues(oldPrefs, stateEdit);
 
                 // Finally, save the new configuration and clear the old one.
                 stateEdit.commit();
@@ -362,7 +839,7 @@ public class AutomationService extends Service
     {
         List<T> list = type.getList();
 
-        SharedPreferences prefs = getSharedPreferences(PREF_AUTOMATIONS, MODE_PRIVATE);
+        SharedPreferences prefs = getConfigStore().getPreferences(PREF_AUTOMATIONS);
         SharedPreferences.Editor edit = prefs.edit();
 
         Set<String> automationIDs = new HashSet<String>();
@@ -370,18 +847,20 @@ public class AutomationService extends Service
         automationIDs.addAll(prefs.getStringSet(type.getIdListKey(), new HashSet<String>()));
 
         edit.putStringSet(type.getIdListKey(), automationIDs);
+        IntObjectMap<T> index = new IntObjectMap<T>(type.getIndex());
+        index.put(automation.getId(), automation);
+        type.setIndex(index);
         list.add(automation);
         automation.create();
-        boolean success = edit.commit();
-        if (!success) Log.e(LOGGER_TAG, "Failed to commit changes to preferences.");
-        else onAutomationListChange();
+        edit.apply();
+        onAutomationListChange();
 
         assert prefs.getStringSet(type.getIdListKey(), new HashSet<String>()).equals(automationIDs);
     }
 
-    private void deleteAutomation(int id, AutomationTypeInterface type)
+    private <T extends Automation> void deleteAutomation(int id, AutomationTypeInterface<T> type)
     {
-        Automation automation = type.findById(id);
+        T automation = type.findById(id);
         if (automation == null)
         {
             Log.e(LOGGER_TAG,
@@ -389,7 +868,7 @@ public class AutomationService extends Service
             return;
         }
 
-        SharedPreferences prefs = getSharedPreferences(PREF_AUTOMATIONS, MODE_PRIVATE);
+        SharedPreferences prefs = getConfigStore().getPreferences(PREF_AUTOMATIONS);
         SharedPreferences.Editor edit = prefs.edit();
 
         Set<String> automationIDs = new HashSet<String>();
@@ -398,20 +877,39 @@ public class AutomationService extends Service
 
         edit.putStringSet(type.getIdListKey(), automationIDs);
 
-        // Clear the component's preferences.
-        getSharedPreferences(automation.getSharedPreferencesName(), MODE_PRIVATE).edit().clear()
-                .commit();
-
         automation.destroy();
+        automation.release();
         type.getList().remove(automation);
-        boolean success = edit.commit();
-        if (!success) Log.e(LOGGER_TAG, "Failed to commit changes to preferences.");
-        else onAutomationListChange();
+        IntObjectMap<T> index = new IntObjectMap<T>(type.getIndex());
+        index.remove(id);
+        type.setIndex(index);
+        EngineSnapshot.get(this).forget(automation);
+
+        // Remove the ID from the list before clearing the automation's preferences, so the list
+        // never refers to an automation whose preferences are already gone.
+        edit.apply();
+        getConfigStore().getPreferences(automation.getSharedPreferencesName()).edit().clear()
+                        .apply();
+        onAutomationListChange();
+    }
+
+    /**
+     * @return A new unique ID for an automation of the given type.
+     */
+    public int allocateId(AutomationTypeInterface type)
+    {
+        SharedPreferences prefs = getConfigStore().getPreferences(PREF_AUTOMATIONS);
+
+        // Configs from before the ID counters existed only have the ID sets, so in that case the
+        // counter starts after the greatest ID in use.
+        String key = type.getNextIdKey();
+        int firstId = prefs.contains(key) ? 1 : findGreatestId(type) + 1;
+        return getConfigStore().getIdAllocator(PREF_AUTOMATIONS, key, firstId).allocate();
     }
 
-    public int findUnusedId(AutomationTypeInterface type)
+    private int findGreatestId(AutomationTypeInterface type)
     {
-        SharedPreferences prefs = getSharedPreferences(PREF_AUTOMATIONS, MODE_PRIVATE);
+        SharedPreferences prefs = getConfigStore().getPreferences(PREF_AUTOMATIONS);
         Set<String> usedIds = prefs.getStringSet(type.getIdListKey(), new HashSet<String>());
 
         int greatestValue = 0;
@@ -429,17 +927,26 @@ public class AutomationService extends Service
             }
         }
 
-        // To get an unused ID, we just find an ID value greater than the greatest one.
-        return greatestValue + 1;
+        return greatestValue;
     }
 
-    @Override
-    public void onSharedPreferenceChanged(SharedPreferences preferences, String key)
+    /**
+     * Called by automations when one of their settings changes. Changes to settings shown in the
+     * automation list are passed on to the automation list listeners.
+     */
+    public void onAutomationChanged(Automation automation, String key)
     {
         if (key.equals("name") || key.equals("description") || key.equals("enabled"))
-            onAutomationListChange();
+            mAutomationListBus.postFieldChange(automation.getSharedPreferencesName(), key);
+
+        // Disabled states aren't part of the custom rule graph.
+        if (key.equals("enabled") && automation instanceof State) mStateEvaluator.invalidateGraph();
     }
 
+    /**
+     * Binder for activities. Calls that change automations are posted to the engine thread, and
+     * the lists it returns are safe to read from any thread.
+     */
     public class LocalBinder extends Binder
     {
         public List<State> getStateList()
@@ -462,7 +969,7 @@ public class AutomationService extends Service
          */
         public State findStateById(int id)
         {
-            return AutomationService.this.mStateTypeInterface.findById(id);
+            return mStateIndex.get(id);
         }
 
         /**
@@ -475,7 +982,7 @@ public class AutomationService extends Service
          */
         public Event findEventById(int id)
         {
-            return AutomationService.this.mEventTypeInterface.findById(id);
+            return mEventIndex.get(id);
         }
 
         /**
@@ -484,11 +991,18 @@ public class AutomationService extends Service
          * @param name
          *         The name of the new automation.
          */
-        public void createNewState(String name)
+        public void createNewState(final String name)
         {
-            State state = StateBase.createNewState(name, AutomationService.this,
-                                                   findUnusedId(mStateTypeInterface));
-            addAutomation(state, mStateTypeInterface);
+            runOnEngine(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    State state = StateBase.createNewState(name, AutomationService.this,
+                                                           allocateId(mStateTypeInterface));
+                    addAutomation(state, mStateTypeInterface);
+                }
+            });
         }
 
         /**
@@ -497,9 +1011,16 @@ public class AutomationService extends Service
          * @param id
          *         The ID of the automation to delete.
          */
-        public void deleteState(int id)
+        public void deleteState(final int id)
         {
-            AutomationService.this.deleteAutomation(id, mStateTypeInterface);
+            runOnEngine(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    deleteAutomation(id, mStateTypeInterface);
+                }
+            });
         }
 
 
@@ -509,11 +1030,18 @@ public class AutomationService extends Service
          * @param name
          *         The name of the new event.
          */
-        public void createNewEvent(String name)
+        public void createNewEvent(final String name)
         {
-            Event event = EventBase.createNewEvent(name, AutomationService.this,
-                                                   findUnusedId(mEventTypeInterface));
-            AutomationService.this.addAutomation(event, mEventTypeInterface);
+            runOnEngine(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    Event event = EventBase.createNewEvent(name, AutomationService.this,
+                                                           allocateId(mEventTypeInterface));
+                    addAutomation(event, mEventTypeInterface);
+                }
+            });
         }
 
         /**
@@ -522,9 +1050,16 @@ public class AutomationService extends Service
          * @param id
          *         The ID of the automation to delete.
          */
-        public void deleteEvent(int id)
+        public void deleteEvent(final int id)
         {
-            AutomationService.this.deleteAutomation(id, mEventTypeInterface);
+            runOnEngine(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    deleteAutomation(id, mEventTypeInterface);
+                }
+            });
         }
 
 
@@ -542,14 +1077,70 @@ public class AutomationService extends Service
         {
             return AutomationService.this;
         }
+
+        /**
+         * Switches the config store to the given backend, migrating the current configuration.
+         */
+        public void setConfigStoreBackend(final ConfigStore.Backend backend)
+        {
+            runOnEngine(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    AutomationService.this.setConfigStoreBackend(backend);
+                }
+            });
+        }
+
+        /**
+         * @return Statistics about the config store's writes, such as how many are still pending.
+         */
+        public ConfigStore.WriteStats getConfigWriteStats()
+        {
+            return getConfigStore().getWriteStats();
+        }
+
+        /**
+         * @return Statistics about the scheduler's wakeups, such as how many coalescing saved.
+         */
+        public DeadlineScheduler.WakeupStats getSchedulerStats()
+        {
+            return mScheduler.getStats();
+        }
+
+        /**
+         * @return Statistics about the event queue, such as how many events are waiting.
+         */
+        public EventQueue.QueueStats getEventQueueStats()
+        {
+            return mEventQueue.getStats();
+        }
+
+        /**
+         * Turns coalescing of time based rules' wakeups on or off.
+         */
+        public void setAlarmCoalescing(final boolean coalescing)
+        {
+            runOnEngine(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    mScheduler.setCoalescing(coalescing);
+                }
+            });
+        }
     }
 
+    /**
+     * Notifies the automation list listeners that automations were added, removed or reloaded.
+     * Notifications are batched, so the listeners are called shortly afterwards on the main thread.
+     */
     public void onAutomationListChange()
     {
-        for (AutomationListChangeListener listener : mAutomationListChangeListeners)
-        {
-            if (listener != null) listener.onAutomationListChange();
-        }
+        mAutomationListBus.postStructuralChange();
+        mStateEvaluator.invalidateGraph();
     }
 
 
@@ -572,12 +1163,30 @@ public class AutomationService extends Service
             return VALUE_STATE_IDS;
         }
 
+        @Override
+        public String getNextIdKey()
+        {
+            return VALUE_NEXT_STATE_ID;
+        }
+
         @Override
         public List<State> getList()
         {
             return mStates;
         }
 
+        @Override
+        public IntObjectMap<State> getIndex()
+        {
+            return mStateIndex;
+        }
+
+        @Override
+        public void setIndex(IntObjectMap<State> index)
+        {
+            mStateIndex = index;
+        }
+
         @Override
         public State loadFromPrefs(int id)
         {
@@ -587,9 +1196,7 @@ public class AutomationService extends Service
         @Override
         public State findById(int id)
         {
-            for (State state : mStates)
-                if (state.getId() == id) return state;
-            return null;
+            return mStateIndex.get(id);
         }
     }
 
@@ -607,12 +1214,30 @@ public class AutomationService extends Service
             return VALUE_EVENT_IDS;
         }
 
+        @Override
+        public String getNextIdKey()
+        {
+            return VALUE_NEXT_EVENT_ID;
+        }
+
         @Override
         public List<Event> getList()
         {
             return mEvents;
         }
 
+        @Override
+        public IntObjectMap<Event> getIndex()
+        {
+            return mEventIndex;
+        }
+
+        @Override
+        public void setIndex(IntObjectMap<Event> index)
+        {
+            mEventIndex = index;
+        }
+
         @Override
         public Event loadFromPrefs(int id)
         {
@@ -622,9 +1247,7 @@ public class AutomationService extends Service
         @Override
         public Event findById(int id)
         {
-            for (Event event : mEvents)
-                if (event.getId() == id) return event;
-            return null;
+            return mEventIndex.get(id);
         }
     }
 
@@ -640,8 +1263,23 @@ public class AutomationService extends Service
 
         public abstract String getIdListKey();
 
+        /**
+         * @return Key of the counter new IDs for this type are allocated from.
+         */
+        public abstract String getNextIdKey();
+
         public abstract List<T> getList();
 
+        /**
+         * @return The ID index for the list returned by getList().
+         */
+        public abstract IntObjectMap<T> getIndex();
+
+        /**
+         * Publishes a new ID index for the list. The index mustn't be changed afterwards.
+         */
+        public abstract void setIndex(IntObjectMap<T> index);
+
         public abstract T loadFromPrefs(int id);
 
         public abstract T findById(int id);
@@ -652,7 +1290,10 @@ public class AutomationService extends Service
      */
     public static interface AutomationListChangeListener
     {
-        public void onAutomationListChange();
+        /**
+         * Called on the main thread with a batch of changes to the automation list.
+         */
+        public void onAutomationListChange(ChangeSet changes);
     }
 
     /**
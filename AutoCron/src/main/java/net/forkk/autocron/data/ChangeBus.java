@@ -0,0 +1,125 @@
+/*
+ * Copyright 2013 Andrew Okin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.forkk.autocron.data;
+
+import android.os.Handler;
+import android.os.Looper;
+
+
+/**
+ * Collects change notifications and delivers them in batches on the main thread.
+ * <p/>
+ * The first change posted after a delivery starts a window. Every change posted during the window
+ * is merged into the same {@link ChangeSet}, which is delivered once when the window ends. This
+ * way a bulk edit that writes lots of keys only makes list views refresh once.
+ * <p/>
+ * Changes can be posted from any thread.
+ */
+public class ChangeBus implements Runnable
+{
+    /**
+     * Default length of the coalescing window, about one frame.
+     */
+    public static final long DEFAULT_WINDOW_MS = 16;
+
+    private static Handler sMainHandler;
+
+    private final Receiver mReceiver;
+
+    private long mWindow;
+
+    private ChangeSet mPending;
+
+    public ChangeBus(Receiver receiver)
+    {
+        this(receiver, DEFAULT_WINDOW_MS);
+    }
+
+    public ChangeBus(Receiver receiver, long window)
+    {
+        mReceiver = receiver;
+        mWindow = window;
+    }
+
+    /**
+     * Sets how long changes are collected for before being delivered.
+     */
+    public synchronized void setWindow(long window)
+    {
+        mWindow = window;
+    }
+
+    /**
+     * Posts a change to the list itself, such as items being added, removed or reloaded.
+     */
+    public synchronized void postStructuralChange()
+    {
+        getPending().addStructuralChange();
+    }
+
+    /**
+     * Posts a change to a field of one of the list's items.
+     *
+     * @param section
+     *         The item's shared preferences name.
+     * @param field
+     *         The key of the field that changed.
+     */
+    public synchronized void postFieldChange(String section, String field)
+    {
+        getPending().addFieldChange(section, field);
+    }
+
+    private ChangeSet getPending()
+    {
+        if (mPending == null)
+        {
+            mPending = new ChangeSet();
+            getMainHandler().postDelayed(this, mWindow);
+        }
+        return mPending;
+    }
+
+    @Override
+    public void run()
+    {
+        ChangeSet changes;
+        synchronized (this)
+        {
+            changes = mPending;
+            mPending = null;
+        }
+        if (changes != null && !changes.isEmpty()) mReceiver.onChangesDelivered(changes);
+    }
+
+    private static synchronized Handler getMainHandler()
+    {
+        if (sMainHandler == null) sMainHandler = new Handler(Looper.getMainLooper());
+        return sMainHandler;
+    }
+
+    /**
+     * Receives batches of changes from a change bus.
+     */
+    public static interface Receiver
+    {
+        /**
+         * Called on the main thread with all of the changes posted during the last window.
+         */
+        public void onChangesDelivered(ChangeSet changes);
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2013 Andrew Okin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.forkk.autocron.data;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+
+/**
+ * A batch of changes to a list of automations or components, as delivered by a {@link ChangeBus}.
+ * <p/>
+ * Changed items are identified by their shared preferences name (e.g. "state_3" or "rule_12"),
+ * since IDs alone aren't unique across component types.
+ */
+public class ChangeSet
+{
+    private boolean mStructural;
+
+    private final HashMap<String, Set<String>> mChangedFields;
+
+    ChangeSet()
+    {
+        mChangedFields = new HashMap<String, Set<String>>();
+    }
+
+    void addStructuralChange()
+    {
+        mStructural = true;
+    }
+
+    void addFieldChange(String section, String field)
+    {
+        Set<String> fields = mChangedFields.get(section);
+        if (fields == null)
+        {
+            fields = new HashSet<String>(4);
+            mChangedFields.put(section, fields);
+        }
+        fields.add(field);
+    }
+
+    /**
+     * @return True if items were added, removed or reloaded, meaning the whole list should be
+     * refreshed.
+     */
+    public boolean isStructural()
+    {
+        return mStructural;
+    }
+
+    /**
+     * @return The shared preferences names of every item that had fields change.
+     */
+    public Set<String> getChangedSections()
+    {
+        return Collections.unmodifiableSet(mChangedFields.keySet());
+    }
+
+    /**
+     * @return The fields that changed on the item with the given shared preferences name.
+     */
+    public Set<String> getChangedFields(String section)
+    {
+        Set<String> fields = mChangedFields.get(section);
+        if (fields == null) return Collections.emptySet();
+        return Collections.unmodifiableSet(fields);
+    }
+
+    /**
+     * @return True if the given field changed on any item.
+     */
+    public boolean isFieldChanged(String field)
+    {
+        for (Map.Entry<String, Set<String>> entry : mChangedFields.entrySet())
+            if (entry.getValue().contains(field)) return true;
+        return false;
+    }
+
+    public boolean isEmpty()
+    {
+        return !mStructural && mChangedFields.isEmpty();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "ChangeSet{structural=" + mStructural + ", fields=" + mChangedFields + "}";
+    }
+}
@@ -18,10 +18,8 @@ package net.forkk.autocron.data;
 
 import android.content.Context;
 import android.content.SharedPreferences;
-import android.util.Log;
 
-import java.lang.reflect.Constructor;
-import java.lang.reflect.InvocationTargetException;
+import net.forkk.autocron.data.store.ConfigStore;
 
 
 /**
@@ -31,21 +29,33 @@ public abstract class ComponentType<T extends AutomationComponent>
 {
     public static final String VALUE_COMPONENT_TYPE = "component_type";
 
-    private static final String LOGGER_TAG = AutomationService.LOGGER_TAG;
-
     private String mTypeName;
 
     private String mTypeDesc;
 
     protected Class<? extends T> mTypeClass;
 
+    private Factory<? extends T> mFactory;
+
     private String mTypeId;
 
     private String mSupportError;
 
-    public abstract int getAvailableId(Context context);
+    /**
+     * @return The key of the counter in the automations section that this kind of component
+     * allocates IDs from.
+     */
+    protected abstract String getNextIdKey();
 
-    public abstract void incrementNextId(Context context);
+    /**
+     * @return A new unique ID for a component of this kind.
+     */
+    public int allocateId(Context context)
+    {
+        return ConfigStore.get(context)
+                          .getIdAllocator(AutomationService.PREF_AUTOMATIONS, getNextIdKey(), 0)
+                          .allocate();
+    }
 
     /**
      * Constructs a new component type. The typeID will be set from the typeClass's canonical name.
@@ -56,13 +66,13 @@ public abstract class ComponentType<T extends AutomationComponent>
      *         The type's description.
      * @param typeClass
      *         The type's class.
+     * @param factory
+     *         Factory that constructs components of this type.
      */
-    public ComponentType(String typeName, String typeDesc, Class<? extends T> typeClass)
+    public ComponentType(String typeName, String typeDesc, Class<? extends T> typeClass,
+                         Factory<? extends T> factory)
     {
-        mTypeName = typeName;
-        mTypeDesc = typeDesc;
-        mTypeId = typeClass.getCanonicalName();
-        mTypeClass = typeClass;
+        this(typeName, typeDesc, typeClass.getCanonicalName(), typeClass, factory);
     }
 
     /**
@@ -76,67 +86,43 @@ public abstract class ComponentType<T extends AutomationComponent>
      *         The ID string used to identify this type in configs.
      * @param typeClass
      *         The type's class.
+     * @param factory
+     *         Factory that constructs components of this type.
      */
     public ComponentType(String typeName, String typeDesc, String typeId,
-                         Class<? extends T> typeClass)
+                         Class<? extends T> typeClass, Factory<? extends T> factory)
     {
         mTypeName = typeName;
         mTypeDesc = typeDesc;
         mTypeId = typeId;
         mTypeClass = typeClass;
+        mFactory = factory;
     }
 
     public T createNew(Automation parent, Context context)
     {
-        T component = construct(parent, context, getAvailableId(context));
+        T component = construct(parent, context, allocateId(context));
         SharedPreferences.Editor edit =
-                context.getSharedPreferences(component.getSharedPreferencesName(),
-                                             Context.MODE_PRIVATE).edit();
-        edit.clear().commit();
+                ConfigStore.get(context).getPreferences(component.getSharedPreferencesName())
+                           .edit();
+        edit.clear();
         edit.putString(VALUE_COMPONENT_TYPE, getTypeId());
-        edit.commit();
-        incrementNextId(context);
+        edit.apply();
+
+        // Clearing doesn't notify listeners, so the cached values need to be reloaded by hand.
+        if (component instanceof ConfigComponentBase)
+            ((ConfigComponentBase) component).loadCachedFields();
         return component;
     }
 
     /**
      * Calls the constructor for this component type.
      *
-     * @return The new action.
+     * @return The new component.
      */
     public T construct(Automation parent, Context context, int id)
     {
-        Constructor<? extends T> constructor;
-        try
-        {
-            constructor =
-                    mTypeClass.getConstructor(Automation.class, AutomationService.class, int.class);
-        }
-        catch (NoSuchMethodException e)
-        {
-            Log.wtf(LOGGER_TAG,
-                    "No valid constructor found for component type " + getTypeName() + ".", e);
-            return null;
-        }
-
-        try
-        {
-            return constructor.newInstance(parent, context, id);
-        }
-        catch (InstantiationException e)
-        {
-            // TODO: Handle these errors properly.
-            Log.wtf(LOGGER_TAG, "Error creating component " + getTypeName() + ".", e);
-        }
-        catch (IllegalAccessException e)
-        {
-            Log.wtf(LOGGER_TAG, "Error creating component " + getTypeName() + ".", e);
-        }
-        catch (InvocationTargetException e)
-        {
-            Log.wtf(LOGGER_TAG, "Error creating component " + getTypeName() + ".", e);
-        }
-        return null;
+        return mFactory.create(parent, parent.getService(), id);
     }
 
     public String getTypeName()
@@ -189,4 +175,14 @@ public abstract class ComponentType<T extends AutomationComponent>
     {
         return true;
     }
+
+
+    /**
+     * Creates components of a specific type. Each component type provides one of these so that
+     * components can be constructed without reflection.
+     */
+    public static interface Factory<T extends AutomationComponent>
+    {
+        public T create(Automation parent, AutomationService service, int id);
+    }
 }
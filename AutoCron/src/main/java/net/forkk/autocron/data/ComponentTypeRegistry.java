@@ -0,0 +1,114 @@
+/*
+ * Copyright 2013 Andrew Okin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.forkk.autocron.data;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import net.forkk.autocron.data.store.ConfigStore;
+
+import java.util.HashMap;
+import java.util.List;
+
+
+/**
+ * Registry of the component types of one kind (rules, actions or triggers) indexed by type ID.
+ */
+public class ComponentTypeRegistry<C extends AutomationComponent, T extends ComponentType<C>>
+{
+    private static final String LOGGER_TAG = AutomationService.LOGGER_TAG;
+
+    private final String mKindName;
+
+    private final T[] mTypes;
+
+    private final HashMap<String, T> mTypesById;
+
+    /**
+     * Creates a registry containing the given types.
+     *
+     * @param kindName
+     *         Name of the kind of component this registry holds. Used in log messages.
+     * @param types
+     *         The types, in the order they should be listed in the UI.
+     * @param array
+     *         An empty array of the type class, used to create the type array.
+     */
+    public ComponentTypeRegistry(String kindName, List<T> types, T[] array)
+    {
+        mKindName = kindName;
+        mTypes = types.toArray(array);
+        mTypesById = new HashMap<String, T>(mTypes.length * 2);
+        for (T type : mTypes)
+        {
+            if (mTypesById.put(type.getTypeId(), type) != null)
+                Log.wtf(LOGGER_TAG, "Duplicate " + kindName + " type ID " + type.getTypeId() + ".");
+        }
+    }
+
+    /**
+     * @return All of the registered types, in the order they were registered.
+     */
+    public T[] getTypes()
+    {
+        return mTypes;
+    }
+
+    /**
+     * @return The type with the given type ID, or null if there is no such type.
+     */
+    public T findById(String typeId)
+    {
+        return mTypesById.get(typeId);
+    }
+
+    /**
+     * Loads the component stored in the given section.
+     *
+     * @param parent
+     *         The automation the component belongs to.
+     * @param context
+     *         Context used to open the config store.
+     * @param id
+     *         The component's ID.
+     * @param sectionName
+     *         Name of the component's config section.
+     *
+     * @return The component, or null if its type ID is missing or unknown.
+     */
+    public C load(Automation parent, Context context, int id, String sectionName)
+    {
+        SharedPreferences preferences = ConfigStore.get(context).getPreferences(sectionName);
+
+        String typeId = preferences.getString(ComponentType.VALUE_COMPONENT_TYPE, null);
+        if (typeId == null)
+        {
+            Log.w(LOGGER_TAG, "The " + mKindName + " in " + sectionName + " has no type ID.");
+            return null;
+        }
+
+        T type = mTypesById.get(typeId);
+        if (type == null)
+        {
+            Log.w(LOGGER_TAG, "The " + mKindName + " in " + sectionName + " has unknown type ID " +
+                              typeId + ".");
+            return null;
+        }
+        return type.construct(parent, context, id);
+    }
+}
@@ -35,6 +35,13 @@ public interface ConfigComponent
      */
     public abstract void destroy();
 
+    /**
+     * Stops this component from listening for changes to its configuration. Called after the
+     * component has been destroyed for good, because it's being deleted, reloaded or the service is
+     * stopping. The component can't be used afterwards.
+     */
+    public abstract void release();
+
     /**
      * @return This component's ID.
      */
@@ -16,7 +16,6 @@
 
 package net.forkk.autocron.data;
 
-import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.res.Resources;
 import android.preference.PreferenceFragment;
@@ -40,14 +39,55 @@ public abstract class ConfigComponentBase
 
     private int mId;
 
-    private boolean mIsEnableStateChanging = false;
+    private volatile boolean mIsEnableStateChanging = false;
+
+    // Values that are read often enough to be worth caching. These are loaded when the component
+    // is constructed and kept up to date by updateCachedField() on the engine thread. They're
+    // volatile because the UI reads them too.
+    private volatile String mName;
+
+    private volatile String mDescription;
+
+    private volatile boolean mEnabled;
 
     public ConfigComponentBase(AutomationService service, int id)
     {
         mId = id;
         mService = service;
-        mPreferences =
-                service.getSharedPreferences(getSharedPreferencesName(id), Context.MODE_PRIVATE);
+        mPreferences = service.getConfigStore().getPreferences(getSharedPreferencesName(id));
+        loadCachedFields();
+    }
+
+    /**
+     * Reads all of the cached values from this component's shared preferences.
+     * <p/>
+     * This is called from the constructor, so subclasses that override it must not give their
+     * cached fields initializers, or the initializers will overwrite the loaded values.
+     */
+    protected void loadCachedFields()
+    {
+        SharedPreferences prefs = getSharedPreferences();
+        mName = prefs.getString(VALUE_NAME, "Unnamed");
+        mDescription = prefs.getString(VALUE_DESCRIPTION, "");
+        mEnabled = prefs.getBoolean(VALUE_ENABLED, false);
+    }
+
+    /**
+     * Called when a value in this component's shared preferences changes. Subclasses that cache
+     * other values should override this, reload the value if it's one of theirs, and call the
+     * super method.
+     *
+     * @param key
+     *         The key of the value that changed.
+     */
+    protected void updateCachedField(String key)
+    {
+        SharedPreferences prefs = getSharedPreferences();
+        if (key == null) loadCachedFields();
+        else if (key.equals(VALUE_NAME)) mName = prefs.getString(VALUE_NAME, "Unnamed");
+        else if (key.equals(VALUE_DESCRIPTION))
+            mDescription = prefs.getString(VALUE_DESCRIPTION, "");
+        else if (key.equals(VALUE_ENABLED)) mEnabled = prefs.getBoolean(VALUE_ENABLED, false);
     }
 
     @Override
@@ -116,7 +156,7 @@ public abstract class ConfigComponentBase
     @Override
     public String getName()
     {
-        return getSharedPreferences().getString(VALUE_NAME, "Unnamed");
+        return mName;
     }
 
     /**
@@ -125,23 +165,45 @@ public abstract class ConfigComponentBase
     @Override
     public String getDescription()
     {
-        return getSharedPreferences().getString(VALUE_DESCRIPTION, "");
+        return mDescription;
     }
 
     @Override
     public boolean isEnabled()
     {
-        return mIsEnableStateChanging || getSharedPreferences().getBoolean(VALUE_ENABLED, false);
+        return mIsEnableStateChanging || mEnabled;
     }
 
+    /**
+     * Enables or disables this component. Creating or destroying it touches state that belongs to
+     * the engine thread, so the change is made there. This can be called from any thread.
+     */
     @Override
-    public void setEnabled(boolean enabled)
+    public void setEnabled(final boolean enabled)
+    {
+        getService().runOnEngine(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                applyEnabled(enabled);
+            }
+        });
+    }
+
+    /**
+     * Creates or destroys this component and saves its enabled state. Called on the engine thread
+     * by setEnabled(). Subclasses that need to react to being enabled or disabled should override
+     * this and call the super method.
+     */
+    protected void applyEnabled(boolean enabled)
     {
         // HACK: To fix some issues, components are always enabled while its enabled state is changing.
         mIsEnableStateChanging = true;
         if (enabled) create();
         else destroy();
-        getSharedPreferences().edit().putBoolean(VALUE_ENABLED, enabled).commit();
+        getSharedPreferences().edit().putBoolean(VALUE_ENABLED, enabled).apply();
+        mEnabled = enabled;
         mIsEnableStateChanging = false;
     }
 
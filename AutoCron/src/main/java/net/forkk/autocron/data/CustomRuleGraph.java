@@ -0,0 +1,256 @@
+/*
+ * Copyright 2013 Andrew Okin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.forkk.autocron.data;
+
+import net.forkk.autocron.data.action.Action;
+import net.forkk.autocron.data.action.CustomRuleAction;
+import net.forkk.autocron.data.rule.CustomRule;
+import net.forkk.autocron.data.rule.Rule;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Which states drive which other states through custom rules.
+ * <p/>
+ * A state depends on another state if the other state has a custom rule action that sets a custom
+ * rule the state has a rule for. Each state gets a rank, so that every state comes after the
+ * states it depends on. States that depend on each other in a cycle share a rank, and the cycles
+ * are reported so the user can be told about them.
+ */
+public class CustomRuleGraph
+{
+    private final Map<State, Integer> mRanks;
+
+    private final List<List<State>> mCycles;
+
+    private CustomRuleGraph(Map<State, Integer> ranks, List<List<State>> cycles)
+    {
+        mRanks = ranks;
+        mCycles = cycles;
+    }
+
+    /**
+     * Builds the graph for the given states. Only enabled states and their enabled components are
+     * included.
+     */
+    public static CustomRuleGraph build(List<State> allStates)
+    {
+        List<State> states = new ArrayList<State>();
+        for (State state : allStates)
+            if (state.isEnabled()) states.add(state);
+
+        // Which states consume each custom rule ID.
+        Map<String, List<Integer>> consumers = new HashMap<String, List<Integer>>();
+        for (int i = 0; i < states.size(); i++)
+        {
+            for (Rule rule : states.get(i).getRules())
+            {
+                if (!rule.isEnabled() || !(rule instanceof CustomRule)) continue;
+                String id = ((CustomRule) rule).getListenerId();
+                List<Integer> list = consumers.get(id);
+                if (list == null) consumers.put(id, list = new ArrayList<Integer>());
+                list.add(i);
+            }
+        }
+
+        int[][] edges = new int[states.size()][];
+        for (int i = 0; i < states.size(); i++)
+        {
+            List<Integer> targets = new ArrayList<Integer>();
+            for (Action action : states.get(i).getActions())
+            {
+                if (!action.isEnabled() || !(action instanceof CustomRuleAction)) continue;
+                List<Integer> list = consumers.get(((CustomRuleAction) action).getListenerId());
+                if (list != null) targets.addAll(list);
+            }
+            edges[i] = new int[targets.size()];
+            for (int j = 0; j < targets.size(); j++)
+                edges[i][j] = targets.get(j);
+        }
+
+        Tarjan tarjan = new Tarjan(edges);
+        for (int i = 0; i < states.size(); i++)
+            if (tarjan.mIndex[i] < 0) tarjan.visit(i);
+
+        // Tarjan's algorithm finds components after everything they lead to, so ranks count down.
+        Map<State, Integer> ranks = new IdentityHashMap<State, Integer>();
+        List<List<State>> cycles = new ArrayList<List<State>>();
+        int componentCount = tarjan.mComponents.size();
+        for (int c = 0; c < componentCount; c++)
+        {
+            List<Integer> component = tarjan.mComponents.get(c);
+            int rank = componentCount - 1 - c;
+            List<State> members = new ArrayList<State>(component.size());
+            for (int node : component)
+            {
+                ranks.put(states.get(node), rank);
+                members.add(states.get(node));
+            }
+
+            int first = component.get(0);
+            if (component.size() > 1 || contains(edges[first], first)) cycles.add(members);
+        }
+        return new CustomRuleGraph(ranks, cycles);
+    }
+
+    private static boolean contains(int[] array, int value)
+    {
+        for (int item : array)
+            if (item == value) return true;
+        return false;
+    }
+
+    /**
+     * @return The given state's rank. States that aren't in the graph come first.
+     */
+    public int getRank(State state)
+    {
+        Integer rank = mRanks.get(state);
+        return rank == null ? -1 : rank;
+    }
+
+    /**
+     * @return The groups of states that drive each other in a cycle.
+     */
+    public List<List<State>> getCycles()
+    {
+        return Collections.unmodifiableList(mCycles);
+    }
+
+    /**
+     * @return A description of the given cycle for the log.
+     */
+    public static String describeCycle(List<State> cycle)
+    {
+        StringBuilder builder = new StringBuilder();
+        for (State state : cycle)
+        {
+            if (builder.length() > 0) builder.append(", ");
+            builder.append('"').append(state.getName()).append('"');
+        }
+        return builder.toString();
+    }
+
+
+    /**
+     * Tarjan's strongly connected components algorithm. It keeps its own call stack instead of
+     * recursing, so a long chain of states in a large config can't overflow the thread's stack.
+     */
+    private static class Tarjan
+    {
+        private final int[][] mEdges;
+
+        private final int[] mIndex;
+
+        private final int[] mLowLink;
+
+        private final boolean[] mOnStack;
+
+        private final int[] mStack;
+
+        private int mStackSize;
+
+        /**
+         * Nodes being visited, innermost last. Takes the place of recursive calls.
+         */
+        private final int[] mCallStack;
+
+        /**
+         * How many of each node's edges have been followed.
+         */
+        private final int[] mNextEdge;
+
+        private int mNextIndex;
+
+        private final List<List<Integer>> mComponents = new ArrayList<List<Integer>>();
+
+        Tarjan(int[][] edges)
+        {
+            mEdges = edges;
+            mIndex = new int[edges.length];
+            mLowLink = new int[edges.length];
+            mOnStack = new boolean[edges.length];
+            mStack = new int[edges.length];
+            mCallStack = new int[edges.length];
+            mNextEdge = new int[edges.length];
+            for (int i = 0; i < edges.length; i++)
+                mIndex[i] = -1;
+        }
+
+        void visit(int root)
+        {
+            int depth = 0;
+            enter(root);
+            mCallStack[depth++] = root;
+            while (depth > 0)
+            {
+                int node = mCallStack[depth - 1];
+                if (mNextEdge[node] < mEdges[node].length)
+                {
+                    int next = mEdges[node][mNextEdge[node]++];
+                    if (mIndex[next] < 0)
+                    {
+                        enter(next);
+                        mCallStack[depth++] = next;
+                    }
+                    else if (mOnStack[next])
+                        mLowLink[node] = Math.min(mLowLink[node], mIndex[next]);
+                    continue;
+                }
+
+                // All of the node's edges have been followed, so return to the node it was
+                // reached from.
+                depth--;
+                if (mLowLink[node] == mIndex[node]) popComponent(node);
+                if (depth > 0)
+                {
+                    int caller = mCallStack[depth - 1];
+                    mLowLink[caller] = Math.min(mLowLink[caller], mLowLink[node]);
+                }
+            }
+        }
+
+        private void enter(int node)
+        {
+            mIndex[node] = mLowLink[node] = mNextIndex++;
+            mStack[mStackSize++] = node;
+            mOnStack[node] = true;
+        }
+
+        /**
+         * Pops the component whose root is the given node off the stack.
+         */
+        private void popComponent(int node)
+        {
+            List<Integer> component = new ArrayList<Integer>();
+            int member;
+            do
+            {
+                member = mStack[--mStackSize];
+                mOnStack[member] = false;
+                component.add(member);
+            } while (member != node);
+            mComponents.add(component);
+        }
+    }
+}
@@ -37,10 +37,16 @@ public class CustomRuleService extends Service
 
     Map<String, CustomTriggerData> mCustomTriggers;
 
+    /**
+     * The one binder given to every client, so every client shares its lock.
+     */
+    private LocalBinder mBinder;
+
     public CustomRuleService()
     {
         mCustomRuleStates = new HashMap<String, CustomRuleState>();
         mCustomTriggers = new HashMap<String, CustomTriggerData>();
+        mBinder = new LocalBinder();
     }
 
     @Override
@@ -52,9 +58,15 @@ public class CustomRuleService extends Service
     @Override
     public IBinder onBind(Intent intent)
     {
-        return new LocalBinder();
+        return mBinder;
     }
 
+    /**
+     * Binder for the custom rule service. It's used from both the main thread and the automation
+     * engine's thread, so its state is guarded by its lock. Listeners are called after the lock
+     * is released, so they can't hold up other clients or call back into the binder while it's
+     * held.
+     */
     public class LocalBinder extends Binder
     {
         //////////////////////
@@ -63,16 +75,14 @@ public class CustomRuleService extends Service
 
         public void registerCustomRuleListener(String id, CustomRuleListener listener)
         {
-            CustomRuleState state;
-            if (!mCustomRuleStates.containsKey(id))
+            boolean value;
+            synchronized (this)
             {
-                // If there isn't already a state object with the given ID, create one.
-                state = new CustomRuleState(id);
-                mCustomRuleStates.put(id, state);
+                CustomRuleState state = getRuleState(id);
+                state.registerListener(listener);
+                value = state.getState();
             }
-            else state = mCustomRuleStates.get(id);
-            assert state != null;
-            state.registerListener(listener);
+            listener.onCustomRuleStateChange(id, value);
         }
 
         /**
@@ -83,7 +93,8 @@ public class CustomRuleService extends Service
          * @param listener
          *         The listener to un-register.
          */
-        public void unregisterCustomRuleListener(String id, CustomRuleListener listener)
+        public synchronized void unregisterCustomRuleListener(String id,
+                                                              CustomRuleListener listener)
         {
             if (mCustomRuleStates.containsKey(id))
             {
@@ -105,16 +116,12 @@ public class CustomRuleService extends Service
          */
         public void setState(String id, boolean value)
         {
-            CustomRuleState state;
-            if (!mCustomRuleStates.containsKey(id))
+            List<CustomRuleListener> listeners;
+            synchronized (this)
             {
-                // If there isn't already a state object with the given ID, create one.
-                state = new CustomRuleState(id);
-                mCustomRuleStates.put(id, state);
+                listeners = getRuleState(id).setState(value);
             }
-            else state = mCustomRuleStates.get(id);
-            assert state != null;
-            state.setState(value);
+            notifyStateChange(id, listeners);
         }
 
         /**
@@ -126,11 +133,56 @@ public class CustomRuleService extends Service
          *
          * @return The state value of the given state ID.
          */
-        public boolean getState(String id)
+        public synchronized boolean getState(String id)
         {
             return mCustomRuleStates.containsKey(id) && mCustomRuleStates.get(id).getState();
         }
 
+        /**
+         * Flips the state of the given rule listener ID. This is the same as setting it to the
+         * opposite of getState(), but can't be interleaved with another change.
+         */
+        public void toggleState(String id)
+        {
+            List<CustomRuleListener> listeners;
+            synchronized (this)
+            {
+                CustomRuleState state = getRuleState(id);
+                listeners = state.setState(!state.getState());
+            }
+            notifyStateChange(id, listeners);
+        }
+
+        /**
+         * Gets the state object with the given ID, creating it if there isn't one yet. Must be
+         * called while holding the binder's lock.
+         */
+        private CustomRuleState getRuleState(String id)
+        {
+            CustomRuleState state = mCustomRuleStates.get(id);
+            if (state == null)
+            {
+                state = new CustomRuleState(id);
+                mCustomRuleStates.put(id, state);
+            }
+            return state;
+        }
+
+        /**
+         * Tells the given listeners about a change to the state with the given ID. Must be called
+         * without holding the binder's lock.
+         */
+        private void notifyStateChange(String id, List<CustomRuleListener> listeners)
+        {
+            if (listeners == null) return;
+            // Another change may have happened since the lock was released. Reading the value
+            // again means the last notification always carries the current state, even if
+            // notifications from two threads arrive out of order.
+            boolean value = getState(id);
+            for (CustomRuleListener listener : listeners)
+                listener.onCustomRuleStateChange(id, value);
+        }
+
         /////////////////////////
         //// Custom Triggers ////
         /////////////////////////
@@ -143,7 +195,8 @@ public class CustomRuleService extends Service
          * @param listener
          *         The listener to register.
          */
-        public void registerCustomTriggerListener(String id, CustomTriggerListener listener)
+        public synchronized void registerCustomTriggerListener(String id,
+                                                               CustomTriggerListener listener)
         {
             CustomTriggerData triggerData;
             if (!mCustomTriggers.containsKey(id))
@@ -165,7 +218,8 @@ public class CustomRuleService extends Service
          * @param listener
          *         The listener to un-register.
          */
-        public void unregisterCustomTriggerListener(String id, CustomTriggerListener listener)
+        public synchronized void unregisterCustomTriggerListener(String id,
+                                                                 CustomTriggerListener listener)
         {
             if (mCustomRuleStates.containsKey(id))
             {
@@ -185,8 +239,17 @@ public class CustomRuleService extends Service
          */
         public void triggerCustomTrigger(String id)
         {
+            List<CustomTriggerListener> listeners;
+            synchronized (this)
+            {
+                CustomTriggerData triggerData = mCustomTriggers.get(id);
+                if (triggerData == null) return;
+                listeners = triggerData.getListeners();
+            }
+
             // If I had a dollar for each time I've typed the word trigger over the past few days...
-            if (mCustomTriggers.containsKey(id)) mCustomTriggers.get(id).trigger();
+            for (CustomTriggerListener listener : listeners)
+                listener.onCustomTriggerTriggered(id);
         }
     }
 
@@ -205,7 +268,7 @@ public class CustomRuleService extends Service
         {
             this.mId = id;
             this.mListeners = new ArrayList<CustomRuleListener>();
-            mState = false;
+            mState = EngineSnapshot.get(CustomRuleService.this).getCustomRuleValue(id);
         }
 
         public String getId()
@@ -213,14 +276,18 @@ public class CustomRuleService extends Service
             return mId;
         }
 
-        public void setState(boolean state)
+        /**
+         * Sets the state without notifying anyone, since this is called under the binder's lock.
+         *
+         * @return A copy of the listeners to notify once the lock is released, or null if the
+         * state didn't change.
+         */
+        public List<CustomRuleListener> setState(boolean state)
         {
-            if (state != mState)
-            {
-                mState = state;
-                for (CustomRuleListener listener : mListeners)
-                    listener.onCustomRuleStateChange(getId(), mState);
-            }
+            if (state == mState) return null;
+            mState = state;
+            EngineSnapshot.get(CustomRuleService.this).setCustomRuleValue(mId, state);
+            return new ArrayList<CustomRuleListener>(mListeners);
         }
 
         public boolean getState()
@@ -231,7 +298,6 @@ public class CustomRuleService extends Service
         public void registerListener(CustomRuleListener listener)
         {
             if (!mListeners.contains(listener)) mListeners.add(listener);
-            listener.onCustomRuleStateChange(mId, mState);
         }
 
         public void unregisterListener(CustomRuleListener listener)
@@ -279,13 +345,12 @@ public class CustomRuleService extends Service
         }
 
         /**
-         * Sets off all of the listeners registered with this custom trigger data.
+         * @return A copy of the listeners registered with this custom trigger data, which can be
+         * set off once the binder's lock is released.
          */
-        public void trigger()
+        public List<CustomTriggerListener> getListeners()
         {
-            // Trigger all the triggers' trigger triggered functions.
-            for (CustomTriggerListener listener : mListeners)
-                listener.onCustomTriggerTriggered(getId());
+            return new ArrayList<CustomTriggerListener>(mListeners);
         }
 
         public void registerListener(CustomTriggerListener listener)
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2013 Andrew Okin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.forkk.autocron.data;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+
+/**
+ * Remembers which rules and states are active and the values of custom rules, so the engine can
+ * pick up where it left off when Android restarts it.
+ * <p/>
+ * Only active entries are stored, keyed by their component's shared preferences name. Each
+ * transition writes one key in the background.
+ * <p/>
+ * The snapshot only counts once the engine has finished starting up with it at least once.
+ * Before that, the engine starts cold and brings every action up to date like it always has.
+ * <p/>
+ * The snapshot is only meant for when Android kills the engine. A clean stop destroys the actions,
+ * and a reboot clears things like notifications, so both invalidate it and the next start is cold.
+ */
+public class EngineSnapshot
+{
+    public static final String PREF_SNAPSHOT = "engine_snapshot";
+
+    private static final String VALUE_VERSION = "snapshot_version";
+
+    /**
+     * Version of the snapshot's format. Snapshots from other versions are ignored.
+     */
+    private static final int SNAPSHOT_VERSION = 1;
+
+    private static final String CUSTOM_RULE_PREFIX = "custom_rule:";
+
+    private static EngineSnapshot sInstance;
+
+    private final SharedPreferences mPreferences;
+
+    /**
+     * Gets the snapshot for the given context.
+     */
+    public static synchronized EngineSnapshot get(Context context)
+    {
+        if (sInstance == null) sInstance = new EngineSnapshot(context.getApplicationContext());
+        return sInstance;
+    }
+
+    private EngineSnapshot(Context context)
+    {
+        mPreferences = context.getSharedPreferences(PREF_SNAPSHOT, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * @return True if there's a complete snapshot from an earlier run of the engine.
+     */
+    public boolean isComplete()
+    {
+        return mPreferences.getInt(VALUE_VERSION, 0) == SNAPSHOT_VERSION;
+    }
+
+    /**
+     * Marks the snapshot as complete. Called once the engine has started and written everything
+     * that's active.
+     */
+    public void markComplete()
+    {
+        if (!isComplete()) mPreferences.edit().putInt(VALUE_VERSION, SNAPSHOT_VERSION).apply();
+    }
+
+    /**
+     * Marks the snapshot as out of date, so the next start brings every action up to date again.
+     * The active flags are kept, since the next start rewrites them anyway. This waits for the
+     * change to be written, since the process may go away right after.
+     */
+    public void invalidate()
+    {
+        if (isComplete()) mPreferences.edit().remove(VALUE_VERSION).commit();
+    }
+
+    /**
+     * @return True if the given rule or state was active when it was last saved.
+     */
+    public boolean isActive(ConfigComponent component)
+    {
+        return mPreferences.getBoolean(component.getSharedPreferencesName(), false);
+    }
+
+    /**
+     * Saves whether the given rule or state is active.
+     */
+    public void setActive(ConfigComponent component, boolean active)
+    {
+        putFlag(component.getSharedPreferencesName(), active);
+    }
+
+    /**
+     * Removes the given component from the snapshot. Called when the component is deleted.
+     */
+    public void forget(ConfigComponent component)
+    {
+        putFlag(component.getSharedPreferencesName(), false);
+    }
+
+    /**
+     * @return The last saved value of the custom rule with the given ID.
+     */
+    public boolean getCustomRuleValue(String id)
+    {
+        return mPreferences.getBoolean(CUSTOM_RULE_PREFIX + id, false);
+    }
+
+    /**
+     * Saves the value of the custom rule with the given ID.
+     */
+    public void setCustomRuleValue(String id, boolean value)
+    {
+        putFlag(CUSTOM_RULE_PREFIX + id, value);
+    }
+
+    private void putFlag(String key, boolean value)
+    {
+        if (value) mPreferences.edit().putBoolean(key, true).apply();
+        else if (mPreferences.contains(key)) mPreferences.edit().remove(key).apply();
+    }
+}
@@ -37,12 +37,15 @@ public interface Event extends Automation
     public List<Trigger> getTriggers();
 
     /**
-     * Adds a new trigger of the given type with the given name.
+     * Adds a new trigger of the given type. The trigger is added on the engine thread, so this
+     * returns right away.
      *
      * @param type
      *         The type of trigger to add.
+     * @param listener
+     *         Listener that is given the new trigger once it has been added, or null.
      */
-    public Trigger addTrigger(TriggerType type);
+    public void addTrigger(TriggerType type, ComponentAddedListener<? super Trigger> listener);
 
     /**
      * Removes the trigger with the given ID.
@@ -23,11 +23,14 @@ import android.util.Log;
 import net.forkk.autocron.data.action.Action;
 import net.forkk.autocron.data.action.TriggerAction;
 import net.forkk.autocron.data.rule.Rule;
+import net.forkk.autocron.data.rule.RuleExpression;
+import net.forkk.autocron.data.time.EventRecorder;
 import net.forkk.autocron.data.trigger.Trigger;
 import net.forkk.autocron.data.trigger.TriggerType;
+import net.forkk.autocron.util.IntObjectMap;
 
-import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 
 /**
@@ -43,6 +46,8 @@ public class EventBase extends AutomationBase implements Event, Trigger.TriggerL
 
     protected List<Trigger> mTriggers;
 
+    protected volatile IntObjectMap<Trigger> mTriggerIndex;
+
     /**
      * Loads a new event from the given SharedPreferences.
      *
@@ -62,17 +67,20 @@ public class EventBase extends AutomationBase implements Event, Trigger.TriggerL
     {
         EventBase event = new EventBase(service, preferencesId);
         SharedPreferences.Editor edit = event.getSharedPreferences().edit();
-        edit.clear().commit();
+        edit.clear();
         edit.putString(VALUE_NAME, name);
-        edit.commit();
+        edit.apply();
+
+        // Clearing doesn't notify listeners, so the cached values need to be reloaded by hand.
+        event.loadCachedFields();
         return event;
     }
 
     public EventBase(AutomationService service, int sharedPreferencesId)
     {
         super(service, sharedPreferencesId);
-        mTriggers = new ArrayList<Trigger>();
-        loadConfig(service);
+        mTriggers = new CopyOnWriteArrayList<Trigger>();
+        mTriggerIndex = new IntObjectMap<Trigger>();
     }
 
     @Override
@@ -107,10 +115,20 @@ public class EventBase extends AutomationBase implements Event, Trigger.TriggerL
     {
         super.destroyComponents();
 
-        for (Trigger trigger : getTriggers())
+        // Using the list directly so destroying an automation doesn't load its components.
+        for (Trigger trigger : mTriggers)
             trigger.destroy();
     }
 
+    @Override
+    protected void releaseComponents()
+    {
+        super.releaseComponents();
+
+        for (Trigger trigger : mTriggers)
+            trigger.release();
+    }
+
     /**
      * Gets this component's shared preferences name for the given component ID.
      *
@@ -143,19 +161,20 @@ public class EventBase extends AutomationBase implements Event, Trigger.TriggerL
     @Override
     public List<Trigger> getTriggers()
     {
+        ensureComponentsLoaded();
         return mTriggerTypeInterface.getList();
     }
 
     /**
-     * Adds a new trigger of the given type with the given name.
+     * Adds a new trigger of the given type.
      *
      * @param type
      *         The type of trigger to add.
      */
     @Override
-    public Trigger addTrigger(TriggerType type)
+    public void addTrigger(TriggerType type, ComponentAddedListener<? super Trigger> listener)
     {
-        return addComponent(type, mTriggerTypeInterface);
+        addComponent(type, mTriggerTypeInterface, listener);
     }
 
     /**
@@ -181,9 +200,8 @@ public class EventBase extends AutomationBase implements Event, Trigger.TriggerL
     @Override
     public Trigger findTriggerById(int id)
     {
-        for (Trigger trigger : mTriggers)
-            if (trigger.getId() == id) return trigger;
-        return null;
+        ensureComponentsLoaded();
+        return mTriggerIndex.get(id);
     }
 
 
@@ -205,6 +223,30 @@ public class EventBase extends AutomationBase implements Event, Trigger.TriggerL
         Log.i(LOGGER_TAG, "Done loading automation configuration for \"" + getName() + "\".");
     }
 
+    @Override
+    protected boolean reloadComponentLists(Context context, List<AutomationComponent> created)
+    {
+        boolean changed = super.reloadComponentLists(context, created);
+        changed |= reloadComponentList(context, getSharedPreferences(), mTriggerTypeInterface,
+                                       created);
+        return changed;
+    }
+
+    @Override
+    protected void onComponentsReloaded(List<AutomationComponent> created)
+    {
+        // Only listen to the new triggers if onCreate() has registered us with the others.
+        if (!isEnabled()) return;
+        for (AutomationComponent component : created)
+            if (component instanceof Trigger) ((Trigger) component).registerTriggerListener(this);
+    }
+
+    @Override
+    protected void onComponentUnloaded(AutomationComponent component)
+    {
+        if (component instanceof Trigger) ((Trigger) component).unregisterTriggerListener(this);
+    }
+
     /**
      * Called when a trigger this listener is registered to becomes triggered.
      *
@@ -216,9 +258,18 @@ public class EventBase extends AutomationBase implements Event, Trigger.TriggerL
     {
         if (!isEnabled()) return;
 
-        // If any enabled rules are inactive, don't trigger the actions.
-        for (Rule rule : getRules())
-            if (rule.isEnabled() && !rule.isActive()) return;
+        RuleExpression expression = getRuleExpression();
+        if (expression != null)
+        {
+            // Events only check their rules when they're triggered, so evaluate the whole thing.
+            if (!expression.reset(getRules())) return;
+        }
+        else
+        {
+            // If any enabled rules are inactive, don't trigger the actions.
+            for (Rule rule : getRules())
+                if (rule.isEnabled() && !rule.isActive()) return;
+        }
 
         trigger();
     }
@@ -231,7 +282,12 @@ public class EventBase extends AutomationBase implements Event, Trigger.TriggerL
         // Only trigger trigger actions.
         for (Action action : getActions())
         {
-            if (action instanceof TriggerAction) ((TriggerAction) action).onTrigger();
+            if (action instanceof TriggerAction)
+            {
+                getService().getEventRecorder()
+                            .recordEvent(EventRecorder.EVENT_ACTION_TRIGGERED, action);
+                ((TriggerAction) action).onTrigger();
+            }
         }
     }
 
@@ -255,6 +311,18 @@ public class EventBase extends AutomationBase implements Event, Trigger.TriggerL
             return mTriggers;
         }
 
+        @Override
+        public IntObjectMap<Trigger> getIndex()
+        {
+            return mTriggerIndex;
+        }
+
+        @Override
+        public void setIndex(IntObjectMap<Trigger> index)
+        {
+            mTriggerIndex = index;
+        }
+
         @Override
         public Trigger loadFromPrefs(Automation automation, Context context, int id)
         {
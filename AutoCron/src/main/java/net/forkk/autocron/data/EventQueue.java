@@ -0,0 +1,364 @@
+/*
+ * Copyright 2013 Andrew Okin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.forkk.autocron.data;
+
+import android.os.Handler;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+
+/**
+ * Queues events from sensors, such as WiFi changes and NFC taps, and runs them on the engine
+ * thread.
+ * <p/>
+ * Events are run in order of priority, and in the order they were posted within a priority, so a
+ * tag being tapped isn't stuck behind a burst of connectivity broadcasts. An event can have a
+ * source. If an event from the same source is still waiting, the new event replaces it, since only
+ * the latest state of a source matters. Events without a source, like triggers, are never merged.
+ * <p/>
+ * The queue holds at most a fixed number of events. When it's full, the oldest sourceless event of
+ * the lowest priority that isn't above the new event's is dropped to make room. Events with a
+ * source are never dropped, since there's only ever one per source and it holds that source's
+ * latest state.
+ * <p/>
+ * Events can be posted from any thread.
+ */
+public class EventQueue implements Runnable
+{
+    /**
+     * Priority of events the user is waiting on, such as triggers.
+     */
+    public static final int PRIORITY_TRIGGER = 0;
+
+    /**
+     * Priority of rule state changes.
+     */
+    public static final int PRIORITY_RULE = 1;
+
+    private static final int PRIORITY_COUNT = 2;
+
+    public static final int DEFAULT_CAPACITY = 256;
+
+    /**
+     * Number of events run in one go before letting other work on the engine thread have a turn.
+     */
+    private static final int BATCH_SIZE = 32;
+
+    private final Handler mHandler;
+
+    private final int mCapacity;
+
+    private final ArrayDeque<Entry>[] mQueues;
+
+    /**
+     * Events that are still waiting, by source.
+     */
+    private final Map<Object, Entry> mPendingBySource;
+
+    private int mSize;
+
+    private boolean mDrainPosted;
+
+    private int mMaxDepth;
+
+    private long mPosted;
+
+    private long mCoalesced;
+
+    private long mDropped;
+
+    private long mRun;
+
+    public EventQueue(Handler handler)
+    {
+        this(handler, DEFAULT_CAPACITY);
+    }
+
+    @SuppressWarnings("unchecked")
+    public EventQueue(Handler handler, int capacity)
+    {
+        mHandler = handler;
+        mCapacity = capacity;
+        mQueues = new ArrayDeque[PRIORITY_COUNT];
+        for (int i = 0; i < PRIORITY_COUNT; i++)
+            mQueues[i] = new ArrayDeque<Entry>();
+        mPendingBySource = new HashMap<Object, Entry>();
+    }
+
+    /**
+     * Posts an event.
+     *
+     * @param priority
+     *         One of the PRIORITY_ constants.
+     * @param source
+     *         The object the event came from, or null if the event shouldn't replace earlier ones.
+     * @param task
+     *         What to run on the engine thread.
+     */
+    public synchronized void post(int priority, Object source, Runnable task)
+    {
+        if (priority < 0 || priority >= PRIORITY_COUNT)
+            throw new IllegalArgumentException("Invalid event priority: " + priority);
+
+        mPosted++;
+
+        if (source != null)
+        {
+            Entry pending = mPendingBySource.get(source);
+            if (pending != null)
+            {
+                pending.mTask = task;
+                if (priority < pending.mPriority)
+                {
+                    // Move it up so the new event doesn't wait longer than it would have alone.
+                    mQueues[pending.mPriority].remove(pending);
+                    pending.mPriority = priority;
+                    mQueues[priority].addLast(pending);
+                }
+                mCoalesced++;
+                return;
+            }
+        }
+
+        if (mSize >= mCapacity && source == null && !dropOldest(priority))
+        {
+            Log.w(AutomationService.LOGGER_TAG, "Event queue full. Dropping event.");
+            mDropped++;
+            return;
+        }
+
+        Entry entry = new Entry(priority, source, task);
+        mQueues[priority].addLast(entry);
+        if (source != null) mPendingBySource.put(source, entry);
+        mSize++;
+        if (mSize > mMaxDepth) mMaxDepth = mSize;
+
+        if (!mDrainPosted)
+        {
+            mDrainPosted = true;
+            mHandler.post(this);
+        }
+    }
+
+    /**
+     * Drops the oldest sourceless event with the given priority or lower.
+     *
+     * @return True if an event was dropped.
+     */
+    private boolean dropOldest(int priority)
+    {
+        for (int p = PRIORITY_COUNT - 1; p >= priority; p--)
+        {
+            Iterator<Entry> it = mQueues[p].iterator();
+            while (it.hasNext())
+            {
+                if (it.next().mSource == null)
+                {
+                    it.remove();
+                    mSize--;
+                    mDropped++;
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private Entry poll()
+    {
+        for (ArrayDeque<Entry> queue : mQueues)
+        {
+            Entry entry = queue.pollFirst();
+            if (entry != null)
+            {
+                if (entry.mSource != null) mPendingBySource.remove(entry.mSource);
+                mSize--;
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Discards every waiting event. Called when the automations are being torn down.
+     */
+    public synchronized void clear()
+    {
+        for (ArrayDeque<Entry> queue : mQueues)
+            queue.clear();
+        mPendingBySource.clear();
+        mSize = 0;
+    }
+
+    /**
+     * Runs waiting events on the engine thread.
+     */
+    @Override
+    public void run()
+    {
+        for (int i = 0; i < BATCH_SIZE; i++)
+        {
+            Runnable task;
+            synchronized (this)
+            {
+                Entry entry = poll();
+                if (entry == null)
+                {
+                    mDrainPosted = false;
+                    return;
+                }
+                task = entry.mTask;
+                mRun++;
+            }
+
+            try
+            {
+                task.run();
+            }
+            catch (RuntimeException e)
+            {
+                Log.e(AutomationService.LOGGER_TAG, "Error running event.", e);
+            }
+        }
+
+        // There's more to do, but let anything else that's waiting on the engine thread go first.
+        mHandler.post(this);
+    }
+
+    /**
+     * @return Statistics about the queue, such as how many events are waiting.
+     */
+    public synchronized QueueStats getStats()
+    {
+        int[] depths = new int[PRIORITY_COUNT];
+        for (int i = 0; i < PRIORITY_COUNT; i++)
+            depths[i] = mQueues[i].size();
+        return new QueueStats(depths, mMaxDepth, mPosted, mCoalesced, mDropped, mRun);
+    }
+
+    private static class Entry
+    {
+        int mPriority;
+
+        final Object mSource;
+
+        Runnable mTask;
+
+        Entry(int priority, Object source, Runnable task)
+        {
+            mPriority = priority;
+            mSource = source;
+            mTask = task;
+        }
+    }
+
+    public static class QueueStats
+    {
+        private final int[] mDepths;
+
+        private final int mMaxDepth;
+
+        private final long mPosted;
+
+        private final long mCoalesced;
+
+        private final long mDropped;
+
+        private final long mRun;
+
+        public QueueStats(int[] depths, int maxDepth, long posted, long coalesced, long dropped,
+                          long run)
+        {
+            mDepths = depths;
+            mMaxDepth = maxDepth;
+            mPosted = posted;
+            mCoalesced = coalesced;
+            mDropped = dropped;
+            mRun = run;
+        }
+
+        /**
+         * @return The number of events waiting.
+         */
+        public int getDepth()
+        {
+            int depth = 0;
+            for (int d : mDepths)
+                depth += d;
+            return depth;
+        }
+
+        /**
+         * @return The number of events of the given priority waiting.
+         */
+        public int getDepth(int priority)
+        {
+            return mDepths[priority];
+        }
+
+        /**
+         * @return The most events that have been waiting at once.
+         */
+        public int getMaxDepth()
+        {
+            return mMaxDepth;
+        }
+
+        /**
+         * @return The number of events posted.
+         */
+        public long getPosted()
+        {
+            return mPosted;
+        }
+
+        /**
+         * @return The number of events that replaced an earlier event from the same source.
+         */
+        public long getCoalesced()
+        {
+            return mCoalesced;
+        }
+
+        /**
+         * @return The number of events dropped because the queue was full.
+         */
+        public long getDropped()
+        {
+            return mDropped;
+        }
+
+        /**
+         * @return The number of events run.
+         */
+        public long getRun()
+        {
+            return mRun;
+        }
+
+        @Override
+        public String toString()
+        {
+            return mRun + " of " + mPosted + " events run, " + mCoalesced + " coalesced, " +
+                   mDropped + " dropped, " + getDepth() + " waiting (max " + mMaxDepth + ")";
+        }
+    }
+}
@@ -16,6 +16,9 @@
 
 package net.forkk.autocron.data;
 
+import net.forkk.autocron.data.rule.Rule;
+import net.forkk.autocron.data.time.ActivationTimeline;
+
 import java.io.Serializable;
 
 
@@ -35,6 +38,22 @@ public interface State extends Automation
      */
     public void updateActivationState();
 
+    /**
+     * Called when one of this state's rules is activated, deactivated, enabled or disabled. This
+     * should update what the state knows about that rule and recheck whether the state should be
+     * active.
+     */
+    public void onRuleChanged(Rule rule);
+
+    /**
+     * Gets when this state will be active over the next few days. This is only available for
+     * states whose enabled rules are all time based.
+     *
+     * @return The state's activation timeline starting from now, or null if the state has rules
+     * that aren't time based or no enabled rules.
+     */
+    public ActivationTimeline getActivationTimeline();
+
     public static class Pointer implements ComponentPointer, Serializable
     {
         protected int mStateId;
@@ -19,7 +19,19 @@ package net.forkk.autocron.data;
 import android.content.SharedPreferences;
 
 import net.forkk.autocron.data.action.Action;
+import net.forkk.autocron.data.action.CustomRuleAction;
+import net.forkk.autocron.data.rule.CustomRule;
 import net.forkk.autocron.data.rule.Rule;
+import net.forkk.autocron.data.rule.RuleBase;
+import net.forkk.autocron.data.rule.RuleExpression;
+import net.forkk.autocron.data.rule.TimeBasedRule;
+import net.forkk.autocron.data.time.ActivationTimeline;
+import net.forkk.autocron.data.time.EventRecorder;
+import net.forkk.autocron.data.time.StateTimeline;
+import net.forkk.autocron.util.IntObjectMap;
+
+import java.util.ArrayList;
+import java.util.List;
 
 
 /**
@@ -27,12 +39,47 @@ import net.forkk.autocron.data.rule.Rule;
  */
 public class StateBase extends AutomationBase
         implements State, SharedPreferences.OnSharedPreferenceChangeListener,
-                           AutomationComponentBase.ComponentChangeListener
+                           AutomationComponentBase.ComponentChangeListener,
+                           StateTimeline.Owner
 {
     public static final String LOGGER_TAG = AutomationService.LOGGER_TAG;
 
+    // Flags for what a rule adds to the rule counts.
+    private static final int COUNTED_ENABLED = 1;
+
+    private static final int COUNTED_SATISFIED = 2;
+
     private boolean mIsActive;
 
+    private boolean mCreated;
+
+    /**
+     * Works out when this state is active while it's made only of time based rules, and schedules
+     * it.
+     */
+    private StateTimeline mTimeline;
+
+    /**
+     * Number of enabled rules. Kept up to date as rules change, so checking whether this state
+     * should be active doesn't have to look at every rule.
+     */
+    private int mEnabledRuleCount;
+
+    /**
+     * Number of enabled rules that are active, or inactive if they're inverted.
+     */
+    private int mSatisfiedRuleCount;
+
+    /**
+     * What each rule adds to the counts, as COUNTED_ flags by rule ID.
+     */
+    private IntObjectMap<Integer> mRuleCounts;
+
+    /**
+     * True if the rule list has changed since the rules were last counted.
+     */
+    private volatile boolean mRuleCountsDirty;
+
     /**
      * Loads a new state from the given SharedPreferences.
      *
@@ -52,17 +99,38 @@ public class StateBase extends AutomationBase
     {
         StateBase state = new StateBase(service, preferencesId);
         SharedPreferences.Editor edit = state.getSharedPreferences().edit();
-        edit.clear().commit();
+        edit.clear();
         edit.putString(VALUE_NAME, name);
-        edit.commit();
+        edit.apply();
+
+        // Clearing doesn't notify listeners, so the cached values need to be reloaded by hand.
+        state.loadCachedFields();
         return state;
     }
 
     public StateBase(AutomationService service, int sharedPreferencesId)
     {
         super(service, sharedPreferencesId);
-        mIsActive = false;
-        loadConfig(service);
+        mIsActive = service.isRestoringSnapshot() && EngineSnapshot.get(service).isActive(this);
+        mTimeline = new StateTimeline(service.getScheduler(), this);
+        mRuleCounts = new IntObjectMap<Integer>();
+        mRuleCountsDirty = true;
+    }
+
+    @Override
+    public void onCreate()
+    {
+        super.onCreate();
+        mCreated = true;
+        mTimeline.start();
+    }
+
+    @Override
+    public void onDestroy()
+    {
+        super.onDestroy();
+        mCreated = false;
+        mTimeline.stop();
     }
 
     /**
@@ -83,39 +151,239 @@ public class StateBase extends AutomationBase
     {
         if (!isEnabled()) return;
 
-        boolean activated = true;
-        int enabledRuleCount = 0;
-        for (Rule rule : mRules)
-        {
-            if (rule.isEnabled())
-            {
-                enabledRuleCount++;
+        // Rules restored from the snapshot may change while they're being created. Wait until the
+        // actions exist, so a change that happened while the service was down runs them once.
+        if (!mCreated && getService().isRestoringSnapshot()) return;
 
-                // If the rule is inverted and active or the rule is not inverted and inactive, 
-                // consider the rule inactive.
-                if (rule.isInverted() == rule.isActive()) activated = false;
-            }
+        if (mTimeline.needsRefresh())
+        {
+            // This calls back into here once the timeline is up to date.
+            mTimeline.refresh();
+            return;
         }
 
-        // If there are no enabled rules, the state does not activate.
-        if (enabledRuleCount <= 0) activated = false;
+        if (mRuleCountsDirty) countRules();
+
+        // Rules driven by the timeline don't update themselves, so bring them up to date first.
+        if (mTimeline.isDriven()) syncRuleStates(getService().getScheduler().currentTimeMillis());
+
+        // Without a rule expression, the state activates if all of its enabled rules are
+        // satisfied. If there are no enabled rules, the state does not activate.
+        RuleExpression expression = getRuleExpression();
+        boolean activated = expression != null ? expression.isSatisfied()
+                                               : mEnabledRuleCount > 0 &&
+                                                 mSatisfiedRuleCount == mEnabledRuleCount;
 
         if (mIsActive != activated)
         {
             mIsActive = activated;
+            EngineSnapshot.get(getService()).setActive(this, activated);
+            EventRecorder recorder = getService().getEventRecorder();
             if (mIsActive)
             {
+                recorder.recordEvent(EventRecorder.EVENT_STATE_ACTIVATED, this);
                 for (Action action : mActions)
-                    if (action.isEnabled()) action.onActivate();
+                {
+                    if (!action.isEnabled()) continue;
+                    recorder.recordEvent(EventRecorder.EVENT_ACTION_ACTIVATED, action);
+                    action.onActivate();
+                }
             }
             else
             {
+                recorder.recordEvent(EventRecorder.EVENT_STATE_DEACTIVATED, this);
                 for (Action action : mActions)
-                    if (action.isEnabled()) action.onDeactivate();
+                {
+                    if (!action.isEnabled()) continue;
+                    recorder.recordEvent(EventRecorder.EVENT_ACTION_DEACTIVATED, action);
+                    action.onDeactivate();
+                }
+            }
+        }
+    }
+
+    @Override
+    public void onSharedPreferenceChanged(SharedPreferences preferences, String key)
+    {
+        super.onSharedPreferenceChanged(preferences, key);
+        if (VALUE_RULE_EXPRESSION.equals(key))
+        {
+            // The new expression has to be bound to the rules, and the timeline may no longer
+            // apply.
+            mRuleCountsDirty = true;
+            mTimeline.invalidate();
+        }
+    }
+
+    @Override
+    public void onRuleChanged(Rule rule)
+    {
+        updateRuleCount(rule);
+        // Evaluating this state may set custom rules that change other states, so let the
+        // evaluator decide when to do it.
+        getService().getStateEvaluator().requestEvaluation(this);
+    }
+
+    /**
+     * Counts all of the rules from scratch, and evaluates the rule expression from scratch if
+     * there is one.
+     */
+    private void countRules()
+    {
+        mRuleCountsDirty = false;
+        mRuleCounts.clear();
+        mEnabledRuleCount = 0;
+        mSatisfiedRuleCount = 0;
+        for (Rule rule : mRules)
+        {
+            int flags = getRuleFlags(rule);
+            mRuleCounts.put(rule.getId(), flags);
+            addToCounts(flags, 1);
+        }
+
+        RuleExpression expression = getRuleExpression();
+        if (expression != null) expression.reset(mRules);
+    }
+
+    /**
+     * Updates the counts and the rule expression for a single rule that changed.
+     */
+    private void updateRuleCount(Rule rule)
+    {
+        if (mRuleCountsDirty) return;
+
+        RuleExpression expression = getRuleExpression();
+        if (expression != null) expression.update(rule);
+
+        Integer counted = mRuleCounts.get(rule.getId());
+        if (counted == null)
+        {
+            // The rule hasn't been counted yet. Count everything again next time it's needed.
+            mRuleCountsDirty = true;
+            return;
+        }
+
+        int flags = getRuleFlags(rule);
+        if (flags == counted) return;
+        addToCounts(counted, -1);
+        addToCounts(flags, 1);
+        mRuleCounts.put(rule.getId(), flags);
+    }
+
+    private void addToCounts(int flags, int delta)
+    {
+        if ((flags & COUNTED_ENABLED) != 0) mEnabledRuleCount += delta;
+        if ((flags & COUNTED_SATISFIED) != 0) mSatisfiedRuleCount += delta;
+    }
+
+    private static int getRuleFlags(Rule rule)
+    {
+        if (!rule.isEnabled()) return 0;
+        // If the rule is inverted and active or the rule is not inverted and inactive, consider
+        // the rule unsatisfied.
+        if (rule.isInverted() == rule.isActive()) return COUNTED_ENABLED;
+        return COUNTED_ENABLED | COUNTED_SATISFIED;
+    }
+
+    @Override
+    public ActivationTimeline getActivationTimeline()
+    {
+        return mTimeline.getTimeline();
+    }
+
+    @Override
+    public List<? extends StateTimeline.Source> getTimelineSources()
+    {
+        // Timelines can only be combined as if all rules have to be satisfied.
+        if (getRuleExpression() != null) return null;
+
+        List<TimeBasedRule> sources = new ArrayList<TimeBasedRule>(mRules.size());
+        for (Rule rule : mRules)
+        {
+            if (!rule.isEnabled()) continue;
+            if (!(rule instanceof TimeBasedRule)) return null;
+            sources.add((TimeBasedRule) rule);
+        }
+        return sources;
+    }
+
+    @Override
+    public void onTimelineRefreshed()
+    {
+        updateActivationState();
+    }
+
+    private void syncRuleStates(long now)
+    {
+        mTimeline.syncSources(now);
+        for (Rule rule : mRules)
+        {
+            if (rule.isEnabled() && rule instanceof TimeBasedRule) updateRuleCount(rule);
+        }
+    }
+
+    @Override
+    public void onComponentChange(AutomationComponent component, String key)
+    {
+        super.onComponentChange(component, key);
+        if (component instanceof CustomRuleAction)
+            getService().getStateEvaluator().invalidateGraph();
+        if (component instanceof Rule)
+        {
+            // Catches rules being inverted, or enabled and disabled through their preferences.
+            updateRuleCount((Rule) component);
+
+            // Renaming a rule can change which rule the expression refers to.
+            RuleExpression expression = getRuleExpression();
+            if (VALUE_NAME.equals(key) && expression != null && expression.refersToNames())
+                mRuleCountsDirty = true;
+
+            if (component instanceof CustomRule || VALUE_ENABLED.equals(key))
+                getService().getStateEvaluator().invalidateGraph();
+
+            if (affectsTimeline((Rule) component, key))
+            {
+                // Time settings are applied live, so they don't change the rule's config version.
+                // The rule's own timeline ignores whether it's enabled or inverted.
+                if (key == null || (component instanceof TimeBasedRule &&
+                                    ((TimeBasedRule) component).isTimeSetting(key)))
+                    mTimeline.invalidateSource(component.getId());
+                else mTimeline.invalidate();
             }
         }
     }
 
+    /**
+     * @return True if a change to the given key on the given rule can change this state's
+     * timeline. Enabling or disabling any rule can decide whether the state is made only of time
+     * based rules, but other settings only matter on time based rules.
+     */
+    private static boolean affectsTimeline(Rule rule, String key)
+    {
+        if (key == null || VALUE_ENABLED.equals(key)) return true;
+        if (!(rule instanceof TimeBasedRule)) return false;
+        return RuleBase.VALUE_INVERTED.equals(key) || ((TimeBasedRule) rule).isTimeSetting(key);
+    }
+
+    @Override
+    protected void onComponentListChange()
+    {
+        super.onComponentListChange();
+        mRuleCountsDirty = true;
+        getService().getStateEvaluator().invalidateGraph();
+        mTimeline.invalidate();
+    }
+
+    @Override
+    protected void onComponentsReloaded(List<AutomationComponent> created)
+    {
+        // Rules may have been added or removed, so the state might need to change. Rules that
+        // weren't touched by the reload keep their state, so this won't fire any actions unless
+        // the result actually changed.
+        mRuleCountsDirty = true;
+        updateActivationState();
+    }
+
     /**
      * Gets this component's shared preferences name for the given component ID.
      *
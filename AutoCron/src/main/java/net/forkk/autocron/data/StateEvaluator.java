@@ -0,0 +1,250 @@
+/*
+ * Copyright 2013 Andrew Okin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.forkk.autocron.data;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+
+/**
+ * Re-evaluates states after their rules change, in epochs.
+ * <p/>
+ * A rule change starts an epoch. If evaluating a state sets custom rules that change other states,
+ * those states are evaluated in the same epoch, in the order given by the {@link CustomRuleGraph},
+ * so a state is only evaluated after every state that drives it. Each state is evaluated at most
+ * once per epoch. If a state changes again after it has been evaluated, which can only happen in
+ * a cycle, it's evaluated in the next epoch instead. Chains of epochs that keep going around a
+ * cycle are cut off, so states driving each other can't oscillate forever.
+ * <p/>
+ * This may only be used on the engine thread.
+ */
+public class StateEvaluator
+{
+    /**
+     * Most epochs that can follow each other because of states changing again in a cycle.
+     */
+    private static final int MAX_CHAINED_EPOCHS = 16;
+
+    private final AutomationService mService;
+
+    /**
+     * The dependency graph, or null if it needs to be rebuilt.
+     */
+    private CustomRuleGraph mGraph;
+
+    private final PriorityQueue<Pending> mQueue;
+
+    private final Set<State> mQueued;
+
+    private final Set<State> mEvaluated;
+
+    /**
+     * States to evaluate in the next epoch.
+     */
+    private final List<State> mDeferred;
+
+    private boolean mInEpoch;
+
+    private boolean mNextEpochPosted;
+
+    private int mChainedEpochs;
+
+    private long mSequence;
+
+    private long mEpochs;
+
+    private long mEvaluations;
+
+    private long mDeferrals;
+
+    public StateEvaluator(AutomationService service)
+    {
+        mService = service;
+        mQueue = new PriorityQueue<Pending>();
+        mQueued = Collections.newSetFromMap(new IdentityHashMap<State, Boolean>());
+        mEvaluated = Collections.newSetFromMap(new IdentityHashMap<State, Boolean>());
+        mDeferred = new ArrayList<State>();
+    }
+
+    /**
+     * Evaluates the given state. If an epoch is running, the state is evaluated later on in it.
+     * Otherwise, this starts an epoch and runs it to the end.
+     */
+    public void requestEvaluation(State state)
+    {
+        if (mInEpoch)
+        {
+            if (mEvaluated.contains(state))
+            {
+                mDeferrals++;
+                if (!mDeferred.contains(state)) mDeferred.add(state);
+            }
+            else enqueue(state);
+            return;
+        }
+
+        mChainedEpochs = 0;
+        runEpoch(Collections.singletonList(state));
+    }
+
+    /**
+     * Marks the dependency graph as out of date. It's rebuilt shortly afterwards on the engine
+     * thread, which reports any cycles. Can be called from any thread.
+     */
+    public void invalidateGraph()
+    {
+        mService.runOnEngine(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                if (mGraph == null) return;
+                mGraph = null;
+                mService.getEngineHandler().post(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        getGraph();
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * @return The dependency graph, rebuilding it if needed.
+     */
+    public CustomRuleGraph getGraph()
+    {
+        if (mGraph == null)
+        {
+            mGraph = CustomRuleGraph.build(mService.getStates());
+            for (List<State> cycle : mGraph.getCycles())
+            {
+                Log.w(AutomationService.LOGGER_TAG, "States drive each other through custom " +
+                                                    "rules in a cycle: " +
+                                                    CustomRuleGraph.describeCycle(cycle));
+            }
+        }
+        return mGraph;
+    }
+
+    private void enqueue(State state)
+    {
+        if (mQueued.add(state))
+            mQueue.add(new Pending(state, getGraph().getRank(state), mSequence++));
+    }
+
+    private void runEpoch(List<State> states)
+    {
+        mInEpoch = true;
+        mEpochs++;
+        try
+        {
+            for (State state : states)
+                enqueue(state);
+
+            Pending pending;
+            while ((pending = mQueue.poll()) != null)
+            {
+                mQueued.remove(pending.mState);
+                mEvaluated.add(pending.mState);
+                mEvaluations++;
+                pending.mState.updateActivationState();
+            }
+        }
+        finally
+        {
+            mQueue.clear();
+            mQueued.clear();
+            mEvaluated.clear();
+            mInEpoch = false;
+        }
+
+        if (!mDeferred.isEmpty()) postNextEpoch();
+    }
+
+    /**
+     * Runs the deferred states in a new epoch, after anything else waiting on the engine thread.
+     */
+    private void postNextEpoch()
+    {
+        if (mNextEpochPosted) return;
+
+        if (++mChainedEpochs > MAX_CHAINED_EPOCHS)
+        {
+            Log.w(AutomationService.LOGGER_TAG, "States kept changing each other through custom " +
+                                                "rules. Stopped re-evaluating them.");
+            mDeferred.clear();
+            return;
+        }
+
+        mNextEpochPosted = true;
+        mService.getEngineHandler().post(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                mNextEpochPosted = false;
+                if (mInEpoch || mDeferred.isEmpty()) return;
+
+                List<State> states = new ArrayList<State>(mDeferred);
+                mDeferred.clear();
+                runEpoch(states);
+            }
+        });
+    }
+
+    /**
+     * @return Statistics about the epochs run so far, for the log.
+     */
+    public String getStats()
+    {
+        return mEvaluations + " evaluations in " + mEpochs + " epochs, " + mDeferrals +
+               " deferred to a later epoch";
+    }
+
+    private static class Pending implements Comparable<Pending>
+    {
+        final State mState;
+
+        final int mRank;
+
+        final long mSequence;
+
+        Pending(State state, int rank, long sequence)
+        {
+            mState = state;
+            mRank = rank;
+            mSequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Pending other)
+        {
+            if (mRank != other.mRank) return mRank < other.mRank ? -1 : 1;
+            return mSequence < other.mSequence ? -1 : mSequence == other.mSequence ? 0 : 1;
+        }
+    }
+}
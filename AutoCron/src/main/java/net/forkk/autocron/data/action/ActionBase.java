@@ -40,6 +40,9 @@ public abstract class ActionBase extends AutomationComponentBase implements Acti
     public void create()
     {
         super.create();
+        // When the service is restored from its snapshot, the action was already brought up to
+        // date before the service stopped. Its state will run it if anything changed since.
+        if (getService().isRestoringSnapshot()) return;
         if (getParent().isEnabled() && isEnabled())
         {
             Automation parent = getParent();
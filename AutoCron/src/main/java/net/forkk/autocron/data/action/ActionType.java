@@ -17,12 +17,11 @@
 package net.forkk.autocron.data.action;
 
 import android.content.Context;
-import android.content.SharedPreferences;
 import android.content.res.Resources;
 
 import net.forkk.autocron.data.Automation;
-import net.forkk.autocron.data.AutomationService;
 import net.forkk.autocron.data.ComponentType;
+import net.forkk.autocron.data.ComponentTypeRegistry;
 
 import java.util.ArrayList;
 
@@ -32,24 +31,10 @@ import java.util.ArrayList;
  */
 public class ActionType extends ComponentType<Action>
 {
-    /**
-     * @return The next available rule ID.
-     */
-    @Override
-    public int getAvailableId(Context context)
-    {
-        return context.getSharedPreferences(AutomationService.PREF_AUTOMATIONS,
-                                            Context.MODE_PRIVATE).getInt("next_action_id", 0);
-    }
-
     @Override
-    public void incrementNextId(Context context)
+    protected String getNextIdKey()
     {
-        SharedPreferences.Editor edit =
-                context.getSharedPreferences(AutomationService.PREF_AUTOMATIONS,
-                                             Context.MODE_PRIVATE).edit();
-        edit.putInt("next_action_id", getAvailableId(context) + 1);
-        edit.commit();
+        return "next_action_id";
     }
 
     /**
@@ -61,19 +46,21 @@ public class ActionType extends ComponentType<Action>
      *         The type's description.
      * @param typeClass
      *         The type's class.
+     * @param factory
+     *         Factory that constructs components of this type.
      */
-    public ActionType(String typeName, String typeDesc, Class<? extends Action> typeClass)
+    public ActionType(String typeName, String typeDesc, Class<? extends Action> typeClass,
+                      Factory<? extends Action> factory)
     {
-        super(typeName, typeDesc, typeClass);
+        super(typeName, typeDesc, typeClass, factory);
     }
 
     public static ActionType[] getActionTypes()
     {
-        return ACTION_TYPES;
+        return sRegistry.getTypes();
     }
 
-    // Damn IntelliJ and its shitty code formatting...
-    private static ActionType[] ACTION_TYPES;
+    private static ComponentTypeRegistry<Action, ActionType> sRegistry;
 
     public static void initialize(Context context)
     {
@@ -93,24 +80,13 @@ public class ActionType extends ComponentType<Action>
         for (ActionType type : types)
             type.checkIfSupported(context);
 
-        ACTION_TYPES = types.toArray(new ActionType[types.size()]);
+        sRegistry = new ComponentTypeRegistry<Action, ActionType>("action", types,
+                                                               new ActionType[0]);
     }
 
 
     public static Action fromSharedPreferences(Automation parent, Context context, int id)
     {
-        SharedPreferences preferences =
-                context.getSharedPreferences(ActionBase.getSharedPreferencesNameForId(id),
-                                             Context.MODE_PRIVATE);
-
-        String typeId = preferences.getString(VALUE_COMPONENT_TYPE, null);
-        if (typeId == null) return null;
-        else
-        {
-            // Find an ActionType whose typeID matches.
-            for (ActionType type : getActionTypes())
-                if (typeId.equals(type.getTypeId())) return type.construct(parent, context, id);
-            return null;
-        }
+        return sRegistry.load(parent, context, id, ActionBase.getSharedPreferencesNameForId(id));
     }
 }
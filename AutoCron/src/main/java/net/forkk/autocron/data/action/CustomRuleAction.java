@@ -42,11 +42,29 @@ public class CustomRuleAction extends TriggerAction
 
     private static ActionType sComponentType;
 
+    /**
+     * Binder for the custom rule service while the action is created, or null if it isn't
+     * connected yet.
+     */
+    private volatile CustomRuleService.LocalBinder mBinder;
+
+    private ServiceConnection mConnection;
+
+    private static final ComponentType.Factory<Action> FACTORY =
+            new ComponentType.Factory<Action>()
+            {
+                @Override
+                public Action create(Automation parent, AutomationService service, int id)
+                {
+                    return new CustomRuleAction(parent, service, id);
+                }
+            };
+
     public static ActionType initComponentType(Resources res)
     {
         return sComponentType = new ActionType(res.getString(R.string.custom_rule_action_title),
                                                res.getString(R.string.custom_rule_action_description),
-                                               CustomRuleAction.class);
+                                               CustomRuleAction.class, FACTORY);
     }
 
     public static ActionType getComponentType()
@@ -73,28 +91,22 @@ public class CustomRuleAction extends TriggerAction
         final AutomationService service = getService();
         assert service != null;
 
+        // Setting the custom rule straight away lets the states it drives be evaluated in the
+        // same epoch as this action's state.
+        CustomRuleService.LocalBinder binder = mBinder;
+        if (binder != null)
+        {
+            applyStateChange(binder);
+            return;
+        }
+
         Intent serviceIntent = new Intent(service, CustomRuleService.class);
         service.bindService(serviceIntent, new ServiceConnection()
         {
             @Override
             public void onServiceConnected(ComponentName componentName, IBinder iBinder)
             {
-                CustomRuleService.LocalBinder binder = (CustomRuleService.LocalBinder) iBinder;
-                String id = getListenerId();
-                switch (getStateChangeType())
-                {
-                case Activate:
-                    binder.setState(id, true);
-                    break;
-
-                case Deactivate:
-                    binder.setState(id, false);
-                    break;
-
-                case Toggle:
-                    binder.setState(id, !binder.getState(id));
-                    break;
-                }
+                applyStateChange((CustomRuleService.LocalBinder) iBinder);
                 service.unbindService(this);
             }
 
@@ -106,21 +118,59 @@ public class CustomRuleAction extends TriggerAction
         }, Context.BIND_AUTO_CREATE);
     }
 
+    private void applyStateChange(CustomRuleService.LocalBinder binder)
+    {
+        String id = getListenerId();
+        switch (getStateChangeType())
+        {
+        case Activate:
+            binder.setState(id, true);
+            break;
+
+        case Deactivate:
+            binder.setState(id, false);
+            break;
+
+        case Toggle:
+            binder.toggleState(id);
+            break;
+        }
+    }
+
 
     @Override
     protected void onCreate()
     {
+        // Stay bound while the action exists, so triggering it doesn't have to wait for a bind.
+        mConnection = new ServiceConnection()
+        {
+            @Override
+            public void onServiceConnected(ComponentName componentName, IBinder iBinder)
+            {
+                mBinder = (CustomRuleService.LocalBinder) iBinder;
+            }
 
+            @Override
+            public void onServiceDisconnected(ComponentName componentName)
+            {
+                mBinder = null;
+            }
+        };
+        AutomationService service = getService();
+        service.bindService(new Intent(service, CustomRuleService.class), mConnection,
+                            Context.BIND_AUTO_CREATE);
     }
 
     @Override
     protected void onDestroy()
     {
-
+        if (mConnection != null) getService().unbindService(mConnection);
+        mConnection = null;
+        mBinder = null;
     }
 
 
-    protected String getListenerId()
+    public String getListenerId()
     {
         return getSharedPreferences().getString(VALUE_RULE_ID, Integer.toString(getId()));
     }
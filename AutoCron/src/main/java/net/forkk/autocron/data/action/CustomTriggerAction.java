@@ -40,11 +40,21 @@ public class CustomTriggerAction extends TriggerAction
 
     private static ActionType sComponentType;
 
+    private static final ComponentType.Factory<Action> FACTORY =
+            new ComponentType.Factory<Action>()
+            {
+                @Override
+                public Action create(Automation parent, AutomationService service, int id)
+                {
+                    return new CustomTriggerAction(parent, service, id);
+                }
+            };
+
     public static ActionType initComponentType(Resources res)
     {
         return sComponentType = new ActionType(res.getString(R.string.custom_trigger_action_title),
                                                res.getString(R.string.custom_trigger_action_description),
-                                               CustomTriggerAction.class);
+                                               CustomTriggerAction.class, FACTORY);
     }
 
     public static ActionType getComponentType()
@@ -41,12 +41,22 @@ public class OngoingNotificationAction extends ActionBase
 
     private Notification mNotification;
 
+    private static final ComponentType.Factory<Action> FACTORY =
+            new ComponentType.Factory<Action>()
+            {
+                @Override
+                public Action create(Automation parent, AutomationService service, int id)
+                {
+                    return new OngoingNotificationAction(parent, service, id);
+                }
+            };
+
     public static ActionType initComponentType(Resources res)
     {
         return sComponentType =
                        new ActionType(res.getString(R.string.ongoing_notification_action_title),
                                       res.getString(R.string.ongoing_notification_action_description),
-                                      OngoingNotificationAction.class);
+                                      OngoingNotificationAction.class, FACTORY);
     }
 
     public static ActionType getComponentType()
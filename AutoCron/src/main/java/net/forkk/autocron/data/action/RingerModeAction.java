@@ -34,11 +34,21 @@ public class RingerModeAction extends TriggerAction
 {
     private static ActionType sComponentType;
 
+    private static final ComponentType.Factory<Action> FACTORY =
+            new ComponentType.Factory<Action>()
+            {
+                @Override
+                public Action create(Automation parent, AutomationService service, int id)
+                {
+                    return new RingerModeAction(parent, service, id);
+                }
+            };
+
     public static ActionType initComponentType(Resources res)
     {
         return sComponentType = new ActionType(res.getString(R.string.ringer_mode_action_title),
                                                res.getString(R.string.ringer_mode_action_description),
-                                               RingerModeAction.class);
+                                               RingerModeAction.class, FACTORY);
     }
 
     public static ActionType getComponentType()
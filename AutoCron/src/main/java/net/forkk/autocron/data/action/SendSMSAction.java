@@ -52,11 +52,21 @@ public class SendSMSAction extends TriggerAction
 
     private static int nextSentPendingId = 0;
 
+    private static final ComponentType.Factory<Action> FACTORY =
+            new ComponentType.Factory<Action>()
+            {
+                @Override
+                public Action create(Automation parent, AutomationService service, int id)
+                {
+                    return new SendSMSAction(parent, service, id);
+                }
+            };
+
     public static ActionType initComponentType(Resources res)
     {
         return sComponentType = new ActionType(res.getString(R.string.send_sms_action_title),
                                                res.getString(R.string.send_sms_action_description),
-                                               SendSMSAction.class);
+                                               SendSMSAction.class, FACTORY);
     }
 
     public static ActionType getComponentType()
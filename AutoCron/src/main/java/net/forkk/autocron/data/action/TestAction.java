@@ -33,11 +33,21 @@ public class TestAction extends ActionBase
 {
     private static ActionType sComponentType;
 
+    private static final ComponentType.Factory<Action> FACTORY =
+            new ComponentType.Factory<Action>()
+            {
+                @Override
+                public Action create(Automation parent, AutomationService service, int id)
+                {
+                    return new TestAction(parent, service, id);
+                }
+            };
+
     public static ActionType initComponentType(Resources res)
     {
         return sComponentType = new ActionType(res.getString(R.string.test_action_title),
                                                res.getString(R.string.test_action_description),
-                                               TestAction.class);
+                                               TestAction.class, FACTORY);
     }
 
     public static ActionType getComponentType()
@@ -30,6 +30,14 @@ import net.forkk.autocron.data.State;
  */
 public abstract class TriggerAction extends ActionBase
 {
+    public static final String VALUE_TRIGGER_ACTIVATE = "trigger_activate";
+
+    public static final String VALUE_TRIGGER_DEACTIVATE = "trigger_deactivate";
+
+    private boolean mTriggerOnActivate;
+
+    private boolean mTriggerOnDeactivate;
+
     public TriggerAction(Automation parent, AutomationService service, int id)
     {
         super(parent, service, id);
@@ -44,7 +52,7 @@ public abstract class TriggerAction extends ActionBase
     @Override
     public final void onActivate()
     {
-        if (getSharedPreferences().getBoolean("trigger_activate", false)) onTrigger();
+        if (mTriggerOnActivate) onTrigger();
     }
 
     /**
@@ -53,7 +61,33 @@ public abstract class TriggerAction extends ActionBase
     @Override
     public final void onDeactivate()
     {
-        if (getSharedPreferences().getBoolean("trigger_deactivate", false)) onTrigger();
+        if (mTriggerOnDeactivate) onTrigger();
+    }
+
+    @Override
+    protected void loadCachedFields()
+    {
+        super.loadCachedFields();
+        mTriggerOnActivate = getSharedPreferences().getBoolean(VALUE_TRIGGER_ACTIVATE, false);
+        mTriggerOnDeactivate = getSharedPreferences().getBoolean(VALUE_TRIGGER_DEACTIVATE, false);
+    }
+
+    @Override
+    protected boolean isAppliedLive(String key)
+    {
+        return super.isAppliedLive(key) || VALUE_TRIGGER_ACTIVATE.equals(key) ||
+               VALUE_TRIGGER_DEACTIVATE.equals(key);
+    }
+
+    @Override
+    protected void updateCachedField(String key)
+    {
+        super.updateCachedField(key);
+        if (VALUE_TRIGGER_ACTIVATE.equals(key))
+            mTriggerOnActivate = getSharedPreferences().getBoolean(VALUE_TRIGGER_ACTIVATE, false);
+        else if (VALUE_TRIGGER_DEACTIVATE.equals(key))
+            mTriggerOnDeactivate =
+                    getSharedPreferences().getBoolean(VALUE_TRIGGER_DEACTIVATE, false);
     }
 
     @Override
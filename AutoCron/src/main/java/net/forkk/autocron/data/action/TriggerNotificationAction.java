@@ -39,12 +39,22 @@ public class TriggerNotificationAction extends TriggerAction
 
     private static ActionType sComponentType;
 
+    private static final ComponentType.Factory<Action> FACTORY =
+            new ComponentType.Factory<Action>()
+            {
+                @Override
+                public Action create(Automation parent, AutomationService service, int id)
+                {
+                    return new TriggerNotificationAction(parent, service, id);
+                }
+            };
+
     public static ActionType initComponentType(Resources res)
     {
         return sComponentType =
                        new ActionType(res.getString(R.string.trigger_notification_action_title),
                                       res.getString(R.string.trigger_notification_action_description),
-                                      TriggerNotificationAction.class);
+                                      TriggerNotificationAction.class, FACTORY);
     }
 
     public static ActionType getComponentType()
@@ -41,11 +41,21 @@ public class CustomRule extends RuleBase implements CustomRuleService.CustomRule
 
     private static RuleType sComponentType;
 
+    private static final ComponentType.Factory<Rule> FACTORY =
+            new ComponentType.Factory<Rule>()
+            {
+                @Override
+                public Rule create(Automation parent, AutomationService service, int id)
+                {
+                    return new CustomRule(parent, service, id);
+                }
+            };
+
     public static RuleType initComponentType(Resources res)
     {
         return sComponentType = new RuleType(res.getString(R.string.custom_rule_title),
                                              res.getString(R.string.custom_rule_description),
-                                             CustomRule.class);
+                                             CustomRule.class, FACTORY);
     }
 
     public static RuleType getComponentType()
@@ -104,6 +114,12 @@ public class CustomRule extends RuleBase implements CustomRuleService.CustomRule
     }
 
 
+    @Override
+    protected boolean isAppliedLive(String key)
+    {
+        return super.isAppliedLive(key) || VALUE_RULE_ID.equals(key);
+    }
+
     @Override
     public void onSharedPreferenceChanged(SharedPreferences preferences, String key)
     {
@@ -116,7 +132,7 @@ public class CustomRule extends RuleBase implements CustomRuleService.CustomRule
     }
 
 
-    protected String getListenerId()
+    public String getListenerId()
     {
         return getSharedPreferences().getString(VALUE_RULE_ID, Integer.toString(getId()));
     }
@@ -49,6 +49,16 @@ public class LocationRule extends RuleBase
 
     private String mRequestId;
 
+    private static final ComponentType.Factory<Rule> FACTORY =
+            new ComponentType.Factory<Rule>()
+            {
+                @Override
+                public Rule create(Automation parent, AutomationService service, int id)
+                {
+                    return new LocationRule(parent, service, id);
+                }
+            };
+
     public static RuleType initComponentType(Resources res)
     {
         return sComponentType = new LocationRuleType(res);
@@ -108,6 +118,7 @@ public class LocationRule extends RuleBase
     {
         super.addPreferencesToFragment(fragment);
         fragment.addPreferencesFromResource(R.xml.prefs_location_rule);
+        fragment.addPreferencesFromResource(R.xml.prefs_debounce);
     }
 
     /**
@@ -139,7 +150,7 @@ public class LocationRule extends RuleBase
     @Override
     public void onEnterGeofence()
     {
-        setActive(true);
+        postActive(true);
     }
 
     /**
@@ -148,7 +159,7 @@ public class LocationRule extends RuleBase
     @Override
     public void onLeaveGeofence()
     {
-        setActive(false);
+        postActive(false);
     }
 
     /**
@@ -166,7 +177,7 @@ public class LocationRule extends RuleBase
     @Override
     public void onMonitoringStopped()
     {
-        setActive(false);
+        postActive(false);
     }
 
     @Override
@@ -199,7 +210,8 @@ public class LocationRule extends RuleBase
         public LocationRuleType(Resources res)
         {
             super(res.getString(R.string.location_rule_title),
-                  res.getString(R.string.location_rule_description), LocationRule.class);
+                  res.getString(R.string.location_rule_description), LocationRule.class,
+                  FACTORY);
         }
 
         @Override
@@ -28,7 +28,7 @@ import java.io.Serializable;
 /**
  * An automation rule that specifies when an automation should activate.
  */
-public interface Rule extends AutomationComponent
+public interface Rule extends AutomationComponent, RuleExpression.Operand
 {
     /**
      * Checks if this rule is active.
@@ -16,14 +16,20 @@
 
 package net.forkk.autocron.data.rule;
 
+import android.content.SharedPreferences;
 import android.preference.PreferenceFragment;
+import android.util.Log;
 
 import net.forkk.autocron.R;
 import net.forkk.autocron.data.Automation;
 import net.forkk.autocron.data.AutomationComponentBase;
 import net.forkk.autocron.data.AutomationService;
 import net.forkk.autocron.data.ComponentPointer;
+import net.forkk.autocron.data.EngineSnapshot;
+import net.forkk.autocron.data.EventQueue;
 import net.forkk.autocron.data.State;
+import net.forkk.autocron.data.time.Deadline;
+import net.forkk.autocron.data.time.DeadlineScheduler;
 
 
 /**
@@ -31,26 +37,257 @@ import net.forkk.autocron.data.State;
  */
 public abstract class RuleBase extends AutomationComponentBase implements Rule
 {
+    public static final String VALUE_INVERTED = "inverted";
+
+    /**
+     * How many minutes late a time based rule is allowed to update.
+     */
+    public static final String VALUE_ALARM_TOLERANCE = "alarm_tolerance";
+
+    /**
+     * How many seconds a sensor driven rule has to stay active before the change takes effect.
+     */
+    public static final String VALUE_ACTIVATE_DELAY = "activate_delay";
+
+    /**
+     * How many seconds a sensor driven rule has to stay inactive before the change takes effect.
+     */
+    public static final String VALUE_DEACTIVATE_DELAY = "deactivate_delay";
+
+    /**
+     * Whether a sensor driven rule that keeps changing holds its last stable value for a while.
+     * Off unless the user turns it on, so existing rules keep following their sensors.
+     */
+    public static final String VALUE_SUPPRESS_FLAPPING = "suppress_flapping";
+
+    /**
+     * A rule whose sensor changes this many times within FLAP_WINDOW_MS is flapping.
+     */
+    private static final int FLAP_CHANGES = 6;
+
+    private static final long FLAP_WINDOW_MS = 60 * 1000;
+
+    /**
+     * How long a flapping rule holds its last stable value for after its sensor last changed.
+     */
+    private static final long FLAP_HOLD_MS = 5 * 60 * 1000;
+
     protected boolean mIsActive;
 
+    private boolean mInverted;
+
+    private long mActivateDelay;
+
+    private long mDeactivateDelay;
+
+    private boolean mSuppressFlapping;
+
+    // Debouncing state for rules driven by postActive(). These are only used on the engine thread.
+
+    /**
+     * The latest value reported by the rule's sensor, which may not have taken effect yet.
+     */
+    private boolean mSensorActive;
+
+    private long mLastSensorChange;
+
+    /**
+     * Times of the last few sensor changes, as a ring buffer.
+     */
+    private long[] mRecentChanges;
+
+    private int mRecentChangeCount;
+
+    /**
+     * Time until which the rule holds its value because it's flapping.
+     */
+    private long mHoldUntil;
+
+    private Deadline mDebounceDeadline;
+
+    private long mSensorChanges;
+
+    private long mAppliedSensorChanges;
+
+    private long mFlapHolds;
+
     public RuleBase(Automation parent, AutomationService service, int id)
     {
         super(parent, service, id);
+        mIsActive = service.isRestoringSnapshot() && EngineSnapshot.get(service).isActive(this);
+        mSensorActive = mIsActive;
     }
 
-    public void setActive(boolean active)
+    /**
+     * Sets whether this rule is active and updates its parent. If this is called off the engine
+     * thread, the change is queued on the engine's event queue. Unlike
+     * {@link #postActive(boolean)}, the change isn't debounced.
+     */
+    public void setActive(final boolean active)
     {
+        if (!getService().isEngineThread())
+        {
+            getService().getEventQueue().post(EventQueue.PRIORITY_RULE, this, new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    setActive(active);
+                }
+            });
+            return;
+        }
+
+        if (active != mIsActive) EngineSnapshot.get(getService()).setActive(this, active);
         mIsActive = active;
+        // Whatever set the rule directly knows better than any change still being debounced.
+        mSensorActive = active;
         Automation parent = getParent();
-        if (parent instanceof State) ((State) parent).updateActivationState();
+        if (parent instanceof State) ((State) parent).onRuleChanged(this);
+    }
+
+    /**
+     * Brings this rule's active state up to date without notifying its parent, for rules whose
+     * parent works out their state itself. Keeps the engine snapshot in step, so the rule is
+     * restored with the right state. Must be called on the engine thread.
+     */
+    protected void syncActive(boolean active)
+    {
+        if (active != mIsActive) EngineSnapshot.get(getService()).setActive(this, active);
+        mIsActive = active;
+        mSensorActive = active;
+    }
+
+    /**
+     * Queues a change reported by this rule's sensor on the engine's event queue. Rules driven by
+     * sensors should use this rather than setActive(), so a burst of sensor callbacks only
+     * updates the rule's parent once, and so the change is debounced. Can be called from any
+     * thread.
+     */
+    protected void postActive(final boolean active)
+    {
+        getService().getEventQueue().post(EventQueue.PRIORITY_RULE, this, new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                onSensorChanged(active);
+            }
+        });
+    }
+
+    /**
+     * Called on the engine thread with the latest value from this rule's sensor. The change only
+     * takes effect once the sensor has kept the value for the rule's activate or deactivate
+     * delay. If the sensor changes too often, the rule holds its current value until the sensor
+     * settles down.
+     */
+    private void onSensorChanged(boolean active)
+    {
+        long now = getService().getScheduler().currentTimeMillis();
+        if (active != mSensorActive)
+        {
+            mSensorActive = active;
+            mLastSensorChange = now;
+            mSensorChanges++;
+
+            if (mSuppressFlapping && recordChange(now))
+            {
+                if (mHoldUntil <= now)
+                {
+                    mFlapHolds++;
+                    Log.i(AutomationService.LOGGER_TAG,
+                          "Rule \"" + getName() + "\" is flapping. Holding its value.");
+                }
+                mHoldUntil = now + FLAP_HOLD_MS;
+            }
+        }
+        settleSensorValue(now);
+    }
+
+    /**
+     * Records a sensor change.
+     *
+     * @return True if the sensor is flapping.
+     */
+    private boolean recordChange(long now)
+    {
+        if (mRecentChanges == null) mRecentChanges = new long[FLAP_CHANGES];
+        int index = mRecentChangeCount++ % FLAP_CHANGES;
+        mRecentChanges[index] = now;
+
+        // The next slot holds the oldest of the last FLAP_CHANGES changes.
+        long oldest = mRecentChanges[(index + 1) % FLAP_CHANGES];
+        return mRecentChangeCount >= FLAP_CHANGES && now - oldest < FLAP_WINDOW_MS;
+    }
+
+    /**
+     * Applies the sensor's value if it has been stable for long enough, or schedules a deadline
+     * for when it will have been.
+     */
+    private void settleSensorValue(long now)
+    {
+        DeadlineScheduler scheduler = getService().getScheduler();
+        if (mSensorActive == mIsActive)
+        {
+            if (mDebounceDeadline != null) scheduler.cancel(mDebounceDeadline);
+            return;
+        }
+
+        long delay = mSensorActive ? mActivateDelay : mDeactivateDelay;
+        long due = Math.max(mHoldUntil, mLastSensorChange + delay);
+        if (due > now)
+        {
+            if (mDebounceDeadline == null)
+            {
+                mDebounceDeadline = new Deadline(new Deadline.Listener()
+                {
+                    @Override
+                    public void onDeadline(Deadline deadline, long now)
+                    {
+                        settleSensorValue(now);
+                    }
+                });
+            }
+            scheduler.schedule(mDebounceDeadline, due);
+            return;
+        }
+
+        if (mDebounceDeadline != null) scheduler.cancel(mDebounceDeadline);
+        mAppliedSensorChanges++;
+        setActive(mSensorActive);
+    }
+
+    /**
+     * @return The number of times this rule's sensor changed without the rule following it, due
+     * to debouncing or flapping.
+     */
+    public long getSuppressedTransitions()
+    {
+        return Math.max(0, mSensorChanges - mAppliedSensorChanges);
+    }
+
+    /**
+     * @return The number of times this rule started holding its value because it was flapping.
+     */
+    public long getFlapHolds()
+    {
+        return mFlapHolds;
     }
 
     @Override
-    public void setEnabled(boolean enabled)
+    public void destroy()
     {
-        super.setEnabled(enabled);
+        super.destroy();
+        if (mDebounceDeadline != null) getService().getScheduler().cancel(mDebounceDeadline);
+    }
+
+    @Override
+    protected void applyEnabled(boolean enabled)
+    {
+        super.applyEnabled(enabled);
         Automation parent = getParent();
-        if (parent instanceof State) ((State) parent).updateActivationState();
+        if (parent instanceof State) ((State) parent).onRuleChanged(this);
     }
 
     @Override
@@ -62,7 +299,75 @@ public abstract class RuleBase extends AutomationComponentBase implements Rule
     @Override
     public boolean isInverted()
     {
-        return getSharedPreferences().getBoolean("inverted", false);
+        return mInverted;
+    }
+
+    @Override
+    protected void loadCachedFields()
+    {
+        super.loadCachedFields();
+        SharedPreferences prefs = getSharedPreferences();
+        mInverted = prefs.getBoolean(VALUE_INVERTED, false);
+        mActivateDelay = getSeconds(VALUE_ACTIVATE_DELAY);
+        mDeactivateDelay = getSeconds(VALUE_DEACTIVATE_DELAY);
+        mSuppressFlapping = prefs.getBoolean(VALUE_SUPPRESS_FLAPPING, false);
+    }
+
+    @Override
+    protected boolean isAppliedLive(String key)
+    {
+        return super.isAppliedLive(key) || VALUE_INVERTED.equals(key) ||
+               VALUE_ACTIVATE_DELAY.equals(key) || VALUE_DEACTIVATE_DELAY.equals(key) ||
+               VALUE_SUPPRESS_FLAPPING.equals(key);
+    }
+
+    @Override
+    protected void updateCachedField(String key)
+    {
+        super.updateCachedField(key);
+        if (VALUE_INVERTED.equals(key))
+            mInverted = getSharedPreferences().getBoolean(VALUE_INVERTED, false);
+        else if (VALUE_ACTIVATE_DELAY.equals(key)) mActivateDelay = getSeconds(key);
+        else if (VALUE_DEACTIVATE_DELAY.equals(key)) mDeactivateDelay = getSeconds(key);
+        else if (VALUE_SUPPRESS_FLAPPING.equals(key))
+            mSuppressFlapping = getSharedPreferences().getBoolean(key, false);
+    }
+
+    /**
+     * Reads a number of seconds from the given preference.
+     *
+     * @return The number of milliseconds.
+     */
+    private long getSeconds(String key)
+    {
+        String value = getSharedPreferences().getString(key, "0");
+        try
+        {
+            return Math.max(0, Long.parseLong(value)) * 1000;
+        }
+        catch (NumberFormatException e)
+        {
+            Log.w(AutomationService.LOGGER_TAG, "Invalid number of seconds: " + value, e);
+            return 0;
+        }
+    }
+
+    /**
+     * @return How late this rule's deadlines are allowed to fire, in milliseconds. Only used by
+     * time based rules.
+     */
+    public long getAlarmTolerance()
+    {
+        String value = getSharedPreferences().getString(VALUE_ALARM_TOLERANCE, "0");
+        try
+        {
+            return Math.max(0, Long.parseLong(value)) * 60 * 1000;
+        }
+        catch (NumberFormatException e)
+        {
+            Log.w(AutomationService.LOGGER_TAG, "Invalid alarm tolerance: " + value, e);
+            return 0;
+        }
     }
 
     @Override
@@ -0,0 +1,399 @@
+/*
+ * Copyright 2013 Andrew Okin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.forkk.autocron.data.rule;
+
+import net.forkk.autocron.util.IntObjectMap;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+
+/**
+ * A compiled boolean expression over an automation's rules.
+ * <p/>
+ * Rules are referred to by their name in double quotes or by their ID. They can be combined with
+ * all(...), any(...), not(...) and atleast(n, ...), which can be nested. For example:
+ * <pre>all("At home", any("Evening", "Weekend"), not("Charging"))</pre>
+ * A rule is satisfied if it's enabled and active, or enabled and inactive if it's inverted. Rules
+ * that aren't in the expression don't matter, and rules that don't exist are never satisfied.
+ * <p/>
+ * The expression is compiled into a flat list of nodes in postfix order, with each operator
+ * counting how many of its children are satisfied. When a rule changes, only the nodes between
+ * that rule and the root whose value actually flips are looked at.
+ * <p/>
+ * The evaluation state isn't thread safe, so an expression should only be used on the engine
+ * thread. Expressions only see rules through the {@link Operand} interface, so they don't need
+ * Android.
+ */
+public class RuleExpression
+{
+    private static final int OP_RULE = 0;
+
+    /**
+     * Satisfied if at least the node's argument of its children are satisfied. Used for all, any
+     * and atleast.
+     */
+    private static final int OP_AT_LEAST = 1;
+
+    private static final int OP_NOT = 2;
+
+    private final String mExpression;
+
+    private final int[] mOps;
+
+    /**
+     * The rule ID for rule nodes referred to by ID, or how many children need to be satisfied for
+     * OP_AT_LEAST nodes.
+     */
+    private final int[] mArgs;
+
+    /**
+     * The rule name for rule nodes referred to by name.
+     */
+    private final String[] mNames;
+
+    /**
+     * Index of each node's parent, or -1 for the root, which is the last node.
+     */
+    private final int[] mParents;
+
+    private final boolean[] mValues;
+
+    private final int[] mSatisfiedChildren;
+
+    /**
+     * Rule nodes by the ID of the rule they were bound to by the last reset.
+     */
+    private IntObjectMap<int[]> mLeaves;
+
+    private RuleExpression(String expression, Parser parser)
+    {
+        mExpression = expression;
+        int count = parser.mOps.size();
+        mOps = new int[count];
+        mArgs = new int[count];
+        mNames = new String[count];
+        mParents = new int[count];
+        for (int i = 0; i < count; i++)
+        {
+            mOps[i] = parser.mOps.get(i);
+            mArgs[i] = parser.mArgs.get(i);
+            mNames[i] = parser.mNames.get(i);
+            mParents[i] = parser.mParents.get(i);
+        }
+        mValues = new boolean[count];
+        mSatisfiedChildren = new int[count];
+        mLeaves = new IntObjectMap<int[]>();
+    }
+
+    /**
+     * Parses and compiles an expression.
+     *
+     * @throws IllegalArgumentException
+     *         If the expression isn't valid.
+     */
+    public static RuleExpression parse(String expression)
+    {
+        Parser parser = new Parser(expression);
+        parser.parseNode();
+        parser.skipSpaces();
+        if (parser.mPos < expression.length()) throw parser.error("Unexpected text");
+        return new RuleExpression(expression, parser);
+    }
+
+    /**
+     * @return True if the given rule is satisfied, according to its enabled, active and inverted
+     * values.
+     */
+    public static boolean isRuleSatisfied(Operand rule)
+    {
+        return rule.isEnabled() && rule.isInverted() != rule.isActive();
+    }
+
+    /**
+     * Binds the expression to the given rules and evaluates the whole thing. This must be called
+     * whenever rules are added, removed or renamed.
+     *
+     * @return True if the expression is satisfied.
+     */
+    public boolean reset(List<? extends Operand> rules)
+    {
+        IntObjectMap<Operand> rulesById = new IntObjectMap<Operand>(rules.size());
+        Map<String, Operand> rulesByName = new HashMap<String, Operand>();
+        for (Operand rule : rules)
+        {
+            rulesById.put(rule.getId(), rule);
+            if (!rulesByName.containsKey(rule.getName())) rulesByName.put(rule.getName(), rule);
+        }
+
+        mLeaves = new IntObjectMap<int[]>();
+        for (int i = 0; i < mOps.length; i++)
+        {
+            mSatisfiedChildren[i] = 0;
+            mValues[i] = false;
+            if (mOps[i] != OP_RULE) continue;
+
+            Operand rule =
+                    mNames[i] != null ? rulesByName.get(mNames[i]) : rulesById.get(mArgs[i]);
+            if (rule == null) continue;
+
+            int[] leaves = mLeaves.get(rule.getId());
+            if (leaves == null) leaves = new int[] { i };
+            else
+            {
+                int[] grown = new int[leaves.length + 1];
+                System.arraycopy(leaves, 0, grown, 0, leaves.length);
+                grown[leaves.length] = i;
+                leaves = grown;
+            }
+            mLeaves.put(rule.getId(), leaves);
+            mValues[i] = isRuleSatisfied(rule);
+        }
+
+        // Children come before their parents, so one pass evaluates everything.
+        for (int i = 0; i < mOps.length; i++)
+        {
+            if (mOps[i] != OP_RULE) mValues[i] = computeValue(i);
+            if (mValues[i] && mParents[i] >= 0) mSatisfiedChildren[mParents[i]]++;
+        }
+        return isSatisfied();
+    }
+
+    /**
+     * Updates the expression after the given rule changed. Only the nodes that depend on the rule
+     * are evaluated again.
+     *
+     * @return True if the expression is satisfied.
+     */
+    public boolean update(Operand rule)
+    {
+        int[] leaves = mLeaves.get(rule.getId());
+        if (leaves == null) return isSatisfied();
+
+        boolean satisfied = isRuleSatisfied(rule);
+        for (int leaf : leaves)
+            setValue(leaf, satisfied);
+        return isSatisfied();
+    }
+
+    /**
+     * @return True if the expression was satisfied as of the last reset or update.
+     */
+    public boolean isSatisfied()
+    {
+        return mValues[mValues.length - 1];
+    }
+
+    /**
+     * @return True if the expression refers to rules by name, so it needs to be reset when a rule
+     * is renamed.
+     */
+    public boolean refersToNames()
+    {
+        for (String name : mNames)
+            if (name != null) return true;
+        return false;
+    }
+
+    private void setValue(int node, boolean value)
+    {
+        // Walk up towards the root until a node's value doesn't change.
+        while (mValues[node] != value)
+        {
+            mValues[node] = value;
+            int parent = mParents[node];
+            if (parent < 0) return;
+
+            mSatisfiedChildren[parent] += value ? 1 : -1;
+            node = parent;
+            value = computeValue(parent);
+        }
+    }
+
+    private boolean computeValue(int node)
+    {
+        if (mOps[node] == OP_NOT) return mSatisfiedChildren[node] == 0;
+        return mSatisfiedChildren[node] >= mArgs[node];
+    }
+
+    @Override
+    public String toString()
+    {
+        return mExpression;
+    }
+
+
+    /**
+     * The parts of a rule that an expression looks at.
+     */
+    public interface Operand
+    {
+        public abstract int getId();
+
+        public abstract String getName();
+
+        public abstract boolean isEnabled();
+
+        public abstract boolean isActive();
+
+        public abstract boolean isInverted();
+    }
+
+
+    /**
+     * Recursive descent parser that appends nodes in postfix order.
+     */
+    private static class Parser
+    {
+        private final String mText;
+
+        private int mPos;
+
+        private final List<Integer> mOps = new ArrayList<Integer>();
+
+        private final List<Integer> mArgs = new ArrayList<Integer>();
+
+        private final List<String> mNames = new ArrayList<String>();
+
+        private final List<Integer> mParents = new ArrayList<Integer>();
+
+        Parser(String text)
+        {
+            mText = text;
+        }
+
+        /**
+         * Parses a node and its children.
+         *
+         * @return The index of the node.
+         */
+        int parseNode()
+        {
+            skipSpaces();
+            if (mPos >= mText.length()) throw error("Expected a rule or an operator");
+
+            char c = mText.charAt(mPos);
+            if (c == '"')
+            {
+                int end = mText.indexOf('"', mPos + 1);
+                if (end < 0) throw error("Unterminated rule name");
+                String name = mText.substring(mPos + 1, end);
+                mPos = end + 1;
+                return addNode(OP_RULE, 0, name);
+            }
+            if (Character.isDigit(c)) return addNode(OP_RULE, parseInt(), null);
+            if (!Character.isLetter(c)) throw error("Unexpected '" + c + "'");
+
+            int start = mPos;
+            while (mPos < mText.length() && Character.isLetter(mText.charAt(mPos)))
+                mPos++;
+            String op = mText.substring(start, mPos).toLowerCase(Locale.US);
+
+            expect('(');
+            int threshold = 0;
+            if (op.equals("atleast"))
+            {
+                skipSpaces();
+                threshold = parseInt();
+                expect(',');
+            }
+            else if (!op.equals("all") && !op.equals("any") && !op.equals("not"))
+            {
+                mPos = start;
+                throw error("Unknown operator \"" + op + "\"");
+            }
+
+            List<Integer> children = new ArrayList<Integer>();
+            skipSpaces();
+            if (mPos < mText.length() && mText.charAt(mPos) != ')')
+            {
+                children.add(parseNode());
+                skipSpaces();
+                while (mPos < mText.length() && mText.charAt(mPos) == ',')
+                {
+                    mPos++;
+                    children.add(parseNode());
+                    skipSpaces();
+                }
+            }
+            expect(')');
+
+            int index;
+            if (op.equals("not"))
+            {
+                if (children.size() != 1) throw error("not() takes exactly one argument");
+                index = addNode(OP_NOT, 0, null);
+            }
+            else if (op.equals("all")) index = addNode(OP_AT_LEAST, children.size(), null);
+            else if (op.equals("any")) index = addNode(OP_AT_LEAST, 1, null);
+            else index = addNode(OP_AT_LEAST, threshold, null);
+
+            for (int child : children)
+                mParents.set(child, index);
+            return index;
+        }
+
+        private int addNode(int op, int arg, String name)
+        {
+            mOps.add(op);
+            mArgs.add(arg);
+            mNames.add(name);
+            mParents.add(-1);
+            return mOps.size() - 1;
+        }
+
+        private int parseInt()
+        {
+            int start = mPos;
+            while (mPos < mText.length() && Character.isDigit(mText.charAt(mPos)))
+                mPos++;
+            if (start == mPos) throw error("Expected a number");
+            try
+            {
+                return Integer.parseInt(mText.substring(start, mPos));
+            }
+            catch (NumberFormatException e)
+            {
+                mPos = start;
+                throw error("Number out of range");
+            }
+        }
+
+        private void expect(char c)
+        {
+            skipSpaces();
+            if (mPos >= mText.length() || mText.charAt(mPos) != c)
+                throw error("Expected '" + c + "'");
+            mPos++;
+        }
+
+        void skipSpaces()
+        {
+            while (mPos < mText.length() && Character.isWhitespace(mText.charAt(mPos)))
+                mPos++;
+        }
+
+        IllegalArgumentException error(String message)
+        {
+            return new IllegalArgumentException(message + " at position " + mPos + " in \"" +
+                                                mText + "\"");
+        }
+    }
+}
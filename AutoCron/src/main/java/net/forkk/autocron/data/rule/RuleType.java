@@ -17,12 +17,11 @@
 package net.forkk.autocron.data.rule;
 
 import android.content.Context;
-import android.content.SharedPreferences;
 import android.content.res.Resources;
 
 import net.forkk.autocron.data.Automation;
-import net.forkk.autocron.data.AutomationService;
 import net.forkk.autocron.data.ComponentType;
+import net.forkk.autocron.data.ComponentTypeRegistry;
 
 import java.util.ArrayList;
 
@@ -32,24 +31,10 @@ import java.util.ArrayList;
  */
 public class RuleType extends ComponentType<Rule>
 {
-    /**
-     * @return The next available rule ID.
-     */
     @Override
-    public int getAvailableId(Context context)
+    protected String getNextIdKey()
     {
-        return context.getSharedPreferences(AutomationService.PREF_AUTOMATIONS,
-                                            Context.MODE_PRIVATE).getInt("next_rule_id", 0);
-    }
-
-    @Override
-    public void incrementNextId(Context context)
-    {
-        SharedPreferences.Editor edit =
-                context.getSharedPreferences(AutomationService.PREF_AUTOMATIONS,
-                                             Context.MODE_PRIVATE).edit();
-        edit.putInt("next_rule_id", getAvailableId(context) + 1);
-        edit.commit();
+        return "next_rule_id";
     }
 
     /**
@@ -61,19 +46,21 @@ public class RuleType extends ComponentType<Rule>
      *         The type's description.
      * @param typeClass
      *         The type's class.
+     * @param factory
+     *         Factory that constructs components of this type.
      */
-    public RuleType(String typeName, String typeDesc, Class<? extends Rule> typeClass)
+    public RuleType(String typeName, String typeDesc, Class<? extends Rule> typeClass,
+                    Factory<? extends Rule> factory)
     {
-        super(typeName, typeDesc, typeClass);
+        super(typeName, typeDesc, typeClass, factory);
     }
 
     public static RuleType[] getRuleTypes()
     {
-        return RULE_TYPES;
+        return sRegistry.getTypes();
     }
 
-    // Damn IntelliJ and its shitty code formatting...
-    private static RuleType[] RULE_TYPES;
+    private static ComponentTypeRegistry<Rule, RuleType> sRegistry;
 
     public static void initialize(Context context)
     {
@@ -93,23 +80,12 @@ public class RuleType extends ComponentType<Rule>
         for (RuleType type : types)
             type.checkIfSupported(context);
 
-        RULE_TYPES = types.toArray(new RuleType[types.size()]);
+        sRegistry = new ComponentTypeRegistry<Rule, RuleType>("rule", types,
+                                                           new RuleType[0]);
     }
 
     public static Rule fromSharedPreferences(Automation parent, Context context, int id)
     {
-        SharedPreferences preferences =
-                context.getSharedPreferences(RuleBase.getSharedPreferencesNameForId(id),
-                                             Context.MODE_PRIVATE);
-
-        String typeId = preferences.getString(VALUE_COMPONENT_TYPE, null);
-        if (typeId == null) return null;
-        else
-        {
-            // Find a RuleType whose typeID matches.
-            for (RuleType type : getRuleTypes())
-                if (typeId.equals(type.getTypeId())) return type.construct(parent, context, id);
-            return null;
-        }
+        return sRegistry.load(parent, context, id, RuleBase.getSharedPreferencesNameForId(id));
     }
 }
@@ -43,11 +43,21 @@ public class TestRule extends RuleBase implements AutomationService.IntentListen
 
     private int mIntentListenerId;
 
+    private static final ComponentType.Factory<Rule> FACTORY =
+            new ComponentType.Factory<Rule>()
+            {
+                @Override
+                public Rule create(Automation parent, AutomationService service, int id)
+                {
+                    return new TestRule(parent, service, id);
+                }
+            };
+
     public static RuleType initComponentType(Resources res)
     {
         return sComponentType = new RuleType(res.getString(R.string.test_rule_title),
                                              res.getString(R.string.test_rule_description),
-                                             TestRule.class);
+                                             TestRule.class, FACTORY);
     }
 
     public static RuleType getComponentType()
@@ -0,0 +1,35 @@
+/*
+ * Copyright 2013 Andrew Okin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.forkk.autocron.data.rule;
+
+import net.forkk.autocron.data.time.StateTimeline;
+
+
+/**
+ * A rule whose activation depends only on the time, so it can be worked out ahead of time.
+ * <p/>
+ * States made only of time based rules compute their own activation timeline and take over
+ * scheduling from the rules, so only real changes of the state's activation cause wakeups.
+ */
+public interface TimeBasedRule extends Rule, StateTimeline.Source
+{
+    /**
+     * @return True if the preference with the given key is one the rule's activation timeline or
+     * alarm tolerance is worked out from.
+     */
+    public abstract boolean isTimeSetting(String key);
+}
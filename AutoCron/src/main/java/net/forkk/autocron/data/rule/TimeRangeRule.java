@@ -16,10 +16,6 @@
 
 package net.forkk.autocron.data.rule;
 
-import android.app.AlarmManager;
-import android.app.PendingIntent;
-import android.content.Context;
-import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.res.Resources;
 import android.preference.PreferenceFragment;
@@ -28,33 +24,49 @@ import net.forkk.autocron.R;
 import net.forkk.autocron.data.Automation;
 import net.forkk.autocron.data.AutomationService;
 import net.forkk.autocron.data.ComponentType;
-import net.forkk.autocron.prefs.TimePreference;
-
-import java.util.Calendar;
+import net.forkk.autocron.data.time.ActivationTimeline;
+import net.forkk.autocron.data.time.TimeWindow;
+import net.forkk.autocron.data.time.WindowSchedule;
 
 
 /**
- * A rule that activates during a certain time range.
+ * A rule that activates during a certain time range. If the end time is before the start time, the
+ * range crosses midnight and ends on the next day.
  */
-public class TimeRangeRule extends RuleBase implements AutomationService.IntentListener
+public class TimeRangeRule extends RuleBase implements TimeBasedRule, WindowSchedule.Listener
 {
     private static RuleType sComponentType;
 
-    private int mStartListenerId;
+    private static final String VALUE_RANGE_START = "range_start";
 
-    private int mEndListenerId;
+    private static final String VALUE_RANGE_END = "range_end";
 
-    private PendingIntent mPendingStartIntent;
+    // Compiled from the range_start and range_end values by loadCachedFields(), so it mustn't
+    // have an initializer.
+    private TimeWindow mWindow;
 
-    private PendingIntent mPendingEndIntent;
+    /**
+     * Follows the window while the rule is created.
+     */
+    private WindowSchedule mSchedule;
 
-    private TimePreference mEndTimePreference;
+    private boolean mDrivenByTimeline;
+
+    private static final ComponentType.Factory<Rule> FACTORY =
+            new ComponentType.Factory<Rule>()
+            {
+                @Override
+                public Rule create(Automation parent, AutomationService service, int id)
+                {
+                    return new TimeRangeRule(parent, service, id);
+                }
+            };
 
     public static RuleType initComponentType(Resources res)
     {
         return sComponentType = new RuleType(res.getString(R.string.time_range_rule_title),
                                              res.getString(R.string.time_range_rule_description),
-                                             TimeRangeRule.class);
+                                             TimeRangeRule.class, FACTORY);
     }
 
     public static RuleType getComponentType()
@@ -67,29 +79,38 @@ public class TimeRangeRule extends RuleBase implements AutomationService.IntentL
         super(parent, service, id);
     }
 
-    protected long startTriggerTime()
+    @Override
+    protected void loadCachedFields()
     {
-        return triggerTime("range_start");
+        super.loadCachedFields();
+        compileWindow();
     }
 
-    protected long endTriggerTime()
+    @Override
+    protected void updateCachedField(String key)
     {
-        return triggerTime("range_end");
+        super.updateCachedField(key);
+        if (VALUE_RANGE_START.equals(key) || VALUE_RANGE_END.equals(key)) compileWindow();
     }
 
-    protected long triggerTime(String key)
+    /**
+     * Compiles the start and end times into the time window that the rule checks against.
+     */
+    private void compileWindow()
     {
-        String[] pieces = getSharedPreferences().getString(key, "00:00").split(":");
-
-        int hours = Integer.parseInt(pieces[0]);
-        int minutes = Integer.parseInt(pieces[1]);
+        SharedPreferences prefs = getSharedPreferences();
+        int start = TimeWindow.parseMinuteOfDay(prefs.getString(VALUE_RANGE_START, "00:00"), 0);
+        int end = TimeWindow.parseMinuteOfDay(prefs.getString(VALUE_RANGE_END, "00:00"), 0);
+        mWindow = new TimeWindow(start, end, TimeWindow.ALL_DAYS);
+        if (mSchedule != null) mSchedule.setWindow(mWindow);
+    }
 
-        Calendar cal = Calendar.getInstance();
-        cal.set(Calendar.HOUR_OF_DAY, hours);
-        cal.set(Calendar.MINUTE, minutes);
-        cal.set(Calendar.SECOND, 0);
-        cal.set(Calendar.MILLISECOND, 0);
-        return cal.getTimeInMillis();
+    /**
+     * @return The time window this rule is active in.
+     */
+    public TimeWindow getWindow()
+    {
+        return mWindow;
     }
 
     /**
@@ -99,12 +120,10 @@ public class TimeRangeRule extends RuleBase implements AutomationService.IntentL
     @Override
     public void onCreate()
     {
-        final AutomationService service = getService();
-
-        mStartListenerId = service.registerIntentListener(this);
-        mEndListenerId = service.registerIntentListener(this);
-
-        setAlarms();
+        mSchedule = new WindowSchedule(getService().getScheduler(), mWindow, this);
+        mSchedule.setTolerance(getAlarmTolerance());
+        mSchedule.setPaused(mDrivenByTimeline);
+        mSchedule.start();
     }
 
     /**
@@ -113,50 +132,47 @@ public class TimeRangeRule extends RuleBase implements AutomationService.IntentL
     @Override
     public void onDestroy()
     {
-        AlarmManager alarmManager =
-                (AlarmManager) getService().getSystemService(Context.ALARM_SERVICE);
-        assert alarmManager != null;
-
-        alarmManager.cancel(mPendingStartIntent);
-        alarmManager.cancel(mPendingEndIntent);
+        mSchedule.stop();
+        mSchedule = null;
     }
 
+    /**
+     * Sets the rule to the right state for the current time on the next wakeup, and schedules the
+     * next edge of the window.
+     */
     public void setAlarms()
     {
-        final AutomationService service = getService();
-
-        long startTime = startTriggerTime();
-        long endTime = endTriggerTime();
+        if (mSchedule == null) return;
+        mSchedule.setTolerance(getAlarmTolerance());
+        mSchedule.refresh();
+    }
 
-        AlarmManager alarmManager = (AlarmManager) service.getSystemService(Context.ALARM_SERVICE);
-        assert alarmManager != null;
+    @Override
+    public ActivationTimeline getActivationTimeline(long start, long end)
+    {
+        ActivationTimeline.Builder builder = new ActivationTimeline.Builder(start, end);
+        mWindow.addTo(builder, start, end, getService().getScheduler().getTimeZone());
+        return builder.build();
+    }
 
-        Intent startIntent = new Intent(service, AutomationService.class);
-        startIntent.putExtra(AutomationService.LISTENER_ID_EXTRA, mStartListenerId);
-        mPendingStartIntent = PendingIntent.getService(service, mStartListenerId, startIntent,
-                                                       PendingIntent.FLAG_ONE_SHOT);
-        alarmManager.setRepeating(AlarmManager.RTC_WAKEUP, startTime, AlarmManager.INTERVAL_DAY,
-                                  mPendingStartIntent);
+    @Override
+    public void setDrivenByTimeline(boolean driven)
+    {
+        if (mDrivenByTimeline == driven) return;
+        mDrivenByTimeline = driven;
+        if (mSchedule != null) mSchedule.setPaused(driven);
+    }
 
-        Intent endIntent = new Intent(service, AutomationService.class);
-        endIntent.putExtra(AutomationService.LISTENER_ID_EXTRA, mEndListenerId);
-        mPendingEndIntent = PendingIntent.getService(service, mEndListenerId, endIntent,
-                                                     PendingIntent.FLAG_ONE_SHOT);
-        alarmManager.setRepeating(AlarmManager.RTC_WAKEUP, endTime, AlarmManager.INTERVAL_DAY,
-                                  mPendingEndIntent);
+    @Override
+    public void syncActiveState(long time)
+    {
+        syncActive(mWindow.isActiveAt(time, getService().getScheduler().getTimeZone()));
     }
 
     @Override
-    public void onCommandReceived(Intent intent)
+    public void onWindowUpdate(boolean open)
     {
-        int id = intent.getIntExtra(AutomationService.LISTENER_ID_EXTRA, -1);
-        if (id == mStartListenerId)
-        {
-            // Just make sure we aren't past the end time.
-            // This prevents quick activation and then deactivation when the service starts up.
-            if (endTriggerTime() > System.currentTimeMillis()) setActive(true);
-        }
-        else if (id == mEndListenerId) setActive(false);
+        if (open != mIsActive) setActive(open);
     }
 
     @Override
@@ -164,38 +180,27 @@ public class TimeRangeRule extends RuleBase implements AutomationService.IntentL
     {
         super.addPreferencesToFragment(fragment);
         fragment.addPreferencesFromResource(R.xml.prefs_time_range_rule);
-
-        mEndTimePreference = (TimePreference) fragment.findPreference("range_end");
+        fragment.addPreferencesFromResource(R.xml.prefs_alarm_tolerance);
     }
 
     @Override
-    public void onSharedPreferenceChanged(SharedPreferences preferences, String s)
+    protected boolean isAppliedLive(String key)
     {
-        super.onSharedPreferenceChanged(preferences, s);
-
-        long startTime = startTriggerTime();
-        long endTime = endTriggerTime();
-
-        if (startTime >= endTime)
-        {
-            SharedPreferences.Editor edit = preferences.edit();
-
-            // If the end time is less than or equal to the start time, set the end time to the
-            // start time plus one minute.
-            Calendar cal = Calendar.getInstance();
-            cal.setTimeInMillis(startTime);
-            cal.add(Calendar.MINUTE, 1);
-
-            Integer hour = cal.get(Calendar.HOUR_OF_DAY);
-            Integer minute = cal.get(Calendar.MINUTE);
+        return super.isAppliedLive(key) || isTimeSetting(key);
+    }
 
-            edit.putString("range_end", hour.toString() + ":" + minute.toString());
-            edit.commit();
+    @Override
+    public boolean isTimeSetting(String key)
+    {
+        return VALUE_RANGE_START.equals(key) || VALUE_RANGE_END.equals(key) ||
+               VALUE_ALARM_TOLERANCE.equals(key);
+    }
 
-            // Hack to update the end time in the UI when it is corrected to start time + 1.
-            if (mEndTimePreference != null) mEndTimePreference.setValues(hour, minute);
-        }
-        else setAlarms();
+    @Override
+    public void onSharedPreferenceChanged(SharedPreferences preferences, String key)
+    {
+        super.onSharedPreferenceChanged(preferences, key);
+        if (key == null || isTimeSetting(key)) setAlarms();
     }
 
     /**
@@ -16,17 +16,15 @@
 
 package net.forkk.autocron.data.rule;
 
-import android.content.BroadcastReceiver;
-import android.content.Context;
-import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.res.Resources;
-import android.os.BatteryManager;
+import android.preference.PreferenceFragment;
 
 import net.forkk.autocron.R;
 import net.forkk.autocron.data.Automation;
 import net.forkk.autocron.data.AutomationService;
 import net.forkk.autocron.data.ComponentType;
+import net.forkk.autocron.data.sensor.PowerHub;
+import net.forkk.autocron.data.sensor.SensorHub;
 
 
 /**
@@ -36,11 +34,21 @@ public class UsbRule extends RuleBase
 {
     private static RuleType sComponentType;
 
+    private static final ComponentType.Factory<Rule> FACTORY =
+            new ComponentType.Factory<Rule>()
+            {
+                @Override
+                public Rule create(Automation parent, AutomationService service, int id)
+                {
+                    return new UsbRule(parent, service, id);
+                }
+            };
+
     public static RuleType initComponentType(Resources res)
     {
         return sComponentType = new RuleType(res.getString(R.string.usb_rule_title),
                                              res.getString(R.string.usb_rule_description),
-                                             UsbRule.class);
+                                             UsbRule.class, FACTORY);
     }
 
     public static RuleType getComponentType()
@@ -61,37 +69,16 @@ public class UsbRule extends RuleBase
     }
 
 
-    protected String getConnectedAction()
-    {
-        return Intent.ACTION_POWER_CONNECTED;
-    }
-
-    protected String getDisconnectedAction()
-    {
-        return Intent.ACTION_POWER_DISCONNECTED;
-    }
-
-
     @Override
     protected void onCreate()
     {
         final AutomationService service = getService();
         assert service != null;
 
-        IntentFilter filter = new IntentFilter();
-        filter.addAction(getConnectedAction());
-        filter.addAction(getDisconnectedAction());
-
-        // Register the USB receiver.
-        service.registerReceiver(mUsbReceiver, filter);
-
-        // Now we check if the device is already plugged in and, if so, activate the rule.
-        Intent batteryIntent =
-                service.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
-        assert batteryIntent != null;
-        int plugged = batteryIntent.getIntExtra(BatteryManager.EXTRA_PLUGGED, -1);
-        setActive(plugged == BatteryManager.BATTERY_PLUGGED_AC ||
-                  plugged == BatteryManager.BATTERY_PLUGGED_USB);
+        // Subscribe to the power hub, which also tells us if the device is already plugged in.
+        PowerHub hub = service.getPowerHub();
+        hub.subscribe(mHubListener);
+        setActive(hub.isConnected());
     }
 
     @Override
@@ -100,26 +87,22 @@ public class UsbRule extends RuleBase
         final AutomationService service = getService();
         assert service != null;
 
-        // Unregister the USB receiver.
-        service.unregisterReceiver(mUsbReceiver);
+        service.getPowerHub().unsubscribe(mHubListener);
     }
 
-    protected BroadcastReceiver mUsbReceiver = new BroadcastReceiver()
+    @Override
+    public void addPreferencesToFragment(PreferenceFragment fragment)
+    {
+        super.addPreferencesToFragment(fragment);
+        fragment.addPreferencesFromResource(R.xml.prefs_debounce);
+    }
+
+    private final SensorHub.Listener mHubListener = new SensorHub.Listener()
     {
         @Override
-        public void onReceive(Context context, Intent intent)
+        public void onHubChanged(SensorHub hub)
         {
-            String action = intent.getAction();
-            if (action == null) return;
-
-            if (action.equals(getConnectedAction()))
-            {
-                setActive(true);
-            }
-            else if (action.equals(getDisconnectedAction()))
-            {
-                setActive(false);
-            }
+            postActive(((PowerHub) hub).isConnected());
         }
     };
 }
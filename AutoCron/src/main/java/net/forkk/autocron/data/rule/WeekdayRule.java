@@ -16,10 +16,6 @@
 
 package net.forkk.autocron.data.rule;
 
-import android.app.AlarmManager;
-import android.app.PendingIntent;
-import android.content.Context;
-import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.res.Resources;
 import android.preference.PreferenceFragment;
@@ -29,6 +25,9 @@ import net.forkk.autocron.R;
 import net.forkk.autocron.data.Automation;
 import net.forkk.autocron.data.AutomationService;
 import net.forkk.autocron.data.ComponentType;
+import net.forkk.autocron.data.time.ActivationTimeline;
+import net.forkk.autocron.data.time.TimeWindow;
+import net.forkk.autocron.data.time.WindowSchedule;
 
 import java.util.Calendar;
 import java.util.HashSet;
@@ -38,19 +37,37 @@ import java.util.Set;
 /**
  * A rule that activates on certain days of the week.
  */
-public class WeekdayRule extends RuleBase implements AutomationService.IntentListener
+public class WeekdayRule extends RuleBase implements TimeBasedRule, WindowSchedule.Listener
 {
     private static RuleType sComponentType;
 
-    private int mIntentListenerId = -1;
+    private static final String VALUE_WEEKDAYS = "weekdays";
 
-    private PendingIntent mUpdateIntent;
+    // Compiled from the weekdays value by loadCachedFields(), so it mustn't have an initializer.
+    private TimeWindow mWindow;
+
+    /**
+     * Follows the window while the rule is created.
+     */
+    private WindowSchedule mSchedule;
+
+    private boolean mDrivenByTimeline;
+
+    private static final ComponentType.Factory<Rule> FACTORY =
+            new ComponentType.Factory<Rule>()
+            {
+                @Override
+                public Rule create(Automation parent, AutomationService service, int id)
+                {
+                    return new WeekdayRule(parent, service, id);
+                }
+            };
 
     public static RuleType initComponentType(Resources res)
     {
         return sComponentType = new RuleType(res.getString(R.string.weekday_rule_title),
                                              res.getString(R.string.weekday_rule_description),
-                                             WeekdayRule.class);
+                                             WeekdayRule.class, FACTORY);
     }
 
     public static RuleType getComponentType()
@@ -75,45 +92,60 @@ public class WeekdayRule extends RuleBase implements AutomationService.IntentLis
         return getComponentType();
     }
 
+    @Override
+    protected void loadCachedFields()
+    {
+        super.loadCachedFields();
+        compileWindow();
+    }
+
+    @Override
+    protected void updateCachedField(String key)
+    {
+        super.updateCachedField(key);
+        if (VALUE_WEEKDAYS.equals(key)) compileWindow();
+    }
+
     /**
-     * Gets a set of integers representing which weekdays this rule should be active on. Each
-     * integer corresponds to a weekday constant from the Calendar API.
+     * Compiles the set of weekday names into an all day time window on those days.
      */
-    public Set<Integer> getActiveWeekdays()
+    private void compileWindow()
     {
-        SharedPreferences prefs = getSharedPreferences();
-        Set<String> weekdays = prefs.getStringSet("weekdays", new HashSet<String>());
-        Set<Integer> weekdayIntegers = new HashSet<Integer>();
+        Set<String> weekdays =
+                getSharedPreferences().getStringSet(VALUE_WEEKDAYS, new HashSet<String>());
+        int mask = 0;
 
         for (String weekday : weekdays)
         {
             // I wish this were Java 7...
-            if (weekday.equals("monday")) weekdayIntegers.add(Calendar.MONDAY);
-            else if (weekday.equals("tuesday")) weekdayIntegers.add(Calendar.TUESDAY);
-            else if (weekday.equals("wednesday")) weekdayIntegers.add(Calendar.WEDNESDAY);
-            else if (weekday.equals("thursday")) weekdayIntegers.add(Calendar.THURSDAY);
-            else if (weekday.equals("friday")) weekdayIntegers.add(Calendar.FRIDAY);
-            else if (weekday.equals("saturday")) weekdayIntegers.add(Calendar.SATURDAY);
-            else if (weekday.equals("sunday")) weekdayIntegers.add(Calendar.SUNDAY);
+            if (weekday.equals("monday")) mask |= TimeWindow.weekdayBit(Calendar.MONDAY);
+            else if (weekday.equals("tuesday")) mask |= TimeWindow.weekdayBit(Calendar.TUESDAY);
+            else if (weekday.equals("wednesday"))
+                mask |= TimeWindow.weekdayBit(Calendar.WEDNESDAY);
+            else if (weekday.equals("thursday")) mask |= TimeWindow.weekdayBit(Calendar.THURSDAY);
+            else if (weekday.equals("friday")) mask |= TimeWindow.weekdayBit(Calendar.FRIDAY);
+            else if (weekday.equals("saturday")) mask |= TimeWindow.weekdayBit(Calendar.SATURDAY);
+            else if (weekday.equals("sunday")) mask |= TimeWindow.weekdayBit(Calendar.SUNDAY);
             else Log.w(AutomationService.LOGGER_TAG, "Unknown weekday encountered: " + weekday);
         }
 
-        return weekdayIntegers;
+        mWindow = new TimeWindow(0, TimeWindow.MINUTES_PER_DAY, mask);
+        if (mSchedule != null) mSchedule.setWindow(mWindow);
     }
 
     /**
-     * Gets the next time that this rule should check to see if it is active.
+     * Gets a set of integers representing which weekdays this rule should be active on. Each
+     * integer corresponds to a weekday constant from the Calendar API.
      */
-    public long getUpdateTime()
+    public Set<Integer> getActiveWeekdays()
     {
-        // This is simple. Just update at the beginning of the next day.
-        Calendar calendar = Calendar.getInstance();
-        calendar.set(Calendar.HOUR_OF_DAY, 0);
-        calendar.set(Calendar.MINUTE, 0);
-        calendar.set(Calendar.SECOND, 0);
-        calendar.set(Calendar.MILLISECOND, 0);
-        calendar.add(Calendar.DAY_OF_YEAR, +1);
-        return calendar.getTimeInMillis();
+        Set<Integer> weekdayIntegers = new HashSet<Integer>();
+        for (int day = Calendar.SUNDAY; day <= Calendar.SATURDAY; day++)
+        {
+            if ((mWindow.getWeekdays() & TimeWindow.weekdayBit(day)) != 0)
+                weekdayIntegers.add(day);
+        }
+        return weekdayIntegers;
     }
 
     /**
@@ -123,9 +155,10 @@ public class WeekdayRule extends RuleBase implements AutomationService.IntentLis
     @Override
     protected void onCreate()
     {
-        mIntentListenerId = getService().registerIntentListener(this);
-        setAlarm();
-        updateState();
+        mSchedule = new WindowSchedule(getService().getScheduler(), mWindow, this);
+        mSchedule.setTolerance(getAlarmTolerance());
+        mSchedule.setPaused(mDrivenByTimeline);
+        mSchedule.start();
     }
 
     /**
@@ -134,54 +167,67 @@ public class WeekdayRule extends RuleBase implements AutomationService.IntentLis
     @Override
     protected void onDestroy()
     {
-        final AutomationService service = getService();
+        mSchedule.stop();
+        mSchedule = null;
+    }
 
-        AlarmManager alarmManager = (AlarmManager) service.getSystemService(Context.ALARM_SERVICE);
-        assert alarmManager != null;
-        alarmManager.cancel(mUpdateIntent);
+    @Override
+    protected boolean isAppliedLive(String key)
+    {
+        return super.isAppliedLive(key) || isTimeSetting(key);
+    }
 
-        service.unregisterIntentListener(mIntentListenerId);
-        mIntentListenerId = -1;
+    @Override
+    public boolean isTimeSetting(String key)
+    {
+        return VALUE_WEEKDAYS.equals(key) || VALUE_ALARM_TOLERANCE.equals(key);
     }
 
     @Override
     public void onSharedPreferenceChanged(SharedPreferences preferences, String key)
     {
         super.onSharedPreferenceChanged(preferences, key);
-        if (key.equals("weekdays")) updateState();
+        if (isTimeSetting(key)) setAlarm();
     }
 
     /**
-     * Sets the rule's alarm to update it.
+     * Updates the rule's state on the next wakeup, and schedules its deadline for the next time it
+     * starts or stops being active. Midnights between two active days or two inactive days don't
+     * need a wakeup.
      */
     protected void setAlarm()
     {
-        AlarmManager alarmManager =
-                (AlarmManager) getService().getSystemService(Context.ALARM_SERVICE);
-        assert alarmManager != null;
+        if (mSchedule == null) return;
+        mSchedule.setTolerance(getAlarmTolerance());
+        mSchedule.refresh();
+    }
 
-        Intent intent = new Intent(getService(), AutomationService.class);
-        intent.putExtra(AutomationService.LISTENER_ID_EXTRA, mIntentListenerId);
-        mUpdateIntent = PendingIntent.getService(getService(), mIntentListenerId, intent,
-                                                 PendingIntent.FLAG_ONE_SHOT);
+    @Override
+    public ActivationTimeline getActivationTimeline(long start, long end)
+    {
+        ActivationTimeline.Builder builder = new ActivationTimeline.Builder(start, end);
+        mWindow.addTo(builder, start, end, getService().getScheduler().getTimeZone());
+        return builder.build();
+    }
 
-        alarmManager
-                .setRepeating(AlarmManager.RTC_WAKEUP, getUpdateTime(), AlarmManager.INTERVAL_DAY,
-                              mUpdateIntent);
+    @Override
+    public void setDrivenByTimeline(boolean driven)
+    {
+        if (mDrivenByTimeline == driven) return;
+        mDrivenByTimeline = driven;
+        if (mSchedule != null) mSchedule.setPaused(driven);
     }
 
-    /**
-     * Updates this rule's state.
-     */
-    public void updateState()
+    @Override
+    public void syncActiveState(long time)
     {
-        setActive(getActiveWeekdays().contains(Calendar.getInstance().get(Calendar.DAY_OF_WEEK)));
+        syncActive(mWindow.isActiveAt(time, getService().getScheduler().getTimeZone()));
     }
 
     @Override
-    public void onCommandReceived(Intent intent)
+    public void onWindowUpdate(boolean open)
     {
-        updateState();
+        setActive(open);
     }
 
     @Override
@@ -189,5 +235,6 @@ public class WeekdayRule extends RuleBase implements AutomationService.IntentLis
     {
         super.addPreferencesToFragment(fragment);
         fragment.addPreferencesFromResource(R.xml.prefs_weekday_rule);
+        fragment.addPreferencesFromResource(R.xml.prefs_alarm_tolerance);
     }
 }
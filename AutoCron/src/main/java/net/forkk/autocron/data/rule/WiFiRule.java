@@ -16,22 +16,16 @@
 
 package net.forkk.autocron.data.rule;
 
-import android.content.BroadcastReceiver;
-import android.content.Context;
-import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.content.res.Resources;
-import android.net.ConnectivityManager;
-import android.net.NetworkInfo;
-import android.net.wifi.WifiInfo;
-import android.net.wifi.WifiManager;
 import android.preference.PreferenceFragment;
 
 import net.forkk.autocron.R;
 import net.forkk.autocron.data.Automation;
 import net.forkk.autocron.data.AutomationService;
 import net.forkk.autocron.data.ComponentType;
+import net.forkk.autocron.data.sensor.SensorHub;
+import net.forkk.autocron.data.sensor.WifiHub;
 
 
 /**
@@ -41,13 +35,21 @@ public class WiFiRule extends RuleBase
 {
     private static RuleType sComponentType;
 
-    private WiFiRuleBroadcastReceiver mReceiver;
+    private static final ComponentType.Factory<Rule> FACTORY =
+            new ComponentType.Factory<Rule>()
+            {
+                @Override
+                public Rule create(Automation parent, AutomationService service, int id)
+                {
+                    return new WiFiRule(parent, service, id);
+                }
+            };
 
     public static RuleType initComponentType(Resources res)
     {
         return sComponentType = new RuleType(res.getString(R.string.wifi_rule_title),
                                              res.getString(R.string.wifi_rule_description),
-                                             WiFiRule.class);
+                                             WiFiRule.class, FACTORY);
     }
 
     public static RuleType getComponentType()
@@ -58,7 +60,6 @@ public class WiFiRule extends RuleBase
     public WiFiRule(Automation parent, AutomationService service, int id)
     {
         super(parent, service, id);
-        mReceiver = new WiFiRuleBroadcastReceiver();
     }
 
     /**
@@ -88,8 +89,7 @@ public class WiFiRule extends RuleBase
     @Override
     protected void onCreate()
     {
-        getService().registerReceiver(mReceiver,
-                                      new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+        getService().getWifiHub().subscribe(mHubListener);
         updateState();
     }
 
@@ -99,7 +99,7 @@ public class WiFiRule extends RuleBase
     @Override
     protected void onDestroy()
     {
-        getService().unregisterReceiver(mReceiver);
+        getService().getWifiHub().unsubscribe(mHubListener);
     }
 
     @Override
@@ -107,6 +107,7 @@ public class WiFiRule extends RuleBase
     {
         super.addPreferencesToFragment(fragment);
         fragment.addPreferencesFromResource(R.xml.prefs_wifi_rule);
+        fragment.addPreferencesFromResource(R.xml.prefs_debounce);
     }
 
     @Override
@@ -116,37 +117,30 @@ public class WiFiRule extends RuleBase
         updateState();
     }
 
+    /**
+     * Updates the rule from the WiFi hub's cached state.
+     */
     protected void updateState()
     {
-        ConnectivityManager connManager =
-                (ConnectivityManager) getService().getSystemService(Context.CONNECTIVITY_SERVICE);
+        // The hub only keeps its state up to date while someone is subscribed.
+        WifiHub hub = getService().getWifiHub();
+        if (!hub.isRunning()) return;
 
-        NetworkInfo netInfo = connManager.getNetworkInfo(ConnectivityManager.TYPE_WIFI);
-        assert netInfo != null;
-
-        if (!netInfo.isConnected())
+        if (!hub.isConnected())
         {
-            setActive(false);
+            postActive(false);
             return;
         }
 
-        WifiManager wifiManager = (WifiManager) getService().getSystemService(Context.WIFI_SERVICE);
-        WifiInfo wifiInfo = wifiManager.getConnectionInfo();
-
-        String ssid = wifiInfo.getSSID();
-
-        if (ssid.startsWith("\"") && ssid.endsWith("\""))
-            ssid = ssid.substring(1, ssid.length() - 1);
-
-        setActive(getMatchSSID().isEmpty() || ssid.equals(getMatchSSID()));
+        postActive(getMatchSSID().isEmpty() || hub.getSSID().equals(getMatchSSID()));
     }
 
-    class WiFiRuleBroadcastReceiver extends BroadcastReceiver
+    private final SensorHub.Listener mHubListener = new SensorHub.Listener()
     {
         @Override
-        public void onReceive(Context context, Intent intent)
+        public void onHubChanged(SensorHub hub)
         {
             updateState();
         }
-    }
+    };
 }
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2013 Andrew Okin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.forkk.autocron.data.sensor;
+
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+
+import net.forkk.autocron.data.AutomationService;
+
+
+/**
+ * Hub for whether the device is connected to power.
+ * <p/>
+ * This only listens for power being connected and disconnected, which is much rarer than the
+ * battery broadcast. The sticky battery broadcast is read once to find out whether the device is
+ * plugged in when this starts.
+ */
+public class PowerHub extends SensorHub
+{
+    private boolean mConnected;
+
+    public PowerHub(AutomationService service)
+    {
+        super(service, "Power");
+    }
+
+    @Override
+    protected IntentFilter getFilter()
+    {
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_POWER_CONNECTED);
+        filter.addAction(Intent.ACTION_POWER_DISCONNECTED);
+        return filter;
+    }
+
+    @Override
+    protected boolean readState(Intent intent)
+    {
+        boolean connected;
+        String action = intent == null ? null : intent.getAction();
+        if (Intent.ACTION_POWER_CONNECTED.equals(action)) connected = true;
+        else if (Intent.ACTION_POWER_DISCONNECTED.equals(action)) connected = false;
+        else
+        {
+            Intent batteryIntent = getService().registerReceiver(
+                    null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+            int plugged = batteryIntent == null ?
+                          -1 : batteryIntent.getIntExtra(BatteryManager.EXTRA_PLUGGED, -1);
+            connected = plugged == BatteryManager.BATTERY_PLUGGED_AC ||
+                        plugged == BatteryManager.BATTERY_PLUGGED_USB;
+        }
+
+        if (connected == mConnected) return false;
+        mConnected = connected;
+        return true;
+    }
+
+    /**
+     * @return True if the device is connected to power.
+     */
+    public boolean isConnected()
+    {
+        return mConnected;
+    }
+}
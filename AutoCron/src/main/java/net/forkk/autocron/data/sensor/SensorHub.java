@@ -0,0 +1,198 @@
+/*
+ * Copyright 2013 Andrew Okin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.forkk.autocron.data.sensor;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.util.Log;
+
+import net.forkk.autocron.data.AutomationService;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Watches one kind of system state, such as the WiFi connection, on behalf of any number of rules.
+ * <p/>
+ * A hub registers a single broadcast receiver while it has at least one subscriber, reads the
+ * system state once per broadcast and caches it. Subscribers are only told when the cached state
+ * actually changes, and they read it from the hub rather than asking the system themselves. Each
+ * change bumps the hub's version, so a subscriber can tell whether anything changed since it last
+ * looked.
+ * <p/>
+ * This may only be used on the engine thread. Broadcasts are delivered there too, since the
+ * receiver is registered through the automation service.
+ */
+public abstract class SensorHub
+{
+    /**
+     * Interface for subscribers that want to know when a hub's state changes.
+     */
+    public interface Listener
+    {
+        /**
+         * Called on the engine thread after the hub's cached state changed.
+         */
+        public void onHubChanged(SensorHub hub);
+    }
+
+    private final AutomationService mService;
+
+    private final String mName;
+
+    private final List<Listener> mListeners;
+
+    private boolean mRegistered;
+
+    private int mVersion;
+
+    private long mReads;
+
+    private long mChanges;
+
+    private long mNotifications;
+
+    protected SensorHub(AutomationService service, String name)
+    {
+        mService = service;
+        mName = name;
+        mListeners = new ArrayList<Listener>();
+    }
+
+    /**
+     * Subscribes the given listener to changes. The first subscriber registers the hub's receiver
+     * and reads the current state, so it's up to date as soon as this returns.
+     */
+    public void subscribe(Listener listener)
+    {
+        if (mListeners.contains(listener)) return;
+        mListeners.add(listener);
+        if (!mRegistered) start();
+    }
+
+    /**
+     * Unsubscribes the given listener. The last subscriber to leave unregisters the receiver.
+     */
+    public void unsubscribe(Listener listener)
+    {
+        if (mListeners.remove(listener) && mListeners.isEmpty() && mRegistered) stop();
+    }
+
+    /**
+     * Drops all subscribers and unregisters the receiver. Called when the automations are being
+     * torn down.
+     */
+    public void release()
+    {
+        if (!mListeners.isEmpty())
+        {
+            Log.w(AutomationService.LOGGER_TAG, mName + " hub still had " + mListeners.size() +
+                                                " subscribers when released.");
+        }
+        mListeners.clear();
+        if (mRegistered) stop();
+    }
+
+    private void start()
+    {
+        Intent sticky = mService.registerReceiver(mReceiver, getFilter());
+        mRegistered = true;
+
+        // Nothing was watching before, so the cached state can't be trusted whether it looks
+        // different or not.
+        mReads++;
+        readState(sticky);
+        mVersion++;
+    }
+
+    private void stop()
+    {
+        mService.unregisterReceiver(mReceiver);
+        mRegistered = false;
+    }
+
+    /**
+     * @return The filter for the broadcasts this hub needs to read its state.
+     */
+    protected abstract IntentFilter getFilter();
+
+    /**
+     * Reads the system state into the hub's cache.
+     *
+     * @param intent
+     *         The broadcast that triggered the read, or the sticky broadcast returned when
+     *         registering, if any. May be null.
+     * @return True if the cached state changed.
+     */
+    protected abstract boolean readState(Intent intent);
+
+    /**
+     * @return A number that changes every time the cached state does.
+     */
+    public int getVersion()
+    {
+        return mVersion;
+    }
+
+    /**
+     * @return True if the hub has subscribers and is keeping its state up to date.
+     */
+    public boolean isRunning()
+    {
+        return mRegistered;
+    }
+
+    protected AutomationService getService()
+    {
+        return mService;
+    }
+
+    /**
+     * @return Statistics about the broadcasts read and subscribers notified, for the log.
+     */
+    public String getStats()
+    {
+        return mName + " hub: " + mReads + " reads, " + mChanges + " changes, " + mNotifications +
+               " notifications, version " + mVersion;
+    }
+
+    private final BroadcastReceiver mReceiver = new BroadcastReceiver()
+    {
+        @Override
+        public void onReceive(Context context, Intent intent)
+        {
+            if (!mRegistered) return;
+
+            mReads++;
+            if (!readState(intent)) return;
+            mVersion++;
+            mChanges++;
+
+            // Copy the subscribers, since they may unsubscribe while being notified.
+            Listener[] listeners = mListeners.toArray(new Listener[mListeners.size()]);
+            for (Listener listener : listeners)
+            {
+                mNotifications++;
+                listener.onHubChanged(SensorHub.this);
+            }
+        }
+    };
+}
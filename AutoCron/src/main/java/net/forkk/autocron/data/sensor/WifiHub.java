@@ -0,0 +1,93 @@
+/*
+ * Copyright 2013 Andrew Okin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.forkk.autocron.data.sensor;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.net.wifi.WifiInfo;
+import android.net.wifi.WifiManager;
+
+import net.forkk.autocron.data.AutomationService;
+
+
+/**
+ * Hub for the WiFi connection and the SSID of the connected network.
+ */
+public class WifiHub extends SensorHub
+{
+    private boolean mConnected;
+
+    private String mSSID = "";
+
+    public WifiHub(AutomationService service)
+    {
+        super(service, "WiFi");
+    }
+
+    @Override
+    protected IntentFilter getFilter()
+    {
+        return new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION);
+    }
+
+    @Override
+    protected boolean readState(Intent intent)
+    {
+        ConnectivityManager connManager = (ConnectivityManager)
+                getService().getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo netInfo = connManager.getNetworkInfo(ConnectivityManager.TYPE_WIFI);
+        boolean connected = netInfo != null && netInfo.isConnected();
+
+        String ssid = "";
+        if (connected)
+        {
+            WifiManager wifiManager =
+                    (WifiManager) getService().getSystemService(Context.WIFI_SERVICE);
+            WifiInfo wifiInfo = wifiManager.getConnectionInfo();
+            if (wifiInfo != null && wifiInfo.getSSID() != null) ssid = wifiInfo.getSSID();
+
+            if (ssid.startsWith("\"") && ssid.endsWith("\"") && ssid.length() >= 2)
+                ssid = ssid.substring(1, ssid.length() - 1);
+        }
+
+        if (connected == mConnected && ssid.equals(mSSID)) return false;
+        mConnected = connected;
+        mSSID = ssid;
+        return true;
+    }
+
+    /**
+     * @return True if connected to a WiFi network.
+     */
+    public boolean isConnected()
+    {
+        return mConnected;
+    }
+
+    /**
+     * @return The SSID of the connected network without quotes, or an empty string if not
+     * connected.
+     */
+    public String getSSID()
+    {
+        return mSSID;
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2013 Andrew Okin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.forkk.autocron.data.store;
+
+import android.content.SharedPreferences;
+
+import net.forkk.autocron.data.AutomationService;
+
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+
+/**
+ * Finds all of the sections that make up a configuration so it can be copied between stores.
+ */
+public class ConfigMigrator
+{
+    /**
+     * Walks the configuration in the given store, starting at the automation list, and returns the
+     * names of every section that is referenced.
+     */
+    public static Set<String> findSections(ConfigStore store)
+    {
+        // Using hardcoded key names here because this needs to understand every config version
+        // that might still be on disk, not just the current one.
+        Set<String> sections = new LinkedHashSet<String>();
+        sections.add(AutomationService.PREF_AUTOMATIONS);
+
+        SharedPreferences automations = store.getPreferences(AutomationService.PREF_AUTOMATIONS);
+        addAutomations(store, sections, automations, "automation_ids", "automation_");
+        addAutomations(store, sections, automations, "state_ids", "state_");
+        addAutomations(store, sections, automations, "event_ids", "event_");
+        return sections;
+    }
+
+    private static void addAutomations(ConfigStore store, Set<String> sections,
+                                       SharedPreferences automations, String idListKey,
+                                       String prefix)
+    {
+        for (String id : automations.getStringSet(idListKey, new HashSet<String>()))
+        {
+            String name = prefix + id;
+            sections.add(name);
+
+            SharedPreferences automation = store.getPreferences(name);
+            addComponents(sections, automation, "rule_ids", "rule_");
+            addComponents(sections, automation, "action_ids", "action_");
+            addComponents(sections, automation, "trigger_ids", "trigger_");
+        }
+    }
+
+    private static void addComponents(Set<String> sections, SharedPreferences automation,
+                                      String idListKey, String prefix)
+    {
+        for (String id : automation.getStringSet(idListKey, new HashSet<String>()))
+            sections.add(prefix + id);
+    }
+}
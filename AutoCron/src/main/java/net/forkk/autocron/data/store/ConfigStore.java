@@ -0,0 +1,420 @@
+/*
+ * Copyright 2013 Andrew Okin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.forkk.autocron.data.store;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import net.forkk.autocron.data.AutomationService;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+
+/**
+ * Storage backend for component configuration.
+ * <p/>
+ * Every automation and component stores its configuration in a named section of the config store.
+ * Sections are accessed through the SharedPreferences interface so that components don't need to
+ * care which backend is in use.
+ */
+public abstract class ConfigStore
+{
+    public static final String LOGGER_TAG = AutomationService.LOGGER_TAG;
+
+    /**
+     * Name of the SharedPreferences file that stores which backend is selected. This always uses
+     * plain SharedPreferences, since it's needed before any config store can be opened.
+     */
+    public static final String PREF_CONFIG_STORE = "config_store";
+
+    private static final String VALUE_BACKEND = "backend";
+
+    private static final String LOG_FILE_NAME = "config.log";
+
+    /**
+     * Name the log is written under while configuration is being migrated into it. It's only
+     * renamed to the real log once it's complete, so a migration that gets interrupted is simply
+     * started again.
+     */
+    private static final String MIGRATION_FILE_NAME = "config.log.migrating";
+
+    private static ConfigStore sInstance;
+
+    private final HashMap<String, IdAllocator> mIdAllocators = new HashMap<String, IdAllocator>();
+
+    /**
+     * Available config store backends.
+     */
+    public enum Backend
+    {
+        /**
+         * One SharedPreferences XML file per section. This is the original config layout.
+         */
+        SHARED_PREFERENCES,
+
+        /**
+         * All sections in a single append-only log file.
+         */
+        LOG,
+    }
+
+    /**
+     * Gets the config store for the selected backend, opening it if necessary.
+     * <p/>
+     * If the log backend is selected and no log file exists yet, the existing SharedPreferences
+     * configuration is migrated into it.
+     */
+    public static synchronized ConfigStore get(Context context)
+    {
+        if (sInstance == null)
+        {
+            Context appContext = context.getApplicationContext();
+            Backend backend = getSelectedBackend(appContext);
+            if (backend == Backend.LOG && !getLogFile(appContext).exists())
+            {
+                Log.i(LOGGER_TAG, "No config log found. Migrating SharedPreferences config.");
+                ConfigStore from = new SharedPreferencesConfigStore(appContext);
+                sInstance = migrate(appContext, from, Backend.LOG);
+
+                // Keep using the old config until the migration succeeds on a later start.
+                if (sInstance == null) sInstance = from;
+            }
+            else sInstance = open(appContext, backend);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Switches the config store to the given backend, copying the current configuration into it.
+     * <p/>
+     * Components hold on to their sections, so the automation service must reload its
+     * configuration after calling this.
+     *
+     * @return The new config store, or the current one if the configuration couldn't be copied.
+     */
+    public static synchronized ConfigStore select(Context context, Backend backend)
+    {
+        Context appContext = context.getApplicationContext();
+        ConfigStore current = get(appContext);
+        if (current.getBackend() == backend) return current;
+
+        Log.i(LOGGER_TAG, "Switching config store from " + current.getBackend() + " to " +
+                          backend + ".");
+        ConfigStore migrated = migrate(appContext, current, backend);
+        if (migrated == null) return current;
+
+        sInstance = migrated;
+        current.close();
+        return sInstance;
+    }
+
+    public static Backend getSelectedBackend(Context context)
+    {
+        SharedPreferences prefs =
+                context.getSharedPreferences(PREF_CONFIG_STORE, Context.MODE_PRIVATE);
+        try
+        {
+            return Backend.valueOf(prefs.getString(VALUE_BACKEND, Backend.LOG.name()));
+        }
+        catch (IllegalArgumentException e)
+        {
+            Log.w(LOGGER_TAG, "Unknown config store backend selected. Using the default.", e);
+            return Backend.LOG;
+        }
+    }
+
+    private static ConfigStore open(Context context, Backend backend)
+    {
+        switch (backend)
+        {
+        case LOG:
+            return new LogConfigStore(getLogFile(context));
+
+        case SHARED_PREFERENCES:
+        default:
+            return new SharedPreferencesConfigStore(context);
+        }
+    }
+
+    /**
+     * Copies all of the configuration in the given store into a fresh store for the given backend
+     * and marks that backend as selected.
+     * <p/>
+     * A log is written to a separate file and only renamed into place once everything in it has
+     * been written, so a log file never exists with half of the configuration in it.
+     *
+     * @return The new store, or null if the configuration couldn't be copied.
+     */
+    private static ConfigStore migrate(Context context, ConfigStore from, Backend backend)
+    {
+        ConfigStore to;
+        if (backend == Backend.LOG)
+        {
+            // Start the log from scratch so stale sections from an earlier attempt don't linger.
+            File tempFile = new File(context.getFilesDir(), MIGRATION_FILE_NAME);
+            if (tempFile.exists() && !tempFile.delete())
+                Log.w(LOGGER_TAG, "Failed to delete old config migration log.");
+
+            ConfigStore temp = new LogConfigStore(tempFile);
+            boolean copied = copySections(from, temp);
+            temp.close();
+            if (!copied || !tempFile.renameTo(getLogFile(context)))
+            {
+                Log.e(LOGGER_TAG, "Failed to migrate config to " + backend + ".");
+                if (!tempFile.delete()) Log.w(LOGGER_TAG, "Failed to delete config migration log.");
+                return null;
+            }
+            to = open(context, backend);
+        }
+        else
+        {
+            // The old backend stays selected until everything has been copied, so this is simply
+            // done again if it gets interrupted.
+            to = open(context, backend);
+            if (!copySections(from, to))
+            {
+                Log.e(LOGGER_TAG, "Failed to migrate config to " + backend + ".");
+                to.close();
+                return null;
+            }
+        }
+
+        context.getSharedPreferences(PREF_CONFIG_STORE, Context.MODE_PRIVATE).edit()
+               .putString(VALUE_BACKEND, backend.name()).commit();
+        return to;
+    }
+
+    /**
+     * Copies every section in the given store into the other store and waits for it to be written.
+     *
+     * @return True if everything was written successfully.
+     */
+    private static boolean copySections(ConfigStore from, ConfigStore to)
+    {
+        Set<String> sections = ConfigMigrator.findSections(from);
+        for (String section : sections)
+        {
+            SharedPreferences.Editor edit = to.getPreferences(section).edit();
+            edit.clear();
+            copyValues(from.getPreferences(section), edit);
+            edit.apply();
+        }
+        if (!to.flush())
+        {
+            Log.e(LOGGER_TAG, "Failed to write some migrated config sections.");
+            return false;
+        }
+        Log.i(LOGGER_TAG, "Migrated " + sections.size() + " config sections to " + to.getBackend() +
+                          ".");
+        return true;
+    }
+
+    private static File getLogFile(Context context)
+    {
+        return new File(context.getFilesDir(), LOG_FILE_NAME);
+    }
+
+    /**
+     * Copies every value in the given preferences into the given editor.
+     */
+    public static void copyValues(SharedPreferences from, SharedPreferences.Editor to)
+    {
+        Map<String, ?> values = from.getAll();
+        assert values != null;
+
+        for (Map.Entry<String, ?> entry : values.entrySet())
+            putValue(to, entry.getKey(), entry.getValue());
+    }
+
+    /**
+     * Puts the given value into the given editor using the setter that matches its type.
+     */
+    public static void putValue(SharedPreferences.Editor edit, String key, Object value)
+    {
+        if (value instanceof String) edit.putString(key, (String) value);
+        else if (value instanceof Boolean) edit.putBoolean(key, (Boolean) value);
+        else if (value instanceof Float) edit.putFloat(key, (Float) value);
+        else if (value instanceof Integer) edit.putInt(key, (Integer) value);
+        else if (value instanceof Long) edit.putLong(key, (Long) value);
+        else if (value instanceof Set<?>)
+        {
+            try
+            {
+                //noinspection unchecked
+                edit.putStringSet(key, (Set<String>) value);
+            }
+            catch (ClassCastException e)
+            {
+                Log.wtf(LOGGER_TAG, "Set value isn't a string set even though shared preferences " +
+                                    "only support string sets!", e);
+            }
+        }
+        else Log.w(LOGGER_TAG, "Unknown value type in shared preferences file.");
+    }
+
+
+    /**
+     * Gets the section with the given name. Sections that don't exist yet are created empty.
+     *
+     * @param name
+     *         The section's name. This is the same as the component's shared preferences name.
+     *
+     * @return A SharedPreferences object for reading and writing the section.
+     */
+    public abstract SharedPreferences getPreferences(String name);
+
+    /**
+     * @return The backend this store uses.
+     */
+    public abstract Backend getBackend();
+
+    /**
+     * Releases any resources held by the store.
+     */
+    public abstract void close();
+
+    /**
+     * Gets the ID allocator for the counter with the given key, creating it if necessary. There is
+     * only ever one allocator per counter, so IDs from it are unique.
+     *
+     * @param section
+     *         The section the counter is stored in.
+     * @param key
+     *         The counter's key.
+     * @param firstId
+     *         The first ID to hand out if the counter hasn't been saved yet.
+     */
+    public synchronized IdAllocator getIdAllocator(String section, String key, int firstId)
+    {
+        String name = section + "/" + key;
+        IdAllocator allocator = mIdAllocators.get(name);
+        if (allocator == null)
+        {
+            allocator = new IdAllocator(getPreferences(section), key, firstId);
+            mIdAllocators.put(name, allocator);
+        }
+        return allocator;
+    }
+
+    /**
+     * Blocks until every change applied so far has been written to disk.
+     *
+     * @return True if all of the changes were written successfully.
+     */
+    public boolean flush()
+    {
+        return true;
+    }
+
+    /**
+     * @return Statistics about this store's writes. Stores that don't track them return empty
+     * statistics.
+     */
+    public WriteStats getWriteStats()
+    {
+        return new WriteStats(0, 0, 0, 0, 0);
+    }
+
+    /**
+     * @return True if preference screens can't edit this store's sections directly and need a
+     * {@link PreferenceMirror} to keep the store in sync.
+     */
+    public boolean needsPreferenceMirror()
+    {
+        return getBackend() != Backend.SHARED_PREFERENCES;
+    }
+
+
+    /**
+     * Snapshot of a config store's write statistics.
+     */
+    public static class WriteStats
+    {
+        private final int mPendingWrites;
+
+        private final long mGroupCommits;
+
+        private final long mRecordsWritten;
+
+        private final long mLastCommitLatency;
+
+        private final long mAverageCommitLatency;
+
+        public WriteStats(int pendingWrites, long groupCommits, long recordsWritten,
+                          long lastCommitLatency, long averageCommitLatency)
+        {
+            mPendingWrites = pendingWrites;
+            mGroupCommits = groupCommits;
+            mRecordsWritten = recordsWritten;
+            mLastCommitLatency = lastCommitLatency;
+            mAverageCommitLatency = averageCommitLatency;
+        }
+
+        /**
+         * @return The number of changes that have been applied but not written to disk yet.
+         */
+        public int getPendingWrites()
+        {
+            return mPendingWrites;
+        }
+
+        /**
+         * @return The number of group commits (one write and one sync each) done so far.
+         */
+        public long getGroupCommits()
+        {
+            return mGroupCommits;
+        }
+
+        /**
+         * @return The number of changes written to disk so far.
+         */
+        public long getRecordsWritten()
+        {
+            return mRecordsWritten;
+        }
+
+        /**
+         * @return Time in milliseconds from the oldest change in the last group commit being
+         * applied to it being synced to disk.
+         */
+        public long getLastCommitLatency()
+        {
+            return mLastCommitLatency;
+        }
+
+        /**
+         * @return Average of {@link #getLastCommitLatency()} over every group commit so far.
+         */
+        public long getAverageCommitLatency()
+        {
+            return mAverageCommitLatency;
+        }
+
+        @Override
+        public String toString()
+        {
+            return mPendingWrites + " pending, " + mRecordsWritten + " written in " +
+                   mGroupCommits + " commits, last latency " + mLastCommitLatency +
+                   " ms, average " + mAverageCommitLatency + " ms";
+        }
+    }
+}
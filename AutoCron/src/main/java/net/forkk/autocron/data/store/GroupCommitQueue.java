@@ -0,0 +1,287 @@
+/*
+ * Copyright 2013 Andrew Okin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.forkk.autocron.data.store;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Write-behind queue that batches records into group commits on a background writer thread.
+ * <p/>
+ * Records are written in the order they were enqueued, and every record enqueued before a group
+ * commit starts is written and synced by that commit. This means that once a record is durable,
+ * every record enqueued before it is durable too.
+ * <p/>
+ * If a group commit fails, its records stay at the front of the queue and are written again after
+ * a delay, together with anything enqueued since. Waiters are told about the failure straight
+ * away rather than being kept waiting for the retry.
+ */
+class GroupCommitQueue implements Runnable
+{
+    private static final String LOGGER_TAG = ConfigStore.LOGGER_TAG;
+
+    private static final long RETRY_DELAY_MIN_MS = 100;
+
+    private static final long RETRY_DELAY_MAX_MS = 10000;
+
+    /**
+     * Interface for the thing the queue writes records to.
+     */
+    interface Sink
+    {
+        /**
+         * Writes the given records and syncs them to disk. Called on the writer thread. If this
+         * fails, none of the records may be left in the output, since they'll be written again.
+         *
+         * @return True if the records were written successfully.
+         */
+        public boolean writeRecords(List<byte[]> records);
+
+        /**
+         * Called on the writer thread after each group commit.
+         */
+        public void onGroupCommitted();
+    }
+
+    private final Sink mSink;
+
+    private final Thread mThread;
+
+    private ArrayList<byte[]> mPending;
+
+    /**
+     * Time the oldest pending record was enqueued, in nanoseconds.
+     */
+    private long mOldestPendingTime;
+
+    /**
+     * Sequence number of the most recently enqueued record.
+     */
+    private long mEnqueuedSeq;
+
+    /**
+     * Sequence number of the most recent record that has been written and synced.
+     */
+    private long mDurableSeq;
+
+    /**
+     * Number of group commits that have failed.
+     */
+    private long mFailureCount;
+
+    private boolean mClosed;
+
+    private long mGroupCommitCount;
+
+    private long mRecordCount;
+
+    private long mLastLatencyNanos;
+
+    private long mTotalLatencyNanos;
+
+    public GroupCommitQueue(Sink sink, String name)
+    {
+        mSink = sink;
+        mPending = new ArrayList<byte[]>();
+        mThread = new Thread(this, name);
+        mThread.start();
+    }
+
+    /**
+     * Adds the given record to the queue.
+     *
+     * @return The record's sequence number, which can be passed to await().
+     */
+    public synchronized long enqueue(byte[] record)
+    {
+        if (mPending.isEmpty()) mOldestPendingTime = System.nanoTime();
+        mPending.add(record);
+        notifyAll();
+        return ++mEnqueuedSeq;
+    }
+
+    /**
+     * Blocks until the record with the given sequence number is durable, or the next attempt to
+     * write it fails.
+     *
+     * @return True if the record was written successfully.
+     */
+    public synchronized boolean await(long seq)
+    {
+        long failureCount = mFailureCount;
+        boolean interrupted = false;
+        while (mDurableSeq < seq && mFailureCount == failureCount && !mClosed)
+        {
+            try
+            {
+                wait();
+            }
+            catch (InterruptedException e)
+            {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+        return mDurableSeq >= seq;
+    }
+
+    /**
+     * Blocks until every record enqueued so far is durable.
+     *
+     * @return True if all of the records were written successfully.
+     */
+    public boolean flush()
+    {
+        long seq;
+        synchronized (this)
+        {
+            seq = mEnqueuedSeq;
+        }
+        return await(seq);
+    }
+
+    /**
+     * Writes any pending records and stops the writer thread. Records that still can't be written
+     * are given one last try and then dropped.
+     */
+    public void close()
+    {
+        flush();
+        synchronized (this)
+        {
+            mClosed = true;
+            notifyAll();
+        }
+
+        try
+        {
+            mThread.join();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run()
+    {
+        long retryDelay = RETRY_DELAY_MIN_MS;
+        while (true)
+        {
+            ArrayList<byte[]> batch;
+            long batchSeq;
+            long batchStart;
+            synchronized (this)
+            {
+                while (mPending.isEmpty() && !mClosed)
+                {
+                    try
+                    {
+                        wait();
+                    }
+                    catch (InterruptedException e)
+                    {
+                        // Nothing to do but keep waiting.
+                    }
+                }
+                if (mPending.isEmpty()) return;
+
+                batch = mPending;
+                batchSeq = mEnqueuedSeq;
+                batchStart = mOldestPendingTime;
+                mPending = new ArrayList<byte[]>();
+            }
+
+            boolean success = mSink.writeRecords(batch);
+            long latency = System.nanoTime() - batchStart;
+
+            if (!success)
+            {
+                Log.e(LOGGER_TAG, "Group commit of " + batch.size() + " records failed.");
+                synchronized (this)
+                {
+                    mFailureCount++;
+                    notifyAll();
+
+                    if (mClosed)
+                    {
+                        Log.e(LOGGER_TAG, "Dropping " + (batch.size() + mPending.size()) +
+                                          " config records that couldn't be written.");
+                        return;
+                    }
+
+                    // Put the batch back in front of anything enqueued since, so the order is
+                    // kept, and try again after a while.
+                    batch.addAll(mPending);
+                    mPending = batch;
+                    mOldestPendingTime = batchStart;
+                    waitForRetry(retryDelay);
+                }
+                retryDelay = Math.min(retryDelay * 2, RETRY_DELAY_MAX_MS);
+                continue;
+            }
+            retryDelay = RETRY_DELAY_MIN_MS;
+
+            synchronized (this)
+            {
+                mDurableSeq = batchSeq;
+                mGroupCommitCount++;
+                mRecordCount += batch.size();
+                mLastLatencyNanos = latency;
+                mTotalLatencyNanos += latency;
+                notifyAll();
+            }
+
+            mSink.onGroupCommitted();
+        }
+    }
+
+    /**
+     * Waits for the given delay, or until the queue is closed. Must be called while holding the
+     * queue's lock.
+     */
+    private void waitForRetry(long delay)
+    {
+        long retryAt = System.nanoTime() + delay * 1000000;
+        long remaining;
+        while (!mClosed && (remaining = (retryAt - System.nanoTime()) / 1000000) > 0)
+        {
+            try
+            {
+                wait(remaining);
+            }
+            catch (InterruptedException e)
+            {
+                // Nothing to do but keep waiting.
+            }
+        }
+    }
+
+    /**
+     * @return A snapshot of this queue's write statistics.
+     */
+    public synchronized ConfigStore.WriteStats getStats()
+    {
+        long average = mGroupCommitCount > 0 ? mTotalLatencyNanos / mGroupCommitCount : 0;
+        return new ConfigStore.WriteStats(mPending.size(), mGroupCommitCount, mRecordCount,
+                                          mLastLatencyNanos / 1000000, average / 1000000);
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2013 Andrew Okin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.forkk.autocron.data.store;
+
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Hands out unique IDs from a counter stored in a config section.
+ * <p/>
+ * Rather than saving the counter every time an ID is allocated, the allocator leases a block of
+ * IDs by saving the end of the block, and then hands out IDs from that block in memory. If the
+ * process dies, the rest of the block is simply skipped, so an ID is never handed out twice.
+ * <p/>
+ * This is safe to use from multiple threads.
+ */
+public class IdAllocator
+{
+    private static final String LOGGER_TAG = ConfigStore.LOGGER_TAG;
+
+    /**
+     * Number of IDs leased at a time.
+     */
+    public static final int BLOCK_SIZE = 32;
+
+    /**
+     * Number of times saving a lease is tried before giving up.
+     */
+    private static final int LEASE_ATTEMPTS = 3;
+
+    private final SharedPreferences mPreferences;
+
+    private final String mKey;
+
+    private final AtomicInteger mNext;
+
+    /**
+     * End (exclusive) of the block of IDs that has been leased.
+     */
+    private volatile int mLeaseEnd;
+
+    /**
+     * Creates an allocator for the counter with the given key.
+     *
+     * @param preferences
+     *         The section the counter is stored in.
+     * @param key
+     *         The counter's key.
+     * @param firstId
+     *         The first ID to hand out if the counter hasn't been saved yet.
+     */
+    public IdAllocator(SharedPreferences preferences, String key, int firstId)
+    {
+        mPreferences = preferences;
+        mKey = key;
+
+        int start = preferences.getInt(key, firstId);
+        mNext = new AtomicInteger(start);
+        mLeaseEnd = start;
+    }
+
+    /**
+     * @return A new unique ID.
+     *
+     * @throws IllegalStateException
+     *         If a new block of IDs was needed and couldn't be saved.
+     */
+    public int allocate()
+    {
+        int id = mNext.getAndIncrement();
+        if (id >= mLeaseEnd)
+        {
+            synchronized (this)
+            {
+                while (id >= mLeaseEnd)
+                    lease();
+            }
+        }
+        return id;
+    }
+
+    /**
+     * Leases the next block of IDs. The block is saved before any of its IDs are handed out, since
+     * IDs from a block that was never saved would be handed out again after a restart.
+     */
+    private void lease()
+    {
+        int leaseEnd = mLeaseEnd + BLOCK_SIZE;
+        for (int attempt = 1; attempt <= LEASE_ATTEMPTS; attempt++)
+        {
+            if (mPreferences.edit().putInt(mKey, leaseEnd).commit())
+            {
+                mLeaseEnd = leaseEnd;
+                return;
+            }
+            Log.e(LOGGER_TAG, "Failed to save ID block for " + mKey + " (attempt " + attempt +
+                              " of " + LEASE_ATTEMPTS + ").");
+        }
+        throw new IllegalStateException("Couldn't save ID block for " + mKey + ".");
+    }
+}
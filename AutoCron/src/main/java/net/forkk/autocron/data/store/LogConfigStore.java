@@ -0,0 +1,979 @@
+/*
+ * Copyright 2013 Andrew Okin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.forkk.autocron.data.store;
+
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.zip.CRC32;
+
+
+/**
+ * Config store that keeps every section in one append-only binary log file.
+ * <p/>
+ * The whole configuration is read into an in-memory index when the store is opened. Each commit
+ * appends one record containing the changed values, so saving a change never rewrites the whole
+ * file. Once the log contains a lot more records than live values, it is compacted by writing a
+ * fresh snapshot and swapping it in.
+ * <p/>
+ * Changes are applied to the index immediately, but records are written by a background writer
+ * thread through a {@link GroupCommitQueue}, so several edits made in quick succession share one
+ * write and one sync. Records always reach the log in the order they were made.
+ * <p/>
+ * Each record is stored as its payload length, a CRC32 of the payload, and the payload itself. A
+ * record that was only partially written (e.g. because the process was killed) fails its checksum
+ * and is truncated away the next time the log is opened.
+ */
+public class LogConfigStore extends ConfigStore
+{
+    private static final int MAGIC = 0x41434c47; // "ACLG"
+
+    private static final int FORMAT_VERSION = 1;
+
+    private static final int HEADER_SIZE = 8;
+
+    private static final byte TYPE_STRING = 1;
+
+    private static final byte TYPE_BOOLEAN = 2;
+
+    private static final byte TYPE_INT = 3;
+
+    private static final byte TYPE_LONG = 4;
+
+    private static final byte TYPE_FLOAT = 5;
+
+    private static final byte TYPE_STRING_SET = 6;
+
+    private static final byte TYPE_REMOVED = 7;
+
+    /**
+     * The log isn't compacted until it holds at least this many values.
+     */
+    private static final int COMPACT_MIN_LOGGED_VALUES = 512;
+
+    /**
+     * The log is compacted once it holds this many times more values than are live.
+     */
+    private static final int COMPACT_RATIO = 3;
+
+    /**
+     * Value stored in an editor's change map to mark a removed key.
+     */
+    private static final Object REMOVED = new Object();
+
+    /**
+     * Value for the listener maps, which are only used as weak sets.
+     */
+    private static final Object LISTENER_PRESENT = new Object();
+
+    private final File mFile;
+
+    /**
+     * Lock that guards the index and the log file.
+     */
+    private final Object mLock = new Object();
+
+    private final HashMap<String, Section> mSections;
+
+    /**
+     * Stream used to append to the log. Only used by the writer thread once the store is open.
+     */
+    private FileOutputStream mOutput;
+
+    /**
+     * Length to cut the log back to before appending again, or -1. Set when an append fails part
+     * way through, so the partial record doesn't end up in front of the records after it.
+     */
+    private long mTruncateTo = -1;
+
+    private final GroupCommitQueue mQueue;
+
+    /**
+     * Number of values currently stored across all sections.
+     */
+    private int mLiveValues;
+
+    /**
+     * Number of values (including removals) written to the log since it was last compacted.
+     */
+    private int mLoggedValues;
+
+    public LogConfigStore(File file)
+    {
+        mFile = file;
+        mSections = new HashMap<String, Section>();
+
+        synchronized (mLock)
+        {
+            load();
+            openOutput();
+        }
+
+        mQueue = new GroupCommitQueue(new GroupCommitQueue.Sink()
+        {
+            @Override
+            public boolean writeRecords(List<byte[]> records)
+            {
+                return append(records);
+            }
+
+            @Override
+            public void onGroupCommitted()
+            {
+                if (shouldCompact()) compact();
+            }
+        }, "ConfigLogWriter");
+    }
+
+    @Override
+    public SharedPreferences getPreferences(String name)
+    {
+        synchronized (mLock)
+        {
+            return getSection(name);
+        }
+    }
+
+    @Override
+    public Backend getBackend()
+    {
+        return Backend.LOG;
+    }
+
+    @Override
+    public void close()
+    {
+        mQueue.close();
+        closeOutput();
+    }
+
+    @Override
+    public boolean flush()
+    {
+        return mQueue.flush();
+    }
+
+    @Override
+    public WriteStats getWriteStats()
+    {
+        return mQueue.getStats();
+    }
+
+    private Section getSection(String name)
+    {
+        Section section = mSections.get(name);
+        if (section == null)
+        {
+            section = new Section(name);
+            mSections.put(name, section);
+        }
+        return section;
+    }
+
+
+    /////////////////
+    //// Loading ////
+    /////////////////
+
+    private void load()
+    {
+        if (!mFile.exists()) return;
+
+        long validLength = 0;
+        DataInputStream input = null;
+        try
+        {
+            input = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            if (input.readInt() != MAGIC || input.readInt() != FORMAT_VERSION)
+            {
+                Log.e(LOGGER_TAG, "Config log has an invalid header. Moving it aside.");
+                validLength = -1;
+            }
+            else readRecords(input);
+        }
+        catch (IOException e)
+        {
+            Log.e(LOGGER_TAG, "Failed to read config log.", e);
+        }
+        finally
+        {
+            closeQuietly(input);
+        }
+
+        if (validLength < 0)
+        {
+            if (!mFile.renameTo(new File(mFile.getPath() + ".bad")))
+                Log.e(LOGGER_TAG, "Failed to move invalid config log aside.");
+        }
+    }
+
+    /**
+     * Reads records from the given stream until the end of the log or the first corrupt record and
+     * applies them to the index. Anything after the last valid record is truncated.
+     */
+    private void readRecords(DataInputStream input) throws IOException
+    {
+        long validLength = HEADER_SIZE;
+        try
+        {
+            CRC32 crc = new CRC32();
+            while (true)
+            {
+                int length;
+                try
+                {
+                    length = input.readInt();
+                }
+                catch (EOFException e)
+                {
+                    // Clean end of the log.
+                    break;
+                }
+
+                int checksum = input.readInt();
+                if (length < 0 || length > mFile.length() - validLength - 8)
+                {
+                    Log.w(LOGGER_TAG, "Found corrupt record in config log. Discarding the rest.");
+                    break;
+                }
+
+                byte[] payload = new byte[length];
+                input.readFully(payload);
+
+                crc.reset();
+                crc.update(payload, 0, length);
+                if ((int) crc.getValue() != checksum)
+                {
+                    Log.w(LOGGER_TAG, "Found corrupt record in config log. Discarding the rest.");
+                    break;
+                }
+
+                // A record that passes its checksum but can't be decoded (e.g. a value type from a
+                // newer version) is treated like a corrupt one. Anything appended after it would
+                // be unreachable otherwise.
+                try
+                {
+                    applyRecord(payload);
+                }
+                catch (IOException e)
+                {
+                    Log.w(LOGGER_TAG, "Found unreadable record in config log. Discarding the rest.",
+                          e);
+                    break;
+                }
+                validLength += 8 + length;
+            }
+        }
+        catch (EOFException e)
+        {
+            Log.w(LOGGER_TAG, "Config log ends with a partial record. Discarding it.");
+        }
+
+        if (mFile.length() > validLength) truncate(validLength);
+    }
+
+    /**
+     * Decodes the given record and applies it to the index. The record is decoded completely
+     * first, so the index is left alone if it can't be.
+     */
+    private void applyRecord(byte[] payload) throws IOException
+    {
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(payload));
+
+        String name = readString(input);
+        boolean clear = input.readBoolean();
+        int count = input.readInt();
+        if (count < 0 || count > payload.length)
+            throw new IOException("Invalid value count in config record.");
+
+        String[] keys = new String[count];
+        Object[] values = new Object[count];
+        for (int i = 0; i < count; i++)
+        {
+            keys[i] = readString(input);
+            values[i] = readValue(input);
+        }
+
+        Section section = getSection(name);
+        if (clear)
+        {
+            mLiveValues -= section.mValues.size();
+            section.mValues.clear();
+            mLoggedValues++;
+        }
+
+        for (int i = 0; i < count; i++)
+        {
+            setValue(section, keys[i], values[i]);
+            mLoggedValues++;
+        }
+    }
+
+    /**
+     * @return True if the log was truncated successfully.
+     */
+    private boolean truncate(long length)
+    {
+        RandomAccessFile file = null;
+        try
+        {
+            file = new RandomAccessFile(mFile, "rw");
+            file.setLength(length);
+            return true;
+        }
+        catch (IOException e)
+        {
+            Log.e(LOGGER_TAG, "Failed to truncate config log.", e);
+            return false;
+        }
+        finally
+        {
+            closeQuietly(file);
+        }
+    }
+
+
+    /////////////////
+    //// Writing ////
+    /////////////////
+
+    private void openOutput()
+    {
+        try
+        {
+            boolean newFile = !mFile.exists() || mFile.length() < HEADER_SIZE;
+            mOutput = new FileOutputStream(mFile, !newFile);
+            if (newFile) writeHeader(mOutput);
+        }
+        catch (IOException e)
+        {
+            Log.e(LOGGER_TAG, "Failed to open config log for writing.", e);
+            mOutput = null;
+        }
+    }
+
+    private void closeOutput()
+    {
+        closeQuietly(mOutput);
+        mOutput = null;
+    }
+
+    private static void writeHeader(FileOutputStream output) throws IOException
+    {
+        DataOutputStream data = new DataOutputStream(output);
+        data.writeInt(MAGIC);
+        data.writeInt(FORMAT_VERSION);
+        data.flush();
+    }
+
+    /**
+     * Writes the given records to the end of the log and syncs it to disk. Only called on the
+     * writer thread.
+     * <p/>
+     * If the write fails, the log is cut back to where it was before, so the records can be
+     * written again without anything partial in front of them.
+     *
+     * @return True if the records were written successfully.
+     */
+    private boolean append(List<byte[]> records)
+    {
+        if (mOutput == null)
+        {
+            if (mTruncateTo >= 0)
+            {
+                if (!truncate(mTruncateTo)) return false;
+                mTruncateTo = -1;
+            }
+            openOutput();
+        }
+        if (mOutput == null) return false;
+
+        long offset;
+        try
+        {
+            offset = mOutput.getChannel().size();
+        }
+        catch (IOException e)
+        {
+            Log.e(LOGGER_TAG, "Failed to find the end of the config log.", e);
+            closeOutput();
+            return false;
+        }
+
+        try
+        {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            DataOutputStream data = new DataOutputStream(buffer);
+            CRC32 crc = new CRC32();
+            for (byte[] record : records)
+            {
+                crc.reset();
+                crc.update(record, 0, record.length);
+                data.writeInt(record.length);
+                data.writeInt((int) crc.getValue());
+                data.write(record);
+            }
+            data.flush();
+
+            mOutput.write(buffer.toByteArray());
+            mOutput.getFD().sync();
+        }
+        catch (IOException e)
+        {
+            Log.e(LOGGER_TAG, "Failed to write to config log.", e);
+
+            // Reopen the log once it's been cut back, rather than appending after a partial write.
+            closeOutput();
+            mTruncateTo = offset;
+            if (truncate(offset)) mTruncateTo = -1;
+            return false;
+        }
+        return true;
+    }
+
+    private boolean shouldCompact()
+    {
+        synchronized (mLock)
+        {
+            return mLoggedValues > COMPACT_MIN_LOGGED_VALUES &&
+                   mLoggedValues > mLiveValues * COMPACT_RATIO;
+        }
+    }
+
+    /**
+     * Rewrites the log so it only contains the current value of every key. Only called on the
+     * writer thread.
+     * <p/>
+     * The snapshot is taken under the index lock, but written without it so edits aren't blocked
+     * while the file is being written. Records that were queued before the snapshot was taken are
+     * still written to the new log afterwards. That's harmless, since replaying them on top of a
+     * snapshot that already contains them gives the same result.
+     */
+    private void compact()
+    {
+        List<byte[]> snapshot = new ArrayList<byte[]>();
+        int loggedAtSnapshot;
+        int liveAtSnapshot;
+        synchronized (mLock)
+        {
+            loggedAtSnapshot = mLoggedValues;
+            liveAtSnapshot = mLiveValues;
+            try
+            {
+                for (Section section : mSections.values())
+                {
+                    if (section.mValues.isEmpty()) continue;
+                    snapshot.add(encodeRecord(section.mName, true, section.mValues));
+                }
+            }
+            catch (IOException e)
+            {
+                Log.e(LOGGER_TAG, "Failed to encode config log snapshot.", e);
+                return;
+            }
+        }
+
+        Log.d(LOGGER_TAG, "Compacting config log (" + loggedAtSnapshot + " logged values, " +
+                          liveAtSnapshot + " live).");
+
+        File tempFile = new File(mFile.getPath() + ".tmp");
+        FileOutputStream output = null;
+        try
+        {
+            output = new FileOutputStream(tempFile);
+            writeHeader(output);
+
+            DataOutputStream data = new DataOutputStream(output);
+            CRC32 crc = new CRC32();
+            for (byte[] record : snapshot)
+            {
+                crc.reset();
+                crc.update(record, 0, record.length);
+                data.writeInt(record.length);
+                data.writeInt((int) crc.getValue());
+                data.write(record);
+            }
+            data.flush();
+            output.getFD().sync();
+        }
+        catch (IOException e)
+        {
+            Log.e(LOGGER_TAG, "Failed to compact config log.", e);
+            closeQuietly(output);
+            if (!tempFile.delete()) Log.w(LOGGER_TAG, "Failed to delete temporary config log.");
+            return;
+        }
+        closeQuietly(output);
+
+        closeOutput();
+        if (!tempFile.renameTo(mFile))
+            Log.e(LOGGER_TAG, "Failed to replace config log with compacted log.");
+        else
+        {
+            synchronized (mLock)
+            {
+                mLoggedValues = mLoggedValues - loggedAtSnapshot + liveAtSnapshot;
+            }
+        }
+        openOutput();
+    }
+
+
+    //////////////////
+    //// Encoding ////
+    //////////////////
+
+    private static byte[] encodeRecord(String section, boolean clear, Map<String, Object> values)
+            throws IOException
+    {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(buffer);
+        writeString(data, section);
+        data.writeBoolean(clear);
+        data.writeInt(values.size());
+        for (Map.Entry<String, Object> entry : values.entrySet())
+        {
+            writeString(data, entry.getKey());
+            writeValue(data, entry.getValue());
+        }
+        data.flush();
+        return buffer.toByteArray();
+    }
+
+    private static void writeValue(DataOutputStream data, Object value) throws IOException
+    {
+        if (value == REMOVED || value == null) data.writeByte(TYPE_REMOVED);
+        else if (value instanceof String)
+        {
+            data.writeByte(TYPE_STRING);
+            writeString(data, (String) value);
+        }
+        else if (value instanceof Boolean)
+        {
+            data.writeByte(TYPE_BOOLEAN);
+            data.writeBoolean((Boolean) value);
+        }
+        else if (value instanceof Integer)
+        {
+            data.writeByte(TYPE_INT);
+            data.writeInt((Integer) value);
+        }
+        else if (value instanceof Long)
+        {
+            data.writeByte(TYPE_LONG);
+            data.writeLong((Long) value);
+        }
+        else if (value instanceof Float)
+        {
+            data.writeByte(TYPE_FLOAT);
+            data.writeFloat((Float) value);
+        }
+        else if (value instanceof Set<?>)
+        {
+            Set<?> set = (Set<?>) value;
+            data.writeByte(TYPE_STRING_SET);
+            data.writeInt(set.size());
+            for (Object item : set)
+                writeString(data, (String) item);
+        }
+        else throw new IOException("Unsupported config value type: " + value.getClass());
+    }
+
+    private static Object readValue(DataInputStream data) throws IOException
+    {
+        byte type = data.readByte();
+        switch (type)
+        {
+        case TYPE_STRING:
+            return readString(data);
+
+        case TYPE_BOOLEAN:
+            return data.readBoolean();
+
+        case TYPE_INT:
+            return data.readInt();
+
+        case TYPE_LONG:
+            return data.readLong();
+
+        case TYPE_FLOAT:
+            return data.readFloat();
+
+        case TYPE_STRING_SET:
+            int size = data.readInt();
+            if (size < 0 || size > data.available())
+                throw new IOException("Invalid string set size in config record.");
+            Set<String> set = new HashSet<String>(size * 2);
+            for (int i = 0; i < size; i++)
+                set.add(readString(data));
+            return Collections.unmodifiableSet(set);
+
+        case TYPE_REMOVED:
+            return REMOVED;
+
+        default:
+            throw new IOException("Unknown config value type " + type + ".");
+        }
+    }
+
+    private static void writeString(DataOutputStream data, String string) throws IOException
+    {
+        byte[] bytes = string.getBytes("UTF-8");
+        data.writeInt(bytes.length);
+        data.write(bytes);
+    }
+
+    private static String readString(DataInputStream data) throws IOException
+    {
+        int length = data.readInt();
+        if (length < 0 || length > data.available())
+            throw new IOException("Invalid string length in config record.");
+        byte[] bytes = new byte[length];
+        data.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    /**
+     * Sets a value in the given section's index, keeping the live value count up to date.
+     */
+    private void setValue(Section section, String key, Object value)
+    {
+        if (value == REMOVED)
+        {
+            if (section.mValues.remove(key) != null) mLiveValues--;
+        }
+        else if (section.mValues.put(key, value) == null) mLiveValues++;
+    }
+
+    private static void closeQuietly(Closeable closeable)
+    {
+        if (closeable == null) return;
+        try
+        {
+            closeable.close();
+        }
+        catch (IOException e)
+        {
+            Log.w(LOGGER_TAG, "Failed to close config log stream.", e);
+        }
+    }
+
+
+    /**
+     * A single section of the log. Implements SharedPreferences on top of the in-memory index.
+     */
+    private class Section implements SharedPreferences
+    {
+        private final String mName;
+
+        private final HashMap<String, Object> mValues;
+
+        /**
+         * Listeners are only held weakly, like the platform's shared preferences do, so anything
+         * that forgets to unregister doesn't stay alive and keep reacting to changes.
+         */
+        private WeakHashMap<OnSharedPreferenceChangeListener, Object> mListeners;
+
+        public Section(String name)
+        {
+            mName = name;
+            mValues = new HashMap<String, Object>(8);
+        }
+
+        @Override
+        public Map<String, ?> getAll()
+        {
+            synchronized (mLock)
+            {
+                return new HashMap<String, Object>(mValues);
+            }
+        }
+
+        @Override
+        public String getString(String key, String defValue)
+        {
+            synchronized (mLock)
+            {
+                String value = (String) mValues.get(key);
+                return value != null ? value : defValue;
+            }
+        }
+
+        @Override
+        public Set<String> getStringSet(String key, Set<String> defValues)
+        {
+            synchronized (mLock)
+            {
+                //noinspection unchecked
+                Set<String> value = (Set<String>) mValues.get(key);
+                return value != null ? value : defValues;
+            }
+        }
+
+        @Override
+        public int getInt(String key, int defValue)
+        {
+            synchronized (mLock)
+            {
+                Integer value = (Integer) mValues.get(key);
+                return value != null ? value : defValue;
+            }
+        }
+
+        @Override
+        public long getLong(String key, long defValue)
+        {
+            synchronized (mLock)
+            {
+                Long value = (Long) mValues.get(key);
+                return value != null ? value : defValue;
+            }
+        }
+
+        @Override
+        public float getFloat(String key, float defValue)
+        {
+            synchronized (mLock)
+            {
+                Float value = (Float) mValues.get(key);
+                return value != null ? value : defValue;
+            }
+        }
+
+        @Override
+        public boolean getBoolean(String key, boolean defValue)
+        {
+            synchronized (mLock)
+            {
+                Boolean value = (Boolean) mValues.get(key);
+                return value != null ? value : defValue;
+            }
+        }
+
+        @Override
+        public boolean contains(String key)
+        {
+            synchronized (mLock)
+            {
+                return mValues.containsKey(key);
+            }
+        }
+
+        @Override
+        public Editor edit()
+        {
+            return new SectionEditor(this);
+        }
+
+        @Override
+        public void registerOnSharedPreferenceChangeListener(
+                OnSharedPreferenceChangeListener listener)
+        {
+            synchronized (mLock)
+            {
+                if (mListeners == null)
+                    mListeners = new WeakHashMap<OnSharedPreferenceChangeListener, Object>(2);
+                mListeners.put(listener, LISTENER_PRESENT);
+            }
+        }
+
+        @Override
+        public void unregisterOnSharedPreferenceChangeListener(
+                OnSharedPreferenceChangeListener listener)
+        {
+            synchronized (mLock)
+            {
+                if (mListeners != null) mListeners.remove(listener);
+            }
+        }
+    }
+
+    /**
+     * Editor for a section. Changes are applied to the index right away and queued to be appended
+     * to the log. {@link #apply()} returns immediately, while {@link #commit()} waits until the
+     * record (and every record queued before it) has been written and synced.
+     */
+    private class SectionEditor implements SharedPreferences.Editor
+    {
+        private final Section mSection;
+
+        private final HashMap<String, Object> mChanges;
+
+        private boolean mClear;
+
+        public SectionEditor(Section section)
+        {
+            mSection = section;
+            mChanges = new HashMap<String, Object>(4);
+        }
+
+        @Override
+        public SharedPreferences.Editor putString(String key, String value)
+        {
+            mChanges.put(key, value != null ? value : REMOVED);
+            return this;
+        }
+
+        @Override
+        public SharedPreferences.Editor putStringSet(String key, Set<String> values)
+        {
+            mChanges.put(key, values != null ?
+                              Collections.unmodifiableSet(new HashSet<String>(values)) : REMOVED);
+            return this;
+        }
+
+        @Override
+        public SharedPreferences.Editor putInt(String key, int value)
+        {
+            mChanges.put(key, value);
+            return this;
+        }
+
+        @Override
+        public SharedPreferences.Editor putLong(String key, long value)
+        {
+            mChanges.put(key, value);
+            return this;
+        }
+
+        @Override
+        public SharedPreferences.Editor putFloat(String key, float value)
+        {
+            mChanges.put(key, value);
+            return this;
+        }
+
+        @Override
+        public SharedPreferences.Editor putBoolean(String key, boolean value)
+        {
+            mChanges.put(key, value);
+            return this;
+        }
+
+        @Override
+        public SharedPreferences.Editor remove(String key)
+        {
+            mChanges.put(key, REMOVED);
+            return this;
+        }
+
+        @Override
+        public SharedPreferences.Editor clear()
+        {
+            mClear = true;
+            return this;
+        }
+
+        @Override
+        public boolean commit()
+        {
+            long seq = enqueue();
+            return seq >= 0 && mQueue.await(seq);
+        }
+
+        @Override
+        public void apply()
+        {
+            enqueue();
+        }
+
+        /**
+         * Applies the changes to the index, queues the record and notifies listeners.
+         *
+         * @return The record's sequence number in the commit queue, or -1 if it couldn't be
+         * encoded.
+         */
+        private long enqueue()
+        {
+            List<String> changedKeys = new ArrayList<String>(mChanges.size());
+            List<SharedPreferences.OnSharedPreferenceChangeListener> listeners;
+            long seq;
+
+            synchronized (mLock)
+            {
+                byte[] record;
+                try
+                {
+                    record = encodeRecord(mSection.mName, mClear, mChanges);
+                }
+                catch (IOException e)
+                {
+                    Log.e(LOGGER_TAG, "Failed to encode config record.", e);
+                    return -1;
+                }
+
+                if (mClear)
+                {
+                    mLiveValues -= mSection.mValues.size();
+                    mSection.mValues.clear();
+                    mLoggedValues++;
+                }
+
+                for (Map.Entry<String, Object> entry : mChanges.entrySet())
+                {
+                    Object oldValue = mSection.mValues.get(entry.getKey());
+                    Object newValue = entry.getValue();
+                    boolean changed = newValue == REMOVED ? oldValue != null
+                                                          : !newValue.equals(oldValue);
+                    if (changed) changedKeys.add(entry.getKey());
+                    setValue(mSection, entry.getKey(), newValue);
+                    mLoggedValues++;
+                }
+
+                // Queued while holding the index lock so records are queued in the same order
+                // their changes were applied to the index.
+                seq = mQueue.enqueue(record);
+
+                mChanges.clear();
+                mClear = false;
+
+                listeners = mSection.mListeners == null ? null :
+                            new ArrayList<SharedPreferences.OnSharedPreferenceChangeListener>(
+                                    mSection.mListeners.keySet());
+            }
+
+            if (listeners != null)
+            {
+                for (String key : changedKeys)
+                    for (SharedPreferences.OnSharedPreferenceChangeListener listener : listeners)
+                        listener.onSharedPreferenceChanged(mSection, key);
+            }
+
+            return seq;
+        }
+    }
+}
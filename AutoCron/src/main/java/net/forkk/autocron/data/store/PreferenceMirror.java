@@ -0,0 +1,97 @@
+/*
+ * Copyright 2013 Andrew Okin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.forkk.autocron.data.store;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+
+/**
+ * Keeps a SharedPreferences file in sync with a config store section while a preference screen is
+ * editing it.
+ * <p/>
+ * Preference screens can only edit SharedPreferences files, so when another config store backend
+ * is in use, the section is copied into a scratch SharedPreferences file. Any changes made on
+ * either side are copied over to the other until the mirror is closed.
+ * <p/>
+ * The scratch file must not have the section's own name, since that's the file the section was
+ * stored in before it was migrated to another backend.
+ */
+public class PreferenceMirror implements SharedPreferences.OnSharedPreferenceChangeListener
+{
+    private static final String SCRATCH_PREFIX = "mirror_";
+
+    private final String mScratchName;
+
+    private SharedPreferences mScratch;
+
+    private SharedPreferences mSection;
+
+    /**
+     * True while a change is being copied, so the copy doesn't get copied back.
+     */
+    private boolean mCopying;
+
+    public PreferenceMirror(Context context, ConfigStore store, String name)
+    {
+        mScratchName = SCRATCH_PREFIX + name;
+        mScratch = context.getSharedPreferences(mScratchName, Context.MODE_PRIVATE);
+        mSection = store.getPreferences(name);
+
+        SharedPreferences.Editor edit = mScratch.edit();
+        edit.clear();
+        ConfigStore.copyValues(mSection, edit);
+        edit.commit();
+
+        mScratch.registerOnSharedPreferenceChangeListener(this);
+        mSection.registerOnSharedPreferenceChangeListener(this);
+    }
+
+    /**
+     * @return The name of the scratch SharedPreferences file the preference screen should edit.
+     */
+    public String getScratchName()
+    {
+        return mScratchName;
+    }
+
+    /**
+     * Stops mirroring and clears the scratch file.
+     */
+    public void close()
+    {
+        mScratch.unregisterOnSharedPreferenceChangeListener(this);
+        mSection.unregisterOnSharedPreferenceChangeListener(this);
+        mScratch.edit().clear().commit();
+    }
+
+    @Override
+    public void onSharedPreferenceChanged(SharedPreferences preferences, String key)
+    {
+        if (mCopying) return;
+
+        SharedPreferences target = preferences == mScratch ? mSection : mScratch;
+        Object value = preferences.getAll().get(key);
+
+        mCopying = true;
+        SharedPreferences.Editor edit = target.edit();
+        if (value == null) edit.remove(key);
+        else ConfigStore.putValue(edit, key, value);
+        edit.apply();
+        mCopying = false;
+    }
+}
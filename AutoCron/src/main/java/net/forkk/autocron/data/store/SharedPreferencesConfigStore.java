@@ -0,0 +1,52 @@
+/*
+ * Copyright 2013 Andrew Okin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.forkk.autocron.data.store;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+
+/**
+ * Config store that keeps each section in its own SharedPreferences file.
+ */
+public class SharedPreferencesConfigStore extends ConfigStore
+{
+    private Context mContext;
+
+    public SharedPreferencesConfigStore(Context context)
+    {
+        mContext = context;
+    }
+
+    @Override
+    public SharedPreferences getPreferences(String name)
+    {
+        return mContext.getSharedPreferences(name, Context.MODE_PRIVATE);
+    }
+
+    @Override
+    public Backend getBackend()
+    {
+        return Backend.SHARED_PREFERENCES;
+    }
+
+    @Override
+    public void close()
+    {
+
+    }
+}
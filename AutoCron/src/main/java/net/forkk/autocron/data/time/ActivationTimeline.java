@@ -0,0 +1,248 @@
+/*
+ * Copyright 2013 Andrew Okin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.forkk.autocron.data.time;
+
+import java.util.Arrays;
+
+
+/**
+ * The times at which something is active over a fixed range of time, stored as a sorted list of
+ * intervals.
+ * <p/>
+ * Intervals are half open (start inclusive, end exclusive), never overlap and never touch. Lookups
+ * are binary searches, so asking whether it's active at a time or when it next changes is
+ * O(log n). Timelines are immutable.
+ */
+public class ActivationTimeline
+{
+    /**
+     * Returned by {@link #getNextTransition(long)} if there are no more transitions in range.
+     */
+    public static final long NO_TRANSITION = -1;
+
+    private final long mStart;
+
+    private final long mEnd;
+
+    /**
+     * Interval boundaries. Even indexes are starts and odd indexes are ends.
+     */
+    private final long[] mBounds;
+
+    private ActivationTimeline(long start, long end, long[] bounds)
+    {
+        mStart = start;
+        mEnd = end;
+        mBounds = bounds;
+    }
+
+    /**
+     * @return A timeline that is inactive over the whole given range.
+     */
+    public static ActivationTimeline never(long start, long end)
+    {
+        return new ActivationTimeline(start, end, new long[0]);
+    }
+
+    /**
+     * @return A timeline that is active over the whole given range.
+     */
+    public static ActivationTimeline always(long start, long end)
+    {
+        return new ActivationTimeline(start, end, start < end ? new long[]{ start, end }
+                                                              : new long[0]);
+    }
+
+    /**
+     * @return The start of the range this timeline covers.
+     */
+    public long getStart()
+    {
+        return mStart;
+    }
+
+    /**
+     * @return The end (exclusive) of the range this timeline covers.
+     */
+    public long getEnd()
+    {
+        return mEnd;
+    }
+
+    /**
+     * @return True if the given time is within the range this timeline covers.
+     */
+    public boolean covers(long time)
+    {
+        return time >= mStart && time < mEnd;
+    }
+
+    /**
+     * @return True if active at the given time. Times outside the range are never active.
+     */
+    public boolean isActiveAt(long time)
+    {
+        // An odd number of boundaries at or before the time means we're inside an interval.
+        return (countBoundsAtOrBefore(time) & 1) == 1;
+    }
+
+    /**
+     * @return The first time after the given time at which the activation state changes, or
+     * NO_TRANSITION if it doesn't change again within the range.
+     */
+    public long getNextTransition(long time)
+    {
+        int index = countBoundsAtOrBefore(time);
+        if (index >= mBounds.length) return NO_TRANSITION;
+        // A range's end isn't a transition if it's the end of the timeline, since we don't know
+        // what happens after it.
+        long transition = mBounds[index];
+        return transition < mEnd ? transition : NO_TRANSITION;
+    }
+
+    public int getIntervalCount()
+    {
+        return mBounds.length / 2;
+    }
+
+    public long getIntervalStart(int index)
+    {
+        return mBounds[index * 2];
+    }
+
+    public long getIntervalEnd(int index)
+    {
+        return mBounds[index * 2 + 1];
+    }
+
+    /**
+     * @return A timeline that is active when this one isn't, over the same range.
+     */
+    public ActivationTimeline invert()
+    {
+        Builder builder = new Builder(mStart, mEnd);
+        long last = mStart;
+        for (int i = 0; i < mBounds.length; i += 2)
+        {
+            builder.add(last, mBounds[i]);
+            last = mBounds[i + 1];
+        }
+        builder.add(last, mEnd);
+        return builder.build();
+    }
+
+    /**
+     * @return A timeline that is active only when both this one and the given one are, over the
+     * range both of them cover.
+     */
+    public ActivationTimeline intersect(ActivationTimeline other)
+    {
+        Builder builder = new Builder(Math.max(mStart, other.mStart), Math.min(mEnd, other.mEnd));
+        long[] a = mBounds;
+        long[] b = other.mBounds;
+        int i = 0;
+        int j = 0;
+        while (i < a.length && j < b.length)
+        {
+            long start = Math.max(a[i], b[j]);
+            long end = Math.min(a[i + 1], b[j + 1]);
+            builder.add(start, end);
+
+            // Move past whichever interval ends first.
+            if (a[i + 1] < b[j + 1]) i += 2;
+            else j += 2;
+        }
+        return builder.build();
+    }
+
+    private int countBoundsAtOrBefore(long time)
+    {
+        int low = 0;
+        int high = mBounds.length;
+        while (low < high)
+        {
+            int mid = (low + high) >>> 1;
+            if (mBounds[mid] <= time) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "ActivationTimeline{" + mStart + " to " + mEnd + ", " + Arrays.toString(mBounds) +
+               "}";
+    }
+
+
+    /**
+     * Builds a timeline from intervals added in order.
+     */
+    public static class Builder
+    {
+        private final long mStart;
+
+        private final long mEnd;
+
+        private long[] mBounds;
+
+        private int mCount;
+
+        /**
+         * Creates a builder for a timeline covering the given range. Intervals are clipped to it.
+         */
+        public Builder(long start, long end)
+        {
+            mStart = start;
+            mEnd = Math.max(start, end);
+            mBounds = new long[16];
+        }
+
+        /**
+         * Adds an interval. Intervals must be added in order of their start times. Empty intervals
+         * are ignored and overlapping or touching intervals are merged.
+         */
+        public Builder add(long start, long end)
+        {
+            start = Math.max(start, mStart);
+            end = Math.min(end, mEnd);
+            if (start >= end) return this;
+
+            if (mCount > 0)
+            {
+                if (start < mBounds[mCount - 2])
+                    throw new IllegalArgumentException("Intervals must be added in order.");
+                if (start <= mBounds[mCount - 1])
+                {
+                    mBounds[mCount - 1] = Math.max(mBounds[mCount - 1], end);
+                    return this;
+                }
+            }
+
+            if (mCount + 2 > mBounds.length) mBounds = Arrays.copyOf(mBounds, mBounds.length * 2);
+            mBounds[mCount++] = start;
+            mBounds[mCount++] = end;
+            return this;
+        }
+
+        public ActivationTimeline build()
+        {
+            return new ActivationTimeline(mStart, mEnd, Arrays.copyOf(mBounds, mCount));
+        }
+    }
+}
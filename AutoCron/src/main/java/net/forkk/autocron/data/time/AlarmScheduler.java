@@ -0,0 +1,149 @@
+/*
+ * Copyright 2013 Andrew Okin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.forkk.autocron.data.time;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import net.forkk.autocron.data.AutomationService;
+
+import java.util.TimeZone;
+
+
+/**
+ * Schedules all of the automation service's time based deadlines using a single OS alarm.
+ * <p/>
+ * The alarm is an RTC_WAKEUP alarm that is delivered to the automation service as an intent. The
+ * scheduler also listens for the clock being set and the time zone changing, and passes them on
+ * so the affected deadlines are worked out again.
+ * <p/>
+ * Deadlines should only be scheduled and dispatched on the automation service's engine thread.
+ */
+public class AlarmScheduler extends DeadlineScheduler implements AutomationService.IntentListener
+{
+    private static final String LOGGER_TAG = AutomationService.LOGGER_TAG;
+
+    /**
+     * Name of the SharedPreferences that stores the scheduler's settings.
+     */
+    public static final String PREF_SCHEDULER = "scheduler";
+
+    private static final String VALUE_COALESCE = "coalesce";
+
+    private final AutomationService mService;
+
+    private int mListenerId;
+
+    private PendingIntent mAlarmIntent;
+
+    public AlarmScheduler(AutomationService service)
+    {
+        super(Clock.SYSTEM, TimeZone.getDefault(),
+              getPreferences(service).getBoolean(VALUE_COALESCE, true));
+        mService = service;
+
+        mListenerId = service.registerIntentListener(this);
+        Intent intent = new Intent(service, AutomationService.class);
+        intent.putExtra(AutomationService.LISTENER_ID_EXTRA, mListenerId);
+        mAlarmIntent = PendingIntent.getService(service, mListenerId, intent,
+                                                PendingIntent.FLAG_UPDATE_CURRENT);
+
+        IntentFilter clockFilter = new IntentFilter();
+        clockFilter.addAction(Intent.ACTION_TIME_CHANGED);
+        clockFilter.addAction(Intent.ACTION_TIMEZONE_CHANGED);
+        service.registerReceiver(mClockReceiver, clockFilter);
+    }
+
+    /**
+     * Turns wakeup coalescing on or off. The setting is saved.
+     */
+    @Override
+    public void setCoalescing(boolean coalescing)
+    {
+        if (isCoalescing() == coalescing) return;
+        super.setCoalescing(coalescing);
+        getPreferences(mService).edit().putBoolean(VALUE_COALESCE, coalescing).apply();
+    }
+
+    /**
+     * Cancels the OS alarm. Called when the automation service is destroyed.
+     */
+    @Override
+    public void destroy()
+    {
+        super.destroy();
+        mService.unregisterIntentListener(mListenerId);
+        mService.unregisterReceiver(mClockReceiver);
+    }
+
+    @Override
+    public void onCommandReceived(Intent intent)
+    {
+        onWakeup();
+    }
+
+    @Override
+    protected void setWakeup(long time)
+    {
+        getAlarmManager().set(AlarmManager.RTC_WAKEUP, time, mAlarmIntent);
+    }
+
+    @Override
+    protected void cancelWakeup()
+    {
+        getAlarmManager().cancel(mAlarmIntent);
+    }
+
+    @Override
+    protected void logDebug(String message)
+    {
+        Log.d(LOGGER_TAG, message);
+    }
+
+    @Override
+    protected void onDispatchError(String message, RuntimeException e)
+    {
+        Log.e(LOGGER_TAG, message, e);
+    }
+
+    private BroadcastReceiver mClockReceiver = new BroadcastReceiver()
+    {
+        @Override
+        public void onReceive(Context context, Intent intent)
+        {
+            onClockChanged(TimeZone.getDefault());
+        }
+    };
+
+    private static SharedPreferences getPreferences(Context context)
+    {
+        return context.getSharedPreferences(PREF_SCHEDULER, Context.MODE_PRIVATE);
+    }
+
+    private AlarmManager getAlarmManager()
+    {
+        AlarmManager alarmManager = (AlarmManager) mService.getSystemService(Context.ALARM_SERVICE);
+        assert alarmManager != null;
+        return alarmManager;
+    }
+}
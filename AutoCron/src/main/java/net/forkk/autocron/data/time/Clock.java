@@ -0,0 +1,43 @@
+/*
+ * Copyright 2013 Andrew Okin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.forkk.autocron.data.time;
+
+/**
+ * Source of the current time.
+ * <p/>
+ * Time based components get the time from their scheduler's clock rather than the system clock,
+ * so their behaviour can be simulated with a {@link VirtualClock}.
+ */
+public interface Clock
+{
+    /**
+     * Clock that reads the system's wall clock.
+     */
+    public static final Clock SYSTEM = new Clock()
+    {
+        @Override
+        public long currentTimeMillis()
+        {
+            return System.currentTimeMillis();
+        }
+    };
+
+    /**
+     * @return The current time in milliseconds since the epoch.
+     */
+    public long currentTimeMillis();
+}
@@ -0,0 +1,446 @@
+/*
+ * Copyright 2013 Andrew Okin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.forkk.autocron.data.time;
+
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.Locale;
+import java.util.TimeZone;
+
+
+/**
+ * A compiled cron expression.
+ * <p/>
+ * Expressions have either five fields (minute, hour, day of month, month, day of week) or six
+ * fields with seconds first. Each field can be "*", "?", a number, a range ("1-5"), a step ("*&#47;15"
+ * or "10-40/10") or a comma separated list of those. Months and days of the week can also be given
+ * by their three letter English names, and Sunday can be either 0 or 7. As in standard cron, if
+ * both the day of month and day of week are restricted, a day matches if either of them matches.
+ * <p/>
+ * Each field is compiled into a bit mask, so finding the next fire time jumps straight to the next
+ * matching value of each field rather than stepping through every minute.
+ * <p/>
+ * Daylight saving time is handled the same way every time:
+ * <ul>
+ * <li>A local time that is skipped when the clocks go forward fires that much later instead (e.g.
+ * 02:30 fires at 03:30 if 02:00 to 03:00 is skipped).</li>
+ * <li>A local time that happens twice when the clocks go back only fires the first time.</li>
+ * </ul>
+ */
+public class CronExpression
+{
+    /**
+     * Returned by {@link #getNextFireTime(long, TimeZone)} if the expression never fires again.
+     */
+    public static final long NO_MATCH = -1;
+
+    /**
+     * How many years ahead to look for a match before giving up. Expressions like "0 0 29 2 *"
+     * only match once every few years.
+     */
+    private static final int MAX_YEARS = 28;
+
+    private static final String[] MONTH_NAMES =
+            { "JAN", "FEB", "MAR", "APR", "MAY", "JUN", "JUL", "AUG", "SEP", "OCT", "NOV", "DEC" };
+
+    private static final String[] DAY_NAMES = { "SUN", "MON", "TUE", "WED", "THU", "FRI", "SAT" };
+
+    private final String mExpression;
+
+    private final long mSeconds;
+
+    private final long mMinutes;
+
+    private final long mHours;
+
+    /**
+     * Days of the month, bits 1 to 31.
+     */
+    private final long mDaysOfMonth;
+
+    /**
+     * Months, bits 1 to 12.
+     */
+    private final long mMonths;
+
+    /**
+     * Days of the week, bits 0 (Sunday) to 6 (Saturday).
+     */
+    private final long mDaysOfWeek;
+
+    private final boolean mDayOfMonthRestricted;
+
+    private final boolean mDayOfWeekRestricted;
+
+    private CronExpression(String expression, long seconds, long minutes, long hours,
+                           long daysOfMonth, long months, long daysOfWeek,
+                           boolean dayOfMonthRestricted, boolean dayOfWeekRestricted)
+    {
+        mExpression = expression;
+        mSeconds = seconds;
+        mMinutes = minutes;
+        mHours = hours;
+        mDaysOfMonth = daysOfMonth;
+        mMonths = months;
+        mDaysOfWeek = daysOfWeek;
+        mDayOfMonthRestricted = dayOfMonthRestricted;
+        mDayOfWeekRestricted = dayOfWeekRestricted;
+    }
+
+    /**
+     * Parses and compiles the given cron expression.
+     *
+     * @throws IllegalArgumentException
+     *         If the expression isn't valid.
+     */
+    public static CronExpression parse(String expression)
+    {
+        if (expression == null) throw new IllegalArgumentException("Cron expression is null.");
+
+        String[] fields = expression.trim().split("\\s+");
+        if (fields.length != 5 && fields.length != 6)
+            throw new IllegalArgumentException("Cron expression must have 5 or 6 fields: \"" +
+                                               expression + "\"");
+
+        int i = 0;
+        long seconds = fields.length == 6 ? parseField(fields[i++], 0, 59, null) : 1L;
+        long minutes = parseField(fields[i++], 0, 59, null);
+        long hours = parseField(fields[i++], 0, 23, null);
+        String dayOfMonthField = fields[i++];
+        long daysOfMonth = parseField(dayOfMonthField, 1, 31, null);
+        long months = parseField(fields[i++], 1, 12, MONTH_NAMES);
+        String dayOfWeekField = fields[i];
+        long daysOfWeek = parseField(dayOfWeekField, 0, 7, DAY_NAMES);
+
+        // Sunday can be either 0 or 7.
+        if ((daysOfWeek & (1L << 7)) != 0) daysOfWeek = (daysOfWeek | 1L) & ~(1L << 7);
+
+        return new CronExpression(expression, seconds, minutes, hours, daysOfMonth, months,
+                                  daysOfWeek, !isWildcard(dayOfMonthField),
+                                  !isWildcard(dayOfWeekField));
+    }
+
+    private static boolean isWildcard(String field)
+    {
+        return field.equals("*") || field.equals("?");
+    }
+
+    /**
+     * Parses a single field into a bit mask with a bit set for each matching value.
+     *
+     * @param names
+     *         Names that can be used instead of numbers, where the first name is min, or null.
+     */
+    private static long parseField(String field, int min, int max, String[] names)
+    {
+        if (field.equals("?")) field = "*";
+
+        long mask = 0;
+        // Keep trailing empty parts, so a stray comma is rejected instead of ignored.
+        for (String part : field.split(",", -1))
+        {
+            if (part.isEmpty())
+                throw new IllegalArgumentException("Empty list item in cron field \"" + field +
+                                                   "\"");
+
+            int step = 1;
+            int slash = part.indexOf('/');
+            if (slash >= 0)
+            {
+                step = parseNumber(part.substring(slash + 1), 1, max, null, field);
+                part = part.substring(0, slash);
+            }
+
+            int start;
+            int end;
+            if (part.equals("*"))
+            {
+                start = min;
+                end = max;
+            }
+            else
+            {
+                int dash = part.indexOf('-');
+                if (dash >= 0)
+                {
+                    start = parseNumber(part.substring(0, dash), min, max, names, field);
+                    end = parseNumber(part.substring(dash + 1), min, max, names, field);
+                    if (end < start)
+                        throw new IllegalArgumentException("Invalid range in cron field \"" +
+                                                           field + "\"");
+                }
+                else
+                {
+                    start = parseNumber(part, min, max, names, field);
+                    // "5/15" means from 5 to the end in steps of 15.
+                    end = slash >= 0 ? max : start;
+                }
+            }
+
+            for (int value = start; value <= end; value += step)
+                mask |= 1L << value;
+        }
+        if (mask == 0)
+            throw new IllegalArgumentException("Cron field \"" + field + "\" matches nothing");
+        return mask;
+    }
+
+    private static int parseNumber(String value, int min, int max, String[] names, String field)
+    {
+        if (names != null)
+        {
+            String upper = value.toUpperCase(Locale.US);
+            for (int i = 0; i < names.length; i++)
+                if (names[i].equals(upper)) return min + i;
+        }
+
+        int number;
+        try
+        {
+            number = Integer.parseInt(value);
+        }
+        catch (NumberFormatException e)
+        {
+            throw new IllegalArgumentException("Invalid value \"" + value + "\" in cron field \"" +
+                                               field + "\"", e);
+        }
+        if (number < min || number > max)
+            throw new IllegalArgumentException("Value " + number + " out of range in cron field \"" +
+                                               field + "\"");
+        return number;
+    }
+
+    /**
+     * @return The expression this was compiled from.
+     */
+    public String getExpression()
+    {
+        return mExpression;
+    }
+
+    /**
+     * Finds the first time after the given time that this expression fires.
+     *
+     * @param after
+     *         Time in milliseconds since the epoch. The result is always after this.
+     * @param timeZone
+     *         The time zone the expression's fields are in.
+     *
+     * @return The next fire time in milliseconds since the epoch, or NO_MATCH if the expression
+     * never fires again (e.g. "0 0 31 2 *").
+     */
+    public long getNextFireTime(long after, TimeZone timeZone)
+    {
+        // Local times are handled as if they were UTC times, so they can be split into fields
+        // without any daylight saving time getting in the way.
+        long local = TimeMath.toLocal(after, timeZone);
+        while (true)
+        {
+            // Round down to the second and step forward one second.
+            local = local - TimeMath.floorMod(local, 1000) + 1000;
+            local = nextLocalMatch(local);
+            if (local == NO_MATCH) return NO_MATCH;
+
+            long time = TimeMath.toInstant(local, timeZone);
+            // During the second pass of an overlap, local times that already happened map back to
+            // their first occurrence, which is before the given time, so keep looking.
+            if (time > after) return time;
+        }
+    }
+
+    /**
+     * Finds the first local time at or after the given local time that matches every field.
+     */
+    private long nextLocalMatch(long local)
+    {
+        GregorianCalendar cal = new GregorianCalendar(TimeZone.getTimeZone("UTC"), Locale.US);
+        cal.setTimeInMillis(local);
+        int year = cal.get(Calendar.YEAR);
+        int month = cal.get(Calendar.MONTH) + 1;
+        int day = cal.get(Calendar.DAY_OF_MONTH);
+        int hour = cal.get(Calendar.HOUR_OF_DAY);
+        int minute = cal.get(Calendar.MINUTE);
+        int second = cal.get(Calendar.SECOND);
+        int lastYear = year + MAX_YEARS;
+
+        while (year <= lastYear)
+        {
+            // Month.
+            int nextMonth = nextBit(mMonths, month, 12);
+            if (nextMonth < 0)
+            {
+                year++;
+                month = 1;
+                day = 1;
+                hour = minute = second = 0;
+                continue;
+            }
+            if (nextMonth != month)
+            {
+                month = nextMonth;
+                day = 1;
+                hour = minute = second = 0;
+            }
+
+            // Day.
+            int nextDay = nextDay(year, month, day);
+            if (nextDay < 0)
+            {
+                month++;
+                day = 1;
+                hour = minute = second = 0;
+                if (month > 12)
+                {
+                    year++;
+                    month = 1;
+                }
+                continue;
+            }
+            if (nextDay != day)
+            {
+                day = nextDay;
+                hour = minute = second = 0;
+            }
+
+            // Hour.
+            int nextHour = nextBit(mHours, hour, 23);
+            if (nextHour < 0)
+            {
+                // Move to the next day. Let the day search handle running off the end of the month.
+                day++;
+                hour = minute = second = 0;
+                continue;
+            }
+            if (nextHour != hour)
+            {
+                hour = nextHour;
+                minute = second = 0;
+            }
+
+            // Minute.
+            int nextMinute = nextBit(mMinutes, minute, 59);
+            if (nextMinute < 0)
+            {
+                hour++;
+                minute = second = 0;
+                if (hour > 23)
+                {
+                    day++;
+                    hour = 0;
+                }
+                continue;
+            }
+            if (nextMinute != minute)
+            {
+                minute = nextMinute;
+                second = 0;
+            }
+
+            // Second.
+            int nextSecond = nextBit(mSeconds, second, 59);
+            if (nextSecond < 0)
+            {
+                minute++;
+                second = 0;
+                if (minute > 59)
+                {
+                    hour++;
+                    minute = 0;
+                    if (hour > 23)
+                    {
+                        day++;
+                        hour = 0;
+                    }
+                }
+                continue;
+            }
+            second = nextSecond;
+
+            cal.clear();
+            cal.set(year, month - 1, day, hour, minute, second);
+            return cal.getTimeInMillis();
+        }
+        return NO_MATCH;
+    }
+
+    /**
+     * @return The first day at or after the given day in the given month that matches, or -1.
+     */
+    private int nextDay(int year, int month, int day)
+    {
+        int length = daysInMonth(year, month);
+        int dayOfWeek = dayOfWeek(year, month, day);
+        for (; day <= length; day++, dayOfWeek = (dayOfWeek + 1) % 7)
+        {
+            boolean domMatch = (mDaysOfMonth & (1L << day)) != 0;
+            boolean dowMatch = (mDaysOfWeek & (1L << dayOfWeek)) != 0;
+
+            boolean match;
+            if (mDayOfMonthRestricted && mDayOfWeekRestricted) match = domMatch || dowMatch;
+            else match = domMatch && dowMatch;
+
+            if (match) return day;
+        }
+        return -1;
+    }
+
+    /**
+     * @return The lowest set bit in the given mask that is at least from and at most to, or -1.
+     */
+    private static int nextBit(long mask, int from, int to)
+    {
+        if (from > to) return -1;
+        long bits = mask & (-1L << from);
+        if (bits == 0) return -1;
+        int bit = Long.numberOfTrailingZeros(bits);
+        return bit <= to ? bit : -1;
+    }
+
+    private static int daysInMonth(int year, int month)
+    {
+        switch (month)
+        {
+        case 2:
+            boolean leap = (year % 4 == 0 && year % 100 != 0) || year % 400 == 0;
+            return leap ? 29 : 28;
+        case 4:
+        case 6:
+        case 9:
+        case 11:
+            return 30;
+        default:
+            return 31;
+        }
+    }
+
+    /**
+     * @return The day of the week of the given date, 0 for Sunday to 6 for Saturday.
+     */
+    private static int dayOfWeek(int year, int month, int day)
+    {
+        // Sakamoto's method.
+        int[] offsets = { 0, 3, 2, 5, 0, 3, 5, 1, 4, 6, 2, 4 };
+        if (month < 3) year--;
+        return (year + year / 4 - year / 100 + year / 400 + offsets[month - 1] + day) % 7;
+    }
+
+    @Override
+    public String toString()
+    {
+        return mExpression;
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2013 Andrew Okin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.forkk.autocron.data.time;
+
+
+/**
+ * Fires at the times matched by a cron expression, with a single deadline at the next one.
+ * <p/>
+ * This is how cron triggers schedule themselves. Nothing here needs Android, so simulations run
+ * the same scheduling code as the triggers.
+ */
+public class CronSchedule implements Deadline.ClockListener
+{
+    private final DeadlineScheduler mScheduler;
+
+    private final Listener mListener;
+
+    /**
+     * The expression to follow, or null to never fire.
+     */
+    private CronExpression mExpression;
+
+    /**
+     * Null while the schedule is stopped.
+     */
+    private Deadline mDeadline;
+
+    public CronSchedule(DeadlineScheduler scheduler, CronExpression expression, Listener listener)
+    {
+        mScheduler = scheduler;
+        mExpression = expression;
+        mListener = listener;
+    }
+
+    public void start()
+    {
+        mDeadline = new Deadline(this);
+        scheduleNext(mScheduler.currentTimeMillis());
+    }
+
+    public void stop()
+    {
+        if (mDeadline == null) return;
+        mScheduler.cancel(mDeadline);
+        mDeadline = null;
+    }
+
+    /**
+     * Sets the expression to follow, and schedules its next fire time if the schedule is running.
+     *
+     * @param expression
+     *         The expression, or null to never fire.
+     */
+    public void setExpression(CronExpression expression)
+    {
+        mExpression = expression;
+        if (mDeadline != null) scheduleNext(mScheduler.currentTimeMillis());
+    }
+
+    /**
+     * Schedules the deadline for the first fire time after the given time.
+     */
+    private void scheduleNext(long after)
+    {
+        long next = mExpression != null
+                    ? mExpression.getNextFireTime(after, mScheduler.getTimeZone())
+                    : CronExpression.NO_MATCH;
+        if (next == CronExpression.NO_MATCH) mScheduler.cancel(mDeadline);
+        else mScheduler.schedule(mDeadline, next);
+    }
+
+    @Override
+    public void onDeadline(Deadline deadline, long now)
+    {
+        mListener.onCronFire();
+
+        // The listener may have stopped the schedule. Otherwise, schedule from now rather than
+        // the deadline's time so a late wakeup doesn't fire a burst of catch-up triggers.
+        if (mDeadline != null) scheduleNext(Math.max(now, deadline.getTime()));
+    }
+
+    @Override
+    public void onClockChanged(Deadline deadline, long now)
+    {
+        scheduleNext(now);
+    }
+
+
+    /**
+     * Interface for being told when a cron schedule fires.
+     */
+    public interface Listener
+    {
+        public void onCronFire();
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2013 Andrew Okin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.forkk.autocron.data.time;
+
+/**
+ * A point in time that something wants to be woken up at.
+ * <p/>
+ * Each deadline can be scheduled at one time at a time. Scheduling it again moves it rather than
+ * adding a second entry, so components can keep a deadline around and reschedule it each time it
+ * fires.
+ * <p/>
+ * A deadline can also have a tolerance, which is how late it is allowed to fire. The scheduler uses
+ * this to fire deadlines that are close together in a single wakeup.
+ */
+public class Deadline
+{
+    /**
+     * Time value of a deadline that isn't scheduled.
+     */
+    public static final long NOT_SCHEDULED = Long.MIN_VALUE;
+
+    private final Listener mListener;
+
+    private long mTime;
+
+    private long mTolerance;
+
+    private long mScheduledAt;
+
+    /**
+     * Position of this deadline in the queue's heap ordered by time, or -1 if it isn't queued.
+     */
+    int mHeapIndex;
+
+    /**
+     * Position of this deadline in the queue's heap ordered by latest time.
+     */
+    int mLatestHeapIndex;
+
+    public Deadline(Listener listener)
+    {
+        mListener = listener;
+        mTime = NOT_SCHEDULED;
+        mHeapIndex = -1;
+        mLatestHeapIndex = -1;
+    }
+
+    /**
+     * @return The time this deadline is scheduled for, or was last scheduled for, in milliseconds
+     * since the epoch. NOT_SCHEDULED if it has never been scheduled.
+     */
+    public long getTime()
+    {
+        return mTime;
+    }
+
+    void setTime(long time)
+    {
+        mTime = time;
+    }
+
+    /**
+     * @return How late this deadline is allowed to fire, in milliseconds.
+     */
+    public long getTolerance()
+    {
+        return mTolerance;
+    }
+
+    void setTolerance(long tolerance)
+    {
+        mTolerance = tolerance;
+    }
+
+    /**
+     * @return The time according to the system clock when this deadline was last scheduled.
+     */
+    public long getScheduledAt()
+    {
+        return mScheduledAt;
+    }
+
+    void setScheduledAt(long scheduledAt)
+    {
+        mScheduledAt = scheduledAt;
+    }
+
+    /**
+     * @return The latest time this deadline is allowed to fire at.
+     */
+    public long getLatestTime()
+    {
+        return mTime + mTolerance;
+    }
+
+    public boolean isScheduled()
+    {
+        return mHeapIndex >= 0;
+    }
+
+    public Listener getListener()
+    {
+        return mListener;
+    }
+
+    /**
+     * Interface for things that want to be notified when a deadline passes.
+     */
+    public static interface Listener
+    {
+        /**
+         * Called when the given deadline passes. The deadline is no longer scheduled at this
+         * point, so it can be scheduled again from here.
+         *
+         * @param deadline
+         *         The deadline that passed.
+         * @param now
+         *         The current time. All deadlines dispatched in the same batch get the same time.
+         */
+        public void onDeadline(Deadline deadline, long now);
+    }
+
+    /**
+     * Interface for listeners whose deadlines are worked out from the wall clock, such as "the
+     * next 9:00". These deadlines have to be worked out again when the time zone changes or the
+     * clock is set.
+     */
+    public static interface ClockListener extends Listener
+    {
+        /**
+         * Called when the time zone or the clock changed in a way that may have moved the given
+         * deadline. The listener should work out the deadline's time again and reschedule it.
+         * Deadlines that are already due after the change are dispatched afterwards.
+         *
+         * @param deadline
+         *         The deadline that may have moved.
+         * @param now
+         *         The current time after the change.
+         */
+        public void onClockChanged(Deadline deadline, long now);
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright 2013 Andrew Okin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.forkk.autocron.data.time;
+
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * Priority queue of deadlines ordered by time.
+ * <p/>
+ * This is made of two binary heaps: one ordered by each deadline's time and one ordered by the
+ * latest time each deadline is allowed to fire at. Each deadline remembers its position in both,
+ * so deadlines can be moved or removed in O(log n) without searching for them. This class isn't
+ * thread safe.
+ */
+public class DeadlineQueue
+{
+    private Deadline[] mHeap;
+
+    private Deadline[] mLatestHeap;
+
+    private int mSize;
+
+    public DeadlineQueue()
+    {
+        mHeap = new Deadline[16];
+        mLatestHeap = new Deadline[16];
+    }
+
+    /**
+     * Schedules the given deadline at the given time, moving it if it's already scheduled.
+     *
+     * @param deadline
+     *         The deadline to schedule.
+     * @param time
+     *         The time the deadline is due at.
+     * @param tolerance
+     *         How late the deadline is allowed to fire, in milliseconds.
+     */
+    public void schedule(Deadline deadline, long time, long tolerance)
+    {
+        if (time == Deadline.NOT_SCHEDULED)
+            throw new IllegalArgumentException("Can't schedule a deadline at NOT_SCHEDULED.");
+        if (tolerance < 0) throw new IllegalArgumentException("Tolerance can't be negative.");
+
+        if (deadline.mHeapIndex >= 0)
+        {
+            deadline.setTime(time);
+            deadline.setTolerance(tolerance);
+            fix(mHeap, false, deadline.mHeapIndex);
+            fix(mLatestHeap, true, deadline.mLatestHeapIndex);
+            return;
+        }
+
+        if (mSize == mHeap.length)
+        {
+            mHeap = Arrays.copyOf(mHeap, mSize * 2);
+            mLatestHeap = Arrays.copyOf(mLatestHeap, mSize * 2);
+        }
+        deadline.setTime(time);
+        deadline.setTolerance(tolerance);
+        mHeap[mSize] = deadline;
+        mLatestHeap[mSize] = deadline;
+        setIndex(deadline, false, mSize);
+        setIndex(deadline, true, mSize);
+        mSize++;
+        siftUp(mHeap, false, mSize - 1);
+        siftUp(mLatestHeap, true, mSize - 1);
+    }
+
+    /**
+     * Removes the given deadline from the queue if it's scheduled.
+     *
+     * @return True if the deadline was scheduled.
+     */
+    public boolean cancel(Deadline deadline)
+    {
+        if (deadline.mHeapIndex < 0) return false;
+
+        remove(deadline);
+        return true;
+    }
+
+    /**
+     * @return The earliest deadline, or null if the queue is empty.
+     */
+    public Deadline peek()
+    {
+        return mSize > 0 ? mHeap[0] : null;
+    }
+
+    /**
+     * @return The earliest time that any deadline must fire by, or NOT_SCHEDULED if the queue is
+     * empty. Waking up at this time fires as many deadlines as possible without any of them firing
+     * later than their tolerance allows.
+     */
+    public long getLatestWakeTime()
+    {
+        return mSize > 0 ? mLatestHeap[0].getLatestTime() : Deadline.NOT_SCHEDULED;
+    }
+
+    /**
+     * Removes every deadline that is due at the given time and adds them to the given list, earliest
+     * first.
+     *
+     * @return The number of deadlines removed.
+     */
+    public int pollDue(long now, List<Deadline> out)
+    {
+        int count = 0;
+        while (mSize > 0 && mHeap[0].getTime() <= now)
+        {
+            Deadline deadline = mHeap[0];
+            remove(deadline);
+            out.add(deadline);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Gets the deadline at the given position in the queue. Positions aren't in any particular
+     * order, and change whenever the queue is modified.
+     */
+    public Deadline get(int index)
+    {
+        if (index < 0 || index >= mSize) throw new IndexOutOfBoundsException("Index: " + index);
+        return mHeap[index];
+    }
+
+    public int size()
+    {
+        return mSize;
+    }
+
+    public boolean isEmpty()
+    {
+        return mSize == 0;
+    }
+
+    private void remove(Deadline deadline)
+    {
+        int index = deadline.mHeapIndex;
+        int latestIndex = deadline.mLatestHeapIndex;
+        mSize--;
+        removeAt(mHeap, false, index);
+        removeAt(mLatestHeap, true, latestIndex);
+        deadline.mHeapIndex = -1;
+        deadline.mLatestHeapIndex = -1;
+    }
+
+    /**
+     * Fills the gap at the given index with the heap's last entry. mSize must already have been
+     * decremented.
+     */
+    private void removeAt(Deadline[] heap, boolean latest, int index)
+    {
+        Deadline last = heap[mSize];
+        heap[mSize] = null;
+        if (index < mSize)
+        {
+            heap[index] = last;
+            setIndex(last, latest, index);
+            fix(heap, latest, index);
+        }
+    }
+
+    private void fix(Deadline[] heap, boolean latest, int index)
+    {
+        Deadline deadline = heap[index];
+        siftDown(heap, latest, index);
+        siftUp(heap, latest, getIndex(deadline, latest));
+    }
+
+    private void siftUp(Deadline[] heap, boolean latest, int index)
+    {
+        Deadline deadline = heap[index];
+        long key = getKey(deadline, latest);
+        while (index > 0)
+        {
+            int parent = (index - 1) >>> 1;
+            if (getKey(heap[parent], latest) <= key) break;
+            heap[index] = heap[parent];
+            setIndex(heap[index], latest, index);
+            index = parent;
+        }
+        heap[index] = deadline;
+        setIndex(deadline, latest, index);
+    }
+
+    private void siftDown(Deadline[] heap, boolean latest, int index)
+    {
+        Deadline deadline = heap[index];
+        long key = getKey(deadline, latest);
+        int half = mSize >>> 1;
+        while (index < half)
+        {
+            int child = 2 * index + 1;
+            int right = child + 1;
+            if (right < mSize && getKey(heap[right], latest) < getKey(heap[child], latest))
+                child = right;
+            if (key <= getKey(heap[child], latest)) break;
+            heap[index] = heap[child];
+            setIndex(heap[index], latest, index);
+            index = child;
+        }
+        heap[index] = deadline;
+        setIndex(deadline, latest, index);
+    }
+
+    private static long getKey(Deadline deadline, boolean latest)
+    {
+        return latest ? deadline.getLatestTime() : deadline.getTime();
+    }
+
+    private static int getIndex(Deadline deadline, boolean latest)
+    {
+        return latest ? deadline.mLatestHeapIndex : deadline.mHeapIndex;
+    }
+
+    private static void setIndex(Deadline deadline, boolean latest, int index)
+    {
+        if (latest) deadline.mLatestHeapIndex = index;
+        else deadline.mHeapIndex = index;
+    }
+}
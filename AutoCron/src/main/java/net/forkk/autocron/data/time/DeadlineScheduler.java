@@ -0,0 +1,452 @@
+/*
+ * Copyright 2013 Andrew Okin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.forkk.autocron.data.time;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimeZone;
+
+
+/**
+ * Schedules time based deadlines using a single wakeup.
+ * <p/>
+ * Deadlines are kept in a queue, and only the earliest one has a wakeup set for it. When the wakeup
+ * happens, every deadline that is due is dispatched in one batch and the wakeup is set again for
+ * the next one. This means any number of time rules only cost one wakeup per distinct time.
+ * <p/>
+ * When coalescing is on, the wakeup is set for the latest time that doesn't make any deadline fire
+ * later than its tolerance allows, rather than for the earliest deadline. Deadlines whose windows
+ * overlap then share a single wakeup.
+ * <p/>
+ * When the clock is set or the time zone changes, deadlines whose listeners are {@link
+ * Deadline.ClockListener}s and whose wall clock time may have moved are worked out again by their
+ * listeners.
+ * <p/>
+ * This class doesn't know where the time or the wakeups come from. {@link AlarmScheduler} uses the
+ * system clock and the OS alarm, and {@link VirtualScheduler} uses a virtual clock so schedules can
+ * be simulated without waiting for them. Deadlines should only be scheduled and dispatched on one
+ * thread.
+ */
+public abstract class DeadlineScheduler
+{
+    private static final long DAY_MS = 24 * 60 * 60 * 1000;
+
+    private final Clock mClock;
+
+    private final DeadlineQueue mQueue;
+
+    /**
+     * The time the wakeup is currently set for, or NOT_SCHEDULED if it isn't set.
+     */
+    private long mArmedTime;
+
+    /**
+     * True while due deadlines are being dispatched. The wakeup is updated once afterwards rather
+     * than every time a listener reschedules its deadline.
+     */
+    private boolean mDispatching;
+
+    private ArrayList<Deadline> mDueList;
+
+    private boolean mCoalescing;
+
+    private TimeZone mTimeZone;
+
+    // Wakeup statistics.
+    private long mStatsStartTime;
+
+    private long mWakeups;
+
+    private long mDeadlinesFired;
+
+    private long mSavedWakeups;
+
+    protected DeadlineScheduler(Clock clock, TimeZone timeZone, boolean coalescing)
+    {
+        mClock = clock;
+        mQueue = new DeadlineQueue();
+        mArmedTime = Deadline.NOT_SCHEDULED;
+        mDueList = new ArrayList<Deadline>();
+        mCoalescing = coalescing;
+        mTimeZone = timeZone;
+        mStatsStartTime = clock.currentTimeMillis();
+    }
+
+    /**
+     * Schedules the given deadline at the given time, moving it if it's already scheduled. If the
+     * time has already passed, the deadline is dispatched as soon as possible.
+     */
+    public void schedule(Deadline deadline, long time)
+    {
+        schedule(deadline, time, 0);
+    }
+
+    /**
+     * Schedules the given deadline at the given time, moving it if it's already scheduled.
+     *
+     * @param tolerance
+     *         How late the deadline is allowed to fire, in milliseconds. When coalescing is on, the
+     *         deadline may fire anywhere in this window so it can share a wakeup with others.
+     */
+    public void schedule(Deadline deadline, long time, long tolerance)
+    {
+        mQueue.schedule(deadline, time, tolerance);
+        deadline.setScheduledAt(mClock.currentTimeMillis());
+        updateWakeup();
+    }
+
+    /**
+     * Cancels the given deadline if it's scheduled.
+     */
+    public void cancel(Deadline deadline)
+    {
+        if (mQueue.cancel(deadline)) updateWakeup();
+    }
+
+    /**
+     * @return The clock that deadlines are scheduled against.
+     */
+    public Clock getClock()
+    {
+        return mClock;
+    }
+
+    /**
+     * @return The current time according to this scheduler's clock. Time based components should
+     * use this rather than the system clock.
+     */
+    public long currentTimeMillis()
+    {
+        return mClock.currentTimeMillis();
+    }
+
+    /**
+     * Gets the time zone that deadlines should be worked out in. TimeZone.getDefault() returns a
+     * new copy every time, so this is cached and only changed when the time zone changes.
+     */
+    public TimeZone getTimeZone()
+    {
+        return mTimeZone;
+    }
+
+    /**
+     * @return The number of deadlines that are scheduled.
+     */
+    public int getScheduledCount()
+    {
+        return mQueue.size();
+    }
+
+    public boolean isCoalescing()
+    {
+        return mCoalescing;
+    }
+
+    /**
+     * Turns wakeup coalescing on or off.
+     */
+    public void setCoalescing(boolean coalescing)
+    {
+        if (mCoalescing == coalescing) return;
+        mCoalescing = coalescing;
+        updateWakeup();
+    }
+
+    /**
+     * @return Statistics about how many wakeups the scheduler has done and saved.
+     */
+    public WakeupStats getStats()
+    {
+        return new WakeupStats(mClock.currentTimeMillis() - mStatsStartTime, mWakeups,
+                               mDeadlinesFired, mSavedWakeups);
+    }
+
+    /**
+     * Cancels the wakeup. Called when the scheduler is no longer needed.
+     */
+    public void destroy()
+    {
+        clearWakeup();
+    }
+
+    /**
+     * Called when the wakeup that was set happens. Dispatches every deadline that is due.
+     */
+    protected void onWakeup()
+    {
+        // The wakeup has happened, so it isn't set anymore.
+        long wakeupTime = mArmedTime;
+        mArmedTime = Deadline.NOT_SCHEDULED;
+        dispatchDue(mClock.currentTimeMillis(), wakeupTime);
+    }
+
+    /**
+     * Dispatches every deadline that is due at the given time and sets the wakeup for the next one.
+     */
+    protected void dispatchDue(long now)
+    {
+        dispatchDue(now, Deadline.NOT_SCHEDULED);
+    }
+
+    /**
+     * Dispatches every deadline that is due at the given time and sets the wakeup for the next one.
+     *
+     * @param wakeupTime
+     *         The time the wakeup that caused this was set for, or NOT_SCHEDULED if it wasn't
+     *         caused by a wakeup.
+     */
+    private void dispatchDue(long now, long wakeupTime)
+    {
+        mDispatching = true;
+        try
+        {
+            mQueue.pollDue(now, mDueList);
+            if (!mDueList.isEmpty())
+            {
+                logDebug("Dispatching " + mDueList.size() + " deadline(s).");
+                countWakeup(mDueList, wakeupTime);
+            }
+
+            for (Deadline deadline : mDueList)
+            {
+                try
+                {
+                    deadline.getListener().onDeadline(deadline, now);
+                }
+                catch (RuntimeException e)
+                {
+                    // One broken component shouldn't stop everything else from being dispatched.
+                    onDispatchError("Error dispatching deadline.", e);
+                }
+            }
+        }
+        finally
+        {
+            mDueList.clear();
+            mDispatching = false;
+        }
+        updateWakeup();
+    }
+
+    /**
+     * Called when the clock is set or the time zone changes. Only deadlines whose wall clock time
+     * may have moved are worked out again, then anything the clock jumped past is dispatched.
+     *
+     * @param timeZone
+     *         The time zone after the change.
+     */
+    protected void onClockChanged(TimeZone timeZone)
+    {
+        long now = mClock.currentTimeMillis();
+        TimeZone oldZone = mTimeZone;
+        mTimeZone = timeZone;
+
+        // Collect the affected deadlines first, since rescheduling them reorders the queue.
+        for (int i = 0; i < mQueue.size(); i++)
+        {
+            Deadline deadline = mQueue.get(i);
+            if (deadline.getListener() instanceof Deadline.ClockListener &&
+                hasClockMoved(deadline, oldZone, now))
+                mDueList.add(deadline);
+        }
+        logDebug("Clock changed. Rescheduling " + mDueList.size() + " of " + mQueue.size() +
+                 " deadline(s).");
+
+        mDispatching = true;
+        try
+        {
+            for (Deadline deadline : mDueList)
+            {
+                try
+                {
+                    ((Deadline.ClockListener) deadline.getListener()).onClockChanged(deadline, now);
+                }
+                catch (RuntimeException e)
+                {
+                    onDispatchError("Error rescheduling deadline.", e);
+                }
+            }
+        }
+        finally
+        {
+            mDueList.clear();
+            mDispatching = false;
+        }
+        dispatchDue(now);
+    }
+
+    /**
+     * Checks whether the clock change could have moved the given deadline.
+     * <p/>
+     * If the clock went back past the time the deadline was worked out at, there may be wall clock
+     * times between now and the deadline that it skipped over. If the time zone changed, the
+     * deadline's wall clock time maps to a different time wherever the old and new zones' offsets
+     * differ, either now or at the deadline. Deadlines that don't fall into either case still fire
+     * at the right time, and jumping forward just makes some of them due.
+     */
+    private boolean hasClockMoved(Deadline deadline, TimeZone oldZone, long now)
+    {
+        if (deadline.getScheduledAt() > now) return true;
+        return oldZone.getOffset(now) != mTimeZone.getOffset(now) ||
+               oldZone.getOffset(deadline.getTime()) != mTimeZone.getOffset(deadline.getTime());
+    }
+
+    /**
+     * Updates the wakeup statistics for a batch of deadlines that were dispatched together.
+     * Without coalescing, each distinct time in the batch would have needed its own wakeup. Only
+     * deadlines that were held back to share the wakeup count as saved ones. Anything due after
+     * the wakeup's time was only picked up because the wakeup came late, and would have needed a
+     * wakeup of its own either way.
+     */
+    private void countWakeup(List<Deadline> batch, long wakeupTime)
+    {
+        mWakeups++;
+        mDeadlinesFired += batch.size();
+        if (!mCoalescing || wakeupTime == Deadline.NOT_SCHEDULED) return;
+
+        // The batch is sorted by time, so equal times are next to each other. The first time
+        // would have needed a wakeup anyway.
+        long lastTime = batch.get(0).getTime();
+        for (Deadline deadline : batch)
+        {
+            long time = deadline.getTime();
+            if (time > wakeupTime) break;
+            if (time != lastTime) mSavedWakeups++;
+            lastTime = time;
+        }
+    }
+
+    /**
+     * Sets the wakeup for the next deadline, if it isn't already set for it.
+     */
+    protected void updateWakeup()
+    {
+        if (mDispatching) return;
+
+        Deadline next = mQueue.peek();
+        long time;
+        if (next == null) time = Deadline.NOT_SCHEDULED;
+        else if (mCoalescing) time = mQueue.getLatestWakeTime();
+        else time = next.getTime();
+        if (time == mArmedTime) return;
+
+        if (next == null) cancelWakeup();
+        else setWakeup(time);
+        mArmedTime = time;
+    }
+
+    /**
+     * Cancels the wakeup and forgets that it was set.
+     */
+    protected void clearWakeup()
+    {
+        cancelWakeup();
+        mArmedTime = Deadline.NOT_SCHEDULED;
+    }
+
+    /**
+     * Sets the wakeup for the given time, replacing any wakeup that was set before. When it
+     * happens, {@link #onWakeup()} should be called.
+     */
+    protected abstract void setWakeup(long time);
+
+    /**
+     * Cancels the wakeup if it's set.
+     */
+    protected abstract void cancelWakeup();
+
+    /**
+     * Called with debug messages about what the scheduler is doing.
+     */
+    protected abstract void logDebug(String message);
+
+    /**
+     * Called when a deadline's listener throws an exception.
+     */
+    protected abstract void onDispatchError(String message, RuntimeException e);
+
+
+    /**
+     * Snapshot of the scheduler's wakeup statistics.
+     */
+    public static class WakeupStats
+    {
+        private final long mElapsedTime;
+
+        private final long mWakeups;
+
+        private final long mDeadlinesFired;
+
+        private final long mSavedWakeups;
+
+        public WakeupStats(long elapsedTime, long wakeups, long deadlinesFired, long savedWakeups)
+        {
+            mElapsedTime = elapsedTime;
+            mWakeups = wakeups;
+            mDeadlinesFired = deadlinesFired;
+            mSavedWakeups = savedWakeups;
+        }
+
+        /**
+         * @return Time in milliseconds that these statistics were collected over.
+         */
+        public long getElapsedTime()
+        {
+            return mElapsedTime;
+        }
+
+        /**
+         * @return The number of times the alarm went off and deadlines were dispatched.
+         */
+        public long getWakeups()
+        {
+            return mWakeups;
+        }
+
+        /**
+         * @return The number of deadlines dispatched.
+         */
+        public long getDeadlinesFired()
+        {
+            return mDeadlinesFired;
+        }
+
+        /**
+         * @return The number of wakeups that were avoided by coalescing deadlines.
+         */
+        public long getSavedWakeups()
+        {
+            return mSavedWakeups;
+        }
+
+        /**
+         * @return The average number of wakeups saved per day. Counts from less than a day are
+         * reported as they are rather than being scaled up.
+         */
+        public double getSavedWakeupsPerDay()
+        {
+            return mSavedWakeups / Math.max(1.0, (double) mElapsedTime / DAY_MS);
+        }
+
+        @Override
+        public String toString()
+        {
+            return mDeadlinesFired + " deadlines in " + mWakeups + " wakeups, " + mSavedWakeups +
+                   " saved (" + String.format("%.1f", getSavedWakeupsPerDay()) + " per day)";
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2013 Andrew Okin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.forkk.autocron.data.time;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+
+/**
+ * Keeps every recorded event in order, along with the scheduler's time when it happened. Used by
+ * simulations to check what happened when. Nothing here needs Android.
+ */
+public class EventLog implements EventRecorder
+{
+    private final DeadlineScheduler mScheduler;
+
+    private final ArrayList<Event> mEvents;
+
+    /**
+     * @param scheduler
+     *         The scheduler whose clock events are timed with.
+     */
+    public EventLog(DeadlineScheduler scheduler)
+    {
+        mScheduler = scheduler;
+        mEvents = new ArrayList<Event>();
+    }
+
+    @Override
+    public void recordEvent(String event, Object subject)
+    {
+        mEvents.add(new Event(mScheduler.currentTimeMillis(), event, subject));
+    }
+
+    /**
+     * @return Every event recorded so far, in the order they happened.
+     */
+    public List<Event> getEvents()
+    {
+        return Collections.unmodifiableList(mEvents);
+    }
+
+    public void clear()
+    {
+        mEvents.clear();
+    }
+
+
+    /**
+     * Something that happened at a certain time.
+     */
+    public static class Event
+    {
+        private final long mTime;
+
+        private final String mEvent;
+
+        private final Object mSubject;
+
+        public Event(long time, String event, Object subject)
+        {
+            mTime = time;
+            mEvent = event;
+            mSubject = subject;
+        }
+
+        public long getTime()
+        {
+            return mTime;
+        }
+
+        /**
+         * @return One of the EVENT_ constants from {@link EventRecorder}.
+         */
+        public String getEvent()
+        {
+            return mEvent;
+        }
+
+        public Object getSubject()
+        {
+            return mSubject;
+        }
+
+        @Override
+        public String toString()
+        {
+            return mTime + " " + mEvent + " " + mSubject;
+        }
+    }
+}
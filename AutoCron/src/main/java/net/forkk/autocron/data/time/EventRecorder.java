@@ -0,0 +1,71 @@
+/*
+ * Copyright 2013 Andrew Okin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.forkk.autocron.data.time;
+
+
+/**
+ * Records what components did as a result of scheduling, such as a state activating, so a
+ * simulation can check what happened when. The automation service's recorder does nothing.
+ */
+public interface EventRecorder
+{
+    /**
+     * Event recorded when a state activates. The subject is the state.
+     */
+    public static final String EVENT_STATE_ACTIVATED = "state_activated";
+
+    /**
+     * Event recorded when a state deactivates. The subject is the state.
+     */
+    public static final String EVENT_STATE_DEACTIVATED = "state_deactivated";
+
+    /**
+     * Event recorded when an action is activated by its state. The subject is the action.
+     */
+    public static final String EVENT_ACTION_ACTIVATED = "action_activated";
+
+    /**
+     * Event recorded when an action is deactivated by its state. The subject is the action.
+     */
+    public static final String EVENT_ACTION_DEACTIVATED = "action_deactivated";
+
+    /**
+     * Event recorded when an action is run by an event. The subject is the action.
+     */
+    public static final String EVENT_ACTION_TRIGGERED = "action_triggered";
+
+    /**
+     * A recorder that throws every event away.
+     */
+    public static final EventRecorder NONE = new EventRecorder()
+    {
+        @Override
+        public void recordEvent(String event, Object subject)
+        {
+        }
+    };
+
+    /**
+     * Records that something happened.
+     *
+     * @param event
+     *         One of the EVENT_ constants.
+     * @param subject
+     *         The thing the event happened to.
+     */
+    public void recordEvent(String event, Object subject);
+}
@@ -0,0 +1,377 @@
+/*
+ * Copyright 2013 Andrew Okin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.forkk.autocron.data.time;
+
+import net.forkk.autocron.util.IntObjectMap;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * A state's activation timeline, worked out from the timelines of its time based rules.
+ * <p/>
+ * While a state is made only of time based rules, this takes over scheduling from the rules, so
+ * only real changes of the state's activation cause wakeups. Nothing here needs Android, so
+ * simulations run the same scheduling code as the states.
+ */
+public class StateTimeline implements Deadline.ClockListener
+{
+    /**
+     * Number of days ahead that activation timelines are computed for.
+     */
+    public static final int TIMELINE_DAYS = 7;
+
+    private static final long DAY_MS = 24 * 60 * 60 * 1000;
+
+    private final DeadlineScheduler mScheduler;
+
+    private final Owner mOwner;
+
+    /**
+     * The timeline, or null if the owner isn't made only of timeline sources. Only the engine
+     * thread replaces it, but the UI reads it, so it's published through a volatile field.
+     * Timelines are immutable, so readers never see one half built.
+     */
+    private volatile ActivationTimeline mTimeline;
+
+    /**
+     * True if the sources have changed since the timeline was built.
+     */
+    private boolean mDirty;
+
+    /**
+     * True while the timeline is scheduling its sources.
+     */
+    private boolean mDriven;
+
+    /**
+     * Deadline for the next change in the owner's activation while it's driven by the timeline.
+     * Also used to refresh the timeline shortly after a source changes. Null while stopped.
+     */
+    private Deadline mTransitionDeadline;
+
+    /**
+     * The sources the timeline was built from.
+     */
+    private List<? extends Source> mSources;
+
+    /**
+     * The sources currently being driven by the timeline.
+     */
+    private List<Source> mDrivenSources;
+
+    /**
+     * Each source's timeline by source ID, so only sources that changed are recomputed.
+     */
+    private IntObjectMap<SourceTimeline> mSourceTimelines;
+
+    public StateTimeline(DeadlineScheduler scheduler, Owner owner)
+    {
+        mScheduler = scheduler;
+        mOwner = owner;
+        mDirty = true;
+        mSources = Collections.emptyList();
+        mDrivenSources = new ArrayList<Source>();
+        mSourceTimelines = new IntObjectMap<SourceTimeline>();
+    }
+
+    /**
+     * Builds the timeline and starts scheduling the owner's transitions.
+     */
+    public void start()
+    {
+        mTransitionDeadline = new Deadline(this);
+        refresh();
+    }
+
+    /**
+     * Stops scheduling, and gives the sources back their own scheduling.
+     */
+    public void stop()
+    {
+        if (mTransitionDeadline == null) return;
+        mScheduler.cancel(mTransitionDeadline);
+        mTransitionDeadline = null;
+        mDriven = false;
+        driveSources(Collections.<Source>emptyList());
+    }
+
+    /**
+     * @return The timeline, or null if the owner isn't made only of timeline sources.
+     */
+    public ActivationTimeline getTimeline()
+    {
+        return mTimeline;
+    }
+
+    /**
+     * @return True while the timeline is scheduling its sources. The owner has to bring them up
+     * to date with {@link #syncSources(long)} before checking them.
+     */
+    public boolean isDriven()
+    {
+        return mDriven;
+    }
+
+    /**
+     * @return True if the timeline has been started and needs to be refreshed before it can be
+     * relied on.
+     */
+    public boolean needsRefresh()
+    {
+        return mDirty && mTransitionDeadline != null;
+    }
+
+    /**
+     * Marks the timeline as out of date and schedules it to be rebuilt.
+     */
+    public void invalidate()
+    {
+        mDirty = true;
+        // Rebuild it from the scheduler rather than right away, so a batch of changes to the same
+        // source only rebuilds it once.
+        if (mTransitionDeadline != null)
+            mScheduler.schedule(mTransitionDeadline, mScheduler.currentTimeMillis());
+    }
+
+    /**
+     * Drops the timeline of the source with the given ID, and marks the timeline as out of date.
+     */
+    public void invalidateSource(int id)
+    {
+        mSourceTimelines.remove(id);
+        invalidate();
+    }
+
+    /**
+     * Rebuilds the timeline if needed, decides whether it should schedule its sources, and
+     * schedules the next transition if it should. Then tells the owner.
+     */
+    public void refresh()
+    {
+        if (mTransitionDeadline == null) return;
+        long now = mScheduler.currentTimeMillis();
+        ActivationTimeline timeline = update(now);
+
+        mDriven = timeline != null;
+        driveSources(mDriven ? mSources : Collections.<Source>emptyList());
+
+        if (mDriven)
+        {
+            long next = timeline.getNextTransition(now);
+            // With no transitions coming up, wake up in time to extend the timeline.
+            if (next == ActivationTimeline.NO_TRANSITION) next = timeline.getEnd() - DAY_MS;
+            mScheduler.schedule(mTransitionDeadline, next, getAlarmTolerance());
+        }
+        else mScheduler.cancel(mTransitionDeadline);
+
+        mOwner.onTimelineRefreshed();
+    }
+
+    /**
+     * Sets the active state of each driven source for the given time.
+     */
+    public void syncSources(long time)
+    {
+        for (Source source : mDrivenSources)
+            source.syncActiveState(time);
+    }
+
+    /**
+     * Rebuilds the timeline if the sources have changed or it's about to run out.
+     *
+     * @return The up to date timeline, or null if the owner isn't made only of timeline sources.
+     */
+    private ActivationTimeline update(long now)
+    {
+        ActivationTimeline timeline = mTimeline;
+        // A timeline with a day or less left is rebuilt, so the wakeup scheduled a day before it
+        // runs out extends it rather than scheduling itself again.
+        if (mDirty || timeline == null || !timeline.covers(now) ||
+            timeline.getEnd() - now <= DAY_MS)
+        {
+            timeline = build(now);
+            mDirty = false;
+            mTimeline = timeline;
+        }
+        return timeline;
+    }
+
+    /**
+     * Builds the timeline from the sources' timelines, reusing the timelines of sources that
+     * haven't changed. Sources have to be active at the same time for the owner to be.
+     *
+     * @return The timeline, or null if the owner isn't made only of timeline sources.
+     */
+    private ActivationTimeline build(long now)
+    {
+        long end = now + TIMELINE_DAYS * DAY_MS;
+        ActivationTimeline timeline = null;
+        IntObjectMap<SourceTimeline> sourceTimelines = new IntObjectMap<SourceTimeline>();
+
+        List<? extends Source> sources = mOwner.getTimelineSources();
+        mSources = sources != null ? sources : Collections.<Source>emptyList();
+        if (sources == null) return null;
+
+        for (Source source : sources)
+        {
+            SourceTimeline cached = mSourceTimelines.get(source.getId());
+            if (cached == null || !cached.isValid(source, now))
+                cached = new SourceTimeline(source, source.getActivationTimeline(now, end));
+            sourceTimelines.put(source.getId(), cached);
+
+            ActivationTimeline effective =
+                    source.isInverted() ? cached.mTimeline.invert() : cached.mTimeline;
+            timeline = timeline == null ? effective : timeline.intersect(effective);
+        }
+        mSourceTimelines = sourceTimelines;
+        return timeline;
+    }
+
+    /**
+     * Drives the given sources, and gives any other sources that were being driven back their own
+     * scheduling.
+     */
+    private void driveSources(List<? extends Source> sources)
+    {
+        Map<Source, Boolean> driven = new IdentityHashMap<Source, Boolean>();
+        for (Source source : sources)
+            driven.put(source, Boolean.TRUE);
+
+        for (Source source : mDrivenSources)
+        {
+            if (!driven.containsKey(source)) source.setDrivenByTimeline(false);
+        }
+        for (Source source : sources)
+            source.setDrivenByTimeline(true);
+
+        mDrivenSources = new ArrayList<Source>(sources);
+    }
+
+    /**
+     * @return The smallest alarm tolerance of the sources.
+     */
+    private long getAlarmTolerance()
+    {
+        long tolerance = Long.MAX_VALUE;
+        for (Source source : mSources)
+            tolerance = Math.min(tolerance, source.getAlarmTolerance());
+        return tolerance == Long.MAX_VALUE ? 0 : tolerance;
+    }
+
+    @Override
+    public void onDeadline(Deadline deadline, long now)
+    {
+        refresh();
+    }
+
+    @Override
+    public void onClockChanged(Deadline deadline, long now)
+    {
+        // The sources' timelines were worked out in the old time zone, so none of them can be
+        // reused.
+        mSourceTimelines.clear();
+        invalidate();
+    }
+
+
+    /**
+     * Something whose activation depends only on the time, so it can be worked out ahead of time.
+     */
+    public interface Source
+    {
+        /**
+         * @return An ID that's unique among the owner's sources.
+         */
+        public abstract int getId();
+
+        /**
+         * @return True if the source counts as satisfied while it isn't active.
+         */
+        public abstract boolean isInverted();
+
+        /**
+         * Computes when this source is active over the given range, ignoring whether it's
+         * inverted.
+         */
+        public abstract ActivationTimeline getActivationTimeline(long start, long end);
+
+        /**
+         * @return How late this source's updates are allowed to happen, in milliseconds.
+         */
+        public abstract long getAlarmTolerance();
+
+        /**
+         * Sets whether the timeline is scheduling updates for this source. While it is, the
+         * source doesn't schedule any deadlines of its own, and the timeline's owner calls
+         * {@link #syncActiveState(long)} instead.
+         */
+        public abstract void setDrivenByTimeline(boolean driven);
+
+        /**
+         * Sets the source's active state for the given time without notifying the owner.
+         */
+        public abstract void syncActiveState(long time);
+    }
+
+    /**
+     * Interface for the thing a timeline belongs to, usually a state.
+     */
+    public interface Owner
+    {
+        /**
+         * @return The enabled sources the owner's activation depends on, or null if it depends on
+         * anything that isn't a timeline source, or isn't satisfied only when all of them are.
+         */
+        public List<? extends Source> getTimelineSources();
+
+        /**
+         * Called after the timeline is refreshed, so the owner can update its activation.
+         */
+        public void onTimelineRefreshed();
+    }
+
+
+    /**
+     * A source's timeline, along with the source it was computed for. It's dropped when the
+     * source's settings change.
+     */
+    private static class SourceTimeline
+    {
+        private final Source mSource;
+
+        private final ActivationTimeline mTimeline;
+
+        public SourceTimeline(Source source, ActivationTimeline timeline)
+        {
+            mSource = source;
+            mTimeline = timeline;
+        }
+
+        /**
+         * @return True if this timeline is still valid for the given source at the given time.
+         */
+        public boolean isValid(Source source, long now)
+        {
+            return mSource == source && mTimeline.covers(now) && mTimeline.getEnd() - now > DAY_MS;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2013 Andrew Okin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.forkk.autocron.data.time;
+
+import java.util.TimeZone;
+
+
+/**
+ * Conversions between times and local times that don't allocate anything.
+ * <p/>
+ * A local time is the wall clock time in some time zone, stored as if it were a UTC time. This
+ * makes it easy to split into days and minutes without daylight saving time getting in the way.
+ */
+final class TimeMath
+{
+    static final long MINUTE_MS = 60 * 1000;
+
+    static final long HOUR_MS = 60 * MINUTE_MS;
+
+    static final long DAY_MS = 24 * HOUR_MS;
+
+    private TimeMath()
+    {
+    }
+
+    /**
+     * Converts a time to a local time in the given time zone.
+     */
+    static long toLocal(long time, TimeZone timeZone)
+    {
+        return time + timeZone.getOffset(time);
+    }
+
+    /**
+     * Converts a local time in the given time zone to a time. Local times that happen twice map to
+     * their first occurrence, and local times that don't exist are moved forward by the length of
+     * the gap.
+     */
+    static long toInstant(long local, TimeZone timeZone)
+    {
+        // Time zone transitions are months apart, so the offsets a few hours either side are the
+        // offsets before and after any transition near this time.
+        long guess = local - timeZone.getRawOffset();
+        int offsetBefore = timeZone.getOffset(guess - 3 * HOUR_MS);
+        int offsetAfter = timeZone.getOffset(guess + 3 * HOUR_MS);
+
+        long early = local - offsetBefore;
+        long late = local - offsetAfter;
+        boolean earlyValid = timeZone.getOffset(early) == offsetBefore;
+        boolean lateValid = timeZone.getOffset(late) == offsetAfter;
+
+        if (earlyValid && lateValid) return Math.min(early, late);
+        if (earlyValid) return early;
+        if (lateValid) return late;
+        // In a gap. Using the offset from before the gap moves the time forward by the gap.
+        return early;
+    }
+
+    /**
+     * @return The number of days since the epoch of the given local time.
+     */
+    static long epochDay(long local)
+    {
+        return floorDiv(local, DAY_MS);
+    }
+
+    /**
+     * @return The minute of the day of the given local time, from 0 to 1439.
+     */
+    static int minuteOfDay(long local)
+    {
+        return (int) (floorMod(local, DAY_MS) / MINUTE_MS);
+    }
+
+    /**
+     * @return The day of the week of the given day since the epoch, 0 for Sunday to 6 for
+     * Saturday.
+     */
+    static int dayOfWeek(long epochDay)
+    {
+        // The epoch was a Thursday.
+        return (int) floorMod(epochDay + 4, 7);
+    }
+
+    static long floorDiv(long value, long divisor)
+    {
+        long quotient = value / divisor;
+        return (value % divisor != 0 && (value < 0) != (divisor < 0)) ? quotient - 1 : quotient;
+    }
+
+    static long floorMod(long value, long divisor)
+    {
+        long mod = value % divisor;
+        return mod < 0 ? mod + divisor : mod;
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2013 Andrew Okin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.forkk.autocron.data.time;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+
+
+/**
+ * A daily window of time on certain days of the week, compiled down to a few ints.
+ * <p/>
+ * The window runs from a start minute to an end minute of the day. If the end is before the start,
+ * the window crosses midnight and ends on the next day. The weekday mask says which days the window
+ * starts on, with bit 0 for Sunday through bit 6 for Saturday.
+ * <p/>
+ * Checking whether a time is in the window and finding the next time it opens or closes don't
+ * allocate anything.
+ */
+public class TimeWindow
+{
+    /**
+     * Returned by {@link #getNextEdge(long, TimeZone)} if the window never opens or closes.
+     */
+    public static final long NO_EDGE = -1;
+
+    /**
+     * Number of minutes in a day. This can be used as an end minute to mean the end of the day.
+     */
+    public static final int MINUTES_PER_DAY = 24 * 60;
+
+    /**
+     * Weekday mask with every day of the week set.
+     */
+    public static final int ALL_DAYS = 0x7f;
+
+    private final int mStartMinute;
+
+    private final int mEndMinute;
+
+    private final int mWeekdays;
+
+    /**
+     * Creates a time window.
+     *
+     * @param startMinute
+     *         The minute of the day the window opens at, from 0 to 1439.
+     * @param endMinute
+     *         The minute of the day the window closes at, from 0 to 1440. If this is before the
+     *         start minute, the window closes on the next day. If it's the same, the window is
+     *         empty.
+     * @param weekdays
+     *         Mask of the days of the week the window opens on.
+     */
+    public TimeWindow(int startMinute, int endMinute, int weekdays)
+    {
+        if (startMinute < 0 || startMinute >= MINUTES_PER_DAY)
+            throw new IllegalArgumentException("Start minute out of range: " + startMinute);
+        if (endMinute < 0 || endMinute > MINUTES_PER_DAY)
+            throw new IllegalArgumentException("End minute out of range: " + endMinute);
+
+        mStartMinute = startMinute;
+        mEndMinute = endMinute;
+        mWeekdays = weekdays & ALL_DAYS;
+    }
+
+    /**
+     * Parses an "HH:MM" time into a minute of the day.
+     *
+     * @param defaultMinute
+     *         Value to return if the time can't be parsed.
+     */
+    public static int parseMinuteOfDay(String time, int defaultMinute)
+    {
+        if (time == null) return defaultMinute;
+
+        int colon = time.indexOf(':');
+        if (colon < 0) return defaultMinute;
+        try
+        {
+            int hours = Integer.parseInt(time.substring(0, colon).trim());
+            int minutes = Integer.parseInt(time.substring(colon + 1).trim());
+            if (hours < 0 || hours > 23 || minutes < 0 || minutes > 59) return defaultMinute;
+            return hours * 60 + minutes;
+        }
+        catch (NumberFormatException e)
+        {
+            return defaultMinute;
+        }
+    }
+
+    /**
+     * @return The weekday mask bit for the given Calendar day of the week constant.
+     */
+    public static int weekdayBit(int calendarDay)
+    {
+        return 1 << (calendarDay - Calendar.SUNDAY);
+    }
+
+    public int getStartMinute()
+    {
+        return mStartMinute;
+    }
+
+    public int getEndMinute()
+    {
+        return mEndMinute;
+    }
+
+    public int getWeekdays()
+    {
+        return mWeekdays;
+    }
+
+    /**
+     * @return True if the window crosses midnight.
+     */
+    public boolean crossesMidnight()
+    {
+        return mEndMinute < mStartMinute;
+    }
+
+    /**
+     * @return True if the window is open at the given time.
+     */
+    public boolean isActiveAt(long time, TimeZone timeZone)
+    {
+        long local = TimeMath.toLocal(time, timeZone);
+        long day = TimeMath.epochDay(local);
+        int minute = TimeMath.minuteOfDay(local);
+        int dayOfWeek = TimeMath.dayOfWeek(day);
+
+        if (!crossesMidnight())
+            return isDayActive(dayOfWeek) && minute >= mStartMinute && minute < mEndMinute;
+
+        // Either in the part of today's window before midnight, or the part of yesterday's window
+        // after midnight.
+        return (isDayActive(dayOfWeek) && minute >= mStartMinute) ||
+               (isDayActive((dayOfWeek + 6) % 7) && minute < mEndMinute);
+    }
+
+    /**
+     * Finds the first time after the given time at which the window opens or closes. Times where
+     * the window closes and opens again straight away (e.g. midnight between two active days of an
+     * all day window) aren't edges.
+     *
+     * @return The time of the next edge, or NO_EDGE if the window is always open or always closed.
+     */
+    public long getNextEdge(long after, TimeZone timeZone)
+    {
+        if (mWeekdays == 0 || mStartMinute == mEndMinute) return NO_EDGE;
+
+        boolean active = isActiveAt(after, timeZone);
+        long local = TimeMath.toLocal(after, timeZone);
+        long day = TimeMath.epochDay(local);
+
+        // Start from yesterday to catch the end of a window that crosses midnight. Any change must
+        // happen within a week and a day.
+        for (long d = day - 1; d <= day + 8; d++)
+        {
+            if (!isDayActive(TimeMath.dayOfWeek(d))) continue;
+
+            long dayStart = d * TimeMath.DAY_MS;
+            long start = TimeMath.toInstant(dayStart + mStartMinute * TimeMath.MINUTE_MS, timeZone);
+            long endDay = crossesMidnight() ? dayStart + TimeMath.DAY_MS : dayStart;
+            long end = TimeMath.toInstant(endDay + mEndMinute * TimeMath.MINUTE_MS, timeZone);
+
+            // Edges are checked in order, so the first one that changes the state is the answer.
+            if (!active && start > after && isActiveAt(start, timeZone)) return start;
+            if (active && end > after && !isActiveAt(end, timeZone)) return end;
+        }
+        return NO_EDGE;
+    }
+
+    /**
+     * Adds the times the window is open between the given times to the given timeline builder.
+     */
+    public void addTo(ActivationTimeline.Builder builder, long start, long end, TimeZone timeZone)
+    {
+        if (mWeekdays == 0 || mStartMinute == mEndMinute) return;
+
+        long lastDay = TimeMath.epochDay(TimeMath.toLocal(end, timeZone));
+        // Start from yesterday to include the end of a window that crosses midnight.
+        for (long d = TimeMath.epochDay(TimeMath.toLocal(start, timeZone)) - 1; d <= lastDay; d++)
+        {
+            if (!isDayActive(TimeMath.dayOfWeek(d))) continue;
+
+            long dayStart = d * TimeMath.DAY_MS;
+            long endDay = crossesMidnight() ? dayStart + TimeMath.DAY_MS : dayStart;
+            builder.add(TimeMath.toInstant(dayStart + mStartMinute * TimeMath.MINUTE_MS, timeZone),
+                        TimeMath.toInstant(endDay + mEndMinute * TimeMath.MINUTE_MS, timeZone));
+        }
+    }
+
+    private boolean isDayActive(int dayOfWeek)
+    {
+        return (mWeekdays & (1 << dayOfWeek)) != 0;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%02d:%02d-%02d:%02d days %s", mStartMinute / 60, mStartMinute % 60,
+                             mEndMinute / 60, mEndMinute % 60, Integer.toBinaryString(mWeekdays));
+    }
+}
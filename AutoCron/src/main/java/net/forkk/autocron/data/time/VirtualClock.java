@@ -0,0 +1,53 @@
+/*
+ * Copyright 2013 Andrew Okin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.forkk.autocron.data.time;
+
+/**
+ * A clock that only moves when it's told to.
+ */
+public class VirtualClock implements Clock
+{
+    private long mTime;
+
+    public VirtualClock(long time)
+    {
+        mTime = time;
+    }
+
+    @Override
+    public long currentTimeMillis()
+    {
+        return mTime;
+    }
+
+    /**
+     * Sets the clock to the given time. The time may go backwards, like a real clock being set.
+     */
+    public void setTime(long time)
+    {
+        mTime = time;
+    }
+
+    /**
+     * Moves the clock forward by the given number of milliseconds.
+     */
+    public void advance(long millis)
+    {
+        if (millis < 0) throw new IllegalArgumentException("Can't advance by a negative time.");
+        mTime += millis;
+    }
+}
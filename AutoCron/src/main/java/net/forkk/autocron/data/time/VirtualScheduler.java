@@ -0,0 +1,142 @@
+/*
+ * Copyright 2013 Andrew Okin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.forkk.autocron.data.time;
+
+import java.util.TimeZone;
+
+
+/**
+ * A scheduler that runs on a virtual clock, for simulating schedules without waiting for them.
+ * <p/>
+ * Nothing happens until {@link #runUntil(long)} is called, which jumps the clock straight from one
+ * wakeup to the next, so a week of activity takes as long as it takes to dispatch its deadlines.
+ * Exceptions thrown by listeners are passed on rather than logged. Pair it with an {@link EventLog}
+ * to see what components did when. Nothing here needs Android.
+ */
+public class VirtualScheduler extends DeadlineScheduler
+{
+    /**
+     * Number of wakeups in a row at the same time after which a simulation is assumed to be stuck
+     * in a loop.
+     */
+    private static final int MAX_WAKEUPS_PER_INSTANT = 1000;
+
+    private final VirtualClock mClock;
+
+    private long mWakeupTime;
+
+    public VirtualScheduler(long startTime, TimeZone timeZone, boolean coalescing)
+    {
+        this(new VirtualClock(startTime), timeZone, coalescing);
+    }
+
+    private VirtualScheduler(VirtualClock clock, TimeZone timeZone, boolean coalescing)
+    {
+        super(clock, timeZone, coalescing);
+        mClock = clock;
+        mWakeupTime = Deadline.NOT_SCHEDULED;
+    }
+
+    /**
+     * Runs every wakeup up to and including the given time, then leaves the clock at that time.
+     *
+     * @return The number of wakeups that happened.
+     */
+    public int runUntil(long end)
+    {
+        if (end < mClock.currentTimeMillis())
+            throw new IllegalArgumentException("Can't run the clock backwards.");
+
+        int wakeups = 0;
+        int sameInstant = 0;
+        long lastTime = Deadline.NOT_SCHEDULED;
+        while (mWakeupTime != Deadline.NOT_SCHEDULED && mWakeupTime <= end)
+        {
+            long time = Math.max(mWakeupTime, mClock.currentTimeMillis());
+            sameInstant = time == lastTime ? sameInstant + 1 : 0;
+            if (sameInstant > MAX_WAKEUPS_PER_INSTANT)
+                throw new IllegalStateException("Deadlines keep being scheduled at " + time + ".");
+            lastTime = time;
+
+            mClock.setTime(time);
+            mWakeupTime = Deadline.NOT_SCHEDULED;
+            onWakeup();
+            wakeups++;
+        }
+        mClock.setTime(end);
+        return wakeups;
+    }
+
+    /**
+     * Runs every wakeup in the given number of milliseconds from now.
+     *
+     * @return The number of wakeups that happened.
+     */
+    public int runFor(long millis)
+    {
+        return runUntil(mClock.currentTimeMillis() + millis);
+    }
+
+    /**
+     * Simulates the clock being set to the given time, which may be in the past.
+     */
+    public void setTime(long time)
+    {
+        mClock.setTime(time);
+        onClockChanged(getTimeZone());
+    }
+
+    /**
+     * Simulates the time zone being changed.
+     */
+    public void setTimeZone(TimeZone timeZone)
+    {
+        onClockChanged(timeZone);
+    }
+
+    /**
+     * @return The time the next wakeup is set for, or NOT_SCHEDULED if there isn't one.
+     */
+    public long getWakeupTime()
+    {
+        return mWakeupTime;
+    }
+
+    @Override
+    protected void setWakeup(long time)
+    {
+        mWakeupTime = time;
+    }
+
+    @Override
+    protected void cancelWakeup()
+    {
+        mWakeupTime = Deadline.NOT_SCHEDULED;
+    }
+
+    @Override
+    protected void logDebug(String message)
+    {
+    }
+
+    @Override
+    protected void onDispatchError(String message, RuntimeException e)
+    {
+        // A simulation should fail loudly rather than carry on with a broken component.
+        throw e;
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2013 Andrew Okin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.forkk.autocron.data.time;
+
+
+/**
+ * Follows a time window with a single deadline at its next edge, telling its listener whether the
+ * window is open each time the deadline fires or the clock changes.
+ * <p/>
+ * This is how time range and weekday rules schedule themselves. Nothing here needs Android, so
+ * simulations run the same scheduling code as the rules.
+ */
+public class WindowSchedule implements Deadline.ClockListener
+{
+    private final DeadlineScheduler mScheduler;
+
+    private final Listener mListener;
+
+    private TimeWindow mWindow;
+
+    private long mTolerance;
+
+    /**
+     * Fires at the next time the window opens or closes. Null while the schedule is stopped.
+     */
+    private Deadline mDeadline;
+
+    private boolean mPaused;
+
+    public WindowSchedule(DeadlineScheduler scheduler, TimeWindow window, Listener listener)
+    {
+        mScheduler = scheduler;
+        mWindow = window;
+        mListener = listener;
+    }
+
+    /**
+     * Tells the listener whether the window is open now, and schedules the next edge.
+     */
+    public void start()
+    {
+        mDeadline = new Deadline(this);
+        update(mScheduler.currentTimeMillis());
+    }
+
+    public void stop()
+    {
+        if (mDeadline == null) return;
+        mScheduler.cancel(mDeadline);
+        mDeadline = null;
+    }
+
+    /**
+     * Sets whether the schedule is paused. While it is, the deadline isn't scheduled and the
+     * listener isn't told about anything, since something else is keeping track of the window.
+     * Unpausing brings the listener up to date on the next wakeup.
+     */
+    public void setPaused(boolean paused)
+    {
+        if (mPaused == paused) return;
+        mPaused = paused;
+
+        if (paused && mDeadline != null) mScheduler.cancel(mDeadline);
+        else refresh();
+    }
+
+    /**
+     * Schedules the deadline to fire right away, which tells the listener whether the window is
+     * open and schedules the next edge. Call this when the window or the tolerance changes.
+     */
+    public void refresh()
+    {
+        if (mDeadline == null || mPaused) return;
+        mScheduler.schedule(mDeadline, mScheduler.currentTimeMillis());
+    }
+
+    public TimeWindow getWindow()
+    {
+        return mWindow;
+    }
+
+    /**
+     * Sets the window. Call {@link #refresh()} afterwards to apply it.
+     */
+    public void setWindow(TimeWindow window)
+    {
+        mWindow = window;
+    }
+
+    /**
+     * Sets how late the deadline is allowed to fire, in milliseconds. Call {@link #refresh()}
+     * afterwards to apply it.
+     */
+    public void setTolerance(long tolerance)
+    {
+        mTolerance = tolerance;
+    }
+
+    /**
+     * @return True if the window is open at the given time in the scheduler's time zone.
+     */
+    public boolean isOpenAt(long time)
+    {
+        return mWindow.isActiveAt(time, mScheduler.getTimeZone());
+    }
+
+    /**
+     * Computes when the window is open over the given range.
+     */
+    public ActivationTimeline getTimeline(long start, long end)
+    {
+        ActivationTimeline.Builder builder = new ActivationTimeline.Builder(start, end);
+        mWindow.addTo(builder, start, end, mScheduler.getTimeZone());
+        return builder.build();
+    }
+
+    private void update(long now)
+    {
+        mListener.onWindowUpdate(isOpenAt(now));
+
+        // The listener may have stopped or paused the schedule.
+        if (mDeadline == null || mPaused) return;
+        long next = mWindow.getNextEdge(now, mScheduler.getTimeZone());
+        if (next == TimeWindow.NO_EDGE) mScheduler.cancel(mDeadline);
+        else mScheduler.schedule(mDeadline, next, mTolerance);
+    }
+
+    @Override
+    public void onDeadline(Deadline deadline, long now)
+    {
+        update(now);
+    }
+
+    @Override
+    public void onClockChanged(Deadline deadline, long now)
+    {
+        update(now);
+    }
+
+
+    /**
+     * Interface for being told whether a window schedule's window is open.
+     */
+    public interface Listener
+    {
+        /**
+         * Called when the schedule starts, and whenever its deadline fires or the clock changes.
+         * The window may not have changed since the last call.
+         *
+         * @param open
+         *         True if the window is open now.
+         */
+        public void onWindowUpdate(boolean open);
+    }
+}
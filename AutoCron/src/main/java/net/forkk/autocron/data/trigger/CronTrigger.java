@@ -0,0 +1,153 @@
+/*
+ * Copyright 2013 Andrew Okin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.forkk.autocron.data.trigger;
+
+import android.content.SharedPreferences;
+import android.content.res.Resources;
+import android.preference.PreferenceFragment;
+import android.util.Log;
+
+import net.forkk.autocron.R;
+import net.forkk.autocron.data.Automation;
+import net.forkk.autocron.data.AutomationService;
+import net.forkk.autocron.data.ComponentType;
+import net.forkk.autocron.data.time.CronExpression;
+import net.forkk.autocron.data.time.CronSchedule;
+
+
+
+/**
+ * A trigger that fires on a cron schedule.
+ */
+public class CronTrigger extends TriggerBase implements CronSchedule.Listener
+{
+    public static final String VALUE_CRON_EXPRESSION = "cron_expression";
+
+    private static final String DEFAULT_EXPRESSION = "0 * * * *";
+
+    private static TriggerType sComponentType;
+
+    /**
+     * The compiled expression, or null if the expression is invalid.
+     */
+    private CronExpression mExpression;
+
+    /**
+     * Follows the expression while the trigger is created.
+     */
+    private CronSchedule mSchedule;
+
+    private static final ComponentType.Factory<Trigger> FACTORY =
+            new ComponentType.Factory<Trigger>()
+            {
+                @Override
+                public Trigger create(Automation parent, AutomationService service, int id)
+                {
+                    return new CronTrigger(parent, service, id);
+                }
+            };
+
+    public static TriggerType initComponentType(Resources res)
+    {
+        return sComponentType = new TriggerType(res.getString(R.string.cron_trigger_title),
+                                                res.getString(R.string.cron_trigger_description),
+                                                CronTrigger.class, FACTORY);
+    }
+
+    public static TriggerType getComponentType()
+    {
+        return sComponentType;
+    }
+
+    @Override
+    public ComponentType getType()
+    {
+        return getComponentType();
+    }
+
+
+    public CronTrigger(Automation parent, AutomationService service, int id)
+    {
+        super(parent, service, id);
+    }
+
+
+    @Override
+    protected void onCreate()
+    {
+        compileExpression();
+        mSchedule = new CronSchedule(getService().getScheduler(), mExpression, this);
+        mSchedule.start();
+    }
+
+    @Override
+    protected void onDestroy()
+    {
+        mSchedule.stop();
+        mSchedule = null;
+    }
+
+    @Override
+    protected boolean isAppliedLive(String key)
+    {
+        return super.isAppliedLive(key) || VALUE_CRON_EXPRESSION.equals(key);
+    }
+
+    @Override
+    public void onSharedPreferenceChanged(SharedPreferences preferences, String key)
+    {
+        super.onSharedPreferenceChanged(preferences, key);
+
+        if (key.equals(VALUE_CRON_EXPRESSION))
+        {
+            compileExpression();
+            if (mSchedule != null) mSchedule.setExpression(mExpression);
+        }
+    }
+
+    /**
+     * Parses the expression once, so working out each fire time doesn't have to.
+     */
+    protected void compileExpression()
+    {
+        String expression =
+                getSharedPreferences().getString(VALUE_CRON_EXPRESSION, DEFAULT_EXPRESSION);
+        try
+        {
+            mExpression = CronExpression.parse(expression);
+        }
+        catch (IllegalArgumentException e)
+        {
+            Log.w(AutomationService.LOGGER_TAG,
+                  "Invalid cron expression for trigger \"" + getName() + "\": " + e.getMessage());
+            mExpression = null;
+        }
+    }
+
+    @Override
+    public void onCronFire()
+    {
+        trigger();
+    }
+
+    @Override
+    public void addPreferencesToFragment(PreferenceFragment fragment)
+    {
+        super.addPreferencesToFragment(fragment);
+        fragment.addPreferencesFromResource(R.xml.prefs_cron_trigger);
+    }
+}
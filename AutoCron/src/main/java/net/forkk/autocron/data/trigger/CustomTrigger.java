@@ -41,11 +41,21 @@ public class CustomTrigger extends TriggerBase implements CustomRuleService.Cust
 
     private static TriggerType sComponentType;
 
+    private static final ComponentType.Factory<Trigger> FACTORY =
+            new ComponentType.Factory<Trigger>()
+            {
+                @Override
+                public Trigger create(Automation parent, AutomationService service, int id)
+                {
+                    return new CustomTrigger(parent, service, id);
+                }
+            };
+
     public static TriggerType initComponentType(Resources res)
     {
         return sComponentType = new TriggerType(res.getString(R.string.custom_trigger_title),
                                                 res.getString(R.string.custom_trigger_description),
-                                                CustomTrigger.class);
+                                                CustomTrigger.class, FACTORY);
     }
 
     public static TriggerType getComponentType()
@@ -156,7 +166,7 @@ public class CustomTrigger extends TriggerBase implements CustomRuleService.Cust
     @Override
     public void onCustomTriggerTriggered(String id)
     {
-        if (id.equals(getCustomTriggerId())) trigger();
+        if (id.equals(getCustomTriggerId())) postTrigger();
     }
 
 
@@ -45,11 +45,21 @@ public class NfcTrigger extends TriggerBase implements NfcService.NfcListener
 
     private String mRegisteredId;
 
+    private static final ComponentType.Factory<Trigger> FACTORY =
+            new ComponentType.Factory<Trigger>()
+            {
+                @Override
+                public Trigger create(Automation parent, AutomationService service, int id)
+                {
+                    return new NfcTrigger(parent, service, id);
+                }
+            };
+
     public static TriggerType initComponentType(Resources res)
     {
         return sComponentType = new TriggerType(res.getString(R.string.nfc_trigger_title),
                                                 res.getString(R.string.nfc_trigger_description),
-                                                NfcTrigger.class);
+                                                NfcTrigger.class, FACTORY);
     }
 
     public static TriggerType getComponentType()
@@ -147,7 +157,7 @@ public class NfcTrigger extends TriggerBase implements NfcService.NfcListener
     @Override
     public void tagTriggered()
     {
-        trigger();
+        postTrigger();
     }
 
 
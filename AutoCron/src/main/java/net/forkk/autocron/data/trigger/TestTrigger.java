@@ -43,11 +43,21 @@ public class TestTrigger extends TriggerBase implements AutomationService.Intent
 
     private int mIntentListenerId;
 
+    private static final ComponentType.Factory<Trigger> FACTORY =
+            new ComponentType.Factory<Trigger>()
+            {
+                @Override
+                public Trigger create(Automation parent, AutomationService service, int id)
+                {
+                    return new TestTrigger(parent, service, id);
+                }
+            };
+
     public static TriggerType initComponentType(Resources res)
     {
         return sComponentType = new TriggerType(res.getString(R.string.test_trigger_title),
                                                 res.getString(R.string.test_trigger_description),
-                                                TestTrigger.class);
+                                                TestTrigger.class, FACTORY);
     }
 
     public static TriggerType getComponentType()
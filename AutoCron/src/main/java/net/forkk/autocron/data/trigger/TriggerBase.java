@@ -23,6 +23,7 @@ import net.forkk.autocron.data.Automation;
 import net.forkk.autocron.data.AutomationComponentBase;
 import net.forkk.autocron.data.AutomationService;
 import net.forkk.autocron.data.ComponentPointer;
+import net.forkk.autocron.data.EventQueue;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -42,14 +43,38 @@ public abstract class TriggerBase extends AutomationComponentBase implements Tri
     }
 
     /**
-     * This should be called to trigger this trigger component. Calls onTriggered for all listeners. 
+     * This should be called to trigger this trigger component. Calls onTriggered for all listeners
+     * on the engine thread. If this is called off the engine thread, the trigger is queued with
+     * {@link #postTrigger()}.
      */
     protected void trigger()
     {
+        if (!getService().isEngineThread())
+        {
+            postTrigger();
+            return;
+        }
+
         for (TriggerListener listener : mTriggerListeners)
             listener.onTriggered(this);
     }
 
+    /**
+     * Queues this trigger on the engine's event queue. Triggers go ahead of rule changes, and
+     * unlike rule changes, they aren't merged. Can be called from any thread.
+     */
+    protected void postTrigger()
+    {
+        getService().getEventQueue().post(EventQueue.PRIORITY_TRIGGER, null, new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                trigger();
+            }
+        });
+    }
+
     /**
      * Gets this component's shared preferences name for the given component ID.
      *
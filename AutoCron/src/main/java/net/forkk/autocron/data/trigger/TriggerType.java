@@ -17,12 +17,11 @@
 package net.forkk.autocron.data.trigger;
 
 import android.content.Context;
-import android.content.SharedPreferences;
 import android.content.res.Resources;
 
 import net.forkk.autocron.data.Automation;
-import net.forkk.autocron.data.AutomationService;
 import net.forkk.autocron.data.ComponentType;
+import net.forkk.autocron.data.ComponentTypeRegistry;
 
 import java.util.ArrayList;
 
@@ -32,24 +31,10 @@ import java.util.ArrayList;
  */
 public class TriggerType extends ComponentType<Trigger>
 {
-    /**
-     * @return The next available trigger ID.
-     */
     @Override
-    public int getAvailableId(Context context)
+    protected String getNextIdKey()
     {
-        return context.getSharedPreferences(AutomationService.PREF_AUTOMATIONS,
-                                            Context.MODE_PRIVATE).getInt("next_trigger_id", 0);
-    }
-
-    @Override
-    public void incrementNextId(Context context)
-    {
-        SharedPreferences.Editor edit =
-                context.getSharedPreferences(AutomationService.PREF_AUTOMATIONS,
-                                             Context.MODE_PRIVATE).edit();
-        edit.putInt("next_trigger_id", getAvailableId(context) + 1);
-        edit.commit();
+        return "next_trigger_id";
     }
 
     /**
@@ -61,19 +46,21 @@ public class TriggerType extends ComponentType<Trigger>
      *         The type's description.
      * @param typeClass
      *         The type's class.
+     * @param factory
+     *         Factory that constructs components of this type.
      */
-    public TriggerType(String typeName, String typeDesc, Class<? extends Trigger> typeClass)
+    public TriggerType(String typeName, String typeDesc, Class<? extends Trigger> typeClass,
+                       Factory<? extends Trigger> factory)
     {
-        super(typeName, typeDesc, typeClass);
+        super(typeName, typeDesc, typeClass, factory);
     }
 
     public static TriggerType[] getTriggerTypes()
     {
-        return TRIGGER_TYPES;
+        return sRegistry.getTypes();
     }
 
-    // Damn IntelliJ and its shitty code formatting...
-    private static TriggerType[] TRIGGER_TYPES;
+    private static ComponentTypeRegistry<Trigger, TriggerType> sRegistry;
 
     public static void initialize(Context context)
     {
@@ -85,27 +72,17 @@ public class TriggerType extends ComponentType<Trigger>
         types.add(TestTrigger.initComponentType(res));
         types.add(NfcTrigger.initComponentType(res));
         types.add(CustomTrigger.initComponentType(res));
+        types.add(CronTrigger.initComponentType(res));
 
         for (TriggerType type : types)
             type.checkIfSupported(context);
 
-        TRIGGER_TYPES = types.toArray(new TriggerType[types.size()]);
+        sRegistry = new ComponentTypeRegistry<Trigger, TriggerType>("trigger", types,
+                                                                 new TriggerType[0]);
     }
 
     public static Trigger fromSharedPreferences(Automation parent, Context context, int id)
     {
-        SharedPreferences preferences =
-                context.getSharedPreferences(TriggerBase.getSharedPreferencesNameForId(id),
-                                             Context.MODE_PRIVATE);
-
-        String typeId = preferences.getString(VALUE_COMPONENT_TYPE, null);
-        if (typeId == null) return null;
-        else
-        {
-            // Find a TriggerType whose typeID matches.
-            for (TriggerType type : getTriggerTypes())
-                if (typeId.equals(type.getTypeId())) return type.construct(parent, context, id);
-            return null;
-        }
+        return sRegistry.load(parent, context, id, TriggerBase.getSharedPreferencesNameForId(id));
     }
 }
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2013 Andrew Okin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.forkk.autocron.util;
+
+import java.util.Arrays;
+
+
+/**
+ * Hash map from int keys to objects that doesn't box its keys.
+ * <p/>
+ * Uses open addressing with linear probing, so lookups don't allocate anything. Unlike SparseArray,
+ * lookups are constant time rather than a binary search.
+ */
+public class IntObjectMap<V>
+{
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private int[] mKeys;
+
+    private Object[] mValues;
+
+    private int mSize;
+
+    private int mMask;
+
+    public IntObjectMap()
+    {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates a map with room for the given number of entries before it needs to grow.
+     */
+    public IntObjectMap(int expectedSize)
+    {
+        int capacity = DEFAULT_CAPACITY;
+        while (capacity < expectedSize * 2)
+            capacity <<= 1;
+        allocate(capacity);
+    }
+
+    /**
+     * Creates a map with the same entries as the given one.
+     */
+    public IntObjectMap(IntObjectMap<? extends V> other)
+    {
+        mKeys = other.mKeys.clone();
+        mValues = other.mValues.clone();
+        mSize = other.mSize;
+        mMask = other.mMask;
+    }
+
+    /**
+     * @return The value for the given key, or null if there isn't one.
+     */
+    @SuppressWarnings("unchecked")
+    public V get(int key)
+    {
+        int slot = findSlot(key);
+        return (V) mValues[slot];
+    }
+
+    public boolean containsKey(int key)
+    {
+        return mValues[findSlot(key)] != null;
+    }
+
+    /**
+     * Maps the given key to the given value.
+     *
+     * @return The previous value for the key, or null if there wasn't one.
+     */
+    @SuppressWarnings("unchecked")
+    public V put(int key, V value)
+    {
+        if (value == null) throw new IllegalArgumentException("Null values are not supported.");
+
+        int slot = findSlot(key);
+        V oldValue = (V) mValues[slot];
+        mKeys[slot] = key;
+        mValues[slot] = value;
+
+        if (oldValue == null && ++mSize * 2 > mValues.length) resize(mValues.length * 2);
+        return oldValue;
+    }
+
+    /**
+     * Removes the value for the given key.
+     *
+     * @return The removed value, or null if there wasn't one.
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(int key)
+    {
+        int slot = findSlot(key);
+        V oldValue = (V) mValues[slot];
+        if (oldValue == null) return null;
+
+        mValues[slot] = null;
+        mSize--;
+
+        // Shift back any entries after the removed one that would no longer be found because of
+        // the gap.
+        int gap = slot;
+        int next = (slot + 1) & mMask;
+        while (mValues[next] != null)
+        {
+            int home = hash(mKeys[next]) & mMask;
+            if (((next - home) & mMask) >= ((next - gap) & mMask))
+            {
+                mKeys[gap] = mKeys[next];
+                mValues[gap] = mValues[next];
+                mValues[next] = null;
+                gap = next;
+            }
+            next = (next + 1) & mMask;
+        }
+        return oldValue;
+    }
+
+    public void clear()
+    {
+        Arrays.fill(mValues, null);
+        mSize = 0;
+    }
+
+    public int size()
+    {
+        return mSize;
+    }
+
+    public boolean isEmpty()
+    {
+        return mSize == 0;
+    }
+
+    /**
+     * Finds the slot that holds the given key, or the empty slot where it would go.
+     */
+    private int findSlot(int key)
+    {
+        int slot = hash(key) & mMask;
+        while (mValues[slot] != null && mKeys[slot] != key)
+            slot = (slot + 1) & mMask;
+        return slot;
+    }
+
+    private void allocate(int capacity)
+    {
+        mKeys = new int[capacity];
+        mValues = new Object[capacity];
+        mMask = capacity - 1;
+    }
+
+    private void resize(int capacity)
+    {
+        int[] oldKeys = mKeys;
+        Object[] oldValues = mValues;
+        allocate(capacity);
+
+        for (int i = 0; i < oldValues.length; i++)
+        {
+            if (oldValues[i] == null) continue;
+            int slot = findSlot(oldKeys[i]);
+            mKeys[slot] = oldKeys[i];
+            mValues[slot] = oldValues[i];
+        }
+    }
+
+    private static int hash(int key)
+    {
+        // IDs are mostly small sequential numbers, so spread them out to avoid long probe runs.
+        int h = key * 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+}
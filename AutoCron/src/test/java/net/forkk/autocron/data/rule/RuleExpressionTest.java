@@ -0,0 +1,215 @@
+/*
+ * Copyright 2013 Andrew Okin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+
+package net.forkk.autocron.data.rule;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Checks that updating a rule expression one rule at a time gives the same result as evaluating
+ * it from scratch, including through nested operators.
+ */
+public class RuleExpressionTest
+{
+    @Test
+    public void nestedAtLeastAndNot()
+    {
+        TestRule a = new TestRule(1, "A", true);
+        TestRule b = new TestRule(2, "B", true);
+        TestRule c = new TestRule(3, "C", false);
+        TestRule d = new TestRule(4, "D", true);
+        RuleExpression expression =
+                RuleExpression.parse("all(\"A\", atleast(2, \"B\", \"C\", not(\"D\")))");
+
+        // Only B of atleast's children is satisfied.
+        assertFalse(expression.reset(Arrays.asList(a, b, c, d)));
+
+        d.mActive = false;
+        assertTrue(expression.update(d));
+
+        a.mActive = false;
+        assertFalse(expression.update(a));
+
+        a.mActive = true;
+        assertTrue(expression.update(a));
+
+        // Back down to one satisfied child of atleast.
+        b.mActive = false;
+        assertFalse(expression.update(b));
+
+        c.mActive = true;
+        assertTrue(expression.update(c));
+    }
+
+    @Test
+    public void doubleNegation()
+    {
+        TestRule a = new TestRule(1, "A", false);
+        RuleExpression expression = RuleExpression.parse("not(not(\"A\"))");
+
+        assertFalse(expression.reset(Arrays.asList(a)));
+        a.mActive = true;
+        assertTrue(expression.update(a));
+        a.mActive = false;
+        assertFalse(expression.update(a));
+    }
+
+    @Test
+    public void ruleUsedTwice()
+    {
+        TestRule a = new TestRule(1, "A", false);
+        RuleExpression either = RuleExpression.parse("any(\"A\", not(\"A\"))");
+        RuleExpression both = RuleExpression.parse("all(\"A\", not(\"A\"))");
+
+        assertTrue(either.reset(Arrays.asList(a)));
+        assertFalse(both.reset(Arrays.asList(a)));
+        a.mActive = true;
+        assertTrue(either.update(a));
+        assertFalse(both.update(a));
+    }
+
+    @Test
+    public void disabledAndInvertedRules()
+    {
+        TestRule a = new TestRule(1, "A", true);
+        TestRule b = new TestRule(2, "B", false);
+        RuleExpression expression = RuleExpression.parse("all(1, 2)");
+
+        assertFalse(expression.reset(Arrays.asList(a, b)));
+
+        // An inverted rule is satisfied while it's inactive.
+        b.mInverted = true;
+        assertTrue(expression.update(b));
+
+        // A disabled rule is never satisfied, whether it's inverted or not.
+        a.mEnabled = false;
+        assertFalse(expression.update(a));
+    }
+
+    @Test
+    public void missingRule()
+    {
+        TestRule a = new TestRule(1, "A", true);
+        RuleExpression expression = RuleExpression.parse("all(\"A\", not(\"Missing\"), not(7))");
+
+        assertTrue(expression.reset(Arrays.asList(a)));
+
+        // Rules that aren't in the expression don't change anything.
+        TestRule other = new TestRule(2, "Other", false);
+        assertTrue(expression.update(other));
+    }
+
+    @Test
+    public void updatesMatchReset()
+    {
+        String text = "any(all(\"A\", not(\"B\")), atleast(2, \"C\", not(any(\"D\", \"E\")), " +
+                      "all(\"A\", \"F\")), not(atleast(3, \"B\", \"C\", \"D\", \"E\")))";
+        List<TestRule> rules = new ArrayList<TestRule>();
+        for (int i = 0; i < 6; i++)
+            rules.add(new TestRule(i + 1, String.valueOf((char) ('A' + i)), false));
+
+        RuleExpression expression = RuleExpression.parse(text);
+        expression.reset(rules);
+
+        Random random = new Random(42);
+        for (int step = 0; step < 1000; step++)
+        {
+            TestRule rule = rules.get(random.nextInt(rules.size()));
+            switch (random.nextInt(3))
+            {
+            case 0:
+                rule.mActive = !rule.mActive;
+                break;
+            case 1:
+                rule.mInverted = !rule.mInverted;
+                break;
+            default:
+                rule.mEnabled = !rule.mEnabled;
+                break;
+            }
+
+            boolean updated = expression.update(rule);
+            boolean fresh = RuleExpression.parse(text).reset(rules);
+            assertEquals("After step " + step, fresh, updated);
+        }
+    }
+
+
+    /**
+     * A rule whose values can be set directly.
+     */
+    private static class TestRule implements RuleExpression.Operand
+    {
+        private final int mId;
+
+        private final String mName;
+
+        private boolean mEnabled = true;
+
+        private boolean mActive;
+
+        private boolean mInverted;
+
+        TestRule(int id, String name, boolean active)
+        {
+            mId = id;
+            mName = name;
+            mActive = active;
+        }
+
+        @Override
+        public int getId()
+        {
+            return mId;
+        }
+
+        @Override
+        public String getName()
+        {
+            return mName;
+        }
+
+        @Override
+        public boolean isEnabled()
+        {
+            return mEnabled;
+        }
+
+        @Override
+        public boolean isActive()
+        {
+            return mActive;
+        }
+
+        @Override
+        public boolean isInverted()
+        {
+            return mInverted;
+        }
+    }
+}
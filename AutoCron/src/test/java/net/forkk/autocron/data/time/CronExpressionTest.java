@@ -0,0 +1,159 @@
+/*
+ * Copyright 2013 Andrew Okin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.forkk.autocron.data.time;
+
+import org.junit.Test;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+
+
+/**
+ * Checks the fire times of cron expressions around daylight saving time changes, leap days, and
+ * expressions that restrict both the day of month and the day of week.
+ */
+public class CronExpressionTest
+{
+    /**
+     * In 2013, the clocks went forward from 02:00 to 03:00 on 10 March, and back from 02:00 to
+     * 01:00 on 3 November.
+     */
+    private static final TimeZone NEW_YORK = TimeZone.getTimeZone("America/New_York");
+
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+    @Test
+    public void skippedTimeFiresLater()
+    {
+        // 02:30 doesn't exist on 10 March, so it fires an hour later, and at 02:30 again after.
+        assertEquals(Arrays.asList("2013-03-09 02:30 EST", "2013-03-10 03:30 EDT",
+                                   "2013-03-11 02:30 EDT"),
+                     fireTimes("30 2 * * *", "2013-03-09 00:00", NEW_YORK, 3));
+    }
+
+    @Test
+    public void repeatedTimeFiresOnce()
+    {
+        // 01:30 happens twice on 3 November, but only fires the first time.
+        assertEquals(Arrays.asList("2013-11-02 01:30 EDT", "2013-11-03 01:30 EDT",
+                                   "2013-11-04 01:30 EST"),
+                     fireTimes("30 1 * * *", "2013-11-02 00:00", NEW_YORK, 3));
+    }
+
+    @Test
+    public void repeatedHourIsNotRepeated()
+    {
+        // The hour from 01:00 to 02:00 happens twice, but half hourly times in it only fire once.
+        assertEquals(Arrays.asList("2013-11-03 01:00 EDT", "2013-11-03 01:30 EDT",
+                                   "2013-11-03 02:00 EST"),
+                     fireTimes("0,30 * * * *", "2013-11-03 00:45", NEW_YORK, 3));
+    }
+
+    @Test
+    public void leapDay()
+    {
+        assertEquals(Arrays.asList("2016-02-29 00:00 UTC", "2020-02-29 00:00 UTC"),
+                     fireTimes("0 0 29 2 *", "2013-03-01 00:00", UTC, 2));
+    }
+
+    @Test
+    public void impossibleDateNeverFires()
+    {
+        CronExpression cron = CronExpression.parse("0 0 30 2 *");
+        assertEquals(CronExpression.NO_MATCH, cron.getNextFireTime(0, UTC));
+    }
+
+    @Test
+    public void dayOfMonthOrDayOfWeek()
+    {
+        // With both restricted, a day matches if it's the 13th or a Friday. 13 September 2013
+        // is both, and only fires once.
+        assertEquals(Arrays.asList("2013-09-06 00:00 UTC", "2013-09-13 00:00 UTC",
+                                   "2013-09-20 00:00 UTC", "2013-09-27 00:00 UTC",
+                                   "2013-10-04 00:00 UTC", "2013-10-11 00:00 UTC",
+                                   "2013-10-13 00:00 UTC", "2013-10-18 00:00 UTC"),
+                     fireTimes("0 0 13 * FRI", "2013-09-01 00:00", UTC, 8));
+    }
+
+    @Test
+    public void onlyDayOfMonthRestricted()
+    {
+        assertEquals(Arrays.asList("2013-09-13 00:00 UTC", "2013-10-13 00:00 UTC"),
+                     fireTimes("0 0 13 * *", "2013-09-01 00:00", UTC, 2));
+        assertEquals(Arrays.asList("2013-09-13 00:00 UTC", "2013-10-13 00:00 UTC"),
+                     fireTimes("0 0 13 * ?", "2013-09-01 00:00", UTC, 2));
+    }
+
+    @Test
+    public void onlyDayOfWeekRestricted()
+    {
+        assertEquals(Arrays.asList("2013-09-06 00:00 UTC", "2013-09-13 00:00 UTC",
+                                   "2013-09-20 00:00 UTC"),
+                     fireTimes("0 0 * * 5", "2013-09-01 00:00", UTC, 3));
+    }
+
+    @Test
+    public void leapDayOrMonday()
+    {
+        // Either restriction can match, so this fires on Mondays in February as well as on the
+        // 29th.
+        assertEquals(Arrays.asList("2016-02-22 00:00 UTC", "2016-02-29 00:00 UTC",
+                                   "2017-02-06 00:00 UTC"),
+                     fireTimes("0 0 29 2 MON", "2016-02-16 00:00", UTC, 3));
+    }
+
+    /**
+     * Lists the given number of fire times of an expression after a local time, formatted as
+     * "yyyy-MM-dd HH:mm zzz" in the given time zone.
+     */
+    private static List<String> fireTimes(String expression, String start, TimeZone timeZone,
+                                          int count)
+    {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm", Locale.US);
+        format.setTimeZone(timeZone);
+        SimpleDateFormat output = new SimpleDateFormat("yyyy-MM-dd HH:mm zzz", Locale.US);
+        output.setTimeZone(timeZone);
+
+        long time;
+        try
+        {
+            time = format.parse(start).getTime();
+        }
+        catch (ParseException e)
+        {
+            throw new IllegalArgumentException(e);
+        }
+
+        CronExpression cron = CronExpression.parse(expression);
+        List<String> result = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++)
+        {
+            time = cron.getNextFireTime(time, timeZone);
+            result.add(output.format(new Date(time)));
+        }
+        return result;
+    }
+}
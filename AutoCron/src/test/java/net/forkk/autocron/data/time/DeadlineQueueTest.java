@@ -0,0 +1,173 @@
+/*
+ * Copyright 2013 Andrew Okin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.forkk.autocron.data.time;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Checks that both of the queue's heaps stay in order when deadlines are moved or removed from the
+ * middle, since each move has to fix up the deadline's position in two heaps at once.
+ */
+public class DeadlineQueueTest
+{
+    @Test
+    public void pollDueReturnsEarliestFirst()
+    {
+        DeadlineQueue queue = new DeadlineQueue();
+        Deadline[] deadlines = createDeadlines(5);
+        long[] times = { 300, 100, 500, 200, 400 };
+        for (int i = 0; i < deadlines.length; i++)
+            queue.schedule(deadlines[i], times[i], 0);
+
+        List<Deadline> due = new ArrayList<Deadline>();
+        assertEquals(3, queue.pollDue(300, due));
+        assertSame(deadlines[1], due.get(0));
+        assertSame(deadlines[3], due.get(1));
+        assertSame(deadlines[0], due.get(2));
+        assertFalse(deadlines[1].isScheduled());
+        assertEquals(2, queue.size());
+        assertEquals(400, queue.peek().getTime());
+    }
+
+    @Test
+    public void rescheduleUpdatesBothHeaps()
+    {
+        DeadlineQueue queue = new DeadlineQueue();
+        Deadline[] deadlines = createDeadlines(3);
+        queue.schedule(deadlines[0], 100, 1000);
+        queue.schedule(deadlines[1], 200, 0);
+        queue.schedule(deadlines[2], 300, 0);
+        assertSame(deadlines[0], queue.peek());
+        assertEquals(200, queue.getLatestWakeTime());
+
+        // Moving the earliest deadline later without changing its latest time only changes the
+        // time heap.
+        queue.schedule(deadlines[0], 1000, 100);
+        assertSame(deadlines[1], queue.peek());
+        assertEquals(200, queue.getLatestWakeTime());
+
+        // Moving the latest deadline earlier has to move it up in both heaps.
+        queue.schedule(deadlines[0], 50, 10);
+        assertSame(deadlines[0], queue.peek());
+        assertEquals(60, queue.getLatestWakeTime());
+        assertEquals(3, queue.size());
+    }
+
+    @Test
+    public void cancelFromMiddle()
+    {
+        DeadlineQueue queue = new DeadlineQueue();
+        Deadline[] deadlines = createDeadlines(7);
+        for (int i = 0; i < deadlines.length; i++)
+            queue.schedule(deadlines[i], (i + 1) * 100, (deadlines.length - i) * 100);
+
+        assertTrue(queue.cancel(deadlines[3]));
+        assertFalse(queue.cancel(deadlines[3]));
+        assertTrue(queue.cancel(deadlines[0]));
+        assertFalse(deadlines[0].isScheduled());
+        assertEquals(5, queue.size());
+        assertSame(deadlines[1], queue.peek());
+        assertEquals(800, queue.getLatestWakeTime());
+
+        List<Deadline> due = new ArrayList<Deadline>();
+        queue.pollDue(Long.MAX_VALUE, due);
+        assertEquals(5, due.size());
+        for (int i = 1; i < due.size(); i++)
+            assertTrue(due.get(i - 1).getTime() <= due.get(i).getTime());
+        assertTrue(queue.isEmpty());
+        assertNull(queue.peek());
+        assertEquals(Deadline.NOT_SCHEDULED, queue.getLatestWakeTime());
+    }
+
+    @Test
+    public void matchesModel()
+    {
+        Random random = new Random(11);
+        DeadlineQueue queue = new DeadlineQueue();
+        // More deadlines than the queue's initial capacity, so it grows along the way.
+        Deadline[] deadlines = createDeadlines(40);
+        List<Deadline> scheduled = new ArrayList<Deadline>();
+        long now = 0;
+
+        for (int step = 0; step < 20000; step++)
+        {
+            Deadline deadline = deadlines[random.nextInt(deadlines.length)];
+            int op = random.nextInt(10);
+            if (op < 6)
+            {
+                queue.schedule(deadline, now + random.nextInt(1000), random.nextInt(500));
+                if (!scheduled.contains(deadline)) scheduled.add(deadline);
+            }
+            else if (op < 9)
+            {
+                assertEquals(scheduled.remove(deadline), queue.cancel(deadline));
+            }
+            else
+            {
+                now += random.nextInt(200);
+                List<Deadline> due = new ArrayList<Deadline>();
+                queue.pollDue(now, due);
+                for (int i = 0; i < due.size(); i++)
+                {
+                    assertTrue(due.get(i).getTime() <= now);
+                    if (i > 0) assertTrue(due.get(i - 1).getTime() <= due.get(i).getTime());
+                    assertTrue(scheduled.remove(due.get(i)));
+                }
+                for (Deadline left : scheduled)
+                    assertTrue(left.getTime() > now);
+            }
+
+            assertEquals("size after step " + step, scheduled.size(), queue.size());
+            long earliest = Long.MAX_VALUE;
+            long latest = Long.MAX_VALUE;
+            for (Deadline left : scheduled)
+            {
+                earliest = Math.min(earliest, left.getTime());
+                latest = Math.min(latest, left.getLatestTime());
+            }
+            if (scheduled.isEmpty())
+            {
+                assertNull(queue.peek());
+                assertEquals(Deadline.NOT_SCHEDULED, queue.getLatestWakeTime());
+            }
+            else
+            {
+                assertEquals("earliest after step " + step, earliest, queue.peek().getTime());
+                assertEquals("latest after step " + step, latest, queue.getLatestWakeTime());
+            }
+        }
+    }
+
+    private static Deadline[] createDeadlines(int count)
+    {
+        Deadline[] deadlines = new Deadline[count];
+        for (int i = 0; i < count; i++)
+            deadlines[i] = new Deadline(null);
+        return deadlines;
+    }
+}
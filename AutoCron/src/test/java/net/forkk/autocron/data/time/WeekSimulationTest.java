@@ -0,0 +1,431 @@
+/*
+ * Copyright 2013 Andrew Okin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.forkk.autocron.data.time;
+
+import org.junit.Test;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+
+
+/**
+ * Simulates a week of automation activity on a virtual clock and checks what happened when.
+ * <p/>
+ * The states, rules and triggers here are thin stand-ins for StateBase, TimeRangeRule, WeekdayRule
+ * and CronTrigger, which can't be created without Android. They schedule themselves with the same
+ * StateTimeline, WindowSchedule and CronSchedule classes as the real components, so the schedule
+ * being checked is the real one.
+ */
+public class WeekSimulationTest
+{
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+    private static final long HOUR_MS = 60 * 60 * 1000;
+
+    private static final long DAY_MS = 24 * HOUR_MS;
+
+    private static final long FIVE_MINUTES_MS = 5 * 60 * 1000;
+
+    /**
+     * Monday 29 July 2013, 00:00 UTC.
+     */
+    private static final long MONDAY = 1375056000000L;
+
+    private static final int WEEKDAYS = TimeWindow.weekdayBit(Calendar.MONDAY) |
+                                        TimeWindow.weekdayBit(Calendar.TUESDAY) |
+                                        TimeWindow.weekdayBit(Calendar.WEDNESDAY) |
+                                        TimeWindow.weekdayBit(Calendar.THURSDAY) |
+                                        TimeWindow.weekdayBit(Calendar.FRIDAY);
+
+    private static final String[] DAY_NAMES = { "Mon", "Tue", "Wed", "Thu", "Fri", "Sat", "Sun" };
+
+    @Test
+    public void workWeek()
+    {
+        VirtualScheduler scheduler = new VirtualScheduler(MONDAY, UTC, false);
+        EventLog log = new EventLog(scheduler);
+        createWorkHours(scheduler, log).start();
+        startCronTrigger(scheduler, log, "Morning alarm", "0 8 * * 1-5");
+
+        scheduler.runFor(7 * DAY_MS);
+
+        List<String> expected = new ArrayList<String>();
+        for (int day = 0; day < 5; day++)
+        {
+            String name = DAY_NAMES[day];
+            expected.add(name + " 08:00 action_triggered Morning alarm");
+            expected.add(name + " 09:00 state_activated Work hours");
+            expected.add(name + " 09:00 action_activated Silence phone");
+            expected.add(name + " 17:00 state_deactivated Work hours");
+            expected.add(name + " 17:00 action_deactivated Silence phone");
+        }
+        assertEquals(expected, describe(log.getEvents()));
+    }
+
+    @Test
+    public void windowCrossingMidnight()
+    {
+        VirtualScheduler scheduler = new VirtualScheduler(MONDAY, UTC, false);
+        EventLog log = new EventLog(scheduler);
+        TestState night = new TestState(scheduler, log, "Night", "Night mode");
+        night.addRule(new WindowRule(scheduler, new TimeWindow(22 * 60, 6 * 60,
+                                                               TimeWindow.ALL_DAYS)));
+        night.start();
+
+        scheduler.runFor(7 * DAY_MS);
+
+        // The window opened on Sunday night, so the state is active from the start.
+        List<String> expected = new ArrayList<String>();
+        expected.add("Mon 00:00 state_activated Night");
+        expected.add("Mon 00:00 action_activated Night mode");
+        for (int day = 0; day < 7; day++)
+        {
+            String name = DAY_NAMES[day];
+            expected.add(name + " 06:00 state_deactivated Night");
+            expected.add(name + " 06:00 action_deactivated Night mode");
+            expected.add(name + " 22:00 state_activated Night");
+            expected.add(name + " 22:00 action_activated Night mode");
+        }
+        assertEquals(expected, describe(log.getEvents()));
+    }
+
+    @Test
+    public void timeZoneChange()
+    {
+        VirtualScheduler scheduler = new VirtualScheduler(MONDAY, UTC, false);
+        EventLog log = new EventLog(scheduler);
+        createWorkHours(scheduler, log).start();
+        startCronTrigger(scheduler, log, "Morning alarm", "0 8 * * 1-5");
+
+        // Fly two hours east at noon on Wednesday. Local times are in UTC+2 from then on, so
+        // everything happens two hours earlier in UTC.
+        scheduler.runUntil(MONDAY + 2 * DAY_MS + 12 * HOUR_MS);
+        log.clear();
+        scheduler.setTimeZone(TimeZone.getTimeZone("GMT+02:00"));
+        scheduler.runUntil(MONDAY + 4 * DAY_MS);
+
+        List<String> expected = new ArrayList<String>();
+        expected.add("Wed 15:00 state_deactivated Work hours");
+        expected.add("Wed 15:00 action_deactivated Silence phone");
+        expected.add("Thu 06:00 action_triggered Morning alarm");
+        expected.add("Thu 07:00 state_activated Work hours");
+        expected.add("Thu 07:00 action_activated Silence phone");
+        expected.add("Thu 15:00 state_deactivated Work hours");
+        expected.add("Thu 15:00 action_deactivated Silence phone");
+        assertEquals(expected, describe(log.getEvents()));
+    }
+
+    @Test
+    public void coalescingSharesWakeups()
+    {
+        // Two states a minute apart with five minutes of tolerance each wake up together.
+        VirtualScheduler scheduler = new VirtualScheduler(MONDAY, UTC, true);
+        EventLog log = new EventLog(scheduler);
+        TestState early = new TestState(scheduler, log, "Early", "Early action");
+        early.addRule(new WindowRule(scheduler, new TimeWindow(9 * 60, 17 * 60,
+                                                               TimeWindow.ALL_DAYS),
+                                     FIVE_MINUTES_MS));
+        early.start();
+        TestState late = new TestState(scheduler, log, "Late", "Late action");
+        late.addRule(new WindowRule(scheduler, new TimeWindow(9 * 60 + 1, 17 * 60 + 1,
+                                                              TimeWindow.ALL_DAYS),
+                                    FIVE_MINUTES_MS));
+        late.start();
+
+        int wakeups = scheduler.runFor(DAY_MS);
+
+        assertEquals(2, wakeups);
+        List<String> expected = new ArrayList<String>();
+        expected.add("Mon 09:05 state_activated Early");
+        expected.add("Mon 09:05 action_activated Early action");
+        expected.add("Mon 09:05 state_activated Late");
+        expected.add("Mon 09:05 action_activated Late action");
+        expected.add("Mon 17:05 state_deactivated Early");
+        expected.add("Mon 17:05 action_deactivated Early action");
+        expected.add("Mon 17:05 state_deactivated Late");
+        expected.add("Mon 17:05 action_deactivated Late action");
+        assertEquals(expected, describe(log.getEvents()));
+    }
+
+    @Test
+    public void timelineOnlyWakesUpForStateChanges()
+    {
+        VirtualScheduler scheduler = new VirtualScheduler(MONDAY, UTC, false);
+        EventLog log = new EventLog(scheduler);
+        createWorkHours(scheduler, log).start();
+
+        // The state changes at 9:00 and 17:00 on weekdays. Over the weekend there's nothing
+        // coming up before the timeline runs out, so it wakes up once on Sunday to extend it.
+        assertEquals(11, scheduler.runFor(7 * DAY_MS));
+    }
+
+    @Test
+    public void rulesScheduleThemselvesWithoutTimeline()
+    {
+        // A state that also depends on something that isn't time based can't be driven by its
+        // timeline, so each rule wakes up for its own edges. That's 9:00 and 17:00 every day for
+        // the time range, and midnight on Saturday and Monday for the weekdays.
+        VirtualScheduler scheduler = new VirtualScheduler(MONDAY, UTC, false);
+        EventLog log = new EventLog(scheduler);
+        TestState work = createWorkHours(scheduler, log);
+        work.setOnlyTimeBased(false);
+        work.start();
+
+        assertEquals(16, scheduler.runFor(7 * DAY_MS));
+        List<String> expected = new ArrayList<String>();
+        for (int day = 0; day < 5; day++)
+        {
+            String name = DAY_NAMES[day];
+            expected.add(name + " 09:00 state_activated Work hours");
+            expected.add(name + " 09:00 action_activated Silence phone");
+            expected.add(name + " 17:00 state_deactivated Work hours");
+            expected.add(name + " 17:00 action_deactivated Silence phone");
+        }
+        assertEquals(expected, describe(log.getEvents()));
+    }
+
+    /**
+     * Creates a state that's active between 9:00 and 17:00 on weekdays, made of a time range rule
+     * and a weekday rule like a user would set it up. It has to be started.
+     */
+    private static TestState createWorkHours(VirtualScheduler scheduler, EventRecorder recorder)
+    {
+        TestState work = new TestState(scheduler, recorder, "Work hours", "Silence phone");
+        work.addRule(new WindowRule(scheduler, new TimeWindow(9 * 60, 17 * 60,
+                                                              TimeWindow.ALL_DAYS)));
+        work.addRule(new WindowRule(scheduler, new TimeWindow(0, TimeWindow.MINUTES_PER_DAY,
+                                                              WEEKDAYS)));
+        return work;
+    }
+
+    /**
+     * Starts a cron schedule that records its action being triggered each time it fires, like
+     * CronTrigger does through its event.
+     */
+    private static void startCronTrigger(VirtualScheduler scheduler, final EventRecorder recorder,
+                                         final String action, String expression)
+    {
+        new CronSchedule(scheduler, CronExpression.parse(expression), new CronSchedule.Listener()
+        {
+            @Override
+            public void onCronFire()
+            {
+                recorder.recordEvent(EventRecorder.EVENT_ACTION_TRIGGERED, action);
+            }
+        }).start();
+    }
+
+    /**
+     * Describes the given events as "Day HH:mm event subject", in UTC.
+     */
+    private static List<String> describe(List<EventLog.Event> events)
+    {
+        SimpleDateFormat format = new SimpleDateFormat("EEE HH:mm", Locale.US);
+        format.setTimeZone(UTC);
+
+        List<String> result = new ArrayList<String>(events.size());
+        for (EventLog.Event event : events)
+        {
+            result.add(format.format(new Date(event.getTime())) + " " + event.getEvent() + " " +
+                       event.getSubject());
+        }
+        return result;
+    }
+
+
+    /**
+     * Stands in for StateBase: a state with one action that's active while all of its rules are.
+     */
+    private static class TestState implements StateTimeline.Owner
+    {
+        private final DeadlineScheduler mScheduler;
+
+        private final EventRecorder mRecorder;
+
+        private final String mName;
+
+        private final String mAction;
+
+        private final List<WindowRule> mRules = new ArrayList<WindowRule>();
+
+        private final StateTimeline mTimeline;
+
+        /**
+         * False if the state also depends on something that isn't time based, which stops it
+         * from being driven by its timeline.
+         */
+        private boolean mOnlyTimeBased = true;
+
+        private boolean mActive;
+
+        TestState(DeadlineScheduler scheduler, EventRecorder recorder, String name, String action)
+        {
+            mScheduler = scheduler;
+            mRecorder = recorder;
+            mName = name;
+            mAction = action;
+            mTimeline = new StateTimeline(scheduler, this);
+        }
+
+        void addRule(WindowRule rule)
+        {
+            rule.mParent = this;
+            mRules.add(rule);
+        }
+
+        void setOnlyTimeBased(boolean onlyTimeBased)
+        {
+            mOnlyTimeBased = onlyTimeBased;
+        }
+
+        void start()
+        {
+            for (WindowRule rule : mRules)
+                rule.start();
+            mTimeline.start();
+        }
+
+        void update()
+        {
+            if (mTimeline.needsRefresh())
+            {
+                // This calls back into here once the timeline is up to date.
+                mTimeline.refresh();
+                return;
+            }
+            if (mTimeline.isDriven()) mTimeline.syncSources(mScheduler.currentTimeMillis());
+
+            boolean active = !mRules.isEmpty();
+            for (WindowRule rule : mRules)
+                active &= rule.mActive;
+            if (active == mActive) return;
+
+            mActive = active;
+            if (active)
+            {
+                mRecorder.recordEvent(EventRecorder.EVENT_STATE_ACTIVATED, mName);
+                mRecorder.recordEvent(EventRecorder.EVENT_ACTION_ACTIVATED, mAction);
+            }
+            else
+            {
+                mRecorder.recordEvent(EventRecorder.EVENT_STATE_DEACTIVATED, mName);
+                mRecorder.recordEvent(EventRecorder.EVENT_ACTION_DEACTIVATED, mAction);
+            }
+        }
+
+        @Override
+        public List<? extends StateTimeline.Source> getTimelineSources()
+        {
+            return mOnlyTimeBased ? mRules : null;
+        }
+
+        @Override
+        public void onTimelineRefreshed()
+        {
+            update();
+        }
+    }
+
+    /**
+     * Stands in for TimeRangeRule and WeekdayRule: a rule that's active while a time window is
+     * open.
+     */
+    private static class WindowRule implements StateTimeline.Source, WindowSchedule.Listener
+    {
+        private static int sNextId;
+
+        private final int mId;
+
+        private final WindowSchedule mSchedule;
+
+        private final long mTolerance;
+
+        private TestState mParent;
+
+        private boolean mActive;
+
+        WindowRule(DeadlineScheduler scheduler, TimeWindow window)
+        {
+            this(scheduler, window, 0);
+        }
+
+        WindowRule(DeadlineScheduler scheduler, TimeWindow window, long tolerance)
+        {
+            mId = sNextId++;
+            mSchedule = new WindowSchedule(scheduler, window, this);
+            mSchedule.setTolerance(tolerance);
+            mTolerance = tolerance;
+        }
+
+        void start()
+        {
+            mSchedule.start();
+        }
+
+        @Override
+        public int getId()
+        {
+            return mId;
+        }
+
+        @Override
+        public boolean isInverted()
+        {
+            return false;
+        }
+
+        @Override
+        public ActivationTimeline getActivationTimeline(long start, long end)
+        {
+            return mSchedule.getTimeline(start, end);
+        }
+
+        @Override
+        public long getAlarmTolerance()
+        {
+            return mTolerance;
+        }
+
+        @Override
+        public void setDrivenByTimeline(boolean driven)
+        {
+            mSchedule.setPaused(driven);
+        }
+
+        @Override
+        public void syncActiveState(long time)
+        {
+            mActive = mSchedule.isOpenAt(time);
+        }
+
+        @Override
+        public void onWindowUpdate(boolean open)
+        {
+            if (open == mActive) return;
+            mActive = open;
+            mParent.update();
+        }
+    }
+}
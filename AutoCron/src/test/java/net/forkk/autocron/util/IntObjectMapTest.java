@@ -0,0 +1,122 @@
+/*
+ * Copyright 2013 Andrew Okin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+
+package net.forkk.autocron.util;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Checks that entries stay reachable when others are removed, since removing shifts colliding
+ * entries back into the gap instead of leaving a tombstone.
+ */
+public class IntObjectMapTest
+{
+    @Test
+    public void removeEachKeyFromFullTable()
+    {
+        // Eight keys fill half of the smallest table, as full as it gets before growing, so some
+        // of them share probe runs.
+        for (int removed = 0; removed < 8; removed++)
+        {
+            IntObjectMap<String> map = new IntObjectMap<String>();
+            for (int key = 0; key < 8; key++)
+                map.put(key, "value " + key);
+
+            assertEquals("value " + removed, map.remove(removed));
+            assertEquals(7, map.size());
+            for (int key = 0; key < 8; key++)
+            {
+                if (key == removed) assertNull(map.get(key));
+                else assertEquals("value " + key, map.get(key));
+            }
+        }
+    }
+
+    @Test
+    public void removeMissingKey()
+    {
+        IntObjectMap<String> map = new IntObjectMap<String>();
+        map.put(1, "one");
+
+        assertNull(map.remove(2));
+        assertEquals(1, map.size());
+        assertEquals("one", map.get(1));
+    }
+
+    @Test
+    public void putAfterRemoveReusesSlot()
+    {
+        IntObjectMap<String> map = new IntObjectMap<String>();
+        map.put(5, "five");
+        map.remove(5);
+        assertFalse(map.containsKey(5));
+
+        assertNull(map.put(5, "again"));
+        assertEquals("again", map.get(5));
+        assertEquals(1, map.size());
+    }
+
+    @Test
+    public void matchesHashMap()
+    {
+        // Keys from a small range collide often, and runs wrap around the end of the table.
+        Random random = new Random(7);
+        IntObjectMap<Integer> map = new IntObjectMap<Integer>();
+        Map<Integer, Integer> expected = new HashMap<Integer, Integer>();
+        for (int step = 0; step < 20000; step++)
+        {
+            int key = random.nextInt(48) - 8;
+            if (random.nextInt(3) == 0)
+                assertEquals("put " + key, expected.put(key, step), map.put(key, step));
+            else assertEquals("remove " + key, expected.remove(key), map.remove(key));
+            assertEquals(expected.size(), map.size());
+
+            for (int check = -8; check < 40; check++)
+                assertEquals("get " + check + " after step " + step, expected.get(check),
+                             map.get(check));
+        }
+    }
+
+    @Test
+    public void copyIsIndependent()
+    {
+        IntObjectMap<String> map = new IntObjectMap<String>();
+        map.put(1, "one");
+        map.put(2, "two");
+
+        IntObjectMap<String> copy = new IntObjectMap<String>(map);
+        copy.remove(1);
+        copy.put(3, "three");
+
+        assertEquals("one", map.get(1));
+        assertFalse(map.containsKey(3));
+        assertEquals(2, map.size());
+        assertTrue(copy.containsKey(2));
+        assertEquals(2, copy.size());
+    }
+}